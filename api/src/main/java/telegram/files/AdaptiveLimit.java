@@ -0,0 +1,89 @@
+package telegram.files;
+
+/**
+ * Additive-increase/multiplicative-decrease controller of the download concurrency of one telegram account.
+ * <p>
+ * The controller is fed with the throughput of every control interval. While all slots are busy:
+ * <ul>
+ *     <li>throughput grows: one more slot is added</li>
+ *     <li>throughput drops sharply: the limit is cut by {@link #DECREASE_FACTOR}</li>
+ *     <li>throughput is flat: the limit is held, and probed upward after {@link #PLATEAU_PROBE_INTERVALS} intervals</li>
+ * </ul>
+ * When slots are idle there is no demand, the throughput says nothing about the limit, so it is held.
+ */
+public class AdaptiveLimit {
+
+    static final double INCREASE_THRESHOLD = 0.05;
+
+    static final double DECREASE_THRESHOLD = 0.2;
+
+    static final double DECREASE_FACTOR = 0.7;
+
+    static final int PLATEAU_PROBE_INTERVALS = 3;
+
+    private final int minLimit;
+
+    private final int maxLimit;
+
+    private int limit;
+
+    private long lastThroughput;
+
+    private int plateauIntervals;
+
+    public AdaptiveLimit(int minLimit, int maxLimit, int initialLimit) {
+        this.minLimit = Math.max(1, minLimit);
+        this.maxLimit = Math.max(this.minLimit, maxLimit);
+        this.limit = clamp(initialLimit);
+    }
+
+    /**
+     * @param throughput bytes per second during the last interval
+     * @param saturated  whether all download slots were busy
+     * @return the new limit
+     */
+    public synchronized int update(long throughput, boolean saturated) {
+        if (!saturated) {
+            plateauIntervals = 0;
+            lastThroughput = throughput;
+            return limit;
+        }
+        if (lastThroughput <= 0) {
+            increase();
+        } else if (throughput < lastThroughput * (1 - DECREASE_THRESHOLD)) {
+            limit = clamp((int) Math.floor(limit * DECREASE_FACTOR));
+            plateauIntervals = 0;
+        } else if (throughput > lastThroughput * (1 + INCREASE_THRESHOLD)) {
+            increase();
+        } else if (++plateauIntervals >= PLATEAU_PROBE_INTERVALS) {
+            increase();
+        }
+        lastThroughput = throughput;
+        return limit;
+    }
+
+    public synchronized int getLimit() {
+        return limit;
+    }
+
+    public synchronized long getLastThroughput() {
+        return lastThroughput;
+    }
+
+    public int getMinLimit() {
+        return minLimit;
+    }
+
+    public int getMaxLimit() {
+        return maxLimit;
+    }
+
+    private void increase() {
+        limit = clamp(limit + 1);
+        plateauIntervals = 0;
+    }
+
+    private int clamp(int value) {
+        return Math.min(maxLimit, Math.max(minLimit, value));
+    }
+}
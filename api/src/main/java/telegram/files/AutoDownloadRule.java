@@ -0,0 +1,145 @@
+package telegram.files;
+
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.StrUtil;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.SettingAutoRecords;
+
+import java.util.List;
+import java.util.Objects;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
+
+/**
+ * Auto download rule compiled into predicates of file records.
+ * <p>
+ * File records filled in by preload carry everything the rule filters on, so download candidates of preloaded chats
+ * are selected from the database and the rule is evaluated in memory, without searching messages by TDLib.
+ */
+public class AutoDownloadRule {
+
+    // Telegram photos are always jpeg and have no file name
+    private static final String PHOTO_MIME_TYPE = "image/jpeg";
+
+    private static final String PHOTO_EXTENSION = "jpg";
+
+    private final String query;
+
+    private final List<String> fileTypes;
+
+    private final Predicate<FileRecord> queryPredicate;
+
+    private final Predicate<FileRecord> filterPredicate;
+
+    private AutoDownloadRule(String query,
+                             List<String> fileTypes,
+                             Predicate<FileRecord> queryPredicate,
+                             Predicate<FileRecord> filterPredicate) {
+        this.query = query;
+        this.fileTypes = fileTypes;
+        this.queryPredicate = queryPredicate;
+        this.filterPredicate = filterPredicate;
+    }
+
+    /**
+     * @param defaultFileTypes file types to download if the rule does not specify any
+     * @throws java.util.regex.PatternSyntaxException if the file name pattern is invalid
+     */
+    public static AutoDownloadRule compile(SettingAutoRecords.Rule rule, List<String> defaultFileTypes) {
+        List<String> fileTypes = rule == null || CollUtil.isEmpty(rule.fileTypes) ? defaultFileTypes : rule.fileTypes;
+        Predicate<FileRecord> filterPredicate = fileRecord -> fileTypes.contains(fileRecord.type());
+        if (rule == null) {
+            return new AutoDownloadRule(null, fileTypes, fileRecord -> true, filterPredicate);
+        }
+
+        String query = StrUtil.isBlank(rule.query) ? null : rule.query.trim();
+        Predicate<FileRecord> queryPredicate = query == null ? fileRecord -> true :
+                fileRecord -> StrUtil.containsIgnoreCase(fileRecord.caption(), query)
+                              || StrUtil.containsIgnoreCase(fileRecord.fileName(), query);
+
+        if (rule.minSize > 0) {
+            filterPredicate = filterPredicate.and(fileRecord -> fileRecord.size() >= rule.minSize);
+        }
+        if (rule.maxSize > 0) {
+            filterPredicate = filterPredicate.and(fileRecord -> fileRecord.size() <= rule.maxSize);
+        }
+        if (CollUtil.isNotEmpty(rule.mimeTypes)) {
+            List<String> mimeTypes = rule.mimeTypes.stream()
+                    .filter(StrUtil::isNotBlank)
+                    .map(mimeType -> mimeType.trim().toLowerCase())
+                    .toList();
+            filterPredicate = filterPredicate.and(fileRecord -> matchMimeType(mimeTypes, getMimeType(fileRecord)));
+        }
+        if (CollUtil.isNotEmpty(rule.extensions)) {
+            List<String> extensions = rule.extensions.stream()
+                    .filter(StrUtil::isNotBlank)
+                    .map(extension -> StrUtil.removePrefix(extension.trim(), ".").toLowerCase())
+                    .toList();
+            filterPredicate = filterPredicate.and(fileRecord -> extensions.contains(getExtension(fileRecord)));
+        }
+        if (StrUtil.isNotBlank(rule.fileNamePattern)) {
+            Pattern pattern = Pattern.compile(rule.fileNamePattern);
+            filterPredicate = filterPredicate.and(fileRecord ->
+                    fileRecord.fileName() != null && pattern.matcher(fileRecord.fileName()).find());
+        }
+        if (rule.startDate > 0) {
+            filterPredicate = filterPredicate.and(fileRecord -> fileRecord.date() >= rule.startDate);
+        }
+        if (rule.endDate > 0) {
+            filterPredicate = filterPredicate.and(fileRecord -> fileRecord.date() <= rule.endDate);
+        }
+        if (rule.minWidth > 0) {
+            filterPredicate = filterPredicate.and(fileRecord -> fileRecord.width() <= 0 || fileRecord.width() >= rule.minWidth);
+        }
+        if (rule.minHeight > 0) {
+            filterPredicate = filterPredicate.and(fileRecord -> fileRecord.height() <= 0 || fileRecord.height() >= rule.minHeight);
+        }
+        return new AutoDownloadRule(query, fileTypes, queryPredicate, filterPredicate);
+    }
+
+    /**
+     * @return query for TDLib message search, null if the rule has no query
+     */
+    public String getQuery() {
+        return query;
+    }
+
+    public List<String> getFileTypes() {
+        return fileTypes;
+    }
+
+    public boolean matches(FileRecord fileRecord) {
+        return filterPredicate.test(fileRecord) && queryPredicate.test(fileRecord);
+    }
+
+    /**
+     * Ignore the query, for files found by TDLib message search which already applies the query.
+     */
+    public boolean matchesFilters(FileRecord fileRecord) {
+        return filterPredicate.test(fileRecord);
+    }
+
+    private static String getMimeType(FileRecord fileRecord) {
+        if (StrUtil.isNotBlank(fileRecord.mimeType())) {
+            return fileRecord.mimeType().toLowerCase();
+        }
+        return Objects.equals(fileRecord.type(), "photo") ? PHOTO_MIME_TYPE : null;
+    }
+
+    private static boolean matchMimeType(List<String> mimeTypes, String mimeType) {
+        if (mimeType == null) {
+            return false;
+        }
+        return mimeTypes.stream().anyMatch(pattern -> pattern.endsWith("/*") ?
+                mimeType.startsWith(pattern.substring(0, pattern.length() - 1)) :
+                pattern.equals(mimeType));
+    }
+
+    private static String getExtension(FileRecord fileRecord) {
+        if (StrUtil.isBlank(fileRecord.fileName())) {
+            return Objects.equals(fileRecord.type(), "photo") ? PHOTO_EXTENSION : null;
+        }
+        return StrUtil.emptyToNull(FileUtil.extName(fileRecord.fileName()).toLowerCase());
+    }
+}
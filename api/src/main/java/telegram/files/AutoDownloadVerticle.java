@@ -11,15 +11,14 @@ import io.vertx.core.Promise;
 import io.vertx.core.json.JsonObject;
 import org.drinkless.tdlib.TdApi;
 import org.jooq.lambda.tuple.Tuple2;
-import telegram.files.repository.FileRecord;
-import telegram.files.repository.SettingAutoRecords;
-import telegram.files.repository.SettingKey;
-
-import java.util.Arrays;
-import java.util.LinkedList;
-import java.util.List;
-import java.util.Map;
+import telegram.files.repository.*;
+
+import java.time.LocalTime;
+import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
 import java.util.stream.IntStream;
 import java.util.stream.Stream;
 
@@ -31,48 +30,137 @@ public class AutoDownloadVerticle extends AbstractVerticle {
 
     private static final int HISTORY_SCAN_INTERVAL = 2 * 60 * 1000;
 
-    private static final int MAX_HISTORY_SCAN_TIME = 10 * 1000;
+    // history cursors scanned in parallel per telegram account
+    private static final int HISTORY_SCAN_CONCURRENCY = 3;
 
+    // high-water mark of history messages waiting in one chat
     private static final int MAX_WAITING_LENGTH = 30;
 
-    private static final int DOWNLOAD_INTERVAL = 10 * 1000;
+    private static final int RECONCILE_INTERVAL = 60 * 1000;
+
+    private static final int ADAPTIVE_INTERVAL = 10 * 1000;
+
+    private static final int THROTTLE_INTERVAL = 1000;
+
+    private static final int MIN_KNOWN_FILES_CAPACITY = 10_000;
+
+    private static final double KNOWN_FILES_FPP = 0.01;
 
     private static final List<String> DEFAULT_FILE_TYPE_ORDER = List.of("photo", "video", "audio", "file");
 
-    // telegramId -> messages
-    private final Map<Long, LinkedList<TdApi.Message>> waitingDownloadMessages = new ConcurrentHashMap<>();
+    // telegramId -> queued files
+    private final Map<Long, DownloadQueue<QueuedFile>> waitingDownloadMessages = new ConcurrentHashMap<>();
 
     private final SettingAutoRecords autoRecords;
 
-    private int limit = DEFAULT_LIMIT;
+    private final DownloadSlots downloadSlots = new DownloadSlots(DEFAULT_LIMIT);
+
+    // telegramId -> adaptive limit, only used when adaptive mode is enabled
+    private final Map<Long, AdaptiveLimit> adaptiveLimits = new ConcurrentHashMap<>();
+
+    private volatile boolean adaptive;
+
+    private volatile int minLimit = (int) SettingKey.autoDownloadMinLimit.defaultValue;
+
+    private volatile int maxLimit = (int) SettingKey.autoDownloadMaxLimit.defaultValue;
+
+    private volatile DownloadOrder downloadOrder = DownloadOrder.SCAN;
+
+    // telegramId -> unique id of the file in the slot reserved for large files, only used by orders reserving a slot
+    private final Map<Long, String> reservedSlots = new ConcurrentHashMap<>();
+
+    private volatile SettingBandwidthLimits bandwidthLimits = new SettingBandwidthLimits();
+
+    private final BandwidthThrottle globalThrottle = new BandwidthThrottle(System.currentTimeMillis());
+
+    // telegramId -> throttle
+    private final Map<Long, BandwidthThrottle> accountThrottles = new ConcurrentHashMap<>();
+
+    // telegramId -> file id -> unique id of the files paused by the throttle, only these files are resumed by the throttle
+    private final Map<Long, Map<Integer, String>> throttlePausedFileIds = new ConcurrentHashMap<>();
+
+    // telegramId -> unique ids of interactive downloads, background downloads are paused while any is downloading
+    private final Map<Long, Set<String>> interactiveUniqueIds = new ConcurrentHashMap<>();
+
+    // telegramId -> file id -> unique id of the files paused for interactive downloads, only these files are resumed after them
+    private final Map<Long, Map<Integer, String>> priorityPausedFileIds = new ConcurrentHashMap<>();
+
+    // telegramId -> unique ids of files that are queued or not idle, only possible hits are verified by database
+    private volatile Map<Long, BloomFilter> knownUniqueIds = new ConcurrentHashMap<>();
+
+    // telegramId:uniqueId marked while the known unique ids are loading, replayed into the loaded filters
+    private List<String> knownUniqueIdsLog;
+
+    private volatile boolean knownUniqueIdsReady;
+
+    // telegramId:chatId -> the rule and its compiled form, compiled again when the rule is replaced
+    private final Map<String, Tuple2<SettingAutoRecords.Rule, AutoDownloadRule>> compiledRules = new ConcurrentHashMap<>();
+
+    // telegramId:chatId -> fileType -> cursor
+    private final Map<String, Map<String, HistoryScanner.Cursor>> scanCursors = new ConcurrentHashMap<>();
+
+    // telegramId -> persisted jobs of each chat, not restored because the account was not authorized yet
+    private final Map<Long, List<List<DownloadJobRecord>>> unrestoredJobs = new ConcurrentHashMap<>();
+
+    private final HistoryScanner historyScanner = new HistoryScanner(HISTORY_SCAN_CONCURRENCY, new HistoryScanner.Handler() {
+        @Override
+        public boolean isFull(HistoryScanner.Cursor cursor) {
+            return isHistoryQueueFull(cursor.telegramId, cursor.chatId);
+        }
+
+        @Override
+        public Future<Boolean> scanPage(HistoryScanner.Cursor cursor) {
+            return scanHistoryPage(cursor);
+        }
+
+        @Override
+        public void checkpoint(HistoryScanner.Cursor cursor) {
+            saveScanCursor(cursor);
+        }
+    });
 
     public AutoDownloadVerticle() {
         this.autoRecords = AutoRecordsHolder.INSTANCE.autoRecords();
-        AutoRecordsHolder.INSTANCE.registerOnRemoveListener(removedItems -> removedItems.forEach(item ->
-                waitingDownloadMessages.getOrDefault(item.telegramId, new LinkedList<>())
-                        .removeIf(m -> m.chatId == item.chatId)));
+        AutoRecordsHolder.INSTANCE.registerOnRemoveListener(removedItems -> removedItems.forEach(item -> {
+            DownloadQueue<QueuedFile> queue = waitingDownloadMessages.get(item.telegramId);
+            if (queue != null) {
+                queue.removeChat(item.chatId);
+            }
+            scanCursors.remove(item.uniqueKey());
+            compiledRules.remove(item.uniqueKey());
+            DataVerticle.downloadJobRepository.deleteByChatId(item.telegramId, item.chatId);
+            DataVerticle.scanCursorRepository.delete(item.telegramId, item.chatId);
+        }));
     }
 
     @Override
     public void start(Promise<Void> startPromise) {
         initAutoDownload()
                 .compose(v -> this.initEventConsumer())
+                .compose(v -> this.loadKnownUniqueIds())
+                .compose(v -> this.restoreWaitingDownloadMessages())
+                .compose(v -> this.reconcileSlots())
                 .onSuccess(v -> {
-                    vertx.setPeriodic(0, HISTORY_SCAN_INTERVAL,
-                            id -> autoRecords.getDownloadEnabledItems()
-                                    .stream()
-                                    .filter(auto -> auto.isNotComplete(SettingAutoRecords.HISTORY_DOWNLOAD_STATE))
-                                    .forEach(auto -> addHistoryMessage(auto, System.currentTimeMillis())));
-                    vertx.setPeriodic(0, DOWNLOAD_INTERVAL,
-                            id -> waitingDownloadMessages.keySet().forEach(this::download));
+                    vertx.setPeriodic(0, HISTORY_SCAN_INTERVAL, id -> scanHistory());
+                    vertx.setPeriodic(RECONCILE_INTERVAL, RECONCILE_INTERVAL, id -> {
+                        restoreUnrestoredJobs();
+                        reconcileSlots();
+                        if (knownUniqueIds.values().stream().anyMatch(BloomFilter::isSaturated)) {
+                            loadKnownUniqueIds();
+                        }
+                    });
+                    vertx.setPeriodic(ADAPTIVE_INTERVAL, ADAPTIVE_INTERVAL, id -> adjustLimits());
+                    vertx.setPeriodic(THROTTLE_INTERVAL, THROTTLE_INTERVAL, id -> enforceBandwidthLimits());
 
                     log.info("""
                             Auto download verticle started!
-                            |History scan interval: %s ms
-                            |Download interval: %s ms
+                            |History scan interval: %s ms, concurrency: %s per telegram account
+                            |Slot reconcile interval: %s ms
                             |Download limit: %s per telegram account!
+                            |Adaptive download limit: %s, range: %s - %s
                             |Auto chats: %s
-                            """.formatted(HISTORY_SCAN_INTERVAL, DOWNLOAD_INTERVAL, limit, autoRecords.getDownloadEnabledItems().size()));
+                            """.formatted(HISTORY_SCAN_INTERVAL, HISTORY_SCAN_CONCURRENCY, RECONCILE_INTERVAL, downloadSlots.getLimit(),
+                            adaptive, minLimit, maxLimit, autoRecords.getDownloadEnabledItems().size()));
 
                     startPromise.complete();
                 })
@@ -85,182 +173,860 @@ public class AutoDownloadVerticle extends AbstractVerticle {
     }
 
     private Future<Void> initAutoDownload() {
-        return DataVerticle.settingRepository.<Integer>getByKey(SettingKey.autoDownloadLimit)
-                .onSuccess(limit -> {
-                    if (limit != null) {
-                        this.limit = limit;
-                    }
+        return Future.all(List.of(
+                DataVerticle.settingRepository.<Integer>getByKey(SettingKey.autoDownloadLimit)
+                        .onSuccess(limit -> {
+                            if (limit != null) {
+                                downloadSlots.setLimit(limit);
+                            }
+                        })
+                        .onFailure(e -> log.error("Get Auto download limit failed!", e)),
+                DataVerticle.settingRepository.<Boolean>getByKey(SettingKey.autoDownloadAdaptive)
+                        .onSuccess(adaptive -> this.adaptive = adaptive)
+                        .onFailure(e -> log.error("Get Auto download adaptive failed!", e)),
+                DataVerticle.settingRepository.<Integer>getByKey(SettingKey.autoDownloadMinLimit)
+                        .onSuccess(minLimit -> this.minLimit = minLimit)
+                        .onFailure(e -> log.error("Get Auto download min limit failed!", e)),
+                DataVerticle.settingRepository.<Integer>getByKey(SettingKey.autoDownloadMaxLimit)
+                        .onSuccess(maxLimit -> this.maxLimit = maxLimit)
+                        .onFailure(e -> log.error("Get Auto download max limit failed!", e)),
+                DataVerticle.settingRepository.<DownloadOrder>getByKey(SettingKey.autoDownloadOrder)
+                        .onSuccess(this::setDownloadOrder)
+                        .onFailure(e -> log.error("Get Auto download order failed!", e)),
+                DataVerticle.settingRepository.<SettingBandwidthLimits>getByKey(SettingKey.bandwidthLimits)
+                        .onSuccess(bandwidthLimits -> {
+                            if (bandwidthLimits != null) {
+                                this.bandwidthLimits = bandwidthLimits;
+                            }
+                        })
+                        .onFailure(e -> log.error("Get bandwidth limits failed!", e)),
+                DataVerticle.scanCursorRepository.getAll()
+                        // Scan cursors are saved after every page, so they are newer than the auto settings
+                        .onSuccess(cursors -> cursors.forEach(cursor ->
+                                scanCursors.computeIfAbsent(cursor.telegramId() + ":" + cursor.chatId(), k -> new ConcurrentHashMap<>())
+                                        .put(cursor.fileType(), new HistoryScanner.Cursor(cursor.telegramId(),
+                                                cursor.chatId(),
+                                                cursor.fileType(),
+                                                cursor.fromMessageId(),
+                                                cursor.completed()))))
+                        .onFailure(e -> log.error("Get scan cursors failed!", e))
+        )).mapEmpty();
+    }
+
+    private Future<Void> restoreWaitingDownloadMessages() {
+        return DataVerticle.downloadJobRepository.unclaimAll()
+                .compose(r -> DataVerticle.downloadJobRepository.getAll())
+                .compose(jobs -> {
+                    Map<String, List<DownloadJobRecord>> chatJobs = jobs.stream()
+                            .collect(Collectors.groupingBy(job -> job.telegramId() + ":" + job.chatId(),
+                                    LinkedHashMap::new,
+                                    Collectors.toList()));
+                    return Future.all(chatJobs.values().stream()
+                            .map(this::restoreWaitingDownloadMessages)
+                            .toList());
                 })
-                .onFailure(e -> log.error("Get Auto download limit failed!", e))
+                .onFailure(e -> log.error("Restore waiting download messages failed!", e))
+                .<Void>mapEmpty()
+                .otherwiseEmpty();
+    }
+
+    private Future<Void> restoreWaitingDownloadMessages(List<DownloadJobRecord> jobs) {
+        long telegramId = jobs.getFirst().telegramId();
+        long chatId = jobs.getFirst().chatId();
+        SettingAutoRecords.Item item = autoRecords.getItem(telegramId, chatId);
+        TelegramVerticle telegramVerticle = TelegramVerticles.get(telegramId).orElse(null);
+        if (item == null || !item.downloadEnabled) {
+            return Future.succeededFuture();
+        }
+        if (telegramVerticle == null || !telegramVerticle.authorized) {
+            // Restored by the reconcile tick once the account is authorized
+            unrestoredJobs.computeIfAbsent(telegramId, k -> Collections.synchronizedList(new ArrayList<>())).add(jobs);
+            return Future.succeededFuture();
+        }
+
+        Map<Long, DownloadJobRecord> jobMap = jobs.stream()
+                .collect(Collectors.toMap(DownloadJobRecord::messageId, Function.identity(), (a, b) -> a));
+        return Future.all(CollUtil.split(jobs, 100).stream()
+                        .map(chunk -> telegramVerticle.client.execute(new TdApi.GetMessages(chatId,
+                                        chunk.stream().mapToLong(DownloadJobRecord::messageId).toArray()))
+                                .compose(messages -> filterDownloadableMessages(Stream.of(messages.messages)
+                                        .filter(Objects::nonNull)
+                                        .toList()))
+                                .compose(messages -> {
+                                    DownloadQueue<QueuedFile> queue = getQueue(telegramId);
+                                    Set<String> restoredUniqueIds = new HashSet<>();
+                                    messages.stream()
+                                            .map(QueuedFile::of)
+                                            .filter(Objects::nonNull)
+                                            .forEach(queuedFile -> {
+                                                String uniqueId = queuedFile.uniqueId();
+                                                DownloadJobRecord job = jobMap.get(queuedFile.messageId());
+                                                if (job != null && Objects.equals(job.uniqueId(), uniqueId)
+                                                    && queue.offer(chatId, uniqueId, queuedFile.withLive(job.live()), job.live())) {
+                                                    restoredUniqueIds.add(uniqueId);
+                                                }
+                                            });
+                                    log.debug("Restore waiting download messages! TelegramId: %d ChatId: %d restored: %d"
+                                            .formatted(telegramId, chatId, restoredUniqueIds.size()));
+                                    // jobs whose message is deleted or file is no longer idle are obsolete
+                                    List<String> obsoleteUniqueIds = chunk.stream()
+                                            .map(DownloadJobRecord::uniqueId)
+                                            .filter(uniqueId -> !restoredUniqueIds.contains(uniqueId))
+                                            .toList();
+                                    return DataVerticle.downloadJobRepository.delete(telegramId, obsoleteUniqueIds);
+                                }))
+                        .toList())
                 .mapEmpty();
     }
 
+    private void restoreUnrestoredJobs() {
+        List.copyOf(unrestoredJobs.keySet()).forEach(telegramId -> {
+            if (TelegramVerticles.get(telegramId).filter(v -> v.authorized).isEmpty()) {
+                return;
+            }
+            List<List<DownloadJobRecord>> chatJobs = unrestoredJobs.remove(telegramId);
+            if (chatJobs == null) {
+                return;
+            }
+            log.debug("Restore waiting download messages of authorized account! TelegramId: %d chats: %d"
+                    .formatted(telegramId, chatJobs.size()));
+            Future.all(List.copyOf(chatJobs).stream()
+                            .map(this::restoreWaitingDownloadMessages)
+                            .toList())
+                    .onSuccess(r -> download(telegramId))
+                    .onFailure(e -> log.error("Restore waiting download messages failed! TelegramId: %d".formatted(telegramId), e));
+        });
+    }
+
+    private Future<Void> loadKnownUniqueIds() {
+        synchronized (this) {
+            knownUniqueIdsLog = new ArrayList<>();
+        }
+        return DataVerticle.fileRepository.getNotIdleUniqueIds()
+                .onSuccess(uniqueIds -> {
+                    Map<Long, BloomFilter> filters = new ConcurrentHashMap<>();
+                    uniqueIds.forEach((telegramId, ids) -> {
+                        BloomFilter filter = newKnownUniqueIdsFilter(ids.size());
+                        ids.forEach(filter::put);
+                        filters.put(telegramId, filter);
+                    });
+                    synchronized (this) {
+                        knownUniqueIdsLog.forEach(key -> {
+                            String[] parts = key.split(":", 2);
+                            filters.computeIfAbsent(Long.parseLong(parts[0]), k -> newKnownUniqueIdsFilter(0)).put(parts[1]);
+                        });
+                        knownUniqueIdsLog = null;
+                        knownUniqueIds = filters;
+                    }
+                    knownUniqueIdsReady = true;
+                    log.debug("Load known unique ids! %s".formatted(filters.entrySet().stream()
+                            .map(e -> e.getKey() + ": " + e.getValue().getInsertions())
+                            .collect(Collectors.joining(", "))));
+                })
+                .onFailure(e -> {
+                    synchronized (this) {
+                        knownUniqueIdsLog = null;
+                    }
+                    log.error("Load known unique ids failed!", e);
+                })
+                .<Void>mapEmpty()
+                .otherwiseEmpty();
+    }
+
+    private BloomFilter newKnownUniqueIdsFilter(int size) {
+        return new BloomFilter(Math.max(MIN_KNOWN_FILES_CAPACITY, size * 2L), KNOWN_FILES_FPP);
+    }
+
+    private void markKnownUniqueId(long telegramId, String uniqueId) {
+        synchronized (this) {
+            knownUniqueIds.computeIfAbsent(telegramId, k -> newKnownUniqueIdsFilter(0)).put(uniqueId);
+            if (knownUniqueIdsLog != null) {
+                knownUniqueIdsLog.add(telegramId + ":" + uniqueId);
+            }
+        }
+    }
+
+    /**
+     * file_record is shared by all telegram accounts, so a file known by any account is a possible hit.
+     */
+    private boolean mightBeKnownUniqueId(String uniqueId) {
+        if (!knownUniqueIdsReady) {
+            return true;
+        }
+        return knownUniqueIds.values().stream().anyMatch(filter -> filter.mightContain(uniqueId));
+    }
+
+    private Future<List<TdApi.Message>> filterDownloadableMessages(List<TdApi.Message> messages) {
+        List<String> possibleHits = TdApiHelp.getFileUniqueIds(messages).stream()
+                .filter(this::mightBeKnownUniqueId)
+                .toList();
+        if (possibleHits.isEmpty()) {
+            // Definitely new files, skip the database lookup
+            return Future.succeededFuture(messages);
+        }
+        return DataVerticle.fileRepository.getFilesByUniqueId(possibleHits)
+                .map(existFiles -> messages.stream()
+                        .filter(message -> {
+                            String uniqueId = TdApiHelp.getFileUniqueId(message);
+                            if (!existFiles.containsKey(uniqueId)) {
+                                return true;
+                            } else {
+                                FileRecord fileRecord = existFiles.get(uniqueId);
+                                return fileRecord.isDownloadStatus(FileRecord.DownloadStatus.idle);
+                            }
+                        })
+                        .toList());
+    }
+
+    private void saveScanCursor(HistoryScanner.Cursor cursor) {
+        SettingAutoRecords.Item auto = autoRecords.getItem(cursor.telegramId, cursor.chatId);
+        if (auto != null) {
+            syncHistoryState(auto, getScanCursors(auto));
+        }
+        DataVerticle.scanCursorRepository.createOrUpdate(new ScanCursorRecord(cursor.telegramId,
+                cursor.chatId,
+                cursor.fileType,
+                cursor.fromMessageId,
+                cursor.completed,
+                System.currentTimeMillis()
+        ));
+    }
+
     private Future<Void> initEventConsumer() {
         vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.autoDownloadLimit.name()), message -> {
             log.debug("Auto download limit update: %s".formatted(message.body()));
-            this.limit = Convert.toInt(message.body(), DEFAULT_LIMIT);
+            downloadSlots.setLimit(Convert.toInt(message.body(), DEFAULT_LIMIT));
+            waitingDownloadMessages.keySet().forEach(this::download);
+        });
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.autoDownloadAdaptive.name()), message -> {
+            log.debug("Auto download adaptive update: %s".formatted(message.body()));
+            this.adaptive = Convert.toBool(message.body(), false);
+            resetAdaptiveLimits();
+        });
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.autoDownloadMinLimit.name()), message -> {
+            log.debug("Auto download min limit update: %s".formatted(message.body()));
+            this.minLimit = Convert.toInt(message.body(), (int) SettingKey.autoDownloadMinLimit.defaultValue);
+            resetAdaptiveLimits();
+        });
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.autoDownloadMaxLimit.name()), message -> {
+            log.debug("Auto download max limit update: %s".formatted(message.body()));
+            this.maxLimit = Convert.toInt(message.body(), (int) SettingKey.autoDownloadMaxLimit.defaultValue);
+            resetAdaptiveLimits();
+        });
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.autoDownloadOrder.name()), message -> {
+            log.debug("Auto download order update: %s".formatted(message.body()));
+            String value = (String) message.body();
+            setDownloadOrder(StrUtil.isBlank(value) ? (DownloadOrder) SettingKey.autoDownloadOrder.defaultValue :
+                    (DownloadOrder) SettingKey.autoDownloadOrder.converter.apply(value));
+        });
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.bandwidthLimits.name()), message -> {
+            log.debug("Bandwidth limits update: %s".formatted(message.body()));
+            String value = (String) message.body();
+            this.bandwidthLimits = StrUtil.isBlank(value) ? new SettingBandwidthLimits() :
+                    (SettingBandwidthLimits) SettingKey.bandwidthLimits.converter.apply(value);
         });
         vertx.eventBus().consumer(EventEnum.MESSAGE_RECEIVED.address(), message -> {
             log.trace("Auto download message received: %s".formatted(message.body()));
             this.onNewMessage((JsonObject) message.body());
         });
+        vertx.eventBus().consumer(EventEnum.TELEGRAM_EVENT.address(), message -> {
+            JsonObject jsonObject = (JsonObject) message.body();
+            JsonObject payload = jsonObject.getJsonObject("payload");
+            if (payload == null || !Objects.equals(payload.getInteger("type"), EventPayload.TYPE_FILE_STATUS)) {
+                return;
+            }
+            Long telegramId = Convert.toLong(jsonObject.getValue("telegramId"), null);
+            if (telegramId == null) {
+                return;
+            }
+            this.onFileStatusUpdated(telegramId, payload.getJsonObject("data"));
+        });
+        vertx.eventBus().consumer(EventEnum.AUTO_DOWNLOAD_STATISTICS.address(), message ->
+                message.reply(getStatistics(Convert.toLong(message.body()))));
         return Future.succeededFuture();
     }
 
-    private void addHistoryMessage(SettingAutoRecords.Item auto, long currentTimeMillis) {
-        log.debug("Start scan history! TelegramId: %d ChatId: %d FileType: %s".formatted(auto.telegramId, auto.chatId, auto.nextFileType));
-        if (System.currentTimeMillis() - currentTimeMillis > MAX_HISTORY_SCAN_TIME) {
-            log.debug("Scan history timeout! TelegramId: %d ChatId: %d".formatted(auto.telegramId, auto.chatId));
-            return;
+    private JsonObject getStatistics(long telegramId) {
+        long now = System.currentTimeMillis();
+        DownloadSlots.SlotStats slotStats = downloadSlots.getSlotStats(telegramId);
+        DownloadQueue<QueuedFile> queue = waitingDownloadMessages.get(telegramId);
+        JsonObject queueDepths = JsonObject.of();
+        if (queue != null) {
+            queue.getDepths().forEach((chatId, depth) -> queueDepths.put(String.valueOf(chatId), depth));
         }
-        if (isExceedLimit(auto.telegramId)) {
-            log.debug("Scan history exceed per telegram account limit! TelegramId: %d ChatId: %d".formatted(auto.telegramId, auto.chatId));
-            return;
+        AdaptiveLimit adaptiveLimit = adaptiveLimits.get(telegramId);
+        return new JsonObject()
+                .put("limit", slotStats.limit())
+                .put("adaptive", adaptive)
+                .put("order", downloadOrder.name())
+                .put("throughput", adaptiveLimit == null ? 0 : adaptiveLimit.getLastThroughput())
+                .put("active", slotStats.active())
+                .put("interactive", interactiveUniqueIds.getOrDefault(telegramId, Set.of()).size())
+                .put("waiting", queue == null ? 0 : queue.size())
+                .put("queueDepths", queueDepths)
+                .put("slotUtilization", slotStats.utilization())
+                .put("bandwidthLimit", bandwidthLimits.getAccountLimit(telegramId, LocalTime.now()))
+                .put("globalBandwidthLimit", bandwidthLimits.getGlobalLimit(LocalTime.now()))
+                .put("downloadRate", TelegramVerticles.get(telegramId).map(v -> v.getDownloadRate(now)).orElse(0L))
+                .put("throttle", JsonObject.mapFrom(getAccountThrottle(telegramId).getStats(now)))
+                .put("globalThrottle", JsonObject.mapFrom(globalThrottle.getStats(now)));
+    }
+
+    private void scanHistory() {
+        Map<Long, List<HistoryScanner.Cursor>> accountCursors = new LinkedHashMap<>();
+        for (SettingAutoRecords.Item auto : autoRecords.getDownloadEnabledItems()) {
+            if (!auto.isNotComplete(SettingAutoRecords.HISTORY_DOWNLOAD_STATE)) {
+                continue;
+            }
+            List<HistoryScanner.Cursor> cursors = getScanCursors(auto);
+            if (syncHistoryState(auto, cursors)) {
+                continue;
+            }
+            accountCursors.computeIfAbsent(auto.telegramId, k -> new ArrayList<>()).addAll(cursors);
+        }
+        accountCursors.forEach((telegramId, cursors) -> {
+            if (TelegramVerticles.get(telegramId).filter(v -> v.authorized).isEmpty()) {
+                return;
+            }
+            // Interleave chats, so the first cursors scanned in parallel belong to different chats
+            List<HistoryScanner.Cursor> orderedCursors = cursors.stream()
+                    .filter(cursor -> !cursor.completed)
+                    .collect(Collectors.groupingBy(cursor -> cursor.chatId, LinkedHashMap::new, Collectors.toList()))
+                    .values()
+                    .stream()
+                    .flatMap(chatCursors -> IntStream.range(0, chatCursors.size())
+                            .mapToObj(i -> new Tuple2<>(i, chatCursors.get(i))))
+                    .sorted(Comparator.comparingInt(Tuple2::v1))
+                    .map(Tuple2::v2)
+                    .toList();
+            log.debug("Start scan history! TelegramId: %d Cursors: %d".formatted(telegramId, orderedCursors.size()));
+            historyScanner.scan(telegramId, orderedCursors)
+                    .onSuccess(r -> log.debug("Scan history finished! TelegramId: %d".formatted(telegramId)));
+        });
+    }
+
+    private List<HistoryScanner.Cursor> getScanCursors(SettingAutoRecords.Item auto) {
+        List<String> fileTypes = handleRule(auto).getFileTypes();
+        Map<String, HistoryScanner.Cursor> cursors = scanCursors.computeIfAbsent(auto.uniqueKey(), k -> new ConcurrentHashMap<>());
+        // Chats scanned before per file type cursors continue from their single cursor:
+        // the file types before it are completed, the file types after it start from the newest message
+        int legacyIndex = cursors.isEmpty() ? fileTypes.indexOf(auto.nextFileType) : -1;
+        for (int i = 0; i < fileTypes.size(); i++) {
+            String fileType = fileTypes.get(i);
+            long fromMessageId = i == legacyIndex ? auto.nextFromMessageId : 0;
+            boolean completed = i < legacyIndex;
+            cursors.computeIfAbsent(fileType,
+                    k -> new HistoryScanner.Cursor(auto.telegramId, auto.chatId, fileType, fromMessageId, completed));
+        }
+        return fileTypes.stream().map(cursors::get).toList();
+    }
+
+    /**
+     * Mirror the cursors to the auto settings.
+     *
+     * @return whether the history scan of the chat is completed
+     */
+    private boolean syncHistoryState(SettingAutoRecords.Item auto, List<HistoryScanner.Cursor> cursors) {
+        Optional<HistoryScanner.Cursor> next = cursors.stream().filter(cursor -> !cursor.completed).findFirst();
+        if (next.isPresent()) {
+            auto.nextFileType = next.get().fileType;
+            auto.nextFromMessageId = next.get().fromMessageId;
+            return false;
+        }
+        if (auto.isNotComplete(SettingAutoRecords.HISTORY_DOWNLOAD_STATE)) {
+            log.debug("%s No more history files found! TelegramId: %d ChatId: %d".formatted(auto.uniqueKey(), auto.telegramId, auto.chatId));
+            auto.complete(SettingAutoRecords.HISTORY_DOWNLOAD_STATE);
         }
-        Tuple2<String, List<String>> rule = handleRule(auto);
+        return true;
+    }
 
-        TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(auto.telegramId);
+    private Future<Boolean> scanHistoryPage(HistoryScanner.Cursor cursor) {
+        SettingAutoRecords.Item auto = autoRecords.getItem(cursor.telegramId, cursor.chatId);
+        TelegramVerticle telegramVerticle = TelegramVerticles.get(cursor.telegramId).orElse(null);
+        if (auto == null || !auto.downloadEnabled || telegramVerticle == null || !telegramVerticle.authorized) {
+            return Future.succeededFuture(false);
+        }
+        log.trace("Scan history page! Cursor: %s FromMessageId: %d".formatted(cursor, cursor.fromMessageId));
+
+        AutoDownloadRule rule = handleRule(auto);
+        if (auto.preloadEnabled && !auto.isNotComplete(SettingAutoRecords.HISTORY_PRELOAD_STATE)) {
+            return scanPreloadedHistoryPage(cursor, rule);
+        }
         TdApi.SearchChatMessages searchChatMessages = new TdApi.SearchChatMessages();
-        searchChatMessages.query = rule.v1;
-        searchChatMessages.chatId = auto.chatId;
-        searchChatMessages.fromMessageId = auto.nextFromMessageId;
+        searchChatMessages.query = rule.getQuery();
+        searchChatMessages.chatId = cursor.chatId;
+        searchChatMessages.fromMessageId = cursor.fromMessageId;
         searchChatMessages.limit = Math.min(MAX_WAITING_LENGTH, 100);
-        searchChatMessages.filter = TdApiHelp.getSearchMessagesFilter(auto.nextFileType);
-        TdApi.FoundChatMessages foundChatMessages = Future.await(telegramVerticle.client.execute(searchChatMessages)
-                .onFailure(r -> log.error("Search chat messages failed! TelegramId: %d ChatId: %d".formatted(auto.telegramId, auto.chatId), r))
-        );
-        if (foundChatMessages == null) {
+        searchChatMessages.filter = TdApiHelp.getSearchMessagesFilter(cursor.fileType);
+        return telegramVerticle.client.execute(searchChatMessages)
+                .onFailure(r -> log.error("Search chat messages failed! TelegramId: %d ChatId: %d".formatted(cursor.telegramId, cursor.chatId), r))
+                .compose(foundChatMessages -> {
+                    if (foundChatMessages.messages.length == 0) {
+                        log.debug("%s No more %s files found!".formatted(auto.uniqueKey(), cursor.fileType));
+                        cursor.completed = true;
+                        return Future.succeededFuture(true);
+                    }
+                    return filterDownloadableMessages(Arrays.asList(foundChatMessages.messages))
+                            // The query is applied by the search already
+                            .map(messages -> filterRuleMatchedMessages(cursor.telegramId, messages, rule::matchesFilters))
+                            .compose(messages -> CollUtil.isEmpty(messages) ? Future.succeededFuture(true) :
+                                    addWaitingDownloadMessages(cursor.telegramId, cursor.chatId, messages, false))
+                            .map(accepted -> {
+                                // The jobs are persisted before the cursor moves, so a restart never loses discovered files
+                                if (accepted) {
+                                    cursor.fromMessageId = foundChatMessages.nextFromMessageId;
+                                    cursor.completed = foundChatMessages.nextFromMessageId == 0;
+                                }
+                                return accepted;
+                            });
+                });
+    }
+
+    /**
+     * Files of a preloaded chat are all in file_record, select the candidates there instead of searching by TDLib.
+     */
+    private Future<Boolean> scanPreloadedHistoryPage(HistoryScanner.Cursor cursor, AutoDownloadRule rule) {
+        int limit = Math.min(MAX_WAITING_LENGTH, 100);
+        return DataVerticle.fileRepository.getIdleFiles(cursor.telegramId, cursor.chatId, cursor.fileType, cursor.fromMessageId, limit)
+                .compose(fileRecords -> {
+                    if (fileRecords.isEmpty()) {
+                        log.debug("%s:%s No more preloaded %s files found!".formatted(cursor.telegramId, cursor.chatId, cursor.fileType));
+                        cursor.completed = true;
+                        return Future.succeededFuture(true);
+                    }
+                    List<QueuedFile> queuedFiles = fileRecords.stream()
+                            .filter(fileRecord -> StrUtil.isNotBlank(fileRecord.uniqueId()) && rule.matches(fileRecord))
+                            .map(QueuedFile::of)
+                            .toList();
+                    long nextFromMessageId = fileRecords.getLast().messageId();
+                    return (queuedFiles.isEmpty() ? Future.succeededFuture(true) :
+                            addWaitingDownloadFiles(cursor.telegramId, cursor.chatId, queuedFiles, false))
+                            .map(accepted -> {
+                                if (accepted) {
+                                    cursor.fromMessageId = nextFromMessageId;
+                                    cursor.completed = fileRecords.size() < limit;
+                                }
+                                return accepted;
+                            });
+                });
+    }
+
+    private List<TdApi.Message> filterRuleMatchedMessages(long telegramId,
+                                                          List<TdApi.Message> messages,
+                                                          Predicate<FileRecord> predicate) {
+        return messages.stream()
+                .filter(message -> TdApiHelp.getFileHandler(message)
+                        .map(fileHandler -> predicate.test(fileHandler.convertFileRecord(telegramId)))
+                        .orElse(false))
+                .toList();
+    }
+
+    private AutoDownloadRule handleRule(SettingAutoRecords.Item auto) {
+        SettingAutoRecords.Rule rule = auto.rule;
+        Tuple2<SettingAutoRecords.Rule, AutoDownloadRule> compiled = compiledRules.get(auto.uniqueKey());
+        if (compiled == null || compiled.v1 != rule) {
+            compiled = new Tuple2<>(rule, AutoDownloadRule.compile(rule, DEFAULT_FILE_TYPE_ORDER));
+            compiledRules.put(auto.uniqueKey(), compiled);
+        }
+        if (StrUtil.isBlank(auto.nextFileType)) {
+            auto.nextFileType = compiled.v2.getFileTypes().getFirst();
+        }
+
+        return compiled.v2;
+    }
+
+    private boolean isHistoryQueueFull(long telegramId, long chatId) {
+        DownloadQueue<QueuedFile> queue = this.waitingDownloadMessages.get(telegramId);
+        return queue != null && queue.size(chatId) >= MAX_WAITING_LENGTH;
+    }
+
+    private void adjustLimits() {
+        if (!adaptive) {
             return;
         }
-        if (foundChatMessages.messages.length == 0) {
-            List<String> fileTypes = rule.v2;
-            int nextTypeIndex = fileTypes.indexOf(auto.nextFileType) + 1;
-            if (nextTypeIndex < fileTypes.size()) {
-                String originalType = auto.nextFileType;
-                auto.nextFileType = fileTypes.get(nextTypeIndex);
-                auto.nextFromMessageId = 0;
-                log.debug("%s No more %s files found! Switch to %s".formatted(auto.uniqueKey(), originalType, auto.nextFileType));
-                addHistoryMessage(auto, currentTimeMillis);
+        Set<Long> telegramIds = new HashSet<>(waitingDownloadMessages.keySet());
+        autoRecords.getDownloadEnabledItems().forEach(item -> telegramIds.add(item.telegramId));
+        telegramIds.forEach(telegramId -> TelegramVerticles.get(telegramId).ifPresent(telegramVerticle -> {
+            AdaptiveLimit adaptiveLimit = adaptiveLimits.computeIfAbsent(telegramId,
+                    k -> new AdaptiveLimit(minLimit, maxLimit, downloadSlots.getLimit()));
+            int before = downloadSlots.getLimit(telegramId);
+            boolean saturated = downloadSlots.getSurplus(telegramId) <= 0;
+            int limit = adaptiveLimit.update(telegramVerticle.getRecentDownloadSpeed(), saturated);
+            if (limit != before) {
+                log.debug("Adjust download limit! TelegramId: %d limit: %d -> %d throughput: %d"
+                        .formatted(telegramId, before, limit, adaptiveLimit.getLastThroughput()));
+            }
+            downloadSlots.setLimit(telegramId, limit);
+            if (limit > before) {
+                download(telegramId);
+            }
+        }));
+    }
+
+    private void enforceBandwidthLimits() {
+        long now = System.currentTimeMillis();
+        LocalTime time = LocalTime.now();
+        Map<Long, TelegramVerticle> telegramVerticles = new HashMap<>();
+        TelegramVerticles.getAll().stream()
+                .filter(telegramVerticle -> telegramVerticle.authorized && telegramVerticle.telegramRecord != null)
+                .forEach(telegramVerticle -> telegramVerticles.put(telegramVerticle.telegramRecord.id(), telegramVerticle));
+
+        Map<Long, Long> rates = new HashMap<>();
+        telegramVerticles.forEach((telegramId, telegramVerticle) -> rates.put(telegramId, telegramVerticle.getDownloadRate(now)));
+        long totalRate = rates.values().stream().mapToLong(Long::longValue).sum();
+        boolean globalThrottled = globalThrottle.update(totalRate, bandwidthLimits.getGlobalLimit(time), now);
+
+        telegramVerticles.forEach((telegramId, telegramVerticle) -> {
+            boolean throttled = getAccountThrottle(telegramId)
+                                        .update(rates.get(telegramId), bandwidthLimits.getAccountLimit(telegramId, time), now)
+                                || globalThrottled;
+            if (throttled) {
+                pauseDownloads(telegramId, telegramVerticle, fileDownload -> true, throttlePausedFileIds, "bandwidth throttle");
             } else {
-                log.debug("%s No more history files found! TelegramId: %d ChatId: %d".formatted(auto.uniqueKey(), auto.telegramId, auto.chatId));
-                auto.complete(SettingAutoRecords.HISTORY_DOWNLOAD_STATE);
+                resumeDownloads(telegramId, telegramVerticle, throttlePausedFileIds, priorityPausedFileIds, "bandwidth throttle");
             }
-        } else {
-            DataVerticle.fileRepository.getFilesByUniqueId(TdApiHelp.getFileUniqueIds(Arrays.asList(foundChatMessages.messages)))
-                    .onSuccess(existFiles -> {
-                        List<TdApi.Message> messages = Stream.of(foundChatMessages.messages)
-                                .filter(message -> {
-                                    String uniqueId = TdApiHelp.getFileUniqueId(message);
-                                    if (!existFiles.containsKey(uniqueId)) {
-                                        return true;
-                                    } else {
-                                        FileRecord fileRecord = existFiles.get(uniqueId);
-                                        return fileRecord.isDownloadStatus(FileRecord.DownloadStatus.idle);
-                                    }
-                                })
-                                .toList();
-                        if (CollUtil.isEmpty(messages)) {
-                            auto.nextFromMessageId = foundChatMessages.nextFromMessageId;
-                            addHistoryMessage(auto, currentTimeMillis);
-                        } else if (addWaitingDownloadMessages(auto.telegramId, messages, false)) {
-                            auto.nextFromMessageId = foundChatMessages.nextFromMessageId;
-                        } else {
-                            addHistoryMessage(auto, currentTimeMillis);
-                        }
-                    });
+        });
+    }
+
+    private BandwidthThrottle getAccountThrottle(long telegramId) {
+        return accountThrottles.computeIfAbsent(telegramId, k -> new BandwidthThrottle(System.currentTimeMillis()));
+    }
+
+    private boolean isThrottled(long telegramId) {
+        return globalThrottle.isThrottled() || getAccountThrottle(telegramId).isThrottled();
+    }
+
+    private boolean hasInteractiveDownloads(long telegramId) {
+        return CollUtil.isNotEmpty(interactiveUniqueIds.get(telegramId));
+    }
+
+    /**
+     * The slots of the paused files are held, their paused status does not free the slots for other files.
+     *
+     * @param pausedFileIds records the paused file ids, only these files are resumed by {@link #resumeDownloads}
+     */
+    private void pauseDownloads(long telegramId,
+                                TelegramVerticle telegramVerticle,
+                                Predicate<TdApi.FileDownload> filter,
+                                Map<Long, Map<Integer, String>> pausedFileIds,
+                                String reason) {
+        // Active downloads include paused ones
+        telegramVerticle.client.execute(new TdApi.SearchFileDownloads("", true, false, "", 100))
+                .onSuccess(foundFileDownloads -> Stream.of(foundFileDownloads.files)
+                        .filter(fileDownload -> !fileDownload.isPaused && filter.test(fileDownload))
+                        .forEach(fileDownload -> {
+                            String uniqueId = StrUtil.nullToEmpty(TdApiHelp.getFileUniqueId(fileDownload.message));
+                            // Held before pausing, the paused status may arrive before the response
+                            pausedFileIds.computeIfAbsent(telegramId, k -> new ConcurrentHashMap<>())
+                                    .put(fileDownload.fileId, uniqueId);
+                            holdSlot(telegramId, uniqueId);
+                            telegramVerticle.client.execute(new TdApi.ToggleDownloadIsPaused(fileDownload.fileId, true))
+                                    .onSuccess(r -> log.debug("Pause download by %s! TelegramId: %d FileId: %d"
+                                            .formatted(reason, telegramId, fileDownload.fileId)))
+                                    .onFailure(e -> {
+                                        log.error("Pause download by %s failed! TelegramId: %d FileId: %d"
+                                                .formatted(reason, telegramId, fileDownload.fileId), e);
+                                        pausedFileIds.getOrDefault(telegramId, Map.of()).remove(fileDownload.fileId);
+                                        if (!isPausedByScheduler(telegramId, fileDownload.fileId)) {
+                                            unholdSlot(telegramId, uniqueId, false);
+                                        }
+                                    });
+                        }))
+                .onFailure(e -> log.error("Search active downloads failed! TelegramId: %d".formatted(telegramId), e));
+    }
+
+    /**
+     * The resumed files keep their slots, new files are only started for the slots that are really free.
+     *
+     * @param otherPausedFileIds files also paused for another reason, they stay paused until that reason is gone
+     */
+    private void resumeDownloads(long telegramId,
+                                 TelegramVerticle telegramVerticle,
+                                 Map<Long, Map<Integer, String>> pausedFileIds,
+                                 Map<Long, Map<Integer, String>> otherPausedFileIds,
+                                 String reason) {
+        Map<Integer, String> files = pausedFileIds.remove(telegramId);
+        if (CollUtil.isEmpty(files)) {
+            return;
         }
+        Map<Integer, String> otherFiles = otherPausedFileIds.getOrDefault(telegramId, Map.of());
+        log.debug("Resume %d downloads paused by %s! TelegramId: %d".formatted(files.size(), reason, telegramId));
+        Future.join(files.entrySet().stream()
+                        .filter(file -> !otherFiles.containsKey(file.getKey()))
+                        .map(file -> telegramVerticle.client.execute(new TdApi.ToggleDownloadIsPaused(file.getKey(), false))
+                                .onSuccess(r -> unholdSlot(telegramId, file.getValue(), false))
+                                .onFailure(e -> {
+                                    log.error("Resume download by %s failed! TelegramId: %d FileId: %d"
+                                            .formatted(reason, telegramId, file.getKey()), e);
+                                    // it stays paused, its paused status has been received already
+                                    unholdSlot(telegramId, file.getValue(), true);
+                                    releaseSlot(telegramId, file.getValue());
+                                }))
+                        .toList())
+                .onComplete(r -> download(telegramId));
     }
 
-    private Tuple2<String, List<String>> handleRule(SettingAutoRecords.Item auto) {
-        SettingAutoRecords.Rule rule = auto.rule;
-        String query = null;
-        List<String> fileTypes = DEFAULT_FILE_TYPE_ORDER;
-        if (rule != null) {
-            if (StrUtil.isNotBlank(rule.query)) {
-                query = rule.query;
-            }
-            if (CollUtil.isNotEmpty(rule.fileTypes)) {
-                fileTypes = rule.fileTypes;
-            }
+    /**
+     * The paused download keeps its slot, and the accounts waiting for its shared download keep waiting.
+     */
+    private void holdSlot(long telegramId, String uniqueId) {
+        downloadSlots.hold(telegramId, uniqueId);
+        SharedDownloads.INSTANCE.hold(uniqueId);
+    }
+
+    /**
+     * @param paused true if the download stays paused, then its shared download may be abandoned by the pause timeout
+     */
+    private void unholdSlot(long telegramId, String uniqueId, boolean paused) {
+        downloadSlots.unhold(telegramId, uniqueId);
+        SharedDownloads.INSTANCE.unhold(uniqueId, paused);
+    }
+
+    private boolean isPausedByScheduler(long telegramId, int fileId) {
+        return throttlePausedFileIds.getOrDefault(telegramId, Map.of()).containsKey(fileId)
+               || priorityPausedFileIds.getOrDefault(telegramId, Map.of()).containsKey(fileId);
+    }
+
+    private void addInteractiveDownload(long telegramId, String uniqueId) {
+        Set<String> uniqueIds = interactiveUniqueIds.computeIfAbsent(telegramId, k -> ConcurrentHashMap.newKeySet());
+        if (!uniqueIds.add(uniqueId)) {
+            return;
         }
-        if (StrUtil.isBlank(auto.nextFileType)) {
-            auto.nextFileType = fileTypes.getFirst();
+        TelegramVerticles.get(telegramId).ifPresent(telegramVerticle ->
+                pauseDownloads(telegramId,
+                        telegramVerticle,
+                        fileDownload -> telegramVerticle.getDownloadPriority(fileDownload.fileId) != DownloadPriority.INTERACTIVE,
+                        priorityPausedFileIds,
+                        "interactive download"));
+    }
+
+    private void removeInteractiveDownload(long telegramId, String uniqueId) {
+        Set<String> uniqueIds = interactiveUniqueIds.get(telegramId);
+        if (uniqueIds == null || !uniqueIds.remove(uniqueId) || !uniqueIds.isEmpty()) {
+            return;
         }
+        TelegramVerticles.get(telegramId).ifPresent(telegramVerticle ->
+                resumeDownloads(telegramId, telegramVerticle, priorityPausedFileIds, throttlePausedFileIds, "interactive download"));
+    }
 
-        return new Tuple2<>(query, fileTypes);
+    private void setDownloadOrder(DownloadOrder downloadOrder) {
+        this.downloadOrder = downloadOrder;
+        waitingDownloadMessages.values().forEach(queue -> queue.setComparator(downloadOrder.comparator));
+        if (!downloadOrder.reservesSlot()) {
+            reservedSlots.clear();
+        }
     }
 
-    private boolean isExceedLimit(long telegramId) {
-        List<TdApi.Message> waitingMessages = this.waitingDownloadMessages.get(telegramId);
-        return getSurplusSize(telegramId) <= 0 || (waitingMessages != null && waitingMessages.size() > limit);
+    private boolean releaseSlot(long telegramId, String uniqueId) {
+        reservedSlots.remove(telegramId, uniqueId);
+        return downloadSlots.release(telegramId, uniqueId);
     }
 
-    private int getSurplusSize(long telegramId) {
-        Integer downloading = Future.await(DataVerticle.fileRepository.countByStatus(telegramId, FileRecord.DownloadStatus.downloading));
-        return downloading == null ? limit : Math.max(0, limit - downloading);
+    private void resetAdaptiveLimits() {
+        adaptiveLimits.clear();
+        downloadSlots.resetLimits();
+        waitingDownloadMessages.keySet().forEach(this::download);
     }
 
-    private boolean addWaitingDownloadMessages(long telegramId, List<TdApi.Message> messages, boolean force) {
-        if (CollUtil.isEmpty(messages)) {
-            return false;
+    private int getWeight(long telegramId, long chatId) {
+        SettingAutoRecords.Item item = autoRecords.getItem(telegramId, chatId);
+        return item == null ? SettingAutoRecords.DEFAULT_WEIGHT : item.weight;
+    }
+
+    private Future<Void> reconcileSlots() {
+        Set<Long> telegramIds = new HashSet<>(waitingDownloadMessages.keySet());
+        autoRecords.getDownloadEnabledItems().forEach(item -> telegramIds.add(item.telegramId));
+        return Future.all(telegramIds.stream()
+                        .map(telegramId -> {
+                            // Slots acquired while querying are kept, their files may not be downloading in the database yet
+                            long acquisitions = downloadSlots.getAcquisitions(telegramId);
+                            return DataVerticle.fileRepository
+                                    .getUniqueIdsByStatus(telegramId, FileRecord.DownloadStatus.downloading)
+                                    .onSuccess(uniqueIds -> {
+                                        if (downloadSlots.reconcile(telegramId, uniqueIds, acquisitions)) {
+                                            log.debug("Reconcile download slots! TelegramId: %d active: %d".formatted(telegramId, downloadSlots.getActive(telegramId)));
+                                        }
+                                        interactiveUniqueIds.getOrDefault(telegramId, Set.of()).stream()
+                                                .filter(uniqueId -> !downloadSlots.isAcquired(telegramId, uniqueId))
+                                                .toList()
+                                                .forEach(uniqueId -> removeInteractiveDownload(telegramId, uniqueId));
+                                        String reservedUniqueId = reservedSlots.get(telegramId);
+                                        if (reservedUniqueId != null && !downloadSlots.isAcquired(telegramId, reservedUniqueId)) {
+                                            reservedSlots.remove(telegramId, reservedUniqueId);
+                                        }
+                                        download(telegramId);
+                                    });
+                        })
+                        .toList())
+                .onFailure(e -> log.error("Reconcile download slots failed!", e))
+                .<Void>mapEmpty()
+                .otherwiseEmpty();
+    }
+
+    private void onFileStatusUpdated(long telegramId, JsonObject data) {
+        if (data == null) {
+            return;
         }
-        LinkedList<TdApi.Message> waitingMessages = this.waitingDownloadMessages.get(telegramId);
-        if (waitingMessages == null) {
-            waitingMessages = new LinkedList<>();
+        String uniqueId = data.getString("uniqueId");
+        if (StrUtil.isBlank(uniqueId)) {
+            return;
         }
-        if (!force && waitingMessages.size() > MAX_WAITING_LENGTH) {
-            return false;
-        } else {
-            log.debug("Add waiting download messages: %d".formatted(messages.size()));
-            waitingMessages.addAll(TdApiHelp.filterUniqueMessages(messages));
+        String downloadStatus = data.getString("downloadStatus");
+        if (StrUtil.isNotBlank(downloadStatus) && !Objects.equals(downloadStatus, FileRecord.DownloadStatus.idle.name())) {
+            markKnownUniqueId(telegramId, uniqueId);
+        }
+        // Only the start and the re-prioritization of a download carry its priority
+        String priority = data.getString("priority");
+        if (Objects.equals(downloadStatus, FileRecord.DownloadStatus.downloading.name())
+            && data.getBoolean("shared", false)) {
+            // Waiting for the download of another account, the slot is held by that account, as reconcile does
+            if (releaseSlot(telegramId, uniqueId)) {
+                download(telegramId);
+            }
+        } else if (Objects.equals(downloadStatus, FileRecord.DownloadStatus.downloading.name())) {
+            if (Objects.equals(priority, DownloadPriority.INTERACTIVE.name())) {
+                addInteractiveDownload(telegramId, uniqueId);
+            } else if (priority != null) {
+                removeInteractiveDownload(telegramId, uniqueId);
+            }
+            downloadSlots.acquire(telegramId, uniqueId);
+        } else if (Objects.equals(downloadStatus, FileRecord.DownloadStatus.paused.name())) {
+            removeInteractiveDownload(telegramId, uniqueId);
+            // The slot of a download paused by the scheduler is held until it is resumed
+            if (downloadSlots.releasePaused(telegramId, uniqueId)) {
+                reservedSlots.remove(telegramId, uniqueId);
+                download(telegramId);
+            }
+        } else if (StrUtil.isNotBlank(downloadStatus) || data.getBoolean("removed", false)) {
+            removeInteractiveDownload(telegramId, uniqueId);
+            if (releaseSlot(telegramId, uniqueId)) {
+                download(telegramId);
+            }
         }
-        this.waitingDownloadMessages.put(telegramId, waitingMessages);
-        return true;
+    }
+
+    /**
+     * @param live messages from new message event, which jump ahead of history backfill and ignore the waiting length
+     */
+    private Future<Boolean> addWaitingDownloadMessages(long telegramId, long chatId, List<TdApi.Message> messages, boolean live) {
+        // Only the compact descriptor is queued, the message is fetched again when the download starts
+        return addWaitingDownloadFiles(telegramId, chatId, messages.stream()
+                .map(QueuedFile::of)
+                .filter(Objects::nonNull)
+                .toList(), live);
+    }
+
+    private Future<Boolean> addWaitingDownloadFiles(long telegramId, long chatId, List<QueuedFile> queuedFiles, boolean live) {
+        if (CollUtil.isEmpty(queuedFiles)) {
+            return Future.succeededFuture(false);
+        }
+        DownloadQueue<QueuedFile> queue = getQueue(telegramId);
+        if (!live && queue.size(chatId) > MAX_WAITING_LENGTH) {
+            return Future.succeededFuture(false);
+        }
+        long now = System.currentTimeMillis();
+        List<DownloadJobRecord> jobs = new ArrayList<>();
+        for (QueuedFile queuedFile : queuedFiles) {
+            if (StrUtil.isNotBlank(queuedFile.uniqueId())
+                && queue.offer(chatId, queuedFile.uniqueId(), queuedFile.withLive(live), live)) {
+                markKnownUniqueId(telegramId, queuedFile.uniqueId());
+                jobs.add(new DownloadJobRecord(telegramId, chatId, queuedFile.messageId(), queuedFile.uniqueId(), live, false, now));
+            }
+        }
+        log.debug("Add waiting download files: %d, added: %d".formatted(queuedFiles.size(), jobs.size()));
+        return DataVerticle.downloadJobRepository.createBatch(jobs)
+                .otherwise(0)
+                .map(r -> {
+                    download(telegramId);
+                    return true;
+                });
+    }
+
+    private DownloadQueue<QueuedFile> getQueue(long telegramId) {
+        return this.waitingDownloadMessages.computeIfAbsent(telegramId,
+                k -> new DownloadQueue<>(chatId -> getWeight(telegramId, chatId), downloadOrder.comparator));
     }
 
     private void download(long telegramId) {
         if (CollUtil.isEmpty(waitingDownloadMessages)) {
             return;
         }
-        LinkedList<TdApi.Message> messages = waitingDownloadMessages.get(telegramId);
-        if (CollUtil.isEmpty(messages)) {
+        DownloadQueue<QueuedFile> queue = waitingDownloadMessages.get(telegramId);
+        if (queue == null || queue.isEmpty()) {
             return;
         }
-        log.debug("Download start! TelegramId: %d size: %d".formatted(telegramId, messages.size()));
-        TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(telegramId);
-        int surplusSize = getSurplusSize(telegramId);
-        if (surplusSize <= 0) {
+        if (isThrottled(telegramId)) {
+            log.debug("Download is held by bandwidth throttle! TelegramId: %d".formatted(telegramId));
             return;
         }
-
-        List<TdApi.Message> downloadMessages = IntStream.range(0, Math.min(surplusSize, messages.size()))
-                .mapToObj(i -> messages.poll())
-                .toList();
-        downloadMessages.forEach(message -> {
-            Integer fileId = TdApiHelp.getFileId(message);
-            log.debug("Start download file: %s".formatted(fileId));
-            telegramVerticle.startDownload(message.chatId, message.id, fileId)
-                    .onSuccess(v -> log.info("Start download file success! ChatId: %d MessageId:%d FileId:%d"
-                            .formatted(message.chatId, message.id, fileId))
-                    )
-                    .onFailure(e -> log.error("Download file failed! ChatId: %d MessageId:%d FileId:%d"
-                            .formatted(message.chatId, message.id, fileId), e));
-        });
-        log.debug("Remaining download messages: %d".formatted(messages.size()));
+        if (hasInteractiveDownloads(telegramId)) {
+            log.debug("Download is held by interactive downloads! TelegramId: %d".formatted(telegramId));
+            return;
+        }
+        TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(telegramId);
+        List<QueuedFile> downloadFiles;
+        // Polling and slot acquiring must be atomic, a slot may be freed by concurrent status events
+        synchronized (queue) {
+            int surplusSize = downloadSlots.getSurplus(telegramId);
+            if (surplusSize <= 0) {
+                return;
+            }
+            log.debug("Download start! TelegramId: %d size: %d surplus: %d".formatted(telegramId, queue.size(), surplusSize));
+            downloadFiles = new ArrayList<>(surplusSize);
+            if (downloadOrder.reservesSlot() && !reservedSlots.containsKey(telegramId)) {
+                QueuedFile largest = queue.pollLast();
+                if (largest != null) {
+                    reservedSlots.put(telegramId, largest.uniqueId());
+                    downloadFiles.add(largest);
+                }
+            }
+            downloadFiles.addAll(queue.poll(surplusSize - downloadFiles.size()));
+            downloadFiles.forEach(queuedFile -> downloadSlots.acquire(telegramId, queuedFile.uniqueId()));
+        }
+        List<String> uniqueIds = downloadFiles.stream().map(QueuedFile::uniqueId).toList();
+        DataVerticle.downloadJobRepository.claim(telegramId, uniqueIds);
+        Future.join(downloadFiles.stream()
+                        .map(queuedFile -> {
+                            long chatId = queuedFile.chatId();
+                            long messageId = queuedFile.messageId();
+                            int fileId = queuedFile.fileId();
+                            log.debug("Start download file: %s".formatted(fileId));
+                            return telegramVerticle.startDownload(chatId, messageId, fileId, queuedFile.priority())
+                                    .onSuccess(v -> log.info("Start download file success! ChatId: %d MessageId:%d FileId:%d"
+                                            .formatted(chatId, messageId, fileId))
+                                    )
+                                    .onFailure(e -> {
+                                        log.error("Download file failed! ChatId: %d MessageId:%d FileId:%d"
+                                                .formatted(chatId, messageId, fileId), e);
+                                        if (releaseSlot(telegramId, queuedFile.uniqueId())) {
+                                            download(telegramId);
+                                        }
+                                    });
+                        })
+                        .toList())
+                // The download state is tracked by file record from now on
+                .onComplete(r -> DataVerticle.downloadJobRepository.delete(telegramId, uniqueIds));
+        log.debug("Remaining download messages: %d".formatted(queue.size()));
     }
 
     private void onNewMessage(JsonObject jsonObject) {
         long telegramId = jsonObject.getLong("telegramId");
         long chatId = jsonObject.getLong("chatId");
         long messageId = jsonObject.getLong("messageId");
-        autoRecords.getDownloadEnabledItems().stream()
+        SettingAutoRecords.Item auto = autoRecords.getDownloadEnabledItems().stream()
                 .filter(item -> item.telegramId == telegramId && item.chatId == chatId)
                 .findFirst()
-                .flatMap(item -> TelegramVerticles.get(telegramId))
+                .orElse(null);
+        if (auto == null) {
+            return;
+        }
+        AutoDownloadRule rule = handleRule(auto);
+        TelegramVerticles.get(telegramId)
                 .ifPresent(telegramVerticle -> {
                     if (telegramVerticle.authorized) {
                         telegramVerticle.client.execute(new TdApi.GetMessage(chatId, messageId))
-                                .onSuccess(message -> addWaitingDownloadMessages(telegramId, List.of(message), true))
+                                .onSuccess(message -> addWaitingDownloadMessages(telegramId, chatId,
+                                        filterRuleMatchedMessages(telegramId, List.of(message), rule::matches), true))
                                 .onFailure(e -> log.error("Auto download fail. Get message failed: %s".formatted(e.getMessage())));
                     }
                 });
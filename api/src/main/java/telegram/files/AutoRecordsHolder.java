@@ -70,6 +70,8 @@ public class AutoRecordsHolder {
                                 log.warn("Add auto records fail. Telegram verticle not authorized: %s".formatted(item.telegramId));
                             }
                         }, () -> log.warn("Add auto records fail. Telegram verticle not found: %s".formatted(item.telegramId)));
+            } else {
+                autoRecords.getItem(item.telegramId, item.chatId).weight = item.weight;
             }
         }
         // remove disabled
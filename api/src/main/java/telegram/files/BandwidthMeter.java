@@ -0,0 +1,58 @@
+package telegram.files;
+
+/**
+ * Sliding window of downloaded bytes, bucketed by second.
+ */
+public class BandwidthMeter {
+
+    private final int windowSeconds;
+
+    private final long[] buckets;
+
+    // second of each bucket, a bucket is stale if its second is out of the window
+    private final long[] bucketSeconds;
+
+    public BandwidthMeter() {
+        this(60);
+    }
+
+    public BandwidthMeter(int windowSeconds) {
+        this.windowSeconds = windowSeconds;
+        this.buckets = new long[windowSeconds];
+        this.bucketSeconds = new long[windowSeconds];
+    }
+
+    public synchronized void record(long bytes, long timestamp) {
+        if (bytes <= 0) {
+            return;
+        }
+        long second = timestamp / 1000;
+        int index = (int) (second % windowSeconds);
+        if (bucketSeconds[index] != second) {
+            bucketSeconds[index] = second;
+            buckets[index] = 0;
+        }
+        buckets[index] += bytes;
+    }
+
+    /**
+     * @return downloaded bytes in the window ending at the timestamp
+     */
+    public synchronized long getBytes(long timestamp) {
+        long second = timestamp / 1000;
+        long bytes = 0;
+        for (int i = 0; i < windowSeconds; i++) {
+            if (bucketSeconds[i] > second - windowSeconds && bucketSeconds[i] <= second) {
+                bytes += buckets[i];
+            }
+        }
+        return bytes;
+    }
+
+    /**
+     * @return average bytes per second in the window ending at the timestamp
+     */
+    public long getRate(long timestamp) {
+        return getBytes(timestamp) / windowSeconds;
+    }
+}
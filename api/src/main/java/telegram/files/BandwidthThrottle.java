@@ -0,0 +1,68 @@
+package telegram.files;
+
+/**
+ * Throttle state of a bandwidth limit with hysteresis.
+ * <p>
+ * The throttle turns on when the rate is over the limit, and turns off when the rate falls under {@link #RESUME_RATIO} of the limit.
+ */
+public class BandwidthThrottle {
+
+    static final double RESUME_RATIO = 0.95;
+
+    private final long createdAt;
+
+    private boolean throttled;
+
+    private long throttledSince;
+
+    private long throttledMillis;
+
+    private int episodes;
+
+    public BandwidthThrottle(long createdAt) {
+        this.createdAt = createdAt;
+    }
+
+    /**
+     * @param rate  bytes per second
+     * @param limit bytes per second, 0 means unlimited
+     * @return whether the throttle is active
+     */
+    public synchronized boolean update(long rate, long limit, long timestamp) {
+        if (limit <= 0) {
+            if (throttled) {
+                release(timestamp);
+            }
+            return false;
+        }
+        if (!throttled && rate > limit) {
+            throttled = true;
+            throttledSince = timestamp;
+            episodes++;
+        } else if (throttled && rate <= limit * RESUME_RATIO) {
+            release(timestamp);
+        }
+        return throttled;
+    }
+
+    public synchronized boolean isThrottled() {
+        return throttled;
+    }
+
+    public synchronized ThrottleStats getStats(long timestamp) {
+        long total = timestamp - createdAt;
+        long throttledTotal = throttledMillis + (throttled ? timestamp - throttledSince : 0);
+        return new ThrottleStats(throttled, episodes, total <= 0 ? 0 : (double) throttledTotal / total);
+    }
+
+    private void release(long timestamp) {
+        throttled = false;
+        throttledMillis += timestamp - throttledSince;
+    }
+
+    /**
+     * @param throttledRatio ratio of time that the throttle is active, between 0 and 1
+     */
+    public record ThrottleStats(boolean throttled, int episodes, double throttledRatio) {
+    }
+}
@@ -0,0 +1,82 @@
+package telegram.files;
+
+import cn.hutool.core.lang.hash.MurmurHash;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Thread safe Bloom filter of strings.
+ * <p>
+ * {@link #mightContain(String)} never returns false for a put element, it may return true for an element that
+ * was never put with about the configured false positive probability, as long as no more than the expected
+ * insertions are put. Elements can not be removed.
+ */
+public class BloomFilter {
+
+    private final AtomicLongArray bits;
+
+    private final long bitSize;
+
+    private final int hashFunctions;
+
+    private final long expectedInsertions;
+
+    private final LongAdder insertions = new LongAdder();
+
+    public BloomFilter(long expectedInsertions, double fpp) {
+        this.expectedInsertions = Math.max(1, expectedInsertions);
+        long optimalBits = (long) (-this.expectedInsertions * Math.log(fpp) / (Math.log(2) * Math.log(2)));
+        int words = (int) Math.min(Integer.MAX_VALUE, Math.max(1, (optimalBits + 63) / 64));
+        this.bits = new AtomicLongArray(words);
+        this.bitSize = (long) words * 64;
+        this.hashFunctions = Math.max(1, (int) Math.round((double) bitSize / this.expectedInsertions * Math.log(2)));
+    }
+
+    public void put(String element) {
+        long[] hash = MurmurHash.hash128(element);
+        long combinedHash = hash[0];
+        for (int i = 0; i < hashFunctions; i++) {
+            long index = (combinedHash & Long.MAX_VALUE) % bitSize;
+            setBit(index);
+            combinedHash += hash[1];
+        }
+        insertions.increment();
+    }
+
+    public boolean mightContain(String element) {
+        long[] hash = MurmurHash.hash128(element);
+        long combinedHash = hash[0];
+        for (int i = 0; i < hashFunctions; i++) {
+            long index = (combinedHash & Long.MAX_VALUE) % bitSize;
+            if ((bits.get((int) (index >>> 6)) & (1L << index)) == 0) {
+                return false;
+            }
+            combinedHash += hash[1];
+        }
+        return true;
+    }
+
+    /**
+     * @return whether more elements than expected are put, so the false positive probability is exceeded
+     */
+    public boolean isSaturated() {
+        return insertions.sum() > expectedInsertions;
+    }
+
+    public long getInsertions() {
+        return insertions.sum();
+    }
+
+    private void setBit(long index) {
+        int word = (int) (index >>> 6);
+        long mask = 1L << index;
+        long value;
+        do {
+            value = bits.get(word);
+            if ((value & mask) != 0) {
+                return;
+            }
+        } while (!bits.compareAndSet(word, value, value | mask));
+    }
+}
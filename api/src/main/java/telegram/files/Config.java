@@ -40,6 +40,10 @@ public class Config {
 
     public static final String TELEGRAM_ROOT = APP_ROOT + File.separator + "account";
 
+    public static final String THUMBNAIL_ROOT = APP_ROOT + File.separator + "thumbnails";
+
+    public static final String PREVIEW_ROOT = APP_ROOT + File.separator + "previews";
+
     public static final int TELEGRAM_API_ID = Convert.toInt(System.getenv("TELEGRAM_API_ID"), 0);
 
     public static final String TELEGRAM_API_HASH = System.getenv("TELEGRAM_API_HASH");
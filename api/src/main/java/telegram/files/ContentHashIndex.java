@@ -0,0 +1,175 @@
+package telegram.files;
+
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import org.jooq.lambda.tuple.Tuple2;
+import telegram.files.repository.FileHashRecord;
+import telegram.files.repository.FileRecord;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Objects;
+
+/**
+ * Content hashes of transferred files, used by {@link Transfer.DuplicationPolicy#HASH}.
+ * <p>
+ * Two files are compared by size first, then by a partial hash of their head and tail, and only by the hash of the
+ * whole files when the partial hashes match. The hashes of a source file are saved in its file record, the hashes of
+ * a destination file are saved by path until its size or last modified time changes.
+ * <p>
+ * Blocks until the hashes are loaded and saved, so it must be called on a worker thread.
+ */
+public class ContentHashIndex {
+
+    private static final Log log = LogFactory.get();
+
+    private static final int PARTIAL_SIZE = 64 * 1024;
+
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private ContentHashIndex() {
+    }
+
+    /**
+     * @return whether the downloaded file of the record has the same content as the target file
+     */
+    public static boolean isSameContent(FileRecord fileRecord, Path target) throws IOException {
+        Path source = Path.of(fileRecord.localPath());
+        long size = Files.size(source);
+        long targetSize = Files.size(target);
+        if (size != targetSize) {
+            return false;
+        }
+        long targetLastModified = Files.getLastModifiedTime(target).toMillis();
+
+        Tuple2<String, String> sourceHashes = MessyUtils.await(DataVerticle.fileRepository.getHashes(fileRecord.uniqueId()));
+        String sourcePartialHash = sourceHashes.v1;
+        String sourceHash = sourceHashes.v2;
+        FileHashRecord targetHashes = MessyUtils.await(DataVerticle.fileHashRepository.getByPath(target.toString()));
+        if (targetHashes != null && !targetHashes.isValid(targetSize, targetLastModified)) {
+            targetHashes = null;
+        }
+        String targetPartialHash = targetHashes == null ? null : targetHashes.partialHash();
+        String targetHash = targetHashes == null ? null : targetHashes.hash();
+
+        try {
+            if (sourcePartialHash == null) {
+                sourcePartialHash = partialHash(source);
+            }
+            if (targetPartialHash == null) {
+                targetPartialHash = partialHash(target);
+            }
+            if (!Objects.equals(sourcePartialHash, targetPartialHash)) {
+                return false;
+            }
+
+            if (sourceHash == null) {
+                sourceHash = hash(source);
+            }
+            if (targetHash == null) {
+                targetHash = hash(target);
+            }
+            return Objects.equals(sourceHash, targetHash);
+        } finally {
+            saveSourceHashes(fileRecord.uniqueId(), sourceHashes, sourcePartialHash, sourceHash);
+            if (targetHashes == null
+                || !Objects.equals(targetHashes.partialHash(), targetPartialHash)
+                || !Objects.equals(targetHashes.hash(), targetHash)) {
+                saveTargetHashes(target, targetSize, targetLastModified, targetPartialHash, targetHash);
+            }
+        }
+    }
+
+    /**
+     * The transferred file has the content of the source, its known hashes are saved for the target path.
+     */
+    public static void onTransferred(FileRecord fileRecord, Path target) {
+        try {
+            Tuple2<String, String> sourceHashes = MessyUtils.await(DataVerticle.fileRepository.getHashes(fileRecord.uniqueId()));
+            if (sourceHashes.v1 == null) {
+                return;
+            }
+            saveTargetHashes(target, Files.size(target), Files.getLastModifiedTime(target).toMillis(), sourceHashes.v1, sourceHashes.v2);
+        } catch (Exception e) {
+            log.debug("Save hashes of %s failed: %s".formatted(target, e.getMessage()));
+        }
+    }
+
+    /**
+     * @return hash of the size, the first and the last 64 KB of the file
+     */
+    public static String partialHash(Path path) throws IOException {
+        MessageDigest md = newDigest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            long size = channel.size();
+            md.update(ByteBuffer.allocate(Long.BYTES).putLong(size).flip());
+            ByteBuffer buffer = ByteBuffer.allocate(PARTIAL_SIZE);
+            update(md, channel, buffer, 0, Math.min(size, PARTIAL_SIZE));
+            if (size > PARTIAL_SIZE) {
+                long tailPosition = Math.max(PARTIAL_SIZE, size - PARTIAL_SIZE);
+                update(md, channel, buffer, tailPosition, size - tailPosition);
+            }
+        }
+        return HexUtil.encodeHexStr(md.digest());
+    }
+
+    /**
+     * @return hash of the whole file, read in chunks instead of mapping the file into memory
+     */
+    public static String hash(Path path) throws IOException {
+        MessageDigest md = newDigest();
+        try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+            update(md, channel, ByteBuffer.allocate(BUFFER_SIZE), 0, channel.size());
+        }
+        return HexUtil.encodeHexStr(md.digest());
+    }
+
+    private static void update(MessageDigest md, FileChannel channel, ByteBuffer buffer, long position, long length) throws IOException {
+        long end = position + length;
+        while (position < end) {
+            buffer.clear().limit((int) Math.min(buffer.capacity(), end - position));
+            int read = channel.read(buffer, position);
+            if (read < 0) {
+                break;
+            }
+            position += read;
+            md.update(buffer.flip());
+        }
+    }
+
+    private static MessageDigest newDigest() {
+        try {
+            return MessageDigest.getInstance("MD5");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static void saveSourceHashes(String uniqueId, Tuple2<String, String> savedHashes, String partialHash, String hash) {
+        if (StrUtil.isBlank(partialHash)
+            || (Objects.equals(savedHashes.v1, partialHash) && Objects.equals(savedHashes.v2, hash))) {
+            return;
+        }
+        DataVerticle.fileRepository.updateHashes(uniqueId, partialHash, hash);
+    }
+
+    private static void saveTargetHashes(Path target, long size, long lastModified, String partialHash, String hash) {
+        if (StrUtil.isBlank(partialHash)) {
+            return;
+        }
+        DataVerticle.fileHashRepository.createOrUpdate(new FileHashRecord(target.toString(),
+                size,
+                lastModified,
+                partialHash,
+                hash,
+                System.currentTimeMillis()));
+    }
+}
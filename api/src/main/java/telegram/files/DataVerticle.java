@@ -19,10 +19,7 @@ import io.vertx.sqlclient.SqlClient;
 import io.vertx.sqlclient.SqlConnectOptions;
 import org.jooq.lambda.tuple.Tuple;
 import telegram.files.repository.*;
-import telegram.files.repository.impl.FileRepositoryImpl;
-import telegram.files.repository.impl.SettingRepositoryImpl;
-import telegram.files.repository.impl.StatisticRepositoryImpl;
-import telegram.files.repository.impl.TelegramRepositoryImpl;
+import telegram.files.repository.impl.*;
 
 import java.io.File;
 import java.util.List;
@@ -41,6 +38,12 @@ public class DataVerticle extends AbstractVerticle {
 
     public static StatisticRepository statisticRepository;
 
+    public static DownloadJobRepository downloadJobRepository;
+
+    public static ScanCursorRepository scanCursorRepository;
+
+    public static FileHashRepository fileHashRepository;
+
     private static SqlConnectOptions sqlConnectOptions;
 
     public static final List<Definition> definitions;
@@ -59,7 +62,10 @@ public class DataVerticle extends AbstractVerticle {
                 new SettingRecord.SettingRecordDefinition(),
                 new TelegramRecord.TelegramRecordDefinition(),
                 new FileRecord.FileRecordDefinition(),
-                new StatisticRecord.StatisticRecordDefinition()
+                new StatisticRecord.StatisticRecordDefinition(),
+                new DownloadJobRecord.DownloadJobRecordDefinition(),
+                new ScanCursorRecord.ScanCursorRecordDefinition(),
+                new FileHashRecord.FileHashRecordDefinition()
         );
     }
 
@@ -69,11 +75,14 @@ public class DataVerticle extends AbstractVerticle {
         telegramRepository = new TelegramRepositoryImpl(pool);
         fileRepository = new FileRepositoryImpl(pool);
         statisticRepository = new StatisticRepositoryImpl(pool);
+        downloadJobRepository = new DownloadJobRepositoryImpl(pool);
+        scanCursorRepository = new ScanCursorRepositoryImpl(pool);
+        fileHashRepository = new FileHashRepositoryImpl(pool);
         isCompletelyNewInitialization()
                 .compose(isNew -> Future.all(definitions.stream().map(d -> d.createTable(pool)).toList()).map(isNew))
                 .compose(isNew -> settingRepository.<Version>getByKey(SettingKey.version).map(version -> Tuple.tuple(isNew, version)))
                 .compose(tuple -> {
-                    if (tuple.v1) return Future.succeededFuture();
+                    if (tuple.v1) return Future.all(definitions.stream().map(d -> d.createIndexes(pool)).toList());
 
                     Version version = tuple.v2 == null ? new Version("0.0.0") : tuple.v2;
                     return Future.all(definitions.stream().map(d -> d.migrate(pool, version, new Version(Start.VERSION))).toList());
@@ -0,0 +1,40 @@
+package telegram.files;
+
+import java.util.Comparator;
+
+/**
+ * Order in which waiting history files of a chat are downloaded.
+ * <p>
+ * Chats still share the download slots by weight, the order applies inside the waiting files of each chat.
+ */
+public enum DownloadOrder {
+    /**
+     * The order files are found by the history scan: file type order, then newest message first
+     */
+    SCAN(null),
+    /**
+     * Small files first, so many small files are not held up by a few large ones
+     */
+    SMALLEST_FIRST(Comparator.comparingLong(QueuedFile::size)),
+    NEWEST_FIRST(Comparator.comparingLong(QueuedFile::messageId).reversed()),
+    OLDEST_FIRST(Comparator.comparingLong(QueuedFile::messageId)),
+    /**
+     * Small files first, but one slot is reserved for the largest waiting file of all chats, so large files still make
+     * progress
+     */
+    HYBRID(Comparator.comparingLong(QueuedFile::size)),
+    ;
+
+    public final Comparator<QueuedFile> comparator;
+
+    DownloadOrder(Comparator<QueuedFile> comparator) {
+        this.comparator = comparator;
+    }
+
+    /**
+     * @return whether one download slot is reserved for the largest waiting file, see {@link DownloadQueue#pollLast()}
+     */
+    public boolean reservesSlot() {
+        return this == HYBRID;
+    }
+}
@@ -0,0 +1,26 @@
+package telegram.files;
+
+/**
+ * Priority classes of downloads, mapped onto TDLib download priorities (1-32, higher is downloaded first).
+ */
+public enum DownloadPriority {
+    /**
+     * Started by the user, background downloads are paused while any is downloading
+     */
+    INTERACTIVE(32),
+    /**
+     * Files of new messages found by auto download
+     */
+    LIVE(16),
+    /**
+     * History backfill of auto download
+     */
+    HISTORY(1),
+    ;
+
+    public final int value;
+
+    DownloadPriority(int value) {
+        this.value = value;
+    }
+}
@@ -0,0 +1,209 @@
+package telegram.files;
+
+import java.util.*;
+import java.util.function.LongToIntFunction;
+
+/**
+ * Waiting download queue of one telegram account.
+ * <p>
+ * Each chat has its own lane, lanes are served by smooth weighted round-robin, so a chat with a huge history
+ * can not starve the others. Live messages are always served before history backfill.
+ * Elements are deduplicated by the file unique id against everything already queued.
+ * <p>
+ * History backfill of a lane is served in the order of the comparator, or in offer order if there is none.
+ * Live messages are always served in offer order.
+ */
+public class DownloadQueue<T> {
+
+    private final Map<Long, Lane<T>> lanes = new LinkedHashMap<>();
+
+    private final Set<String> queuedUniqueIds = new HashSet<>();
+
+    // chatId -> weight
+    private final LongToIntFunction weightFunction;
+
+    private Comparator<? super T> comparator;
+
+    private int liveSize;
+
+    private long sequence;
+
+    public DownloadQueue(LongToIntFunction weightFunction) {
+        this(weightFunction, null);
+    }
+
+    public DownloadQueue(LongToIntFunction weightFunction, Comparator<? super T> comparator) {
+        this.weightFunction = weightFunction;
+        this.comparator = comparator;
+    }
+
+    /**
+     * Reorder the queued history backfill.
+     *
+     * @param comparator null means offer order
+     */
+    public synchronized void setComparator(Comparator<? super T> comparator) {
+        this.comparator = comparator;
+        lanes.values().forEach(lane -> {
+            TreeSet<QueuedElement<T>> history = new TreeSet<>(historyOrder());
+            history.addAll(lane.history);
+            lane.history = history;
+        });
+    }
+
+    /**
+     * @param live whether the element comes from a new message, live elements jump ahead of history backfill
+     * @return false if the file is already queued
+     */
+    public synchronized boolean offer(long chatId, String uniqueId, T element, boolean live) {
+        if (!queuedUniqueIds.add(uniqueId)) {
+            return false;
+        }
+        Lane<T> lane = lanes.computeIfAbsent(chatId, k -> new Lane<>(k, historyOrder()));
+        QueuedElement<T> queuedElement = new QueuedElement<>(uniqueId, element, sequence++);
+        if (live) {
+            lane.live.offer(queuedElement);
+            liveSize++;
+        } else {
+            lane.history.add(queuedElement);
+        }
+        return true;
+    }
+
+    public synchronized T poll() {
+        return poll(liveSize > 0);
+    }
+
+    /**
+     * Poll the last history element across all lanes, e.g. the largest waiting file when ordered by size.
+     * The round-robin of the lanes is not affected, live elements are not polled.
+     */
+    public synchronized T pollLast() {
+        Comparator<QueuedElement<T>> historyOrder = historyOrder();
+        Lane<T> selected = null;
+        for (Lane<T> lane : lanes.values()) {
+            if (!lane.history.isEmpty()
+                && (selected == null || historyOrder.compare(lane.history.last(), selected.history.last()) > 0)) {
+                selected = lane;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        return remove(selected, selected.history.pollLast());
+    }
+
+    private T poll(boolean live) {
+        Lane<T> selected = null;
+        int totalWeight = 0;
+        for (Lane<T> lane : lanes.values()) {
+            if (live ? lane.live.isEmpty() : lane.isEmpty()) {
+                continue;
+            }
+            int weight = Math.max(1, weightFunction.applyAsInt(lane.chatId));
+            lane.currentWeight += weight;
+            totalWeight += weight;
+            if (selected == null || lane.currentWeight > selected.currentWeight) {
+                selected = lane;
+            }
+        }
+        if (selected == null) {
+            return null;
+        }
+        selected.currentWeight -= totalWeight;
+
+        QueuedElement<T> queuedElement;
+        if (live) {
+            queuedElement = selected.live.poll();
+            liveSize--;
+        } else {
+            queuedElement = selected.history.pollFirst();
+        }
+        return remove(selected, queuedElement);
+    }
+
+    private T remove(Lane<T> lane, QueuedElement<T> queuedElement) {
+        Objects.requireNonNull(queuedElement);
+        queuedUniqueIds.remove(queuedElement.uniqueId);
+        if (lane.isEmpty()) {
+            lanes.remove(lane.chatId);
+        }
+        return queuedElement.element;
+    }
+
+    public synchronized List<T> poll(int size) {
+        List<T> elements = new ArrayList<>(size);
+        T element;
+        while (elements.size() < size && (element = poll()) != null) {
+            elements.add(element);
+        }
+        return elements;
+    }
+
+    public synchronized boolean contains(String uniqueId) {
+        return queuedUniqueIds.contains(uniqueId);
+    }
+
+    public synchronized void removeChat(long chatId) {
+        Lane<T> lane = lanes.remove(chatId);
+        if (lane == null) {
+            return;
+        }
+        liveSize -= lane.live.size();
+        lane.live.forEach(e -> queuedUniqueIds.remove(e.uniqueId));
+        lane.history.forEach(e -> queuedUniqueIds.remove(e.uniqueId));
+    }
+
+    public synchronized int size() {
+        return queuedUniqueIds.size();
+    }
+
+    public synchronized int size(long chatId) {
+        Lane<T> lane = lanes.get(chatId);
+        return lane == null ? 0 : lane.live.size() + lane.history.size();
+    }
+
+    public synchronized boolean isEmpty() {
+        return queuedUniqueIds.isEmpty();
+    }
+
+    /**
+     * @return chatId -> queue depth
+     */
+    public synchronized Map<Long, Integer> getDepths() {
+        Map<Long, Integer> depths = new LinkedHashMap<>();
+        lanes.values().forEach(lane -> depths.put(lane.chatId, lane.live.size() + lane.history.size()));
+        return depths;
+    }
+
+    private Comparator<QueuedElement<T>> historyOrder() {
+        Comparator<QueuedElement<T>> bySequence = Comparator.comparingLong(QueuedElement::sequence);
+        if (comparator == null) {
+            return bySequence;
+        }
+        Comparator<? super T> elementComparator = comparator;
+        return Comparator.<QueuedElement<T>, T>comparing(QueuedElement::element, elementComparator).thenComparing(bySequence);
+    }
+
+    private record QueuedElement<T>(String uniqueId, T element, long sequence) {
+    }
+
+    private static class Lane<T> {
+        private final long chatId;
+
+        private final Deque<QueuedElement<T>> live = new ArrayDeque<>();
+
+        private TreeSet<QueuedElement<T>> history;
+
+        private int currentWeight;
+
+        private Lane(long chatId, Comparator<QueuedElement<T>> historyOrder) {
+            this.chatId = chatId;
+            this.history = new TreeSet<>(historyOrder);
+        }
+
+        private boolean isEmpty() {
+            return live.isEmpty() && history.isEmpty();
+        }
+    }
+}
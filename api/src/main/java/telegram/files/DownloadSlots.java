@@ -0,0 +1,238 @@
+package telegram.files;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * In-memory download slots of each telegram account.
+ * <p>
+ * A slot is occupied by the unique id of a file that is downloading, it is acquired and released by file status transitions,
+ * and periodically reconciled with the database as a safety net. A download paused by the scheduler, e.g. the bandwidth
+ * throttle, is held: it keeps its slot while it is paused, so resuming it never exceeds the limit.
+ */
+public class DownloadSlots {
+
+    // telegramId -> slots
+    private final Map<Long, Slots> accountSlots = new ConcurrentHashMap<>();
+
+    // telegramId -> limit, overrides the default limit
+    private final Map<Long, Integer> accountLimits = new ConcurrentHashMap<>();
+
+    private volatile int limit;
+
+    public DownloadSlots(int limit) {
+        this.limit = limit;
+    }
+
+    public int getLimit() {
+        return limit;
+    }
+
+    public void setLimit(int limit) {
+        long now = System.currentTimeMillis();
+        accountSlots.values().forEach(slots -> slots.accumulate(now));
+        this.limit = limit;
+    }
+
+    public int getLimit(long telegramId) {
+        return accountLimits.getOrDefault(telegramId, limit);
+    }
+
+    public void setLimit(long telegramId, int limit) {
+        getSlots(telegramId).accumulate(System.currentTimeMillis());
+        accountLimits.put(telegramId, limit);
+    }
+
+    public void resetLimits() {
+        long now = System.currentTimeMillis();
+        accountSlots.values().forEach(slots -> slots.accumulate(now));
+        accountLimits.clear();
+    }
+
+    public int getActive(long telegramId) {
+        Slots slots = accountSlots.get(telegramId);
+        return slots == null ? 0 : slots.size();
+    }
+
+    public boolean isAcquired(long telegramId, String uniqueId) {
+        Slots slots = accountSlots.get(telegramId);
+        return slots != null && slots.contains(uniqueId);
+    }
+
+    public int getSurplus(long telegramId) {
+        return Math.max(0, getLimit(telegramId) - getActive(telegramId));
+    }
+
+    /**
+     * @return true if the file was not occupying a slot before
+     */
+    public boolean acquire(long telegramId, String uniqueId) {
+        return getSlots(telegramId).add(uniqueId);
+    }
+
+    /**
+     * @return true if the file was occupying a slot, which means a slot has been freed
+     */
+    public boolean release(long telegramId, String uniqueId) {
+        Slots slots = accountSlots.get(telegramId);
+        return slots != null && slots.remove(uniqueId);
+    }
+
+    /**
+     * The download is paused by the scheduler, its slot is kept until {@link #unhold(long, String)}.
+     */
+    public void hold(long telegramId, String uniqueId) {
+        getSlots(telegramId).hold(uniqueId);
+    }
+
+    public void unhold(long telegramId, String uniqueId) {
+        Slots slots = accountSlots.get(telegramId);
+        if (slots != null) {
+            slots.unhold(uniqueId);
+        }
+    }
+
+    /**
+     * @return true if a slot has been freed, the slot of a held download is kept
+     */
+    public boolean releasePaused(long telegramId, String uniqueId) {
+        Slots slots = accountSlots.get(telegramId);
+        return slots != null && slots.removePaused(uniqueId);
+    }
+
+    /**
+     * @return count of the acquisitions so far, pass it to {@link #reconcile(long, Collection, long)} before querying
+     * the downloading files
+     */
+    public long getAcquisitions(long telegramId) {
+        return getSlots(telegramId).acquisitions();
+    }
+
+    /**
+     * Replace the in-memory slots with the downloading files in the database.
+     *
+     * @return true if the active count changed
+     */
+    public boolean reconcile(long telegramId, Collection<String> downloadingUniqueIds) {
+        return reconcile(telegramId, downloadingUniqueIds, getAcquisitions(telegramId));
+    }
+
+    /**
+     * Replace the in-memory slots with the downloading files in the database, except the slots acquired after the
+     * acquisitions count, their files may not be downloading in the database yet, and the held slots.
+     *
+     * @return true if the active count changed
+     */
+    public boolean reconcile(long telegramId, Collection<String> downloadingUniqueIds, long acquisitions) {
+        return getSlots(telegramId).replace(downloadingUniqueIds, acquisitions);
+    }
+
+    public SlotStats getSlotStats(long telegramId) {
+        Slots slots = getSlots(telegramId);
+        return slots.stats();
+    }
+
+    private Slots getSlots(long telegramId) {
+        return accountSlots.computeIfAbsent(telegramId, Slots::new);
+    }
+
+    /**
+     * @param utilization Time-weighted ratio of occupied slots since the slots were created, between 0 and 1
+     */
+    public record SlotStats(int limit, int active, double utilization) {
+    }
+
+    private class Slots {
+        private final long telegramId;
+
+        // uniqueId -> acquisitions count when it was acquired
+        private final Map<String, Long> uniqueIds = new HashMap<>();
+
+        // unique ids of the downloads paused by the scheduler
+        private final Set<String> held = new HashSet<>();
+
+        private long acquisitions;
+
+        private final long createdAt = System.currentTimeMillis();
+
+        private long lastChangedAt = createdAt;
+
+        // sum of occupied slots * milliseconds
+        private double busySlotMillis;
+
+        // sum of limit * milliseconds
+        private double totalSlotMillis;
+
+        Slots(long telegramId) {
+            this.telegramId = telegramId;
+        }
+
+        synchronized int size() {
+            return uniqueIds.size();
+        }
+
+        synchronized boolean contains(String uniqueId) {
+            return uniqueIds.containsKey(uniqueId);
+        }
+
+        synchronized long acquisitions() {
+            return acquisitions;
+        }
+
+        synchronized boolean add(String uniqueId) {
+            accumulate(System.currentTimeMillis());
+            if (uniqueIds.containsKey(uniqueId)) {
+                return false;
+            }
+            uniqueIds.put(uniqueId, ++acquisitions);
+            return true;
+        }
+
+        synchronized boolean remove(String uniqueId) {
+            accumulate(System.currentTimeMillis());
+            held.remove(uniqueId);
+            return uniqueIds.remove(uniqueId) != null;
+        }
+
+        synchronized boolean removePaused(String uniqueId) {
+            return !held.contains(uniqueId) && remove(uniqueId);
+        }
+
+        synchronized void hold(String uniqueId) {
+            held.add(uniqueId);
+        }
+
+        synchronized void unhold(String uniqueId) {
+            held.remove(uniqueId);
+        }
+
+        synchronized boolean replace(Collection<String> newUniqueIds, long since) {
+            accumulate(System.currentTimeMillis());
+            int before = uniqueIds.size();
+            uniqueIds.entrySet().removeIf(e -> e.getValue() <= since && !held.contains(e.getKey()));
+            newUniqueIds.forEach(uniqueId -> uniqueIds.putIfAbsent(uniqueId, since));
+            return before != uniqueIds.size();
+        }
+
+        synchronized void accumulate(long now) {
+            long elapsed = now - lastChangedAt;
+            if (elapsed <= 0) {
+                return;
+            }
+            int limit = getLimit(telegramId);
+            busySlotMillis += (double) Math.min(uniqueIds.size(), limit) * elapsed;
+            totalSlotMillis += (double) limit * elapsed;
+            lastChangedAt = now;
+        }
+
+        synchronized SlotStats stats() {
+            accumulate(System.currentTimeMillis());
+            double utilization = totalSlotMillis <= 0 ? 0 : busySlotMillis / totalSlotMillis;
+            return new SlotStats(getLimit(telegramId), uniqueIds.size(), utilization);
+        }
+    }
+}
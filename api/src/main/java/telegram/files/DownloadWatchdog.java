@@ -0,0 +1,173 @@
+package telegram.files;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.LongSupplier;
+
+/**
+ * Detects active downloads of one telegram account that make no progress.
+ * <p>
+ * Only the downloads started into the download list are watched, previews and streams downloaded by the file id are not.
+ * <p>
+ * A download without progress for the stall timeout is restarted, the stall timeout doubles after every restart.
+ * A download that is still stalled after the max restarts is given up, so it stops holding a download slot.
+ * Progress resets the restarts.
+ */
+public class DownloadWatchdog {
+
+    public enum Action {
+        RESTART, FAIL
+    }
+
+    /**
+     * @param restarts restarts before this one
+     */
+    public record Stall(int fileId, String uniqueId, Action action, int restarts) {
+    }
+
+    private static class Watch {
+        private final String uniqueId;
+
+        private long downloadedSize;
+
+        private long lastProgressTime;
+
+        private int restarts;
+
+        private volatile boolean restarting;
+
+        private Watch(String uniqueId, long downloadedSize, long lastProgressTime) {
+            this.uniqueId = uniqueId;
+            this.downloadedSize = downloadedSize;
+            this.lastProgressTime = lastProgressTime;
+        }
+    }
+
+    // fileId -> watch
+    private final Map<Integer, Watch> watches = new ConcurrentHashMap<>();
+
+    // file ids started into the download list, kept while they are paused
+    private final Set<Integer> startedFileIds = ConcurrentHashMap.newKeySet();
+
+    // file ids given up, their inactive updates must not overwrite the error status
+    private final Set<Integer> failedFileIds = ConcurrentHashMap.newKeySet();
+
+    private final int maxRestarts;
+
+    private final LongSupplier clock;
+
+    private volatile long stallTimeout;
+
+    public DownloadWatchdog(long stallTimeout, int maxRestarts, LongSupplier clock) {
+        this.stallTimeout = stallTimeout;
+        this.maxRestarts = maxRestarts;
+        this.clock = clock;
+    }
+
+    public void setStallTimeout(long stallTimeout) {
+        this.stallTimeout = stallTimeout;
+    }
+
+    /**
+     * Watch a download added to the download list, it may not receive any file update if it is stalled from the start.
+     */
+    public void onStarted(int fileId, String uniqueId) {
+        startedFileIds.add(fileId);
+        failedFileIds.remove(fileId);
+        watches.computeIfAbsent(fileId, k -> new Watch(uniqueId, -1, clock.getAsLong()));
+    }
+
+    public void onFileUpdated(TdApi.File file) {
+        if (file == null || file.local == null) {
+            return;
+        }
+        if (!file.local.isDownloadingActive) {
+            // Paused, canceled or completed, except the cancel of a restart
+            watches.computeIfPresent(file.id, (k, watch) -> watch.restarting && !file.local.isDownloadingCompleted ? watch : null);
+            if (file.local.isDownloadingCompleted) {
+                startedFileIds.remove(file.id);
+            }
+            return;
+        }
+        if (!startedFileIds.contains(file.id)) {
+            return;
+        }
+        failedFileIds.remove(file.id);
+        long now = clock.getAsLong();
+        Watch watch = watches.computeIfAbsent(file.id, k -> new Watch(file.remote.uniqueId, file.local.downloadedSize, now));
+        synchronized (watch) {
+            if (watch.downloadedSize != file.local.downloadedSize) {
+                watch.downloadedSize = file.local.downloadedSize;
+                watch.lastProgressTime = now;
+                watch.restarts = 0;
+            }
+        }
+    }
+
+    /**
+     * @return stalled downloads, a restarting download is not checked again until {@link #onRestarted(int, boolean)}
+     */
+    public List<Stall> check() {
+        long now = clock.getAsLong();
+        List<Stall> stalls = new ArrayList<>();
+        watches.forEach((fileId, watch) -> {
+            synchronized (watch) {
+                if (watch.restarting || now - watch.lastProgressTime < stallTimeout << Math.min(watch.restarts, 16)) {
+                    return;
+                }
+                if (watch.restarts >= maxRestarts) {
+                    watches.remove(fileId);
+                    failedFileIds.add(fileId);
+                    stalls.add(new Stall(fileId, watch.uniqueId, Action.FAIL, watch.restarts));
+                } else {
+                    stalls.add(new Stall(fileId, watch.uniqueId, Action.RESTART, watch.restarts));
+                    watch.restarts++;
+                    watch.restarting = true;
+                }
+            }
+        });
+        return stalls;
+    }
+
+    /**
+     * @param success whether the download is added to the download list again, otherwise it is given up
+     */
+    public void onRestarted(int fileId, boolean success) {
+        if (!success) {
+            watches.remove(fileId);
+            failedFileIds.add(fileId);
+            return;
+        }
+        Watch watch = watches.get(fileId);
+        if (watch != null) {
+            synchronized (watch) {
+                watch.restarting = false;
+                watch.lastProgressTime = clock.getAsLong();
+            }
+        }
+    }
+
+    public boolean isFailed(int fileId) {
+        return failedFileIds.contains(fileId);
+    }
+
+    public boolean isRestarting(int fileId) {
+        Watch watch = watches.get(fileId);
+        return watch != null && watch.restarting;
+    }
+
+    public void remove(int fileId) {
+        startedFileIds.remove(fileId);
+        watches.remove(fileId);
+        failedFileIds.remove(fileId);
+    }
+
+    public int size() {
+        return watches.size();
+    }
+}
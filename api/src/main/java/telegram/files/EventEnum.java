@@ -37,6 +37,27 @@ public enum EventEnum {
      * body = JSONObject with "success", "message"
      */
     MAINTAIN,
+
+    /**
+     * suffix = null <br>
+     * body = telegramId <br>
+     * reply = JSONObject with auto download statistics of the telegram account
+     */
+    AUTO_DOWNLOAD_STATISTICS,
+
+    /**
+     * suffix = null <br>
+     * body = null <br>
+     * reply = JSONObject with transfer statistics
+     */
+    TRANSFER_STATISTICS,
+
+    /**
+     * suffix = null <br>
+     * body = null <br>
+     * reply = JSONObject with preview cache statistics
+     */
+    PREVIEW_CACHE_STATISTICS,
     ;
 
     public String address() {
@@ -0,0 +1,49 @@
+package telegram.files;
+
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used metadata of previewed files, so a preview of a known file does not touch the database or the disk.
+ * <p>
+ * Entries are keyed by the unique id of the file and must be invalidated when the file is transferred or removed.
+ */
+public class FileMetadataCache {
+
+    public record Metadata(String path, long size, long lastModified, String mimeType) {
+
+        /**
+         * A downloaded file does not change, its size and last modified time identify the content
+         */
+        public String etag() {
+            return "\"%x-%x\"".formatted(size, lastModified);
+        }
+    }
+
+    private final Map<String, Metadata> entries;
+
+    public FileMetadataCache(int capacity) {
+        this.entries = new LinkedHashMap<>(16, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<String, Metadata> eldest) {
+                return size() > capacity;
+            }
+        };
+    }
+
+    public synchronized Metadata get(String uniqueId) {
+        return entries.get(uniqueId);
+    }
+
+    public synchronized void put(String uniqueId, Metadata metadata) {
+        entries.put(uniqueId, metadata);
+    }
+
+    public synchronized void invalidate(String uniqueId) {
+        entries.remove(uniqueId);
+    }
+
+    public synchronized int size() {
+        return entries.size();
+    }
+}
@@ -1,96 +1,174 @@
 package telegram.files;
 
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.StrUtil;
 import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
 import io.vertx.core.MultiMap;
-import io.vertx.core.file.FileProps;
-import io.vertx.core.file.FileSystem;
+import io.vertx.core.buffer.Buffer;
 import io.vertx.core.http.HttpHeaders;
 import io.vertx.core.http.HttpMethod;
 import io.vertx.core.http.HttpServerRequest;
 import io.vertx.core.http.HttpServerResponse;
+import io.vertx.core.json.JsonObject;
 import io.vertx.ext.web.RoutingContext;
+import org.jooq.lambda.tuple.Tuple2;
+import telegram.files.repository.SettingKey;
 
 import java.nio.charset.Charset;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.function.Supplier;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
+import static io.netty.handler.codec.http.HttpResponseStatus.NOT_MODIFIED;
 import static io.netty.handler.codec.http.HttpResponseStatus.PARTIAL_CONTENT;
 import static io.netty.handler.codec.http.HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
 
 public class FileRouteHandler {
     private static final Log LOG = LogFactory.get();
 
-    public void handle(RoutingContext context, String path, String mimeType) {
+    private static final int METADATA_CACHE_CAPACITY = 4096;
+
+    private static final String CACHE_CONTROL = "private, max-age=86400";
+
+    /**
+     * Thumbnails of a unique id never change
+     */
+    public static final String IMMUTABLE_CACHE_CONTROL = "private, max-age=31536000, immutable";
+
+    private static final DateTimeFormatter HTTP_DATE_FORMATTER = DateTimeFormatter
+            .ofPattern("EEE, dd MMM yyyy HH:mm:ss 'GMT'", Locale.ENGLISH)
+            .withZone(ZoneOffset.UTC);
+
+    private final FileMetadataCache metadataCache = new FileMetadataCache(METADATA_CACHE_CAPACITY);
+
+    private final HotFileCache hotFileCache = new HotFileCache(
+            (int) SettingKey.previewCacheFileSize.defaultValue * 1024L,
+            (int) SettingKey.previewCacheSize.defaultValue * 1024L * 1024);
+
+    public void handle(RoutingContext context, String uniqueId, Supplier<Future<Tuple2<String, String>>> preview) {
+        handle(context, uniqueId, preview, CACHE_CONTROL);
+    }
+
+    /**
+     * @param key     unique id of the file, or {@link #thumbnailKey} of its thumbnail
+     * @param preview loads the path and the mime type of the file, only called if the file is not cached
+     */
+    public void handle(RoutingContext context,
+                       String key,
+                       Supplier<Future<Tuple2<String, String>>> preview,
+                       String cacheControl) {
         HttpServerRequest request = context.request();
 
         if (request.method() != HttpMethod.GET && request.method() != HttpMethod.HEAD) {
             if (LOG.isTraceEnabled())
                 LOG.trace("Not GET or HEAD so ignoring request");
             context.next();
-        } else {
-            if (!request.isEnded()) {
-                request.pause();
-            }
+            return;
+        }
 
-            // Access fileSystem once here to be safe
-            FileSystem fs = context.vertx().fileSystem();
-            sendStatic(context, fs, path, mimeType);
+        FileMetadataCache.Metadata metadata = metadataCache.get(key);
+        if (metadata != null) {
+            sendFile(context, key, metadata, cacheControl);
+            return;
         }
-    }
 
-    private void sendStatic(RoutingContext context, FileSystem fileSystem, String path, String mimeType) {
-        // verify if the file exists
-        fileSystem
-                .exists(path, exists -> {
-                    if (exists.failed()) {
-                        if (!context.request().isEnded()) {
-                            context.request().resume();
-                        }
-                        context.fail(exists.cause());
-                        return;
+        if (!request.isEnded()) {
+            request.pause();
+        }
+        preview.get()
+                .compose(tuple -> context.vertx().fileSystem().props(tuple.v1)
+                        .map(props -> props.isDirectory() ? null : new FileMetadataCache.Metadata(tuple.v1,
+                                props.size(),
+                                props.lastModifiedTime(),
+                                StrUtil.blankToDefault(tuple.v2, FileUtil.getMimeType(tuple.v1)))))
+                .onSuccess(loaded -> {
+                    if (!context.request().isEnded()) {
+                        context.request().resume();
                     }
-
-                    // file does not exist, continue...
-                    if (!exists.result()) {
-                        if (!context.request().isEnded()) {
-                            context.request().resume();
-                        }
+                    if (loaded == null) {
                         context.next();
                         return;
                     }
-
-                    // Need to read the props from the filesystem
-                    fileSystem.props(path, res -> {
-                        if (res.succeeded()) {
-                            FileProps props = res.result();
-                            if (props == null) {
-                                if (!context.request().isEnded()) {
-                                    context.request().resume();
-                                }
-                                context.next();
-                            } else if (props.isDirectory()) {
-                                context.next();
-                            } else {
-                                sendFile(context, path, mimeType, props);
-                            }
-                        } else {
-                            if (!context.request().isEnded()) {
-                                context.request().resume();
-                            }
-                            if (LOG.isTraceEnabled()) {
-                                LOG.trace("Failed to read file properties", res.cause());
-                            }
-                        }
-                    });
+                    metadataCache.put(key, loaded);
+                    sendFile(context, key, loaded, cacheControl);
+                })
+                .onFailure(e -> {
+                    if (!context.request().isEnded()) {
+                        context.request().resume();
+                    }
+                    context.fail(e);
                 });
     }
 
+    /**
+     * The file is transferred or removed, its path or content may have changed.
+     */
+    public void invalidate(String uniqueId) {
+        metadataCache.invalidate(uniqueId);
+        hotFileCache.invalidate(uniqueId);
+        for (Integer size : Thumbnails.SIZES) {
+            // a small photo is its own thumbnail
+            metadataCache.invalidate(thumbnailKey(uniqueId, size));
+            hotFileCache.invalidate(thumbnailKey(uniqueId, size));
+        }
+    }
+
+    public static String thumbnailKey(String uniqueId, int size) {
+        return uniqueId + "@" + size;
+    }
+
+    /**
+     * @param maxFileSize larger files are always sent from the disk
+     * @param capacity    total size of the files cached in memory, 0 disables the cache
+     */
+    public void resizeHotFileCache(long maxFileSize, long capacity) {
+        hotFileCache.resize(maxFileSize, capacity);
+    }
+
+    public JsonObject getHotFileCacheStatistics() {
+        return hotFileCache.getStatistics();
+    }
+
+    /**
+     * @return whether the client has the same content, If-None-Match takes precedence over If-Modified-Since
+     */
+    static boolean isNotModified(String ifNoneMatch, String ifModifiedSince, FileMetadataCache.Metadata metadata) {
+        if (ifNoneMatch != null) {
+            String etag = metadata.etag();
+            return Arrays.stream(ifNoneMatch.split(","))
+                    .map(String::trim)
+                    // Weak comparison is allowed for GET and HEAD
+                    .map(tag -> StrUtil.removePrefix(tag, "W/"))
+                    .anyMatch(tag -> tag.equals("*") || tag.equals(etag));
+        }
+        if (ifModifiedSince != null) {
+            try {
+                Instant since = ZonedDateTime.parse(ifModifiedSince, DateTimeFormatter.RFC_1123_DATE_TIME).toInstant();
+                // HTTP dates have a precision of seconds
+                return metadata.lastModified() / 1000 <= since.getEpochSecond();
+            } catch (DateTimeParseException e) {
+                return false;
+            }
+        }
+        return false;
+    }
+
     private static final Pattern RANGE = Pattern.compile("^bytes=(\\d+)-(\\d*)$");
 
-    private void sendFile(RoutingContext context, String file, String contentType, FileProps fileProps) {
+    private void sendFile(RoutingContext context, String uniqueId, FileMetadataCache.Metadata metadata, String cacheControl) {
         final HttpServerRequest request = context.request();
         final HttpServerResponse response = context.response();
+        final String file = metadata.path();
+        final String contentType = metadata.mimeType();
 
         Long offset = null;
         long end;
@@ -99,10 +177,20 @@ public class FileRouteHandler {
         if (response.closed())
             return;
 
+        // let the client cache the file and revalidate it without reading the file
+        headers = response.headers();
+        headers.set(HttpHeaders.ETAG, metadata.etag());
+        headers.set(HttpHeaders.LAST_MODIFIED, HTTP_DATE_FORMATTER.format(Instant.ofEpochMilli(metadata.lastModified())));
+        headers.set(HttpHeaders.CACHE_CONTROL, cacheControl);
+        if (isNotModified(request.getHeader(HttpHeaders.IF_NONE_MATCH), request.getHeader(HttpHeaders.IF_MODIFIED_SINCE), metadata)) {
+            response.setStatusCode(NOT_MODIFIED.code()).end();
+            return;
+        }
+
         // check if the client is making a range request
         String range = request.getHeader("Range");
         // end byte is length - 1
-        end = fileProps.size() - 1;
+        end = metadata.size() - 1;
 
         if (range != null) {
             Matcher m = RANGE.matcher(range);
@@ -112,7 +200,7 @@ public class FileRouteHandler {
                     // offset cannot be empty
                     offset = Long.parseLong(part);
                     // offset must fall inside the limits of the file
-                    if (offset < 0 || offset >= fileProps.size()) {
+                    if (offset < 0 || offset >= metadata.size()) {
                         throw new IndexOutOfBoundsException();
                     }
                     // length can be empty
@@ -126,7 +214,7 @@ public class FileRouteHandler {
                         }
                     }
                 } catch (NumberFormatException | IndexOutOfBoundsException e) {
-                    context.response().putHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + fileProps.size());
+                    context.response().putHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + metadata.size());
                     if (!context.request().isEnded()) {
                         context.request().resume();
                     }
@@ -137,7 +225,6 @@ public class FileRouteHandler {
         }
 
         // notify client we support range requests
-        headers = response.headers();
         headers.set(HttpHeaders.ACCEPT_RANGES, "bytes");
         // send the content length even for HEAD requests
         headers.set(HttpHeaders.CONTENT_LENGTH, Long.toString(end + 1 - (offset == null ? 0 : offset)));
@@ -145,9 +232,11 @@ public class FileRouteHandler {
         if (request.method() == HttpMethod.HEAD) {
             response.end();
         } else {
+            // small files are served from memory once they are hot, others keep the zero-copy path
+            Buffer cached = hotFileCache.get(uniqueId, metadata);
             if (offset != null) {
                 // must return content range
-                headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + offset + "-" + end + "/" + fileProps.size());
+                headers.set(HttpHeaders.CONTENT_RANGE, "bytes " + offset + "-" + end + "/" + metadata.size());
                 // return a partial response
                 response.setStatusCode(PARTIAL_CONTENT.code());
 
@@ -161,8 +250,16 @@ public class FileRouteHandler {
                     }
                 }
 
+                if (cached != null) {
+                    hotFileCache.recordServed(finalLength);
+                    response.end(cached.slice((int) finalOffset, (int) (finalOffset + finalLength)));
+                    return;
+                }
+                hotFileCache.load(context.vertx(), uniqueId, metadata);
                 response.sendFile(file, finalOffset, finalLength, res2 -> {
                     if (res2.failed()) {
+                        // the cached file may be moved or deleted
+                        invalidate(uniqueId);
                         if (!context.request().isEnded()) {
                             context.request().resume();
                         }
@@ -181,8 +278,16 @@ public class FileRouteHandler {
                     }
                 }
 
+                if (cached != null) {
+                    hotFileCache.recordServed(metadata.size());
+                    response.end(cached);
+                    return;
+                }
+                hotFileCache.load(context.vertx(), uniqueId, metadata);
                 response.sendFile(file, res2 -> {
                     if (res2.failed()) {
+                        // the cached file may be moved or deleted
+                        invalidate(uniqueId);
                         if (!context.request().isEnded()) {
                             context.request().resume();
                         }
@@ -0,0 +1,231 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.file.AsyncFile;
+import io.vertx.core.file.OpenOptions;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServerResponse;
+import io.vertx.ext.web.RoutingContext;
+
+import java.util.Objects;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import static io.netty.handler.codec.http.HttpResponseStatus.PARTIAL_CONTENT;
+import static io.netty.handler.codec.http.HttpResponseStatus.REQUESTED_RANGE_NOT_SATISFIABLE;
+
+/**
+ * Serves byte ranges of a file that is still downloading.
+ * <p>
+ * Bytes already on the disk are sent at once. When the range reaches a part that is not downloaded, the download window
+ * of the file is moved to it and the response waits for the download progress, so seeking in a video moves the download.
+ */
+public class FileStreamHandler {
+    private static final Log log = LogFactory.get();
+
+    private static final Pattern RANGE = Pattern.compile("^bytes=(\\d*)-(\\d*)$");
+
+    private static final int CHUNK_SIZE = 512 * 1024;
+
+    private static final long PROGRESS_TIMEOUT = 10_000;
+
+    /**
+     * Give up a response if the download does not progress for this many timeouts
+     */
+    private static final int MAX_STALLS = 6;
+
+    public interface Source {
+
+        long size();
+
+        String mimeType();
+
+        /**
+         * @return path of the file and the size of the downloaded part from the offset, the path changes when the
+         * download is completed
+         */
+        Future<Part> downloaded(long offset);
+
+        /**
+         * Download the file from the offset with a high priority.
+         */
+        Future<Void> download(long offset);
+
+        /**
+         * @return true if the file is updated in the timeout
+         */
+        Future<Boolean> awaitProgress(long timeout);
+    }
+
+    public record Part(String path, long size) {
+    }
+
+    private static class Stream {
+        private final RoutingContext context;
+
+        private final Source source;
+
+        private final long end;
+
+        private long position;
+
+        // position the download window was moved to
+        private long window = -1;
+
+        private int stalls;
+
+        private AsyncFile file;
+
+        private String path;
+
+        private Stream(RoutingContext context, Source source, long start, long end) {
+            this.context = context;
+            this.source = source;
+            this.position = start;
+            this.end = end;
+        }
+    }
+
+    public void handle(RoutingContext context, Source source) {
+        HttpServerResponse response = context.response();
+        long size = source.size();
+        long[] range = parseRange(context.request().getHeader("Range"), size);
+        if (range == null) {
+            response.putHeader(HttpHeaders.CONTENT_RANGE, "bytes */" + size);
+            context.fail(REQUESTED_RANGE_NOT_SATISFIABLE.code());
+            return;
+        }
+
+        response.putHeader(HttpHeaders.ACCEPT_RANGES, "bytes");
+        response.putHeader(HttpHeaders.CONTENT_LENGTH, Long.toString(range[1] + 1 - range[0]));
+        if (source.mimeType() != null) {
+            response.putHeader(HttpHeaders.CONTENT_TYPE, source.mimeType());
+        }
+        if (context.request().getHeader("Range") != null) {
+            response.putHeader(HttpHeaders.CONTENT_RANGE, "bytes " + range[0] + "-" + range[1] + "/" + size);
+            response.setStatusCode(PARTIAL_CONTENT.code());
+        }
+        if (context.request().method() == HttpMethod.HEAD) {
+            response.end();
+            return;
+        }
+        pump(new Stream(context, source, range[0], range[1]));
+    }
+
+    /**
+     * @return inclusive start and end of the range, the whole file if there is no range, null if it is not satisfiable
+     */
+    static long[] parseRange(String range, long size) {
+        if (range == null) {
+            return size > 0 ? new long[]{0, size - 1} : null;
+        }
+        Matcher m = RANGE.matcher(range);
+        if (!m.matches() || size <= 0) {
+            return null;
+        }
+        long start;
+        long end;
+        try {
+            if (m.group(1).isEmpty()) {
+                // suffix range, the last n bytes
+                if (m.group(2).isEmpty()) {
+                    return null;
+                }
+                start = Math.max(0, size - Long.parseLong(m.group(2)));
+                end = size - 1;
+            } else {
+                start = Long.parseLong(m.group(1));
+                end = m.group(2).isEmpty() ? size - 1 : Math.min(size - 1, Long.parseLong(m.group(2)));
+            }
+        } catch (NumberFormatException e) {
+            return null;
+        }
+        return start < size && start <= end ? new long[]{start, end} : null;
+    }
+
+    private void pump(Stream stream) {
+        HttpServerResponse response = stream.context.response();
+        if (response.closed()) {
+            close(stream);
+            return;
+        }
+        if (stream.position > stream.end) {
+            close(stream);
+            response.end();
+            return;
+        }
+        stream.source.downloaded(stream.position)
+                .compose(part -> {
+                    if (part.size() > 0 && part.path() != null) {
+                        stream.stalls = 0;
+                        int length = (int) Math.min(Math.min(part.size(), CHUNK_SIZE), stream.end + 1 - stream.position);
+                        return read(stream, part.path(), length)
+                                .compose(buffer -> {
+                                    if (buffer.length() == 0) {
+                                        return waitDownload(stream);
+                                    }
+                                    stream.position += buffer.length();
+                                    return response.write(buffer);
+                                });
+                    }
+                    return waitDownload(stream);
+                })
+                .onSuccess(r -> pump(stream))
+                .onFailure(e -> {
+                    log.debug("Stream file failed: %s".formatted(e.getMessage()));
+                    close(stream);
+                    if (!response.headWritten()) {
+                        stream.context.fail(e);
+                    } else {
+                        response.reset();
+                    }
+                });
+    }
+
+    private Future<Void> waitDownload(Stream stream) {
+        if (stream.stalls >= MAX_STALLS) {
+            return Future.failedFuture("Download does not progress at %d".formatted(stream.position));
+        }
+        // wait before the download is moved, its first update may arrive before the download request completes
+        Future<Boolean> progress = stream.source.awaitProgress(PROGRESS_TIMEOUT);
+        // move the window once, then again after each timeout in case another stream moved it away
+        Future<Void> download = stream.window == stream.position && stream.stalls == 0
+                ? Future.succeededFuture()
+                : stream.source.download(stream.position);
+        stream.window = stream.position;
+        return download
+                .compose(r -> progress)
+                .map(updated -> {
+                    stream.stalls = updated ? 0 : stream.stalls + 1;
+                    return null;
+                });
+    }
+
+    private Future<Buffer> read(Stream stream, String path, int length) {
+        Future<AsyncFile> file;
+        if (stream.file != null && Objects.equals(stream.path, path)) {
+            file = Future.succeededFuture(stream.file);
+        } else {
+            // the file is moved when the download is completed
+            close(stream);
+            file = stream.context.vertx().fileSystem().open(path, new OpenOptions().setRead(true).setWrite(false))
+                    .onSuccess(f -> {
+                        stream.file = f;
+                        stream.path = path;
+                    });
+        }
+        return file.compose(f -> f.read(Buffer.buffer(length), 0, stream.position, length));
+    }
+
+    private void close(Stream stream) {
+        if (stream.file != null) {
+            stream.file.close();
+            stream.file = null;
+            stream.path = null;
+        }
+    }
+}
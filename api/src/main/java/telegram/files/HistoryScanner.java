@@ -0,0 +1,131 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.IntStream;
+
+/**
+ * Concurrent history scanner of auto download chats.
+ * <p>
+ * Every file type of a chat is scanned by its own {@link Cursor}. One scan of a telegram account runs at most
+ * {@code concurrency} cursors in parallel, a cursor is paged until it is exhausted or the chat queue reaches
+ * its high-water mark, and is checkpointed after every page. A new scan of an account is skipped while
+ * the previous one is still running.
+ */
+public class HistoryScanner {
+
+    private static final Log log = LogFactory.get();
+
+    private final int concurrency;
+
+    private final Handler handler;
+
+    private final Set<Long> scanningAccounts = ConcurrentHashMap.newKeySet();
+
+    public HistoryScanner(int concurrency, Handler handler) {
+        this.concurrency = Math.max(1, concurrency);
+        this.handler = handler;
+    }
+
+    public interface Handler {
+        /**
+         * @return whether the waiting queue of the chat reached its high-water mark
+         */
+        boolean isFull(Cursor cursor);
+
+        /**
+         * Scan one page from the cursor, and move the cursor forward.
+         *
+         * @return false if the page is not accepted, the cursor is not moved and the scan of it stops
+         */
+        Future<Boolean> scanPage(Cursor cursor);
+
+        void checkpoint(Cursor cursor);
+    }
+
+    public static class Cursor {
+        public final long telegramId;
+
+        public final long chatId;
+
+        public final String fileType;
+
+        public volatile long fromMessageId;
+
+        public volatile boolean completed;
+
+        public Cursor(long telegramId, long chatId, String fileType, long fromMessageId, boolean completed) {
+            this.telegramId = telegramId;
+            this.chatId = chatId;
+            this.fileType = fileType;
+            this.fromMessageId = fromMessageId;
+            this.completed = completed;
+        }
+
+        @Override
+        public String toString() {
+            return "%d:%d:%s".formatted(telegramId, chatId, fileType);
+        }
+    }
+
+    /**
+     * @param cursors cursors of one telegram account, cursors of different chats should be interleaved
+     * @return completes when all cursors are scanned
+     */
+    public Future<Void> scan(long telegramId, List<Cursor> cursors) {
+        Deque<Cursor> pending = new ArrayDeque<>(cursors.stream().filter(c -> !c.completed).toList());
+        if (pending.isEmpty()) {
+            return Future.succeededFuture();
+        }
+        if (!scanningAccounts.add(telegramId)) {
+            log.debug("Scan history is still running! TelegramId: %d".formatted(telegramId));
+            return Future.succeededFuture();
+        }
+        int workers = Math.min(concurrency, pending.size());
+        return Future.join(IntStream.range(0, workers)
+                        .mapToObj(i -> work(pending))
+                        .toList())
+                .<Void>mapEmpty()
+                .onComplete(r -> scanningAccounts.remove(telegramId));
+    }
+
+    public boolean isScanning(long telegramId) {
+        return scanningAccounts.contains(telegramId);
+    }
+
+    private Future<Void> work(Deque<Cursor> pending) {
+        Cursor cursor;
+        synchronized (pending) {
+            cursor = pending.poll();
+        }
+        if (cursor == null) {
+            return Future.succeededFuture();
+        }
+        return scanCursor(cursor)
+                .onFailure(e -> log.error("Scan history failed! Cursor: %s".formatted(cursor), e))
+                .otherwiseEmpty()
+                .compose(v -> work(pending));
+    }
+
+    private Future<Void> scanCursor(Cursor cursor) {
+        if (cursor.completed) {
+            return Future.succeededFuture();
+        }
+        if (handler.isFull(cursor)) {
+            log.debug("Scan history reached high-water mark! Cursor: %s".formatted(cursor));
+            return Future.succeededFuture();
+        }
+        return handler.scanPage(cursor)
+                .compose(moved -> {
+                    if (!moved) {
+                        return Future.succeededFuture();
+                    }
+                    handler.checkpoint(cursor);
+                    return scanCursor(cursor);
+                });
+    }
+}
@@ -0,0 +1,179 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.netty.buffer.Unpooled;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.buffer.impl.BufferImpl;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Least recently used content of small previewed files, held in direct buffers and limited by the total size.
+ * <p>
+ * A file is loaded on a worker thread after it is first sent from the disk. The buffers are never released by netty,
+ * an evicted buffer is freed by the garbage collector after the responses writing it are done. Every response writes
+ * a slice of the cached buffer, which shares its content without a copy.
+ */
+public class HotFileCache {
+
+    private static final Log log = LogFactory.get();
+
+    private record Entry(FileMetadataCache.Metadata metadata, Buffer content) {
+    }
+
+    private final Map<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    private final Set<String> loading = ConcurrentHashMap.newKeySet();
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong bytesServed = new AtomicLong();
+
+    private volatile long maxFileSize;
+
+    private volatile long capacity;
+
+    private long size;
+
+    /**
+     * @param maxFileSize larger files are not cached
+     * @param capacity    total size of the cached files, 0 disables the cache
+     */
+    public HotFileCache(long maxFileSize, long capacity) {
+        this.maxFileSize = maxFileSize;
+        this.capacity = capacity;
+    }
+
+    public boolean isCacheable(FileMetadataCache.Metadata metadata) {
+        return metadata.size() > 0 && metadata.size() <= Math.min(Math.min(maxFileSize, capacity), Integer.MAX_VALUE);
+    }
+
+    /**
+     * @return content of the file, null if it is not cached or the cached content is of another version of the file
+     */
+    public Buffer get(String uniqueId, FileMetadataCache.Metadata metadata) {
+        if (!isCacheable(metadata)) {
+            return null;
+        }
+        Entry entry;
+        synchronized (this) {
+            entry = entries.get(uniqueId);
+        }
+        if (entry == null || !Objects.equals(entry.metadata(), metadata)) {
+            misses.incrementAndGet();
+            return null;
+        }
+        hits.incrementAndGet();
+        return entry.content().slice();
+    }
+
+    public void recordServed(long bytes) {
+        bytesServed.addAndGet(bytes);
+    }
+
+    /**
+     * Load the file into the cache in the background, nothing is done if it is not cacheable or already loading.
+     */
+    public void load(Vertx vertx, String uniqueId, FileMetadataCache.Metadata metadata) {
+        if (!isCacheable(metadata) || !loading.add(uniqueId)) {
+            return;
+        }
+        vertx.executeBlocking(() -> read(metadata), false)
+                .onSuccess(content -> {
+                    if (content != null) {
+                        put(uniqueId, metadata, content);
+                    }
+                })
+                .onFailure(e -> log.debug("Load %s into hot file cache failed: %s".formatted(metadata.path(), e.getMessage())))
+                .onComplete(r -> loading.remove(uniqueId));
+    }
+
+    public synchronized void invalidate(String uniqueId) {
+        Entry entry = entries.remove(uniqueId);
+        if (entry != null) {
+            size -= entry.metadata().size();
+        }
+    }
+
+    public synchronized void resize(long maxFileSize, long capacity) {
+        this.maxFileSize = maxFileSize;
+        this.capacity = capacity;
+        entries.values().removeIf(entry -> {
+            if (entry.metadata().size() > maxFileSize) {
+                size -= entry.metadata().size();
+                return true;
+            }
+            return false;
+        });
+        evict();
+    }
+
+    public JsonObject getStatistics() {
+        long hitCount = hits.get();
+        long missCount = misses.get();
+        synchronized (this) {
+            return new JsonObject()
+                    .put("entries", entries.size())
+                    .put("size", size)
+                    .put("capacity", capacity)
+                    .put("maxFileSize", maxFileSize)
+                    .put("hits", hitCount)
+                    .put("misses", missCount)
+                    .put("hitRatio", hitCount + missCount == 0 ? 0 : (double) hitCount / (hitCount + missCount))
+                    .put("bytesServed", bytesServed.get());
+        }
+    }
+
+    synchronized void put(String uniqueId, FileMetadataCache.Metadata metadata, Buffer content) {
+        if (!isCacheable(metadata)) {
+            return;
+        }
+        invalidate(uniqueId);
+        entries.put(uniqueId, new Entry(metadata, content));
+        size += metadata.size();
+        evict();
+    }
+
+    private void evict() {
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            size -= iterator.next().metadata().size();
+            iterator.remove();
+        }
+    }
+
+    /**
+     * @return content of the file, null if the file does not match the metadata any more
+     */
+    private static Buffer read(FileMetadataCache.Metadata metadata) throws IOException {
+        try (FileChannel channel = FileChannel.open(Path.of(metadata.path()), StandardOpenOption.READ)) {
+            if (channel.size() != metadata.size()) {
+                return null;
+            }
+            ByteBuffer buffer = ByteBuffer.allocateDirect((int) metadata.size());
+            while (buffer.hasRemaining()) {
+                if (channel.read(buffer) < 0) {
+                    return null;
+                }
+            }
+            // Vert.x 4 has no public API wrapping a direct buffer that is not deprecated
+            return BufferImpl.buffer(Unpooled.unreleasableBuffer(Unpooled.wrappedBuffer(buffer.flip())));
+        }
+    }
+}
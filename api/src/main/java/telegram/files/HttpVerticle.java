@@ -3,6 +3,7 @@ package telegram.files;
 import cn.hutool.core.collection.CollUtil;
 import cn.hutool.core.convert.Convert;
 import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.EnumUtil;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.core.util.URLUtil;
 import cn.hutool.log.Log;
@@ -26,10 +27,13 @@ import io.vertx.ext.web.handler.SessionHandler;
 import io.vertx.ext.web.sstore.LocalSessionStore;
 import io.vertx.ext.web.sstore.SessionStore;
 import org.drinkless.tdlib.TdApi;
+import org.jooq.lambda.tuple.Tuple;
+import telegram.files.repository.FileRecord;
 import telegram.files.repository.SettingAutoRecords;
 import telegram.files.repository.SettingKey;
 import telegram.files.repository.SettingRecord;
 
+import java.nio.file.Path;
 import java.util.*;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.TimeUnit;
@@ -38,31 +42,41 @@ public class HttpVerticle extends AbstractVerticle {
 
     private static final Log log = LogFactory.get();
 
-    // session id -> ws handler id
-    private static final Map<String, String> clients = new ConcurrentHashMap<>();
+    private final WebSocketClients webSocketClients = new WebSocketClients();
 
     // session id -> telegram verticle
     private final Map<String, TelegramVerticle> sessionTelegramVerticles = new ConcurrentHashMap<>();
 
     private final FileRouteHandler fileRouteHandler = new FileRouteHandler();
 
+    private final FileStreamHandler fileStreamHandler = new FileStreamHandler();
+
+    private Thumbnails thumbnails;
+
     private static final String SESSION_COOKIE_NAME = "tf";
 
     @Override
     public void start(Promise<Void> startPromise) {
+        thumbnails = new Thumbnails(vertx, Path.of(Config.THUMBNAIL_ROOT),
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
         initHttpServer()
                 .compose(r -> initTelegramVerticles())
                 .compose(r -> AutoRecordsHolder.INSTANCE.init())
+                .compose(r -> SharedDownloads.INSTANCE.init(vertx))
+                .compose(r -> PreviewFileCache.INSTANCE.init(vertx))
                 .compose(r -> initAutoDownloadVerticle())
                 .compose(r -> initTransferVerticle())
                 .compose(r -> initPreloadMessageVerticle())
                 .compose(r -> initEventConsumer())
+                .compose(r -> loadPreviewCacheSettings())
+                .compose(r -> loadPreviewFileCacheSettings())
                 .onSuccess(startPromise::complete)
                 .onFailure(startPromise::fail);
     }
 
     @Override
     public void stop(Promise<Void> stopPromise) {
+        thumbnails.close();
         AutoRecordsHolder.INSTANCE.saveAutoRecords()
                 .onComplete(ignore -> {
                     log.info("Http verticle stopped!");
@@ -74,7 +88,6 @@ public class HttpVerticle extends AbstractVerticle {
         int port = config().getInteger("http.port", 8080);
         HttpServerOptions options = new HttpServerOptions()
                 .setLogActivity(true)
-                .setRegisterWebSocketWriteHandlers(true)
                 .setMaxWebSocketMessageSize(1024 * 1024)
                 .setIdleTimeout(60)
                 .setIdleTimeoutUnit(TimeUnit.SECONDS)
@@ -144,6 +157,7 @@ public class HttpVerticle extends AbstractVerticle {
         router.get("/telegram/:telegramId/chats").handler(this::handleTelegramChats);
         router.get("/telegram/:telegramId/chat/:chatId/files").handler(this::handleTelegramFiles);
         router.get("/telegram/:telegramId/chat/:chatId/files/count").handler(this::handleTelegramFilesCount);
+        router.get("/telegram/:telegramId/chat/:chatId/message/:messageId/preview").handler(this::handleMessagePreview);
         router.get("/telegram/:telegramId/download-statistics").handler(this::handleTelegramDownloadStatistics);
         router.post("/telegrams/change").handler(this::handleTelegramChange);
         router.post("/telegram/:telegramId/toggle-proxy").handler(this::handleTelegramToggleProxy);
@@ -151,10 +165,12 @@ public class HttpVerticle extends AbstractVerticle {
         router.get("/telegram/:telegramId/test-network").handler(this::handleTelegramTestNetwork);
 
         router.get("/:telegramId/file/:uniqueId").handler(this::handleFilePreview);
+        router.get("/:telegramId/file/:uniqueId/stream").handler(this::handleFileStream);
         router.post("/:telegramId/file/start-download").handler(this::handleFileStartDownload);
         router.post("/:telegramId/file/start-download-multiple").handler(this::handleFileStartDownloadMultiple);
         router.post("/:telegramId/file/cancel-download").handler(this::handleFileCancelDownload);
         router.post("/:telegramId/file/toggle-pause-download").handler(this::handleFileTogglePauseDownload);
+        router.post("/:telegramId/file/update-priority").handler(this::handleFileUpdatePriority);
         router.post("/:telegramId/file/remove").handler(this::handleFileRemove);
         router.post("/:telegramId/file/update-auto-settings").handler(this::handleAutoSettingsUpdate);
 
@@ -199,24 +215,57 @@ public class HttpVerticle extends AbstractVerticle {
                 .mapEmpty();
     }
 
+    private Future<Void> loadPreviewCacheSettings() {
+        return Future.all(
+                DataVerticle.settingRepository.<Integer>getByKey(SettingKey.previewCacheFileSize),
+                DataVerticle.settingRepository.<Integer>getByKey(SettingKey.previewCacheSize)
+        ).onSuccess(r -> fileRouteHandler.resizeHotFileCache(r.<Integer>resultAt(0) * 1024L, r.<Integer>resultAt(1) * 1024L * 1024))
+                .onFailure(e -> log.error("Get preview cache settings failed!", e))
+                .<Void>mapEmpty()
+                .otherwiseEmpty();
+    }
+
+    private Future<Void> loadPreviewFileCacheSettings() {
+        return DataVerticle.settingRepository.<Integer>getByKey(SettingKey.previewFileCacheSize)
+                .onSuccess(size -> PreviewFileCache.INSTANCE.resize(size * 1024L * 1024))
+                .onFailure(e -> log.error("Get preview file cache settings failed!", e))
+                .<Void>mapEmpty()
+                .otherwiseEmpty();
+    }
+
     private Future<Void> initEventConsumer() {
         vertx.eventBus().consumer(EventEnum.TELEGRAM_EVENT.address(), message -> {
             log.debug("Received telegram event: %s".formatted(message.body()));
             JsonObject jsonObject = (JsonObject) message.body();
             String telegramId = jsonObject.getString("telegramId");
             EventPayload payload = jsonObject.getJsonObject("payload").mapTo(EventPayload.class);
-
-            sessionTelegramVerticles.entrySet().stream()
-                    .filter(e -> Objects.equals(Convert.toStr(e.getValue().getId()), telegramId))
-                    .map(Map.Entry::getKey)
-                    .forEach(sessionId -> {
-                        String wsHandlerId = clients.get(sessionId);
-                        if (StrUtil.isNotBlank(wsHandlerId)) {
-                            vertx.eventBus().send(wsHandlerId, Json.encode(payload));
-                        }
-                    });
+            if (payload.type() == EventPayload.TYPE_FILE_STATUS
+                && payload.data() instanceof Map<?, ?> data
+                && data.get("uniqueId") instanceof String uniqueId) {
+                fileRouteHandler.invalidate(uniqueId);
+                if (Objects.equals(data.get("removed"), true)) {
+                    thumbnails.delete(uniqueId);
+                } else if (Objects.equals(data.get("downloadStatus"), FileRecord.DownloadStatus.completed.name())
+                           && data.get("localPath") instanceof String localPath
+                           && StrUtil.isNotBlank(localPath)
+                           && StrUtil.startWith(FileUtil.getMimeType(localPath), "image/")) {
+                    thumbnails.generateEagerly(uniqueId, localPath, Thumbnails.DEFAULT_SIZE);
+                }
+            }
+
+            TelegramVerticles.get(telegramId)
+                    .ifPresent(telegramVerticle -> webSocketClients.publish(telegramVerticle, jsonObject.getJsonObject("payload")));
         });
 
+        vertx.eventBus().consumer(EventEnum.PREVIEW_CACHE_STATISTICS.address(),
+                message -> message.reply(fileRouteHandler.getHotFileCacheStatistics()));
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.previewCacheFileSize.name()),
+                message -> loadPreviewCacheSettings());
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.previewCacheSize.name()),
+                message -> loadPreviewCacheSettings());
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.previewFileCacheSize.name()),
+                message -> loadPreviewFileCacheSettings());
+
         vertx.eventBus().consumer(EventEnum.AUTO_DOWNLOAD_UPDATE.address(), message -> {
             log.debug("Auto settings update: %s".formatted(message.body()));
             AutoRecordsHolder.INSTANCE.onAutoRecordsUpdate(Json.decodeValue(message.body().toString(), SettingAutoRecords.class));
@@ -230,7 +279,7 @@ public class HttpVerticle extends AbstractVerticle {
         ctx.request().toWebSocket()
                 .onSuccess(ws -> {
                     log.debug("Upgraded to WebSocket. SessionId: %s".formatted(sessionId));
-                    clients.put(sessionId, ws.textHandlerID());
+                    WebSocketClients.Client client = webSocketClients.add(sessionId, ws);
                     if (StrUtil.isNotBlank(telegramId) && !handleTelegramChange(sessionId, telegramId)) {
                         log.debug("Failed to change telegram verticle. SessionId: %s".formatted(sessionId));
                     }
@@ -244,7 +293,7 @@ public class HttpVerticle extends AbstractVerticle {
 
                     ws.exceptionHandler(throwable -> log.error("WebSocket error: %s".formatted(throwable.getMessage())));
                     ws.closeHandler(e -> {
-                        clients.remove(sessionId);
+                        webSocketClients.remove(client);
                         vertx.cancelTimer(timerId);
                         log.debug("WebSocket closed. SessionId: %s".formatted(sessionId));
                     });
@@ -315,6 +364,7 @@ public class HttpVerticle extends AbstractVerticle {
         TelegramVerticle newTelegramVerticle = new TelegramVerticle(DataVerticle.telegramRepository.getRootPath());
         newTelegramVerticle.setProxy(proxyName);
         sessionTelegramVerticles.put(sessionId, newTelegramVerticle);
+        webSocketClients.link(sessionId, newTelegramVerticle);
         TelegramVerticles.add(newTelegramVerticle);
         vertx.deployVerticle(newTelegramVerticle)
                 .onSuccess(id -> ctx.json(new JsonObject()
@@ -333,6 +383,7 @@ public class HttpVerticle extends AbstractVerticle {
                 .onSuccess(r -> {
                     TelegramVerticles.remove(telegramVerticle);
                     sessionTelegramVerticles.entrySet().removeIf(e -> e.getValue().equals(telegramVerticle));
+                    webSocketClients.unlink(telegramVerticle);
                     ctx.end();
                 });
     }
@@ -381,6 +432,24 @@ public class HttpVerticle extends AbstractVerticle {
                 .onFailure(ctx::fail);
     }
 
+    private void handleMessagePreview(RoutingContext ctx) {
+        TelegramVerticle telegramVerticle = getTelegramVerticleByPath(ctx);
+        if (telegramVerticle == null) {
+            return;
+        }
+        Long chatId = Convert.toLong(ctx.pathParam("chatId"));
+        Long messageId = Convert.toLong(ctx.pathParam("messageId"));
+        if (chatId == null || messageId == null) {
+            ctx.fail(400);
+            return;
+        }
+        String size = ctx.queryParams().get("size");
+
+        fileRouteHandler.handle(ctx, "preview@%s_%d_%d_%s".formatted(telegramVerticle.getId(), chatId, messageId, size),
+                () -> telegramVerticle.loadMessagePreview(chatId, messageId, size),
+                FileRouteHandler.IMMUTABLE_CACHE_CONTROL);
+    }
+
     private void handleTelegramFilesCount(RoutingContext ctx) {
         TelegramVerticle telegramVerticle = getTelegramVerticleByPath(ctx);
         if (telegramVerticle == null) {
@@ -424,6 +493,7 @@ public class HttpVerticle extends AbstractVerticle {
     private boolean handleTelegramChange(String sessionId, String telegramId) {
         if (StrUtil.isBlank(telegramId)) {
             sessionTelegramVerticles.remove(sessionId);
+            webSocketClients.link(sessionId, null);
             return true;
         }
         Optional<TelegramVerticle> optionalTelegramVerticle = TelegramVerticles.get(telegramId);
@@ -431,6 +501,7 @@ public class HttpVerticle extends AbstractVerticle {
             return false;
         }
         sessionTelegramVerticles.put(sessionId, optionalTelegramVerticle.get());
+        webSocketClients.link(sessionId, optionalTelegramVerticle.get());
         return true;
     }
 
@@ -509,14 +580,39 @@ public class HttpVerticle extends AbstractVerticle {
             return;
         }
 
-        telegramVerticle.loadPreview(uniqueId)
-                .onSuccess(tuple -> {
-                    String mimeType = tuple.v2;
-                    if (StrUtil.isBlank(mimeType)) {
-                        mimeType = FileUtil.getMimeType(tuple.v1);
+        Integer size = Thumbnails.snapSize(Convert.toInt(ctx.queryParams().get("size"), 0));
+        if (size == null) {
+            fileRouteHandler.handle(ctx, uniqueId, () -> telegramVerticle.loadPreview(uniqueId));
+            return;
+        }
+        fileRouteHandler.handle(ctx, FileRouteHandler.thumbnailKey(uniqueId, size), () -> telegramVerticle.loadPreview(uniqueId)
+                .compose(preview -> {
+                    if (!StrUtil.startWith(preview.v2, "image/")) {
+                        return Future.succeededFuture(preview);
                     }
+                    return thumbnails.get(uniqueId, preview.v1, size)
+                            .map(path -> path.equals(preview.v1) ? preview : Tuple.tuple(path, "image/jpeg"));
+                }), FileRouteHandler.IMMUTABLE_CACHE_CONTROL);
+    }
 
-                    fileRouteHandler.handle(ctx, tuple.v1, mimeType);
+    private void handleFileStream(RoutingContext ctx) {
+        TelegramVerticle telegramVerticle = getTelegramVerticleByPath(ctx);
+        if (telegramVerticle == null) {
+            return;
+        }
+        String uniqueId = ctx.pathParam("uniqueId");
+        if (StrUtil.isBlank(uniqueId)) {
+            ctx.fail(404);
+            return;
+        }
+
+        telegramVerticle.loadStream(uniqueId)
+                .onSuccess(source -> {
+                    if (source == null) {
+                        fileRouteHandler.handle(ctx, uniqueId, () -> telegramVerticle.loadPreview(uniqueId));
+                    } else {
+                        fileStreamHandler.handle(ctx, source);
+                    }
                 })
                 .onFailure(ctx::fail);
     }
@@ -596,6 +692,22 @@ public class HttpVerticle extends AbstractVerticle {
                 .onFailure(ctx::fail);
     }
 
+    private void handleFileUpdatePriority(RoutingContext ctx) {
+        TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(ctx.pathParam("telegramId"));
+
+        JsonObject jsonObject = ctx.body().asJsonObject();
+        Integer fileId = jsonObject.getInteger("fileId");
+        DownloadPriority priority = EnumUtil.fromString(DownloadPriority.class, jsonObject.getString("priority"), null);
+        if (fileId == null || priority == null) {
+            ctx.fail(400);
+            return;
+        }
+
+        telegramVerticle.updateDownloadPriority(fileId, priority)
+                .onSuccess(r -> ctx.end())
+                .onFailure(ctx::fail);
+    }
+
     private void handleFileRemove(RoutingContext ctx) {
         TelegramVerticle telegramVerticle = TelegramVerticles.getOrElseThrow(ctx.pathParam("telegramId"));
         if (telegramVerticle == null) {
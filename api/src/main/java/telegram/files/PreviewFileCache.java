@@ -0,0 +1,216 @@
+package telegram.files;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import telegram.files.repository.SettingKey;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+import java.util.stream.Stream;
+
+/**
+ * Preview sized photos and video thumbnails downloaded from telegram, so a chat can be browsed without downloading the
+ * files.
+ * <p>
+ * Previews are copied out of the telegram file storage into one directory, named by the unique id of the preview file,
+ * and evicted least recently used first when the total size is over the capacity. The order is kept by the last
+ * modified time of the files, so it survives a restart.
+ */
+public class PreviewFileCache {
+    private static final Log log = LogFactory.get();
+
+    public static final PreviewFileCache INSTANCE = new PreviewFileCache();
+
+    private record Entry(Path path, long size) {
+    }
+
+    // preview unique id -> cached preview, in the order of access
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+
+    // preview unique id -> loading preview
+    private final Map<String, Future<String>> loading = new ConcurrentHashMap<>();
+
+    private Vertx vertx;
+
+    private Path root;
+
+    private volatile long capacity = (int) SettingKey.previewFileCacheSize.defaultValue * 1024L * 1024;
+
+    private long size;
+
+    private volatile boolean initialized = false;
+
+    private PreviewFileCache() {
+    }
+
+    PreviewFileCache(Vertx vertx, Path root, long capacity) {
+        this.vertx = vertx;
+        this.root = root;
+        this.capacity = capacity;
+    }
+
+    public synchronized Future<Void> init(Vertx vertx) {
+        if (initialized) {
+            return Future.succeededFuture();
+        }
+        this.vertx = vertx;
+        this.root = Path.of(Config.PREVIEW_ROOT);
+        initialized = true;
+        return vertx.executeBlocking(() -> {
+                    scan();
+                    return null;
+                }, false)
+                .onFailure(e -> log.error("Scan preview files failed!", e))
+                .<Void>mapEmpty()
+                .otherwiseEmpty();
+    }
+
+    /**
+     * @param download downloads the preview, completes with its path in the telegram file storage
+     * @return path of the cached preview
+     */
+    public Future<String> load(String previewUniqueId, Supplier<Future<String>> download) {
+        String cached = get(previewUniqueId);
+        Future<String> hit = cached == null
+                ? Future.succeededFuture()
+                : vertx.executeBlocking(() -> touch(previewUniqueId, Path.of(cached)), false);
+        return hit.compose(path -> path != null ? Future.succeededFuture(path) :
+                loading.computeIfAbsent(previewUniqueId, key -> download.get()
+                        .compose(source -> vertx.<String>executeBlocking(() -> put(key, Path.of(source)), false))
+                        .onComplete(r -> loading.remove(key))));
+    }
+
+    public void resize(long capacity) {
+        this.capacity = capacity;
+        List<Path> evicted;
+        synchronized (this) {
+            evicted = evict();
+        }
+        delete(evicted);
+    }
+
+    /**
+     * @return path of the cached preview, it may have been deleted from the disk
+     */
+    synchronized String get(String previewUniqueId) {
+        Entry entry = entries.get(previewUniqueId);
+        return entry == null ? null : entry.path().toString();
+    }
+
+    /**
+     * Keep the access order of a cached preview on the disk.
+     *
+     * @return null if the preview has been deleted from the disk
+     */
+    private String touch(String previewUniqueId, Path path) {
+        if (!Files.exists(path)) {
+            synchronized (this) {
+                Entry entry = entries.get(previewUniqueId);
+                if (entry != null && entry.path().equals(path)) {
+                    entries.remove(previewUniqueId);
+                    size -= entry.size();
+                }
+            }
+            return null;
+        }
+        try {
+            Files.setLastModifiedTime(path, FileTime.fromMillis(System.currentTimeMillis()));
+        } catch (IOException ignored) {
+            // the order is only lost after a restart
+        }
+        return path.toString();
+    }
+
+    String put(String previewUniqueId, Path source) throws IOException {
+        if (Files.size(source) > capacity) {
+            // served from the telegram file storage
+            return source.toString();
+        }
+        Files.createDirectories(root);
+        String extension = FileUtil.extName(source.getFileName().toString());
+        Path path = root.resolve(extension == null || extension.isEmpty() ? previewUniqueId : previewUniqueId + "." + extension);
+        Path temp = root.resolve(path.getFileName() + ".tmp");
+        Files.copy(source, temp, StandardCopyOption.REPLACE_EXISTING);
+        Files.move(temp, path, StandardCopyOption.REPLACE_EXISTING);
+        long fileSize = Files.size(path);
+
+        List<Path> evicted;
+        synchronized (this) {
+            Entry previous = entries.put(previewUniqueId, new Entry(path, fileSize));
+            if (previous != null) {
+                size -= previous.size();
+            }
+            size += fileSize;
+            evicted = evict();
+        }
+        delete(evicted);
+        return path.toString();
+    }
+
+    synchronized long size() {
+        return size;
+    }
+
+    private void scan() throws IOException {
+        if (!Files.isDirectory(root)) {
+            return;
+        }
+        List<Path> files;
+        try (Stream<Path> stream = Files.list(root)) {
+            files = stream.filter(Files::isRegularFile).toList();
+        }
+        List<Path> sorted = new ArrayList<>();
+        Map<Path, BasicFileAttributes> attributes = new HashMap<>();
+        for (Path file : files) {
+            if (file.getFileName().toString().endsWith(".tmp")) {
+                Files.deleteIfExists(file);
+                continue;
+            }
+            attributes.put(file, Files.readAttributes(file, BasicFileAttributes.class));
+            sorted.add(file);
+        }
+        sorted.sort(Comparator.comparing(file -> attributes.get(file).lastModifiedTime()));
+
+        List<Path> evicted;
+        synchronized (this) {
+            for (Path file : sorted) {
+                String previewUniqueId = FileUtil.mainName(file.getFileName().toString());
+                entries.put(previewUniqueId, new Entry(file, attributes.get(file).size()));
+                size += attributes.get(file).size();
+            }
+            evicted = evict();
+        }
+        delete(evicted);
+        log.debug("Preview files loaded: %d, size: %d".formatted(entries.size(), size));
+    }
+
+    private List<Path> evict() {
+        List<Path> evicted = new ArrayList<>();
+        Iterator<Entry> iterator = entries.values().iterator();
+        while (size > capacity && iterator.hasNext()) {
+            Entry entry = iterator.next();
+            iterator.remove();
+            size -= entry.size();
+            evicted.add(entry.path());
+        }
+        return evicted;
+    }
+
+    private void delete(List<Path> paths) {
+        for (Path path : paths) {
+            try {
+                Files.deleteIfExists(path);
+            } catch (IOException e) {
+                log.debug("Delete preview file %s failed: %s".formatted(path, e.getMessage()));
+            }
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package telegram.files;
+
+import org.drinkless.tdlib.TdApi;
+import telegram.files.repository.FileRecord;
+
+/**
+ * Compact descriptor of a file waiting for auto download.
+ * <p>
+ * Only the ids needed to start the download are retained, the message is fetched again when the download starts.
+ *
+ * @param type photo, video, audio or file
+ * @param live whether the file comes from a new message, it is downloaded with a higher priority than history backfill
+ */
+public record QueuedFile(long chatId,
+                         long messageId,
+                         int fileId,
+                         String uniqueId,
+                         long size,
+                         String type,
+                         boolean live
+) {
+
+    /**
+     * @return null if the message has no downloadable file
+     */
+    public static QueuedFile of(TdApi.Message message) {
+        return TdApiHelp.getFileHandler(message)
+                .map(fileHandler -> {
+                    TdApi.File file = fileHandler.getFile();
+                    return new QueuedFile(message.chatId,
+                            message.id,
+                            file.id,
+                            file.remote.uniqueId,
+                            file.size == 0 ? file.expectedSize : file.size,
+                            TdApiHelp.getFileType(message),
+                            false);
+                })
+                .orElse(null);
+    }
+
+    public static QueuedFile of(FileRecord fileRecord) {
+        return new QueuedFile(fileRecord.chatId(),
+                fileRecord.messageId(),
+                fileRecord.id(),
+                fileRecord.uniqueId(),
+                fileRecord.size(),
+                fileRecord.type(),
+                false);
+    }
+
+    public QueuedFile withLive(boolean live) {
+        return live == this.live ? this : new QueuedFile(chatId, messageId, fileId, uniqueId, size, type, live);
+    }
+
+    public DownloadPriority priority() {
+        return live ? DownloadPriority.LIVE : DownloadPriority.HISTORY;
+    }
+}
@@ -0,0 +1,394 @@
+package telegram.files;
+
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Context;
+import io.vertx.core.Future;
+import io.vertx.core.MultiMap;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientOptions;
+import io.vertx.core.http.HttpHeaders;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.RequestOptions;
+import telegram.files.repository.SettingAutoRecords;
+
+import javax.crypto.Mac;
+import javax.crypto.spec.SecretKeySpec;
+import java.io.IOException;
+import java.net.URI;
+import java.net.URLEncoder;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.time.Instant;
+import java.time.ZoneOffset;
+import java.time.format.DateTimeFormatter;
+import java.util.*;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+import java.util.stream.Collectors;
+
+/**
+ * Uploads files to an S3-compatible object store, requests are signed with AWS signature version 4.
+ * <p>
+ * A file larger than the part size is uploaded with a multipart upload, its parts are read and uploaded in parallel.
+ * At most {@code concurrency} parts are held in memory, the next part is read when an upload completes. A part is
+ * read into one array, its payload hash is computed once on the transfer thread.
+ * <p>
+ * Requests are issued from the transfer thread, they run on one context of the target, so their responses are
+ * handled on the same event loop as the requests.
+ */
+public class S3Target implements TransferTarget {
+
+    private static final Log log = LogFactory.get();
+
+    private static final int MIN_PART_SIZE = 5;
+
+    private static final int DEFAULT_PART_SIZE = 16;
+
+    private static final int DEFAULT_CONCURRENCY = 4;
+
+    private static final int MAX_PART_ATTEMPTS = 3;
+
+    private static final long CONNECT_TIMEOUT = 30_000;
+
+    // Without any data sent or received, a request fails instead of waiting forever
+    private static final long IDLE_TIMEOUT = 120_000;
+
+    private static final String ALGORITHM = "AWS4-HMAC-SHA256";
+
+    private static final String DEFAULT_REGION = "us-east-1";
+
+    private static final DateTimeFormatter AMZ_DATE_FORMATTER = DateTimeFormatter.ofPattern("yyyyMMdd'T'HHmmss'Z'")
+            .withZone(ZoneOffset.UTC);
+
+    private static final Pattern UPLOAD_ID_PATTERN = Pattern.compile("<UploadId>(.+?)</UploadId>");
+
+    private final SettingAutoRecords.S3Config config;
+
+    private final URI endpoint;
+
+    private final String region;
+
+    private final long partSize;
+
+    private final int concurrency;
+
+    private final HttpClient client;
+
+    private final Context context;
+
+    public S3Target(Vertx vertx, SettingAutoRecords.S3Config config) {
+        if (StrUtil.hasBlank(config.endpoint, config.bucket, config.accessKey, config.secretKey)) {
+            throw new IllegalArgumentException("S3 endpoint, bucket, access key and secret key are required");
+        }
+        this.config = config;
+        this.endpoint = URI.create(StrUtil.removeSuffix(config.endpoint, "/"));
+        this.region = StrUtil.blankToDefault(config.region, DEFAULT_REGION);
+        this.partSize = (long) Math.max(config.partSize > 0 ? config.partSize : DEFAULT_PART_SIZE, MIN_PART_SIZE) * 1024 * 1024;
+        this.concurrency = config.concurrency > 0 ? config.concurrency : DEFAULT_CONCURRENCY;
+        this.client = vertx.createHttpClient(new HttpClientOptions()
+                .setSsl("https".equals(endpoint.getScheme()))
+                .setMaxPoolSize(concurrency));
+        this.context = vertx.getOrCreateContext();
+    }
+
+    @Override
+    public boolean exists(String path) throws IOException {
+        S3Response response = await(request(HttpMethod.HEAD, path, Map.of(), Buffer.buffer()));
+        if (response.statusCode() == 404) {
+            return false;
+        }
+        checkStatus(HttpMethod.HEAD, path, response);
+        return true;
+    }
+
+    @Override
+    public void upload(Path source, String path, TransferEngine.ProgressListener listener) throws IOException {
+        long size = Files.size(source);
+        if (size <= partSize) {
+            byte[] bytes = Files.readAllBytes(source);
+            S3Response response = await(request(HttpMethod.PUT, path, Map.of(), Buffer.buffer(bytes), HexUtil.encodeHexStr(sha256(bytes))));
+            checkStatus(HttpMethod.PUT, path, response);
+            if (listener != null) {
+                listener.onProgress(size, size);
+            }
+            return;
+        }
+
+        String uploadId = createMultipartUpload(path);
+        try {
+            List<String> etags = uploadParts(source, path, uploadId, size, listener);
+            completeMultipartUpload(path, uploadId, etags);
+        } catch (IOException | RuntimeException e) {
+            abortMultipartUpload(path, uploadId);
+            throw e;
+        }
+    }
+
+    @Override
+    public String getUri(String path) {
+        return "s3://%s/%s".formatted(config.bucket, path);
+    }
+
+    @Override
+    public void close() {
+        client.close();
+    }
+
+    private String createMultipartUpload(String path) throws IOException {
+        S3Response response = await(request(HttpMethod.POST, path, Map.of("uploads", ""), Buffer.buffer()));
+        checkStatus(HttpMethod.POST, path, response);
+        Matcher matcher = UPLOAD_ID_PATTERN.matcher(response.body().toString());
+        if (!matcher.find()) {
+            throw new IOException("S3 create multipart upload of %s returned no upload id".formatted(path));
+        }
+        return matcher.group(1);
+    }
+
+    private List<String> uploadParts(Path source,
+                                     String path,
+                                     String uploadId,
+                                     long size,
+                                     TransferEngine.ProgressListener listener) throws IOException {
+        int partCount = (int) ((size + partSize - 1) / partSize);
+        String[] etags = new String[partCount];
+        Semaphore slots = new Semaphore(concurrency);
+        AtomicLong uploadedSize = new AtomicLong();
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        List<Future<Void>> futures = new ArrayList<>(partCount);
+
+        try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+            for (int i = 0; i < partCount && failure.get() == null; i++) {
+                try {
+                    slots.acquire();
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    throw new IOException("Upload of %s interrupted".formatted(path), e);
+                }
+                long position = i * partSize;
+                int length = (int) Math.min(partSize, size - position);
+                byte[] bytes = new byte[length];
+                ByteBuffer buffer = ByteBuffer.wrap(bytes);
+                while (buffer.hasRemaining()) {
+                    if (channel.read(buffer, position + buffer.position()) < 0) {
+                        slots.release();
+                        throw new IOException("Source file is truncated: %s".formatted(source));
+                    }
+                }
+
+                int partNumber = i + 1;
+                String payloadHash = HexUtil.encodeHexStr(sha256(bytes));
+                futures.add(uploadPart(path, uploadId, partNumber, Buffer.buffer(bytes), payloadHash, 1)
+                        .map(etag -> {
+                            etags[partNumber - 1] = etag;
+                            long uploaded = uploadedSize.addAndGet(length);
+                            if (listener != null) {
+                                listener.onProgress(uploaded, size);
+                            }
+                            return (Void) null;
+                        })
+                        .onFailure(failure::set)
+                        .onComplete(r -> slots.release()));
+            }
+        } catch (IOException e) {
+            // Parts uploaded after the upload is aborted would be kept by the store
+            MessyUtils.await(Future.join(futures).otherwiseEmpty());
+            throw e;
+        }
+
+        // Parts in flight complete before the upload is aborted
+        await(Future.join(futures));
+        return Arrays.asList(etags);
+    }
+
+    private Future<String> uploadPart(String path, String uploadId, int partNumber, Buffer body, String payloadHash, int attempt) {
+        return request(HttpMethod.PUT, path, Map.of("partNumber", String.valueOf(partNumber), "uploadId", uploadId), body, payloadHash)
+                .compose(response -> {
+                    String etag = response.headers().get(HttpHeaders.ETAG);
+                    if (response.statusCode() / 100 != 2 || etag == null) {
+                        return Future.failedFuture(new IOException("S3 upload part %d of %s failed: %d %s"
+                                .formatted(partNumber, path, response.statusCode(), response.body())));
+                    }
+                    return Future.succeededFuture(etag);
+                })
+                .recover(e -> {
+                    if (attempt >= MAX_PART_ATTEMPTS) {
+                        return Future.failedFuture(e);
+                    }
+                    log.debug("Retry upload part %d of %s: %s".formatted(partNumber, path, e.getMessage()));
+                    return uploadPart(path, uploadId, partNumber, body, payloadHash, attempt + 1);
+                });
+    }
+
+    private void completeMultipartUpload(String path, String uploadId, List<String> etags) throws IOException {
+        StringBuilder xml = new StringBuilder("<CompleteMultipartUpload>");
+        for (int i = 0; i < etags.size(); i++) {
+            xml.append("<Part><PartNumber>%d</PartNumber><ETag>%s</ETag></Part>".formatted(i + 1, etags.get(i)));
+        }
+        xml.append("</CompleteMultipartUpload>");
+        S3Response response = await(request(HttpMethod.POST, path, Map.of("uploadId", uploadId), Buffer.buffer(xml.toString())));
+        checkStatus(HttpMethod.POST, path, response);
+        // The request may fail after the response status is sent
+        if (response.body().toString().contains("<Error>")) {
+            throw new IOException("S3 complete multipart upload of %s failed: %s".formatted(path, response.body()));
+        }
+    }
+
+    private void abortMultipartUpload(String path, String uploadId) {
+        try {
+            await(request(HttpMethod.DELETE, path, Map.of("uploadId", uploadId), Buffer.buffer()));
+        } catch (Exception e) {
+            log.warn("S3 abort multipart upload of %s failed: %s".formatted(path, e.getMessage()));
+        }
+    }
+
+    /**
+     * For small bodies, the payload hash of a file content is computed by the caller.
+     */
+    private Future<S3Response> request(HttpMethod method, String path, Map<String, String> query, Buffer body) {
+        return request(method, path, query, body, HexUtil.encodeHexStr(sha256(body.getBytes())));
+    }
+
+    private Future<S3Response> request(HttpMethod method, String path, Map<String, String> query, Buffer body, String payloadHash) {
+        String authority = endpoint.getHost() + (endpoint.getPort() == -1 ? "" : ":" + endpoint.getPort());
+        String host = config.pathStyle ? authority : config.bucket + "." + authority;
+        String canonicalUri = (config.pathStyle ? "/" + encode(config.bucket) : "") + "/" + encodePath(path);
+        String canonicalQuery = new TreeMap<>(query).entrySet().stream()
+                .map(e -> encode(e.getKey()) + "=" + encode(e.getValue()))
+                .collect(Collectors.joining("&"));
+        String amzDate = AMZ_DATE_FORMATTER.format(Instant.now());
+
+        SortedMap<String, String> signedHeaders = new TreeMap<>();
+        signedHeaders.put("host", host);
+        signedHeaders.put("x-amz-content-sha256", payloadHash);
+        signedHeaders.put("x-amz-date", amzDate);
+        String authorization = authorization(config.accessKey, config.secretKey, region, amzDate,
+                method.name(), canonicalUri, canonicalQuery, signedHeaders, payloadHash);
+
+        RequestOptions options = new RequestOptions()
+                .setMethod(method)
+                .setAbsoluteURI("%s://%s%s%s".formatted(endpoint.getScheme(), host, canonicalUri,
+                        canonicalQuery.isEmpty() ? "" : "?" + canonicalQuery))
+                .putHeader(HttpHeaders.HOST, host)
+                .putHeader("x-amz-content-sha256", payloadHash)
+                .putHeader("x-amz-date", amzDate)
+                .putHeader(HttpHeaders.AUTHORIZATION, authorization)
+                .setConnectTimeout(CONNECT_TIMEOUT)
+                .setIdleTimeout(IDLE_TIMEOUT);
+        Promise<S3Response> promise = Promise.promise();
+        context.runOnContext(v -> client.request(options)
+                .compose(request -> request.send(body))
+                .compose(response -> response.body()
+                        .map(responseBody -> new S3Response(response.statusCode(), response.headers(), responseBody)))
+                .onComplete(promise));
+        return promise.future();
+    }
+
+    /**
+     * @param headers lower case names of the signed headers
+     * @return value of the authorization header
+     */
+    static String authorization(String accessKey,
+                                String secretKey,
+                                String region,
+                                String amzDate,
+                                String method,
+                                String canonicalUri,
+                                String canonicalQuery,
+                                SortedMap<String, String> headers,
+                                String payloadHash) {
+        String signedHeaders = String.join(";", headers.keySet());
+        String canonicalRequest = String.join("\n",
+                method,
+                canonicalUri,
+                canonicalQuery,
+                headers.entrySet().stream()
+                        .map(e -> e.getKey() + ":" + e.getValue().trim() + "\n")
+                        .collect(Collectors.joining()),
+                signedHeaders,
+                payloadHash);
+        String date = amzDate.substring(0, 8);
+        String scope = "%s/%s/s3/aws4_request".formatted(date, region);
+        String stringToSign = String.join("\n",
+                ALGORITHM,
+                amzDate,
+                scope,
+                HexUtil.encodeHexStr(sha256(canonicalRequest.getBytes(StandardCharsets.UTF_8))));
+
+        byte[] signingKey = hmacSha256(("AWS4" + secretKey).getBytes(StandardCharsets.UTF_8), date);
+        signingKey = hmacSha256(signingKey, region);
+        signingKey = hmacSha256(signingKey, "s3");
+        signingKey = hmacSha256(signingKey, "aws4_request");
+        String signature = HexUtil.encodeHexStr(hmacSha256(signingKey, stringToSign));
+        return "%s Credential=%s/%s, SignedHeaders=%s, Signature=%s".formatted(ALGORITHM, accessKey, scope, signedHeaders, signature);
+    }
+
+    private static byte[] sha256(byte[] bytes) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(bytes);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static byte[] hmacSha256(byte[] key, String data) {
+        try {
+            Mac mac = Mac.getInstance("HmacSHA256");
+            mac.init(new SecretKeySpec(key, "HmacSHA256"));
+            return mac.doFinal(data.getBytes(StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static String encodePath(String path) {
+        return Arrays.stream(path.split("/", -1))
+                .map(S3Target::encode)
+                .collect(Collectors.joining("/"));
+    }
+
+    /**
+     * URI encoding of AWS, only unreserved characters are kept
+     */
+    private static String encode(String value) {
+        return URLEncoder.encode(value, StandardCharsets.UTF_8)
+                .replace("+", "%20")
+                .replace("*", "%2A")
+                .replace("%7E", "~");
+    }
+
+    private static void checkStatus(HttpMethod method, String path, S3Response response) throws IOException {
+        if (response.statusCode() / 100 != 2) {
+            throw new IOException("S3 %s %s failed: %d %s".formatted(method, path, response.statusCode(), response.body()));
+        }
+    }
+
+    private static <T> T await(Future<T> future) throws IOException {
+        try {
+            return MessyUtils.await(future);
+        } catch (CompletionException e) {
+            if (e.getCause() instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(e.getCause());
+        }
+    }
+
+    private record S3Response(int statusCode, MultiMap headers, Buffer body) {
+    }
+}
@@ -0,0 +1,173 @@
+package telegram.files;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.util.StrUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import io.vertx.core.Vertx;
+import io.vertx.core.impl.NoStackTraceException;
+import io.vertx.core.json.JsonObject;
+import telegram.files.repository.FileRecord;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Downloads shared by telegram accounts.
+ * <p>
+ * File records are unique by the file unique id across accounts, so a file that is downloading under one account
+ * is not downloaded again by another account, the other account waits for it here. A download paused for longer than
+ * the pause timeout is abandoned by its waiters, they download the file themselves. A download paused by the scheduler,
+ * e.g. the bandwidth throttle, is never abandoned for the pause, the scheduler resumes it.
+ */
+public class SharedDownloads {
+    private static final Log log = LogFactory.get();
+
+    public static final SharedDownloads INSTANCE = new SharedDownloads();
+
+    private static final long PAUSE_TIMEOUT = 60_000;
+
+    // uniqueId -> promises completed with the local path
+    private final Map<String, List<Promise<String>>> waiters = new ConcurrentHashMap<>();
+
+    // uniqueId -> timer of the paused download
+    private final Map<String, Long> pauseTimers = new ConcurrentHashMap<>();
+
+    // unique ids of the downloads paused by the scheduler
+    private final Set<String> heldUniqueIds = ConcurrentHashMap.newKeySet();
+
+    private Vertx vertx;
+
+    private long pauseTimeout = PAUSE_TIMEOUT;
+
+    private volatile boolean initialized = false;
+
+    private SharedDownloads() {
+    }
+
+    SharedDownloads(Vertx vertx, long pauseTimeout) {
+        this.vertx = vertx;
+        this.pauseTimeout = pauseTimeout;
+    }
+
+    public synchronized Future<Void> init(Vertx vertx) {
+        if (initialized) {
+            return Future.succeededFuture();
+        }
+        this.vertx = vertx;
+        vertx.eventBus().consumer(EventEnum.TELEGRAM_EVENT.address(), message -> {
+            JsonObject payload = ((JsonObject) message.body()).getJsonObject("payload");
+            if (payload == null || !Objects.equals(payload.getInteger("type"), EventPayload.TYPE_FILE_STATUS)) {
+                return;
+            }
+            JsonObject data = payload.getJsonObject("data");
+            if (data != null) {
+                onFileStatusUpdated(data.getString("uniqueId"),
+                        data.getString("downloadStatus"),
+                        data.getString("localPath"),
+                        Convert.toBool(data.getValue("removed"), false));
+            }
+        });
+        initialized = true;
+        return Future.succeededFuture();
+    }
+
+    /**
+     * @return completes with the local path when the download completes, fails when it is abandoned
+     */
+    public Future<String> await(String uniqueId) {
+        Promise<String> promise = Promise.promise();
+        waiters.compute(uniqueId, (k, promises) -> {
+            if (promises == null) {
+                promises = new ArrayList<>();
+            }
+            promises.add(promise);
+            return promises;
+        });
+        return promise.future();
+    }
+
+    public void onFileStatusUpdated(String uniqueId, String downloadStatus, String localPath, boolean removed) {
+        if (StrUtil.isBlank(uniqueId) || !waiters.containsKey(uniqueId)) {
+            return;
+        }
+        if (Objects.equals(downloadStatus, FileRecord.DownloadStatus.paused.name())) {
+            // A paused download may be resumed, it is abandoned if it is not resumed in the timeout
+            if (!heldUniqueIds.contains(uniqueId)) {
+                startPauseTimer(uniqueId);
+            }
+            return;
+        }
+        cancelPauseTimer(uniqueId);
+        if (Objects.equals(downloadStatus, FileRecord.DownloadStatus.completed.name()) && StrUtil.isNotBlank(localPath)) {
+            List<Promise<String>> promises = waiters.remove(uniqueId);
+            if (promises != null) {
+                log.debug("Shared download completed: %s, waiters: %d".formatted(uniqueId, promises.size()));
+                promises.forEach(promise -> promise.tryComplete(localPath));
+            }
+        } else if (removed
+                   || Objects.equals(downloadStatus, FileRecord.DownloadStatus.idle.name())
+                   || Objects.equals(downloadStatus, FileRecord.DownloadStatus.error.name())) {
+            abandon(uniqueId, removed ? "removed" : downloadStatus);
+        }
+    }
+
+    /**
+     * The download is paused by the scheduler, its waiters keep waiting until {@link #unhold(String, boolean)}.
+     */
+    public void hold(String uniqueId) {
+        if (StrUtil.isBlank(uniqueId)) {
+            return;
+        }
+        heldUniqueIds.add(uniqueId);
+        cancelPauseTimer(uniqueId);
+    }
+
+    /**
+     * @param paused true if the download is still paused, e.g. resuming it failed, then the pause timeout starts
+     */
+    public void unhold(String uniqueId, boolean paused) {
+        if (StrUtil.isBlank(uniqueId) || !heldUniqueIds.remove(uniqueId)) {
+            return;
+        }
+        if (paused && waiters.containsKey(uniqueId)) {
+            startPauseTimer(uniqueId);
+        }
+    }
+
+    public int getWaitingSize() {
+        return waiters.size();
+    }
+
+    private void abandon(String uniqueId, String reason) {
+        List<Promise<String>> promises = waiters.remove(uniqueId);
+        if (promises != null) {
+            log.debug("Shared download abandoned: %s, reason: %s, waiters: %d".formatted(uniqueId, reason, promises.size()));
+            promises.forEach(promise -> promise.tryFail(new NoStackTraceException("Shared download abandoned")));
+        }
+    }
+
+    private void startPauseTimer(String uniqueId) {
+        if (vertx == null) {
+            return;
+        }
+        pauseTimers.computeIfAbsent(uniqueId, k -> vertx.setTimer(pauseTimeout, id -> {
+            if (pauseTimers.remove(k, id)) {
+                abandon(k, "paused");
+            }
+        }));
+    }
+
+    private void cancelPauseTimer(String uniqueId) {
+        Long timerId = pauseTimers.remove(uniqueId);
+        if (timerId != null && vertx != null) {
+            vertx.cancelTimer(timerId);
+        }
+    }
+}
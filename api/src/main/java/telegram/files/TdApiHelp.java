@@ -118,6 +118,16 @@ public class TdApiHelp {
         };
     }
 
+    public static String getFileType(TdApi.Message message) {
+        return switch (message.content.getConstructor()) {
+            case TdApi.MessagePhoto.CONSTRUCTOR -> "photo";
+            case TdApi.MessageVideo.CONSTRUCTOR -> "video";
+            case TdApi.MessageAudio.CONSTRUCTOR -> "audio";
+            case TdApi.MessageDocument.CONSTRUCTOR -> "file";
+            default -> null;
+        };
+    }
+
     public static List<Integer> getFileIds(List<TdApi.Message> messages) {
         if (CollUtil.isEmpty(messages)) {
             return new ArrayList<>();
@@ -251,16 +261,19 @@ public class TdApiHelp {
             TdApi.MessagePhoto messagePhoto = this.content;
             String size = ((Tuple1<String>) tuple).v1;
 
+            // The largest size not larger than the requested one, or the smallest size if all are larger
             TdApi.PhotoSize photoSize = Arrays.stream(messagePhoto.photo.sizes)
                     .map(ComparablePhotoSize::new)
                     .filter(comparablePhotoSize -> comparablePhotoSize.compareTo(size) <= 0)
-                    .max((o1, o2) -> o2.compareTo(o1.getPhotoSize()))
+                    .max((o1, o2) -> o1.compareTo(o2.getPhotoSize()))
+                    .or(() -> Arrays.stream(messagePhoto.photo.sizes)
+                            .map(ComparablePhotoSize::new)
+                            .min((o1, o2) -> o1.compareTo(o2.getPhotoSize())))
                     .map(ComparablePhotoSize::getPhotoSize)
-                    .stream().findFirst()
                     .orElse(null);
 
             if (photoSize == null) {
-                throw new NoStackTraceException("The photo no size that less than or equal to " + size);
+                throw new NoStackTraceException("The photo has no size");
             }
 
             return photoSize.photo;
@@ -279,6 +292,8 @@ public class TdApiHelp {
                     message.date,
                     message.hasSensitiveContent,
                     file.size == 0 ? file.expectedSize : file.size,
+                    content.photo.sizes[content.photo.sizes.length - 1].width,
+                    content.photo.sizes[content.photo.sizes.length - 1].height,
                     file.local == null ? 0 : file.local.downloadedSize,
                     "photo",
                     null,
@@ -349,6 +364,8 @@ public class TdApiHelp {
                     message.date,
                     message.hasSensitiveContent,
                     file.size == 0 ? file.expectedSize : file.size,
+                    content.video.width,
+                    content.video.height,
                     file.local == null ? 0 : file.local.downloadedSize,
                     "video",
                     content.video.mimeType,
@@ -407,6 +424,8 @@ public class TdApiHelp {
                     message.date,
                     message.hasSensitiveContent,
                     file.size == 0 ? file.expectedSize : file.size,
+                    0,
+                    0,
                     file.local == null ? 0 : file.local.downloadedSize,
                     "audio",
                     content.audio.mimeType,
@@ -456,6 +475,8 @@ public class TdApiHelp {
                     message.date,
                     message.hasSensitiveContent,
                     file.size == 0 ? file.expectedSize : file.size,
+                    0,
+                    0,
                     file.local == null ? 0 : file.local.downloadedSize,
                     "file",
                     content.document.mimeType,
@@ -479,7 +500,8 @@ public class TdApiHelp {
     public static class ComparablePhotoSize implements Comparable<TdApi.PhotoSize> {
         private final TdApi.PhotoSize photoSize;
 
-        private final String[] sizes = {"s", "m", "x", "y", "w", "a", "b", "c", "d"};
+        // from the smallest to the largest, the array is not sorted alphabetically
+        private static final List<String> sizes = List.of("s", "m", "x", "y", "w", "a", "b", "c", "d");
 
         public ComparablePhotoSize(TdApi.PhotoSize photoSize) {
             this.photoSize = photoSize;
@@ -487,11 +509,11 @@ public class TdApiHelp {
 
         @Override
         public int compareTo(TdApi.PhotoSize o) {
-            return Integer.compare(Arrays.binarySearch(sizes, photoSize.type), Arrays.binarySearch(sizes, o.type));
+            return Integer.compare(sizes.indexOf(photoSize.type), sizes.indexOf(o.type));
         }
 
         public int compareTo(String size) {
-            return Integer.compare(Arrays.binarySearch(sizes, photoSize.type), Arrays.binarySearch(sizes, size));
+            return Integer.compare(sizes.indexOf(photoSize.type), sizes.indexOf(size));
         }
 
         public TdApi.PhotoSize getPhotoSize() {
@@ -18,6 +18,7 @@ import cn.hutool.log.LogFactory;
 import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
+import io.vertx.core.eventbus.Message;
 import io.vertx.core.impl.NoStackTraceException;
 import io.vertx.core.json.Json;
 import io.vertx.core.json.JsonArray;
@@ -29,6 +30,7 @@ import telegram.files.repository.*;
 
 import java.io.File;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.function.Function;
 import java.util.stream.Collectors;
 import java.util.stream.Stream;
@@ -57,12 +59,35 @@ public class TelegramVerticle extends AbstractVerticle {
 
     private AvgSpeed avgSpeed = new AvgSpeed();
 
+    // Short window speed for the adaptive download limit, independent of the configurable avgSpeedInterval
+    private final AvgSpeed recentSpeed = new AvgSpeed(30, 3);
+
+    private final BandwidthMeter bandwidthMeter = new BandwidthMeter();
+
+    private long lastDownloadedSize;
+
     private long avgSpeedPersistenceTimerId;
 
     private long lastFileEventTime;
 
     private long lastFileDownloadEventTime;
 
+    private static final int DOWNLOAD_WATCHDOG_INTERVAL = 10 * 1000;
+
+    private static final int MAX_STALL_RESTARTS = 3;
+
+    // 320px, large enough for the file list and the viewer before a file is downloaded
+    private static final String PREVIEW_PHOTO_SIZE = "m";
+
+    // fileId -> priority of the downloads started by this account
+    private final Map<Integer, DownloadPriority> downloadPriorities = new ConcurrentHashMap<>();
+
+    // fileId -> streams waiting for the download progress of the file
+    private final Map<Integer, Set<Promise<Boolean>>> progressWaiters = new ConcurrentHashMap<>();
+
+    private final DownloadWatchdog downloadWatchdog = new DownloadWatchdog(
+            (int) SettingKey.downloadStallTimeout.defaultValue * 1000L, MAX_STALL_RESTARTS, System::currentTimeMillis);
+
     public TelegramVerticle(String rootPath) {
         this.rootPath = rootPath;
     }
@@ -100,9 +125,12 @@ public class TelegramVerticle extends AbstractVerticle {
         telegramUpdateHandler.setOnMessageReceived(this::onMessageReceived);
 
         client.initialize(telegramUpdateHandler, this::handleException, this::handleException);
-        Future.all(initEventConsumer(), initAvgSpeed())
+        Future.all(initEventConsumer(), initAvgSpeed(), initDownloadWatchdog())
                 .compose(r -> this.enableProxy(this.proxyName))
-                .onSuccess(r -> startPromise.complete())
+                .onSuccess(r -> {
+                    vertx.setPeriodic(DOWNLOAD_WATCHDOG_INTERVAL, DOWNLOAD_WATCHDOG_INTERVAL, id -> checkStalledDownloads());
+                    startPromise.complete();
+                })
                 .onFailure(startPromise::fail);
     }
 
@@ -211,6 +239,7 @@ public class TelegramVerticle extends AbstractVerticle {
             return (Objects.equals(filter.get("downloadStatus"), FileRecord.DownloadStatus.idle.name()) ?
                     this.getIdleChatFiles(searchChatMessages, 0) :
                     client.execute(searchChatMessages))
+                    .onSuccess(foundChatMessages -> prefetchPreviews(chatId, filter, foundChatMessages.nextFromMessageId))
                     .compose(foundChatMessages ->
                             DataVerticle.fileRepository.getFilesByUniqueId(TdApiHelp.getFileUniqueIds(Arrays.asList(foundChatMessages.messages)))
                                     .map(fileRecords -> Tuple.tuple(foundChatMessages, fileRecords)))
@@ -273,6 +302,63 @@ public class TelegramVerticle extends AbstractVerticle {
         });
     }
 
+    /**
+     * Load the next page of the listing in the background and download previews of its photos and videos.
+     */
+    private void prefetchPreviews(long chatId, Map<String, String> filter, long nextFromMessageId) {
+        if (nextFromMessageId == 0) {
+            return;
+        }
+        TdApi.SearchChatMessages searchChatMessages = new TdApi.SearchChatMessages();
+        searchChatMessages.chatId = chatId;
+        searchChatMessages.query = filter.get("search");
+        searchChatMessages.fromMessageId = nextFromMessageId;
+        searchChatMessages.limit = Convert.toInt(filter.get("limit"), 20);
+        searchChatMessages.filter = TdApiHelp.getSearchMessagesFilter(filter.get("type"));
+        client.execute(searchChatMessages)
+                .compose(foundChatMessages -> {
+                    // one at a time, previews requested by the user are not delayed
+                    Future<Void> future = Future.succeededFuture();
+                    for (TdApi.Message message : foundChatMessages.messages) {
+                        future = future.compose(r -> loadMessagePreview(message, PREVIEW_PHOTO_SIZE, DownloadPriority.LIVE)
+                                .<Void>mapEmpty()
+                                .otherwiseEmpty());
+                    }
+                    return future;
+                })
+                .onFailure(e -> log.debug("[%s] Prefetch previews failed: %s".formatted(getRootId(), e.getMessage())));
+    }
+
+    /**
+     * @param size photo size type, see {@link TdApiHelp.ComparablePhotoSize}, ignored for videos
+     * @return path and mime type of the preview sized photo or the thumbnail of the video
+     */
+    public Future<Tuple2<String, String>> loadMessagePreview(long chatId, long messageId, String size) {
+        return client.execute(new TdApi.GetMessage(chatId, messageId))
+                .compose(message -> loadMessagePreview(message, StrUtil.blankToDefault(size, PREVIEW_PHOTO_SIZE), DownloadPriority.INTERACTIVE));
+    }
+
+    private Future<Tuple2<String, String>> loadMessagePreview(TdApi.Message message, String size, DownloadPriority priority) {
+        TdApi.File file;
+        try {
+            file = TdApiHelp.getFileHandler(message)
+                    .map(fileHandler -> fileHandler.getPreviewFileId(Tuple.tuple(size)))
+                    .orElseThrow(() -> new NoStackTraceException("not support message type"));
+        } catch (UnsupportedOperationException | NoStackTraceException e) {
+            return Future.failedFuture(e);
+        }
+        return PreviewFileCache.INSTANCE.load(file.remote.uniqueId, () -> {
+                    if (file.local != null && file.local.isDownloadingCompleted && FileUtil.exist(file.local.path)) {
+                        return Future.succeededFuture(file.local.path);
+                    }
+                    return client.execute(new TdApi.DownloadFile(file.id, priority.value, 0, 0, true))
+                            .compose(downloaded -> downloaded.local.isDownloadingCompleted
+                                    ? Future.succeededFuture(downloaded.local.path)
+                                    : Future.failedFuture("Preview download is not completed"));
+                })
+                .map(path -> Tuple.tuple(path, StrUtil.blankToDefault(FileUtil.getMimeType(path), "image/jpeg")));
+    }
+
     public Future<Tuple2<String, String>> loadPreview(String uniqueId) {
         return DataVerticle.fileRepository
                 .getByUniqueId(uniqueId)
@@ -285,14 +371,127 @@ public class TelegramVerticle extends AbstractVerticle {
                 });
     }
 
+    /**
+     * @return source of a file that is not downloaded completely, null if the file is downloaded and can be previewed
+     */
+    public Future<FileStreamHandler.Source> loadStream(String uniqueId) {
+        return DataVerticle.fileRepository
+                .getByUniqueId(uniqueId)
+                .compose(fileRecord -> {
+                    if (fileRecord == null) {
+                        return Future.failedFuture("File not found");
+                    }
+                    if (fileRecord.isDownloadStatus(FileRecord.DownloadStatus.completed)
+                        && FileUtil.exist(fileRecord.localPath())) {
+                        return Future.succeededFuture();
+                    }
+                    if (fileRecord.telegramId() != telegramRecord.id()) {
+                        // A shared download is recorded by the account that downloads it, its chat may be unknown here
+                        return TelegramVerticles.get(fileRecord.telegramId())
+                                .map(owner -> owner.loadStream(fileRecord))
+                                .orElseGet(() -> Future.failedFuture("File not found"));
+                    }
+                    return loadStream(fileRecord);
+                });
+    }
+
+    private Future<FileStreamHandler.Source> loadStream(FileRecord fileRecord) {
+        // the file id of a record may be outdated, the message has the current one
+        return client.execute(new TdApi.GetMessage(fileRecord.chatId(), fileRecord.messageId()))
+                .compose(message -> {
+                    Integer fileId = TdApiHelp.getFileId(message);
+                    return fileId == null
+                            ? Future.failedFuture("File not found")
+                            : client.execute(new TdApi.GetFile(fileId));
+                })
+                .compose(file -> {
+                    if (!Objects.equals(file.remote.uniqueId, fileRecord.uniqueId()) || file.size <= 0) {
+                        return Future.failedFuture("File not found or size is unknown");
+                    }
+                    return Future.succeededFuture(new StreamSource(file.id, file.size, fileRecord.mimeType()));
+                });
+    }
+
+    private class StreamSource implements FileStreamHandler.Source {
+        private final int fileId;
+
+        private final long size;
+
+        private final String mimeType;
+
+        private StreamSource(int fileId, long size, String mimeType) {
+            this.fileId = fileId;
+            this.size = size;
+            this.mimeType = mimeType;
+        }
+
+        @Override
+        public long size() {
+            return size;
+        }
+
+        @Override
+        public String mimeType() {
+            return mimeType;
+        }
+
+        @Override
+        public Future<FileStreamHandler.Part> downloaded(long offset) {
+            return client.execute(new TdApi.GetFile(fileId))
+                    .compose(file -> {
+                        if (file.local == null || StrUtil.isBlank(file.local.path)) {
+                            return Future.succeededFuture(new FileStreamHandler.Part(null, 0));
+                        }
+                        if (file.local.isDownloadingCompleted) {
+                            return Future.succeededFuture(new FileStreamHandler.Part(file.local.path, size - offset));
+                        }
+                        return client.execute(new TdApi.GetFileDownloadedPrefixSize(fileId, offset))
+                                .map(prefix -> new FileStreamHandler.Part(file.local.path, prefix.size));
+                    });
+        }
+
+        @Override
+        public Future<Void> download(long offset) {
+            log.debug("[%s] Stream file %d from %d".formatted(getRootId(), fileId, offset));
+            // without a limit, the rest of the file is downloaded after the part from the offset
+            return client.execute(new TdApi.DownloadFile(fileId, DownloadPriority.INTERACTIVE.value, offset, 0, false))
+                    .mapEmpty();
+        }
+
+        @Override
+        public Future<Boolean> awaitProgress(long timeout) {
+            Promise<Boolean> promise = Promise.promise();
+            Set<Promise<Boolean>> waiters = progressWaiters.computeIfAbsent(fileId, k -> ConcurrentHashMap.newKeySet());
+            waiters.add(promise);
+            vertx.setTimer(timeout, id -> {
+                waiters.remove(promise);
+                promise.tryComplete(false);
+            });
+            return promise.future();
+        }
+    }
+
     public Future<TdApi.File> startDownload(Long chatId, Long messageId, Integer fileId) {
+        return startDownload(chatId, messageId, fileId, DownloadPriority.INTERACTIVE);
+    }
+
+    public Future<TdApi.File> startDownload(Long chatId, Long messageId, Integer fileId, DownloadPriority priority) {
         return Future.all(
-                        client.execute(new TdApi.GetFile(fileId)),
+                        client.execute(new TdApi.GetFile(fileId)).otherwiseEmpty(),
                         client.execute(new TdApi.GetMessage(chatId, messageId))
                 )
                 .compose(results -> {
                     TdApi.File file = results.resultAt(0);
                     TdApi.Message message = results.resultAt(1);
+                    Integer messageFileId = TdApiHelp.getFileId(message);
+                    if (messageFileId != null && !Objects.equals(messageFileId, fileId)
+                        && (file == null || !Objects.equals(file.remote.uniqueId, TdApiHelp.getFileUniqueId(message)))) {
+                        // The file id of a preloaded file record may be outdated or belong to another account
+                        return startDownload(chatId, messageId, messageFileId, priority);
+                    }
+                    if (file == null) {
+                        return Future.failedFuture("File not found");
+                    }
                     if (file.local != null) {
                         if (file.local.isDownloadingCompleted) {
                             return DataVerticle.fileRepository.updateDownloadStatus(
@@ -312,21 +511,101 @@ public class TelegramVerticle extends AbstractVerticle {
                     TdApiHelp.FileHandler<? extends TdApi.MessageContent> fileHandler = TdApiHelp.getFileHandler(message)
                             .orElseThrow(() -> new NoStackTraceException("not support message type"));
                     FileRecord fileRecord = fileHandler.convertFileRecord(telegramRecord.id());
-                    return DataVerticle.fileRepository.createIfNotExist(fileRecord)
-                            .compose(r -> {
-                                if (!r) {
-                                    return DataVerticle.fileRepository.updateFileId(fileRecord.id(), fileRecord.uniqueId());
+                    return DataVerticle.fileRepository.getByUniqueId(fileRecord.uniqueId())
+                            .compose(existRecord -> {
+                                if (existRecord != null && existRecord.telegramId() != telegramRecord.id()) {
+                                    Future<TdApi.File> sharedDownload = useSharedDownload(existRecord, file, chatId, messageId, priority);
+                                    if (sharedDownload != null) {
+                                        return sharedDownload;
+                                    }
                                 }
-                                return Future.succeededFuture();
-                            })
-                            .compose(ignore -> client.execute(new TdApi.AddFileToDownloads(fileId, chatId, messageId, 32)))
-                            .onSuccess(ignore ->
+                                return addFileToDownloads(fileRecord, chatId, messageId, fileId, priority);
+                            });
+                });
+    }
+
+    /**
+     * File records are unique by the file unique id across accounts, reuse the download of another account.
+     * The file stays recorded under the account that downloaded it, this account only gets the completed status event.
+     *
+     * @return null if there is nothing to reuse
+     */
+    private Future<TdApi.File> useSharedDownload(FileRecord existRecord,
+                                                 TdApi.File file,
+                                                 long chatId,
+                                                 long messageId,
+                                                 DownloadPriority priority) {
+        if (existRecord.isDownloadStatus(FileRecord.DownloadStatus.completed)
+            && StrUtil.isNotBlank(existRecord.localPath())
+            && FileUtil.exist(existRecord.localPath())) {
+            log.info("[%s] File is already downloaded by telegram account %d, reuse: %s"
+                    .formatted(getRootId(), existRecord.telegramId(), existRecord.localPath()));
+            sendSharedFileStatusEvent(file, existRecord.localPath(), existRecord.completionDate());
+            return Future.succeededFuture(file);
+        }
+        if (existRecord.isDownloadStatus(FileRecord.DownloadStatus.downloading)) {
+            log.info("[%s] File is downloading by telegram account %d, wait for it: %s"
+                    .formatted(getRootId(), existRecord.telegramId(), existRecord.uniqueId()));
+            SharedDownloads.INSTANCE.await(existRecord.uniqueId())
+                    .onSuccess(localPath -> sendSharedFileStatusEvent(file, localPath, System.currentTimeMillis()))
+                    .onFailure(e -> {
+                        log.info("[%s] Shared download is abandoned, start download: %s".formatted(getRootId(), existRecord.uniqueId()));
+                        startDownload(chatId, messageId, file.id, priority)
+                                .onFailure(err -> {
+                                    log.error("[%s] Start download failed: %s".formatted(getRootId(), err.getMessage()));
                                     sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
-                                            .put("fileId", fileId)
-                                            .put("uniqueId", fileRecord.uniqueId())
-                                            .put("downloadStatus", FileRecord.DownloadStatus.downloading)
-                                    ))
-                            );
+                                            .put("fileId", file.id)
+                                            .put("uniqueId", existRecord.uniqueId())
+                                            .put("downloadStatus", FileRecord.DownloadStatus.idle)
+                                    ));
+                                });
+                    });
+            sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
+                    .put("fileId", file.id)
+                    .put("uniqueId", existRecord.uniqueId())
+                    .put("downloadStatus", FileRecord.DownloadStatus.downloading)
+                    // the download holds a slot of the account that downloads it
+                    .put("shared", true)
+            ));
+            return Future.succeededFuture(file);
+        }
+        return null;
+    }
+
+    private void sendSharedFileStatusEvent(TdApi.File file, String localPath, Long completionDate) {
+        sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
+                .put("fileId", file.id)
+                .put("uniqueId", file.remote.uniqueId)
+                .put("downloadStatus", FileRecord.DownloadStatus.completed)
+                .put("localPath", localPath)
+                .put("completionDate", completionDate)
+                // the file is transferred by the account that downloaded it
+                .put("shared", true)
+        ));
+    }
+
+    private Future<TdApi.File> addFileToDownloads(FileRecord fileRecord,
+                                                  long chatId,
+                                                  long messageId,
+                                                  int fileId,
+                                                  DownloadPriority priority) {
+        return DataVerticle.fileRepository.createIfNotExist(fileRecord)
+                .compose(r -> {
+                    if (!r) {
+                        return DataVerticle.fileRepository.updateFileId(fileRecord.id(), fileRecord.uniqueId());
+                    }
+                    return Future.succeededFuture();
+                })
+                .compose(ignore -> client.execute(new TdApi.AddFileToDownloads(fileId, chatId, messageId, priority.value)))
+                .onSuccess(ignore -> {
+                    downloadPriorities.put(fileId, priority);
+                    downloadWatchdog.onStarted(fileId, fileRecord.uniqueId());
+                    sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
+                            .put("fileId", fileId)
+                            .put("uniqueId", fileRecord.uniqueId())
+                            .put("downloadStatus", FileRecord.DownloadStatus.downloading)
+                            .put("priority", priority)
+                    ));
                 });
     }
 
@@ -346,12 +625,15 @@ public class TelegramVerticle extends AbstractVerticle {
                 })
                 .compose(file -> client.execute(new TdApi.DeleteFile(fileId)).map(file))
                 .compose(file -> DataVerticle.fileRepository.deleteByUniqueId(file.remote.uniqueId).map(file))
-                .onSuccess(file ->
-                        sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
-                                .put("fileId", fileId)
-                                .put("uniqueId", file.remote.uniqueId)
-                                .put("downloadStatus", FileRecord.DownloadStatus.idle)
-                        )))
+                .onSuccess(file -> {
+                    downloadWatchdog.remove(fileId);
+                    downloadPriorities.remove(fileId);
+                    sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
+                            .put("fileId", fileId)
+                            .put("uniqueId", file.remote.uniqueId)
+                            .put("downloadStatus", FileRecord.DownloadStatus.idle)
+                    ));
+                })
                 .mapEmpty();
     }
 
@@ -391,7 +673,10 @@ public class TelegramVerticle extends AbstractVerticle {
                         // Maybe the file is not exist, so we need to redownload it
                         return DataVerticle.fileRepository.getByUniqueId(file.remote.uniqueId)
                                 .compose(fileRecord ->
-                                        client.execute(new TdApi.AddFileToDownloads(fileId, fileRecord.chatId(), fileRecord.messageId(), 32)))
+                                        client.execute(new TdApi.AddFileToDownloads(fileId,
+                                                fileRecord.chatId(),
+                                                fileRecord.messageId(),
+                                                getDownloadPriority(fileId).value)))
                                 .mapEmpty();
                     }
 
@@ -400,6 +685,51 @@ public class TelegramVerticle extends AbstractVerticle {
                 .mapEmpty();
     }
 
+    /**
+     * Change the priority of a file in the download list.
+     */
+    public Future<Void> updateDownloadPriority(Integer fileId, DownloadPriority priority) {
+        return client.execute(new TdApi.GetFile(fileId))
+                .compose(file -> {
+                    if (file.local == null || file.local.isDownloadingCompleted
+                        || (!file.local.isDownloadingActive && file.local.downloadedSize == 0)) {
+                        return Future.failedFuture("File is not in the download list");
+                    }
+                    return DataVerticle.fileRepository.getByUniqueId(file.remote.uniqueId)
+                            .compose(fileRecord -> {
+                                if (fileRecord == null) {
+                                    return Future.failedFuture("File not found");
+                                }
+                                // Adding a file that is already in the download list changes its priority
+                                return client.execute(new TdApi.AddFileToDownloads(fileId,
+                                        fileRecord.chatId(),
+                                        fileRecord.messageId(),
+                                        priority.value));
+                            })
+                            .onSuccess(r -> {
+                                downloadPriorities.put(fileId, priority);
+                                log.debug("[%s] Update download priority: %d -> %s".formatted(getRootId(), fileId, priority));
+                                if (file.local.isDownloadingActive) {
+                                    sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
+                                            .put("fileId", fileId)
+                                            .put("uniqueId", file.remote.uniqueId)
+                                            .put("downloadStatus", FileRecord.DownloadStatus.downloading)
+                                            .put("priority", priority)
+                                    ));
+                                }
+                            });
+                })
+                .mapEmpty();
+    }
+
+    /**
+     * @return priority of the download started by this account, the lowest if unknown, the priorities are not kept
+     * across restarts and most of the restored downloads are auto downloads
+     */
+    public DownloadPriority getDownloadPriority(int fileId) {
+        return downloadPriorities.getOrDefault(fileId, DownloadPriority.HISTORY);
+    }
+
     public Future<Void> removeFile(Integer fileId) {
         return client.execute(new TdApi.GetFile(fileId))
                 .compose(file -> DataVerticle.fileRepository
@@ -441,9 +771,15 @@ public class TelegramVerticle extends AbstractVerticle {
                         settingAutoRecords = new SettingAutoRecords();
                     }
                     SettingAutoRecords.Rule rule = params.getJsonObject("rule").mapTo(SettingAutoRecords.Rule.class);
-                    if (StrUtil.isBlank(rule.query) && CollUtil.isEmpty(rule.fileTypes) && rule.transferRule == null) {
+                    if (StrUtil.isBlank(rule.query) && CollUtil.isEmpty(rule.fileTypes) && rule.transferRule == null
+                        && !rule.hasLocalFilters()) {
                         rule = null;
                     }
+                    try {
+                        AutoDownloadRule.compile(rule, List.of());
+                    } catch (IllegalArgumentException e) {
+                        return Future.failedFuture(new NoStackTraceException("Invalid rule: " + e.getMessage()));
+                    }
                     boolean downloadEnabled = params.getBoolean("downloadEnabled", false);
                     boolean preloadEnabled = params.getBoolean("preloadEnabled", false);
 
@@ -455,6 +791,7 @@ public class TelegramVerticle extends AbstractVerticle {
                         item.downloadEnabled = downloadEnabled;
                         item.preloadEnabled = preloadEnabled;
                         item.rule = downloadEnabled ? rule : null;
+                        item.weight = Math.max(1, params.getInteger("weight", item.weight));
 
                         settingAutoRecords.add(item);
                     } else if (item != null) {
@@ -467,9 +804,41 @@ public class TelegramVerticle extends AbstractVerticle {
                 .mapEmpty();
     }
 
+    /**
+     * @return download speed of the recent 30 seconds, in bytes per second
+     */
+    public long getRecentDownloadSpeed() {
+        return recentSpeed.getSpeed();
+    }
+
+    /**
+     * @return average download rate of the recent minute, in bytes per second
+     */
+    public long getDownloadRate(long timestamp) {
+        return bandwidthMeter.getRate(timestamp);
+    }
+
     public Future<JsonObject> getDownloadStatistics() {
         return Future.all(DataVerticle.fileRepository.getDownloadStatistics(this.telegramRecord.id()),
-                client.execute(new TdApi.GetNetworkStatistics())
+                client.execute(new TdApi.GetNetworkStatistics()),
+                vertx.eventBus().<JsonObject>request(EventEnum.AUTO_DOWNLOAD_STATISTICS.address(), this.telegramRecord.id())
+                        .map(Message::body)
+                        .otherwise(e -> {
+                            log.debug("Get auto download statistics failed: %s".formatted(e.getMessage()));
+                            return JsonObject.of();
+                        }),
+                vertx.eventBus().<JsonObject>request(EventEnum.TRANSFER_STATISTICS.address(), null)
+                        .map(Message::body)
+                        .otherwise(e -> {
+                            log.debug("Get transfer statistics failed: %s".formatted(e.getMessage()));
+                            return JsonObject.of();
+                        }),
+                vertx.eventBus().<JsonObject>request(EventEnum.PREVIEW_CACHE_STATISTICS.address(), null)
+                        .map(Message::body)
+                        .otherwise(e -> {
+                            log.debug("Get preview cache statistics failed: %s".formatted(e.getMessage()));
+                            return JsonObject.of();
+                        })
         ).map(r -> {
             JsonObject jsonObject = r.resultAt(0);
             TdApi.NetworkStatistics networkStatistics = r.resultAt(1);
@@ -489,6 +858,9 @@ public class TelegramVerticle extends AbstractVerticle {
             );
 
             jsonObject.put("speedStats", avgSpeed.getSpeedStats());
+            jsonObject.put("autoDownloadStats", r.<JsonObject>resultAt(2));
+            jsonObject.put("transferStats", r.<JsonObject>resultAt(3));
+            jsonObject.put("previewCacheStats", r.<JsonObject>resultAt(4));
             return jsonObject;
         });
     }
@@ -699,11 +1071,21 @@ public class TelegramVerticle extends AbstractVerticle {
                 });
     }
 
+    private Future<Void> initDownloadWatchdog() {
+        return DataVerticle.settingRepository.<Integer>getByKey(SettingKey.downloadStallTimeout)
+                .onSuccess(stallTimeout -> downloadWatchdog.setStallTimeout(stallTimeout * 1000L))
+                .mapEmpty();
+    }
+
     private Future<Void> initEventConsumer() {
         vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.avgSpeedInterval.name()), message -> {
             log.debug("Avg Speed Interval update: %s".formatted(message.body()));
             this.initAvgSpeed();
         });
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.downloadStallTimeout.name()), message -> {
+            log.debug("Download stall timeout update: %s".formatted(message.body()));
+            this.initDownloadWatchdog();
+        });
 
         return Future.succeededFuture();
     }
@@ -777,12 +1159,23 @@ public class TelegramVerticle extends AbstractVerticle {
     private void onFileUpdated(TdApi.UpdateFile updateFile) {
         log.trace("[%s] Receive file update: %s".formatted(getRootId(), updateFile));
         TdApi.File file = updateFile.file;
+        downloadWatchdog.onFileUpdated(file);
         if (file != null) {
+            Set<Promise<Boolean>> waiters = progressWaiters.remove(file.id);
+            if (waiters != null) {
+                waiters.forEach(promise -> promise.tryComplete(true));
+            }
+            if ((downloadWatchdog.isFailed(file.id) || downloadWatchdog.isRestarting(file.id))
+                && file.local != null && !file.local.isDownloadingActive) {
+                // Downloads canceled by the watchdog are restarted or marked as error by it
+                return;
+            }
             String localPath = null;
             Long completionDate = null;
             if (file.local != null && file.local.isDownloadingCompleted) {
                 localPath = file.local.path;
                 completionDate = System.currentTimeMillis();
+                downloadPriorities.remove(file.id);
             }
             FileRecord.DownloadStatus downloadStatus = TdApiHelp.getDownloadStatus(file);
             DataVerticle.fileRepository.updateDownloadStatus(file.id,
@@ -799,9 +1192,67 @@ public class TelegramVerticle extends AbstractVerticle {
         }
     }
 
+    private void checkStalledDownloads() {
+        if (!authorized) {
+            return;
+        }
+        downloadWatchdog.check().forEach(stall -> {
+            if (stall.action() == DownloadWatchdog.Action.RESTART) {
+                restartStalledDownload(stall);
+            } else {
+                failStalledDownload(stall);
+            }
+        });
+    }
+
+    private void restartStalledDownload(DownloadWatchdog.Stall stall) {
+        log.warn("[%s] Download stalled, restart it! FileId: %d UniqueId: %s restarts: %d"
+                .formatted(getRootId(), stall.fileId(), stall.uniqueId(), stall.restarts()));
+        DataVerticle.fileRepository.getByUniqueId(stall.uniqueId())
+                .compose(fileRecord -> {
+                    if (fileRecord == null) {
+                        return Future.failedFuture("File record not found");
+                    }
+                    // The downloaded part is kept, the download continues from it
+                    return client.execute(new TdApi.CancelDownloadFile(stall.fileId(), false))
+                            .compose(r -> client.execute(new TdApi.AddFileToDownloads(stall.fileId(),
+                                    fileRecord.chatId(),
+                                    fileRecord.messageId(),
+                                    getDownloadPriority(stall.fileId()).value)));
+                })
+                .onSuccess(r -> downloadWatchdog.onRestarted(stall.fileId(), true))
+                .onFailure(e -> {
+                    log.error("[%s] Restart stalled download failed! FileId: %d %s".formatted(getRootId(), stall.fileId(), e.getMessage()));
+                    downloadWatchdog.onRestarted(stall.fileId(), false);
+                    failStalledDownload(stall);
+                });
+    }
+
+    private void failStalledDownload(DownloadWatchdog.Stall stall) {
+        log.warn("[%s] Download stalled after %d restarts, give it up! FileId: %d UniqueId: %s"
+                .formatted(getRootId(), stall.restarts(), stall.fileId(), stall.uniqueId()));
+        client.execute(new TdApi.CancelDownloadFile(stall.fileId(), false))
+                .otherwiseEmpty()
+                .compose(r -> DataVerticle.fileRepository.updateDownloadStatus(stall.fileId(),
+                        stall.uniqueId(),
+                        null,
+                        FileRecord.DownloadStatus.error,
+                        null))
+                // The event is sent even if the status is not changed, so the download slot is released
+                .onComplete(r -> sendEvent(EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
+                        .put("fileId", stall.fileId())
+                        .put("uniqueId", stall.uniqueId())
+                        .put("downloadStatus", FileRecord.DownloadStatus.error)
+                )));
+    }
+
     private void onFileDownloadsUpdated(TdApi.UpdateFileDownloads updateFileDownloads) {
         log.trace("[%s] Receive file downloads update: %s".formatted(getRootId(), updateFileDownloads));
         avgSpeed.update(updateFileDownloads.downloadedSize, System.currentTimeMillis());
+        recentSpeed.update(updateFileDownloads.downloadedSize, System.currentTimeMillis());
+        // downloaded size decreases when files are removed from the download list
+        bandwidthMeter.record(updateFileDownloads.downloadedSize - lastDownloadedSize, System.currentTimeMillis());
+        lastDownloadedSize = updateFileDownloads.downloadedSize;
         if (lastFileDownloadEventTime == 0 || System.currentTimeMillis() - lastFileDownloadEventTime > 1000) {
             sendEvent(EventPayload.build(EventPayload.TYPE_FILE_DOWNLOAD, updateFileDownloads));
             lastFileDownloadEventTime = System.currentTimeMillis();
@@ -856,11 +1307,9 @@ public class TelegramVerticle extends AbstractVerticle {
                 .map(messages -> {
                     List<JsonObject> fileObjects = messages.stream()
                             .filter(message -> TdApiHelp.FILE_CONTENT_CONSTRUCTORS.contains(message.content.getConstructor()))
-                            .map(message -> {
-                                //TODO Processing of the same file under different accounts
-
-                                return this.withSource(fileRecords.get(TdApiHelp.getFileUniqueId(message)), message);
-                            })
+                            // File records are unique by the file unique id across accounts, the record may be downloaded
+                            // by another account, the file id and downloaded size are taken from this account
+                            .map(message -> this.withSource(fileRecords.get(TdApiHelp.getFileUniqueId(message)), message))
                             .filter(Objects::nonNull)
                             .toList();
                     return new JsonObject()
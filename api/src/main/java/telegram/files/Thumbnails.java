@@ -0,0 +1,196 @@
+package telegram.files;
+
+import cn.hutool.core.util.HexUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.WorkerExecutor;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageInputStream;
+import javax.imageio.stream.ImageOutputStream;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Resized JPEG copies of downloaded photos, so a preview does not load the original.
+ * <p>
+ * A thumbnail is saved as {@code <root>/<shard>/<uniqueId>_<size>.jpg}, the content of a unique id never changes, so a
+ * saved thumbnail is always valid. Images are decoded and resized on a worker pool of a fixed size, a photo that is
+ * not larger than the requested size is served as is.
+ */
+public class Thumbnails {
+
+    private static final Log log = LogFactory.get();
+
+    /**
+     * Longest side of the thumbnails, a requested size is rounded up to one of them
+     */
+    public static final List<Integer> SIZES = List.of(128, 256, 512, 1024, 2048);
+
+    public static final int DEFAULT_SIZE = 512;
+
+    private static final float JPEG_QUALITY = 0.85f;
+
+    private final Vertx vertx;
+
+    private final Path root;
+
+    private final WorkerExecutor executor;
+
+    // thumbnail path -> generating thumbnail
+    private final Map<String, Future<String>> generating = new ConcurrentHashMap<>();
+
+    public Thumbnails(Vertx vertx, Path root, int workers) {
+        this.vertx = vertx;
+        this.root = root;
+        this.executor = vertx.createSharedWorkerExecutor("thumbnail-worker", workers);
+    }
+
+    /**
+     * @return the smallest thumbnail size not less than the size, null if the size is larger than all thumbnail sizes
+     */
+    public static Integer snapSize(int size) {
+        if (size <= 0) {
+            return null;
+        }
+        return SIZES.stream().filter(s -> s >= size).findFirst().orElse(null);
+    }
+
+    /**
+     * @return path of the thumbnail, or the source if it is not larger than the size
+     */
+    public Future<String> get(String uniqueId, String source, int size) {
+        Path thumbnail = getPath(uniqueId, size);
+        // checked by the file system of vertx, a generated thumbnail is not queued behind the generating ones
+        return vertx.fileSystem().exists(thumbnail.toString())
+                .compose(exists -> exists ? Future.succeededFuture(thumbnail.toString()) :
+                        generating.computeIfAbsent(thumbnail.toString(), key ->
+                                executor.<String>executeBlocking(() -> generate(Path.of(source), thumbnail, size), false)
+                                        .onComplete(r -> generating.remove(key))));
+    }
+
+    /**
+     * Generate the thumbnail of a downloaded photo before it is previewed.
+     */
+    public void generateEagerly(String uniqueId, String source, int size) {
+        get(uniqueId, source, size)
+                .onFailure(e -> log.debug("Generate thumbnail of %s failed: %s".formatted(uniqueId, e.getMessage())));
+    }
+
+    public void delete(String uniqueId) {
+        for (Integer size : SIZES) {
+            try {
+                Files.deleteIfExists(getPath(uniqueId, size));
+            } catch (IOException e) {
+                log.debug("Delete thumbnail of %s failed: %s".formatted(uniqueId, e.getMessage()));
+            }
+        }
+    }
+
+    public void close() {
+        executor.close();
+    }
+
+    Path getPath(String uniqueId, int size) {
+        String shard = HexUtil.encodeHexStr(sha256(uniqueId)).substring(0, 2);
+        return root.resolve(shard).resolve("%s_%d.jpg".formatted(uniqueId, size));
+    }
+
+    /**
+     * @return path of the written thumbnail, or the source if it is not larger than the size
+     */
+    static String generate(Path source, Path thumbnail, int size) throws IOException {
+        BufferedImage image;
+        try (ImageInputStream input = ImageIO.createImageInputStream(source.toFile())) {
+            Iterator<ImageReader> readers = input == null ? null : ImageIO.getImageReaders(input);
+            if (readers == null || !readers.hasNext()) {
+                throw new IOException("Unsupported image: %s".formatted(source));
+            }
+            ImageReader reader = readers.next();
+            try {
+                reader.setInput(input, true, true);
+                int width = reader.getWidth(0);
+                int height = reader.getHeight(0);
+                if (Math.max(width, height) <= size) {
+                    return source.toString();
+                }
+                // Skip pixels while decoding a large photo, keep twice the size for a smooth resize
+                ImageReadParam param = reader.getDefaultReadParam();
+                int subsampling = Math.max(1, Math.max(width, height) / (size * 2));
+                param.setSourceSubsampling(subsampling, subsampling, 0, 0);
+                image = reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+
+        BufferedImage resized = resize(image, size);
+        Files.createDirectories(thumbnail.getParent());
+        Path temp = thumbnail.resolveSibling(thumbnail.getFileName() + ".tmp");
+        writeJpeg(resized, temp);
+        try {
+            Files.move(temp, thumbnail, StandardCopyOption.ATOMIC_MOVE);
+        } catch (AtomicMoveNotSupportedException e) {
+            Files.move(temp, thumbnail, StandardCopyOption.REPLACE_EXISTING);
+        }
+        return thumbnail.toString();
+    }
+
+    private static BufferedImage resize(BufferedImage image, int size) {
+        double scale = (double) size / Math.max(image.getWidth(), image.getHeight());
+        int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+        int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+        // JPEG has no alpha channel, transparent pixels become white
+        BufferedImage resized = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = resized.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            graphics.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+            graphics.setColor(Color.WHITE);
+            graphics.fillRect(0, 0, width, height);
+            graphics.drawImage(image, 0, 0, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return resized;
+    }
+
+    private static void writeJpeg(BufferedImage image, Path path) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        try (OutputStream out = Files.newOutputStream(path);
+             ImageOutputStream output = ImageIO.createImageOutputStream(out)) {
+            writer.setOutput(output);
+            ImageWriteParam param = writer.getDefaultWriteParam();
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            param.setCompressionQuality(JPEG_QUALITY);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+        }
+    }
+
+    private static byte[] sha256(String value) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(value.getBytes(StandardCharsets.UTF_8));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
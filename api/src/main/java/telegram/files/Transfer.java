@@ -2,12 +2,17 @@ package telegram.files;
 
 import cn.hutool.core.convert.Convert;
 import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.StrUtil;
 import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
 import telegram.files.repository.FileRecord;
 
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.FileAlreadyExistsException;
 import java.nio.file.Path;
 import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 public abstract class Transfer {
 
@@ -19,9 +24,21 @@ public abstract class Transfer {
 
     public boolean transferHistory;
 
+    /**
+     * Flush the file to the storage device before it is completed, only applies to copies across file systems
+     */
+    public boolean fsync;
+
+    public TransferMode transferMode;
+
+    /**
+     * Remote storage the files are uploaded to, the destination is the path prefix on it. Null means a local directory
+     */
+    public TransferTarget target;
+
     public Consumer<TransferStatusUpdated> transferStatusUpdated;
 
-    private FileRecord transferRecord;
+    public Consumer<TransferProgressUpdated> transferProgressUpdated;
 
     public static Transfer create(TransferPolicy transferPolicy) {
         return switch (transferPolicy) {
@@ -30,72 +47,151 @@ public abstract class Transfer {
         };
     }
 
-    public void transfer(FileRecord fileRecord) {
+    /**
+     * Transfer a file, files of the same transfer may be transferred in parallel.
+     *
+     * @return the final transfer status
+     */
+    public FileRecord.TransferStatus transfer(FileRecord fileRecord) {
         log.debug("Start transfer file {}", fileRecord.id());
-        transferRecord = fileRecord;
         transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.transferring, null));
         try {
+            if (target != null) {
+                return transferToTarget(fileRecord);
+            }
+            TransferEngine engine = new TransferEngine(fsync);
             String transferPath = getTransferPath(fileRecord);
             boolean isOverwrite = false;
-            if (FileUtil.exist(transferPath)) {
+            // The path is reserved while it is checked, so a file of the same name transferred in parallel takes another path
+            while (!isOverwrite && !engine.reserve(Path.of(transferPath))) {
                 if (duplicationPolicy == DuplicationPolicy.SKIP) {
                     log.trace("Skip file {}", fileRecord.id());
                     transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.idle, null));
-                    return;
+                    return FileRecord.TransferStatus.idle;
                 }
 
                 if (duplicationPolicy == DuplicationPolicy.OVERWRITE) {
                     log.trace("Overwrite file {}", fileRecord.id());
                     isOverwrite = true;
-                }
-
-                if (duplicationPolicy == DuplicationPolicy.RENAME) {
-                    transferPath = getUniquePath(transferPath);
+                } else if (duplicationPolicy == DuplicationPolicy.RENAME) {
+                    transferPath = getUniquePath(transferPath, FileUtil::exist);
                     log.trace("Rename file {} to {}", fileRecord.id(), transferPath);
-                }
-
-                if (duplicationPolicy == DuplicationPolicy.HASH) {
-                    if (MessyUtils.compareFilesMD5(FileUtil.file(fileRecord.localPath()), FileUtil.file(transferPath))) {
+                } else if (duplicationPolicy == DuplicationPolicy.HASH) {
+                    if (ContentHashIndex.isSameContent(fileRecord, Path.of(transferPath))) {
                         log.trace("File {} is the same as {}", fileRecord.id(), transferPath);
-                        FileUtil.del(fileRecord.localPath());
+                        if (!isLinkMode()) {
+                            FileUtil.del(fileRecord.localPath());
+                        }
                         transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.completed, transferPath));
-                        return;
+                        return FileRecord.TransferStatus.completed;
                     } else {
-                        transferPath = getUniquePath(transferPath);
+                        transferPath = getUniquePath(transferPath, FileUtil::exist);
                         log.trace("Rename file {} to {}", fileRecord.id(), transferPath);
                     }
+                } else {
+                    throw new FileAlreadyExistsException(transferPath);
                 }
             }
 
-            FileUtil.move(Path.of(fileRecord.localPath()), Path.of(transferPath), isOverwrite);
-            log.info("Transfer file {} to {}, duplication policy: {} overwrite: {}", fileRecord.id(), transferPath, duplicationPolicy, isOverwrite);
+            Path source = Path.of(fileRecord.localPath());
+            Path target = Path.of(transferPath);
+            boolean linked;
+            try {
+                // The reserved path is overwritten
+                linked = switch (transferMode == null ? TransferMode.MOVE : transferMode) {
+                    case HARDLINK -> engine.hardlink(source, target, true);
+                    case REFLINK -> engine.reflink(source, target, true);
+                    case MOVE -> false;
+                };
+                if (!linked) {
+                    if (isLinkMode()) {
+                        log.debug("Can not {} file {}, move it", transferMode, fileRecord.id());
+                    }
+                    engine.move(source, target, true, (transferredSize, totalSize) -> {
+                        if (transferProgressUpdated != null) {
+                            transferProgressUpdated.accept(new TransferProgressUpdated(fileRecord, transferredSize, totalSize));
+                        }
+                    });
+                }
+            } catch (Exception e) {
+                if (!isOverwrite) {
+                    engine.unreserve(target);
+                }
+                throw e;
+            }
+            log.info("Transfer file {} to {}, mode: {}, duplication policy: {} overwrite: {}",
+                    fileRecord.id(), transferPath, linked ? transferMode : TransferMode.MOVE, duplicationPolicy, isOverwrite);
+            if (duplicationPolicy == DuplicationPolicy.HASH) {
+                ContentHashIndex.onTransferred(fileRecord, Path.of(transferPath));
+            }
 
             transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.completed, transferPath));
+            return FileRecord.TransferStatus.completed;
         } catch (Exception e) {
             log.error(e, "Transfer file {} error", fileRecord.id());
             transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.error, null));
-        } finally {
-            transferRecord = null;
+            return FileRecord.TransferStatus.error;
+        }
+    }
+
+    /**
+     * Upload the file to the target. Link modes keep the downloaded file, otherwise it is deleted and the local path is
+     * set to the uploaded file. The content of remote files is not compared, {@link DuplicationPolicy#HASH} renames the file.
+     */
+    private FileRecord.TransferStatus transferToTarget(FileRecord fileRecord) throws IOException {
+        // Object keys are always separated by '/'
+        String transferPath = StrUtil.removePrefix(getTransferPath(fileRecord).replace('\\', '/'), "/");
+        if (target.exists(transferPath)) {
+            if (duplicationPolicy == DuplicationPolicy.SKIP) {
+                log.trace("Skip file {}", fileRecord.id());
+                transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.idle, null));
+                return FileRecord.TransferStatus.idle;
+            }
+            if (duplicationPolicy == DuplicationPolicy.RENAME || duplicationPolicy == DuplicationPolicy.HASH) {
+                transferPath = getUniquePath(transferPath, path -> {
+                    try {
+                        return target.exists(path);
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                }).replace('\\', '/');
+                log.trace("Rename file {} to {}", fileRecord.id(), transferPath);
+            }
         }
+
+        target.upload(Path.of(fileRecord.localPath()), transferPath, (transferredSize, totalSize) -> {
+            if (transferProgressUpdated != null) {
+                transferProgressUpdated.accept(new TransferProgressUpdated(fileRecord, transferredSize, totalSize));
+            }
+        });
+        String localPath = null;
+        if (!isLinkMode()) {
+            FileUtil.del(fileRecord.localPath());
+            localPath = target.getUri(transferPath);
+        }
+        log.info("Upload file {} to {}, duplication policy: {}", fileRecord.id(), target.getUri(transferPath), duplicationPolicy);
+
+        transferStatusUpdated.accept(new TransferStatusUpdated(fileRecord, FileRecord.TransferStatus.completed, localPath));
+        return FileRecord.TransferStatus.completed;
+    }
+
+    private boolean isLinkMode() {
+        return transferMode == TransferMode.HARDLINK || transferMode == TransferMode.REFLINK;
     }
 
-    private String getUniquePath(String path) {
-        if (!FileUtil.exist(path)) {
+    private String getUniquePath(String path, Predicate<String> exists) {
+        if (!exists.test(path)) {
             return path;
         }
         String name = FileUtil.getName(path);
-        String parent = FileUtil.getParent(path, 1);
         String extension = FileUtil.extName(name);
         String baseName = FileUtil.mainName(name);
+        // Resolved without the file system, the path may be relative to a remote target
         int i = 1;
-        while (FileUtil.exists(Path.of(parent, "%s-%d.%s".formatted(baseName, i, extension)), false)) {
+        while (exists.test(Path.of(path).resolveSibling("%s-%d.%s".formatted(baseName, i, extension)).toString())) {
             i++;
         }
-        return Path.of(parent, "%s-%d.%s".formatted(baseName, i, extension)).toString();
-    }
-
-    public FileRecord getTransferRecord() {
-        return transferRecord;
+        return Path.of(path).resolveSibling("%s-%d.%s".formatted(baseName, i, extension)).toString();
     }
 
     protected abstract String getTransferPath(FileRecord fileRecord);
@@ -128,6 +224,11 @@ public abstract class Transfer {
                                         String localPath) {
     }
 
+    public record TransferProgressUpdated(FileRecord fileRecord,
+                                          long transferredSize,
+                                          long totalSize) {
+    }
+
     public enum TransferPolicy {
         /**
          * Transfer files by chat id
@@ -140,6 +241,23 @@ public abstract class Transfer {
         ;
     }
 
+    public enum TransferMode {
+        /**
+         * Move the file, the file is removed from the telegram files directory
+         */
+        MOVE,
+        /**
+         * Hardlink the file, the file stays in the telegram files directory, falls back to move on another file system
+         */
+        HARDLINK,
+        /**
+         * Reflink the file on file systems supporting copy on write, e.g. btrfs, xfs and apfs,
+         * the file stays in the telegram files directory, falls back to move if not supported
+         */
+        REFLINK,
+        ;
+    }
+
     public enum DuplicationPolicy {
         /**
          * Overwrite the existing file
@@ -154,8 +272,9 @@ public abstract class Transfer {
          */
         SKIP,
         /**
-         * Calculate the hash of the file and compare with the existing file, if the hash is the same,
-         * delete the original file and set the local path to the existing file, otherwise, move the file
+         * Compare the file with the existing file by size, partial hash and then hash, see {@link ContentHashIndex},
+         * if the content is the same, delete the original file and set the local path to the existing file,
+         * otherwise, move the file with a suffix
          */
         HASH,
         ;
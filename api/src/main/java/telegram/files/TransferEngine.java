@@ -0,0 +1,277 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.json.JsonObject;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.*;
+import java.util.List;
+import java.util.Objects;
+
+/**
+ * Moves a file to its transfer path.
+ * <p>
+ * On the same file system the file is renamed. Across file systems it is copied with {@link FileChannel#transferTo}
+ * into a temporary file beside the target, which is renamed to the target when the copy completes, so the target is
+ * never a truncated file. The copied size is saved in a journal beside the temporary file, and an interrupted copy of
+ * the same source resumes from it. Each chunk is flushed before its offset is saved.
+ * <p>
+ * A file can also be hardlinked or reflinked to its transfer path, which keeps the source and takes the same time
+ * regardless of the file size.
+ * <p>
+ * A target that must not be overwritten is reserved with an empty file before it is replaced, so concurrent transfers
+ * of the same name never replace each other.
+ */
+public class TransferEngine {
+
+    private static final Log log = LogFactory.get();
+
+    public static final String PART_SUFFIX = ".part";
+
+    public static final String JOURNAL_SUFFIX = ".part.journal";
+
+    public static final String LINK_SUFFIX = ".link";
+
+    private static final long CHUNK_SIZE = 8 * 1024 * 1024;
+
+    private static final long PROGRESS_INTERVAL = 1000;
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        void onProgress(long transferredSize, long totalSize);
+    }
+
+    @FunctionalInterface
+    private interface Linker {
+        void link(Path source, Path link) throws IOException;
+    }
+
+    private final boolean fsync;
+
+    /**
+     * @param fsync whether the copied file is flushed to the storage device before it is renamed to the target
+     */
+    public TransferEngine(boolean fsync) {
+        this.fsync = fsync;
+    }
+
+    /**
+     * @param listener notified at most once per second while copying, and when the copy completes
+     */
+    public void move(Path source, Path target, boolean overwrite, ProgressListener listener) throws IOException {
+        if (!overwrite && !reserve(target)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        try {
+            try {
+                // Replaces the existing target on POSIX file systems
+                Files.move(source, target, StandardCopyOption.ATOMIC_MOVE);
+                return;
+            } catch (AtomicMoveNotSupportedException e) {
+                log.debug("Move %s to %s across file systems, copy it".formatted(source, target));
+            }
+            copy(source, target, listener);
+        } catch (IOException | RuntimeException e) {
+            if (!overwrite) {
+                unreserve(target);
+            }
+            throw e;
+        }
+        Files.delete(source);
+    }
+
+    /**
+     * Create the target as an empty file, checking and creating it is atomic. The reserved target is replaced by a move
+     * or a link that overwrites it.
+     *
+     * @return false if the target exists
+     */
+    public boolean reserve(Path target) throws IOException {
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        try {
+            Files.createFile(target);
+            return true;
+        } catch (FileAlreadyExistsException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Delete a reserved target that has not been replaced, it is still empty.
+     */
+    public void unreserve(Path target) {
+        try {
+            if (Files.isRegularFile(target) && Files.size(target) == 0) {
+                Files.delete(target);
+            }
+        } catch (IOException e) {
+            log.debug("Delete reserved target %s failed: %s".formatted(target, e.getMessage()));
+        }
+    }
+
+    /**
+     * Hardlink the target to the source, the source is kept.
+     *
+     * @return false if the files can not be linked, e.g. they are on different file systems, nothing is changed
+     */
+    public boolean hardlink(Path source, Path target, boolean overwrite) throws IOException {
+        return link(source, target, overwrite, (s, link) -> Files.createLink(link, s));
+    }
+
+    /**
+     * Reflink the target to the source, they share the data blocks until either is modified, the source is kept.
+     *
+     * @return false if the file system does not support reflinks, nothing is changed
+     */
+    public boolean reflink(Path source, Path target, boolean overwrite) throws IOException {
+        return link(source, target, overwrite, TransferEngine::cloneFile);
+    }
+
+    private boolean link(Path source, Path target, boolean overwrite, Linker linker) throws IOException {
+        if (Files.exists(target) && Files.isSameFile(source, target)) {
+            return true;
+        }
+        if (!overwrite && !reserve(target)) {
+            throw new FileAlreadyExistsException(target.toString());
+        }
+        Files.createDirectories(target.toAbsolutePath().getParent());
+        // Linked beside the target first, so an existing target is replaced atomically
+        Path link = sibling(target, LINK_SUFFIX);
+        Files.deleteIfExists(link);
+        try {
+            linker.link(source, link);
+        } catch (IOException | UnsupportedOperationException e) {
+            log.debug("Link %s to %s failed: %s".formatted(source, target, e.getMessage()));
+            Files.deleteIfExists(link);
+            if (!overwrite) {
+                unreserve(target);
+            }
+            return false;
+        }
+        Files.move(link, target, StandardCopyOption.ATOMIC_MOVE);
+        if (fsync) {
+            forceDirectory(target.toAbsolutePath().getParent());
+        }
+        return true;
+    }
+
+    /**
+     * Java has no API for reflinks, the copy command of the system clones the file or fails without copying.
+     */
+    private static void cloneFile(Path source, Path link) throws IOException {
+        String osName = System.getProperty("os.name").toLowerCase();
+        List<String> command;
+        if (osName.contains("linux")) {
+            command = List.of("cp", "--reflink=always", source.toString(), link.toString());
+        } else if (osName.contains("mac")) {
+            command = List.of("cp", "-c", source.toString(), link.toString());
+        } else {
+            throw new UnsupportedOperationException("Reflink is not supported on %s".formatted(osName));
+        }
+        Process process = new ProcessBuilder(command).redirectErrorStream(true).start();
+        try {
+            String output = new String(process.getInputStream().readAllBytes());
+            int exitCode = process.waitFor();
+            if (exitCode != 0) {
+                throw new IOException("Clone file exited with %d: %s".formatted(exitCode, output.trim()));
+            }
+        } catch (InterruptedException e) {
+            process.destroy();
+            Thread.currentThread().interrupt();
+            throw new IOException("Clone file interrupted", e);
+        }
+    }
+
+    /**
+     * Copy into the temporary file and rename it to the target, the source is kept.
+     */
+    void copy(Path source, Path target, ProgressListener listener) throws IOException {
+        Path part = sibling(target, PART_SUFFIX);
+        Path journal = sibling(target, JOURNAL_SUFFIX);
+        long size = Files.size(source);
+        long lastModified = Files.getLastModifiedTime(source).toMillis();
+        JsonObject journalEntry = JsonObject.of("source", source.toAbsolutePath().toString(),
+                "size", size,
+                "lastModified", lastModified);
+
+        try (FileChannel in = FileChannel.open(source, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+            long offset = Math.min(readOffset(journal, journalEntry), out.size());
+            if (offset > 0) {
+                log.info("Resume transfer of %s to %s from %d/%d".formatted(source, target, offset, size));
+            }
+            out.truncate(offset);
+            out.position(offset);
+            long lastProgressTime = 0;
+            while (offset < size) {
+                long transferred = in.transferTo(offset, Math.min(CHUNK_SIZE, size - offset), out);
+                if (transferred <= 0) {
+                    throw new IOException("Source file is truncated: %s".formatted(source));
+                }
+                offset += transferred;
+                // the journal must not run ahead of the data on the storage device, or a resume would skip lost bytes
+                out.force(false);
+                writeOffset(journal, journalEntry, offset);
+                long now = System.currentTimeMillis();
+                if (listener != null && offset < size && now - lastProgressTime >= PROGRESS_INTERVAL) {
+                    lastProgressTime = now;
+                    listener.onProgress(offset, size);
+                }
+            }
+            if (fsync) {
+                out.force(true);
+            }
+        }
+
+        Files.move(part, target, StandardCopyOption.ATOMIC_MOVE);
+        if (fsync) {
+            forceDirectory(target.toAbsolutePath().getParent());
+        }
+        Files.deleteIfExists(journal);
+        if (listener != null) {
+            listener.onProgress(size, size);
+        }
+    }
+
+    /**
+     * @return copied size of the same source, 0 if there is no journal or it belongs to another source
+     */
+    private static long readOffset(Path journal, JsonObject journalEntry) {
+        if (!Files.exists(journal)) {
+            return 0;
+        }
+        try {
+            JsonObject saved = new JsonObject(Files.readString(journal));
+            if (Objects.equals(saved.getString("source"), journalEntry.getString("source"))
+                && Objects.equals(saved.getLong("size"), journalEntry.getLong("size"))
+                && Objects.equals(saved.getLong("lastModified"), journalEntry.getLong("lastModified"))) {
+                return saved.getLong("offset", 0L);
+            }
+        } catch (Exception e) {
+            log.warn("Read transfer journal %s failed: %s".formatted(journal, e.getMessage()));
+        }
+        return 0;
+    }
+
+    private static void writeOffset(Path journal, JsonObject journalEntry, long offset) throws IOException {
+        Files.writeString(journal, journalEntry.copy().put("offset", offset).encode());
+    }
+
+    /**
+     * Persist the rename, not every file system supports it.
+     */
+    private static void forceDirectory(Path directory) {
+        try (FileChannel channel = FileChannel.open(directory, StandardOpenOption.READ)) {
+            channel.force(true);
+        } catch (IOException e) {
+            log.debug("Fsync directory %s failed: %s".formatted(directory, e.getMessage()));
+        }
+    }
+
+    private static Path sibling(Path target, String suffix) {
+        return target.resolveSibling(target.getFileName() + suffix);
+    }
+}
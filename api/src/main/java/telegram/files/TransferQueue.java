@@ -0,0 +1,125 @@
+package telegram.files;
+
+import java.util.*;
+import java.util.function.Predicate;
+
+/**
+ * Files waiting for transfer, grouped by destination.
+ * <p>
+ * A file is deduplicated by its key until its transfer is done. Destinations take turns, so one destination with many
+ * waiting files does not hold up the others, and a destination is skipped while it has the max transfers in progress.
+ */
+public class TransferQueue<T> {
+
+    public record Entry<T>(String destination, String key, T element) {
+    }
+
+    // destination -> waiting entries, the destination polled last moves to the end
+    private final LinkedHashMap<String, Deque<Entry<T>>> lanes = new LinkedHashMap<>();
+
+    // key -> entry waiting or in progress
+    private final Map<String, Entry<T>> entries = new HashMap<>();
+
+    // destination -> transfers in progress
+    private final Map<String, Integer> activeCounts = new HashMap<>();
+
+    private int waiting;
+
+    private int active;
+
+    /**
+     * @return false if the key is already waiting or in progress
+     */
+    public synchronized boolean offer(String destination, String key, T element) {
+        if (entries.containsKey(key)) {
+            return false;
+        }
+        Entry<T> entry = new Entry<>(destination, key, element);
+        entries.put(key, entry);
+        lanes.computeIfAbsent(destination, k -> new ArrayDeque<>()).offer(entry);
+        waiting++;
+        return true;
+    }
+
+    /**
+     * Take the next waiting entry, it is in progress until {@link #done(Entry)}.
+     *
+     * @param maxActive         max transfers in progress in total
+     * @param maxPerDestination max transfers in progress of each destination
+     * @return null if nothing is waiting or all limits are reached
+     */
+    public synchronized Entry<T> poll(int maxActive, int maxPerDestination) {
+        if (waiting == 0 || active >= maxActive) {
+            return null;
+        }
+        Iterator<Map.Entry<String, Deque<Entry<T>>>> iterator = lanes.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, Deque<Entry<T>>> lane = iterator.next();
+            String destination = lane.getKey();
+            if (activeCounts.getOrDefault(destination, 0) >= maxPerDestination) {
+                continue;
+            }
+            Entry<T> entry = lane.getValue().poll();
+            iterator.remove();
+            if (!lane.getValue().isEmpty()) {
+                lanes.put(destination, lane.getValue());
+            }
+            waiting--;
+            active++;
+            activeCounts.merge(destination, 1, Integer::sum);
+            return entry;
+        }
+        return null;
+    }
+
+    public synchronized void done(Entry<T> entry) {
+        if (entries.remove(entry.key(), entry)) {
+            active--;
+            activeCounts.computeIfPresent(entry.destination(), (k, count) -> count <= 1 ? null : count - 1);
+        }
+    }
+
+    /**
+     * Remove waiting entries, entries in progress are not affected.
+     */
+    public synchronized void removeIf(Predicate<T> filter) {
+        lanes.values().removeIf(lane -> {
+            lane.removeIf(entry -> {
+                if (filter.test(entry.element())) {
+                    entries.remove(entry.key());
+                    waiting--;
+                    return true;
+                }
+                return false;
+            });
+            return lane.isEmpty();
+        });
+    }
+
+    public synchronized boolean contains(String key) {
+        return entries.containsKey(key);
+    }
+
+    /**
+     * @return waiting entries
+     */
+    public synchronized int size() {
+        return waiting;
+    }
+
+    /**
+     * @return entries in progress
+     */
+    public synchronized int getActive() {
+        return active;
+    }
+
+    /**
+     * @return destination -> waiting entries
+     */
+    public synchronized Map<String, Integer> getDepths() {
+        Map<String, Integer> depths = new LinkedHashMap<>();
+        lanes.forEach((destination, lane) -> depths.put(destination, lane.size()));
+        return depths;
+    }
+}
@@ -0,0 +1,31 @@
+package telegram.files;
+
+import java.io.IOException;
+import java.nio.file.Path;
+
+/**
+ * A remote storage that files are transferred to instead of a local directory, see {@link Transfer#target}.
+ * <p>
+ * Paths are relative to the target and separated by '/'. The methods block until the request completes, so they must
+ * be called on a worker thread.
+ */
+public interface TransferTarget extends AutoCloseable {
+
+    boolean exists(String path) throws IOException;
+
+    /**
+     * Upload the file to the path, an existing file is replaced. The source is kept.
+     *
+     * @param listener notified when parts of the file are uploaded
+     */
+    void upload(Path source, String path, TransferEngine.ProgressListener listener) throws IOException;
+
+    /**
+     * @return location of the path that is saved as the local path of the file, e.g. s3://bucket/key
+     */
+    String getUri(String path);
+
+    @Override
+    default void close() {
+    }
+}
@@ -2,6 +2,7 @@ package telegram.files;
 
 import cn.hutool.core.bean.BeanUtil;
 import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.convert.Convert;
 import cn.hutool.core.util.StrUtil;
 import cn.hutool.log.Log;
 import cn.hutool.log.LogFactory;
@@ -9,60 +10,89 @@ import io.vertx.core.AbstractVerticle;
 import io.vertx.core.Future;
 import io.vertx.core.Promise;
 import io.vertx.core.json.JsonObject;
-import org.jooq.lambda.tuple.Tuple3;
 import telegram.files.repository.FileRecord;
 import telegram.files.repository.SettingAutoRecords;
+import telegram.files.repository.SettingKey;
 
 import java.io.File;
-import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.concurrent.BlockingQueue;
-import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.TimeUnit;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class TransferVerticle extends AbstractVerticle {
     private static final Log log = LogFactory.get();
 
     private static final int HISTORY_SCAN_INTERVAL = 2 * 60 * 1000;
 
-    private static final int TRANSFER_INTERVAL = 3 * 1000;
+    // History files are queued up to the high-water mark, and queued again when the queue drains below the low-water mark
+    private static final int HISTORY_HIGH_WATER_MARK = 200;
+
+    private static final int HISTORY_LOW_WATER_MARK = 50;
+
+    private static final long HISTORY_EXHAUSTED = -1;
+
+    private static final int THROUGHPUT_WINDOW_SECONDS = 5 * 60;
 
     private final SettingAutoRecords autoRecords;
 
-    private final Map<String, Transfer> transfers = new HashMap<>();
+    // telegramId:chatId -> transfer
+    private final Map<String, Transfer> transfers = new ConcurrentHashMap<>();
 
-    private final BlockingQueue<WaitingTransferFile> waitingTransferFiles = new LinkedBlockingQueue<>();
+    // destination -> waiting files, deduplicated by unique id
+    private final TransferQueue<WaitingTransferFile> waitingTransferFiles = new TransferQueue<>();
 
-    private volatile boolean isStopped = false;
+    // telegramId:chatId -> message id the history scan continues from
+    private final Map<String, Long> historyCursors = new ConcurrentHashMap<>();
+
+    private volatile boolean isScanningHistory = false;
+
+    private final BandwidthMeter transferMeter = new BandwidthMeter(THROUGHPUT_WINDOW_SECONDS);
+
+    private final AtomicLong completedCount = new AtomicLong();
+
+    private final AtomicLong failedCount = new AtomicLong();
+
+    private volatile int workers = (int) SettingKey.transferWorkers.defaultValue;
 
-    private volatile Transfer beingTransferred;
+    private volatile int destinationLimit = (int) SettingKey.transferDestinationLimit.defaultValue;
+
+    private volatile boolean isStopped = false;
 
     public TransferVerticle() {
         this.autoRecords = AutoRecordsHolder.INSTANCE.autoRecords();
         AutoRecordsHolder.INSTANCE.registerOnRemoveListener(removedItems -> removedItems.forEach(item -> {
-            waitingTransferFiles.removeIf(waitingTransferFile -> waitingTransferFile.uniqueId().equals(item.uniqueKey()));
-            transfers.remove(item.uniqueKey());
+            waitingTransferFiles.removeIf(waitingTransferFile -> waitingTransferFile.telegramId() == item.telegramId
+                                                                 && waitingTransferFile.chatId() == item.chatId);
+            Transfer transfer = transfers.remove(item.uniqueKey());
+            if (transfer != null && transfer.target != null) {
+                transfer.target.close();
+            }
+            historyCursors.remove(item.uniqueKey());
         }));
     }
 
     @Override
     public void start(Promise<Void> startPromise) {
-        initEventConsumer().onSuccess(v -> {
-            vertx.setPeriodic(0, HISTORY_SCAN_INTERVAL, id -> addHistoryFiles());
-            vertx.setPeriodic(0, TRANSFER_INTERVAL, id -> startTransfer());
-
-            log.info("Transfer verticle started");
-            startPromise.complete();
-        }).onFailure(startPromise::fail);
+        initTransferSettings()
+                .compose(v -> initEventConsumer())
+                .onSuccess(v -> {
+                    resumeInterruptedTransfers();
+                    // Exhausted history is not scanned again, files completed later are queued by their status event
+                    vertx.setPeriodic(0, HISTORY_SCAN_INTERVAL, id -> addHistoryFiles());
+
+                    log.info("Transfer verticle started");
+                    startPromise.complete();
+                })
+                .onFailure(startPromise::fail);
     }
 
     @Override
     public void stop(Promise<Void> stopPromise) {
         isStopped = true;
-        if (beingTransferred != null) {
-            log.info("Wait for transfer to complete, file: %s".formatted(beingTransferred.getTransferRecord().uniqueId()));
-            while (beingTransferred != null) {
+        if (waitingTransferFiles.getActive() > 0) {
+            log.info("Wait for %d transfers to complete".formatted(waitingTransferFiles.getActive()));
+            while (waitingTransferFiles.getActive() > 0) {
                 try {
                     Thread.sleep(1000);
                 } catch (InterruptedException e) {
@@ -75,7 +105,29 @@ public class TransferVerticle extends AbstractVerticle {
         stopPromise.complete();
     }
 
+    private Future<Void> initTransferSettings() {
+        return Future.all(
+                DataVerticle.settingRepository.<Integer>getByKey(SettingKey.transferWorkers)
+                        .onSuccess(workers -> this.workers = workers)
+                        .onFailure(e -> log.error("Get transfer workers failed!", e)),
+                DataVerticle.settingRepository.<Integer>getByKey(SettingKey.transferDestinationLimit)
+                        .onSuccess(destinationLimit -> this.destinationLimit = destinationLimit)
+                        .onFailure(e -> log.error("Get transfer destination limit failed!", e))
+        ).<Void>mapEmpty().otherwiseEmpty();
+    }
+
     private Future<Void> initEventConsumer() {
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.transferWorkers.name()), message -> {
+            log.debug("Transfer workers update: %s".formatted(message.body()));
+            this.workers = Convert.toInt(message.body(), (int) SettingKey.transferWorkers.defaultValue);
+            startTransfers();
+        });
+        vertx.eventBus().consumer(EventEnum.SETTING_UPDATE.address(SettingKey.transferDestinationLimit.name()), message -> {
+            log.debug("Transfer destination limit update: %s".formatted(message.body()));
+            this.destinationLimit = Convert.toInt(message.body(), (int) SettingKey.transferDestinationLimit.defaultValue);
+            startTransfers();
+        });
+        vertx.eventBus().consumer(EventEnum.TRANSFER_STATISTICS.address(), message -> message.reply(getStatistics()));
         vertx.eventBus().consumer(EventEnum.TELEGRAM_EVENT.address(), message -> {
             JsonObject jsonObject = (JsonObject) message.body();
             EventPayload payload = jsonObject.getJsonObject("payload").mapTo(EventPayload.class);
@@ -85,16 +137,19 @@ public class TransferVerticle extends AbstractVerticle {
 
             if (payload.data() != null && payload.data() instanceof Map<?, ?> data && StrUtil.isNotBlank((String) data.get("downloadStatus"))) {
                 FileRecord.DownloadStatus downloadStatus = FileRecord.DownloadStatus.valueOf((String) data.get("downloadStatus"));
-                if (downloadStatus != FileRecord.DownloadStatus.completed) {
+                // A shared download is transferred by the account that downloaded it
+                if (downloadStatus != FileRecord.DownloadStatus.completed || Boolean.TRUE.equals(data.get("shared"))) {
                     return;
                 }
                 FileRecord fileRecord = Future.await(DataVerticle.fileRepository.getByUniqueId((String) data.get("uniqueId")));
-                if (getTransfer(autoRecords.getItem(fileRecord.telegramId(), fileRecord.chatId())) == null) {
+                Transfer transfer = getTransfer(autoRecords.getItem(fileRecord.telegramId(), fileRecord.chatId()));
+                if (transfer == null) {
                     return;
                 }
 
-                if (addWaitingTransferFile(fileRecord)) {
+                if (addWaitingTransferFile(fileRecord, transfer)) {
                     log.debug("Add file to transfer queue: %s".formatted(fileRecord.uniqueId()));
+                    startTransfers();
                 }
             }
         });
@@ -102,51 +157,90 @@ public class TransferVerticle extends AbstractVerticle {
         return Future.succeededFuture();
     }
 
-    private void addHistoryFiles() {
-        if (CollUtil.isEmpty(autoRecords.items)) {
+    /**
+     * Files left transferring by the last run are transferred again, a copy across file systems resumes from its journal.
+     */
+    private void resumeInterruptedTransfers() {
+        List<FileRecord> fileRecords = Future.await(DataVerticle.fileRepository.getByTransferStatus(FileRecord.TransferStatus.transferring));
+        if (CollUtil.isEmpty(fileRecords)) {
             return;
         }
-        log.debug("Start scan history files for transfer");
-        for (SettingAutoRecords.Item item : autoRecords.items) {
-            Transfer transfer = getTransfer(item);
-            if (transfer == null || !transfer.transferHistory || item.isNotComplete(SettingAutoRecords.HISTORY_PRELOAD_STATE)) {
-                continue;
-            }
-            Tuple3<List<FileRecord>, Long, Long> filesTuple = Future.await(DataVerticle.fileRepository.getFiles(item.chatId,
-                    Map.of("status", FileRecord.DownloadStatus.completed.name(),
-                            "transferStatus", FileRecord.TransferStatus.idle.name()
-                    )
-            ));
-            List<FileRecord> files = filesTuple.v1;
-            if (CollUtil.isEmpty(files)) {
-                log.debug("No history files found for transfer: %s".formatted(item.uniqueKey()));
-                item.complete(SettingAutoRecords.HISTORY_TRANSFER_STATE);
-                continue;
+        log.info("Resume %d interrupted transfers".formatted(fileRecords.size()));
+        for (FileRecord fileRecord : fileRecords) {
+            Future.await(DataVerticle.fileRepository.updateTransferStatus(fileRecord.uniqueId(), FileRecord.TransferStatus.idle, null));
+            Transfer transfer = getTransfer(autoRecords.getItem(fileRecord.telegramId(), fileRecord.chatId()));
+            if (transfer != null) {
+                addWaitingTransferFile(fileRecord, transfer);
             }
+        }
+        startTransfers();
+    }
 
+    /**
+     * Stream completed history files of every auto item into the transfer queue until it reaches the high-water mark,
+     * each item continues from the message where its last page ended.
+     */
+    private void addHistoryFiles() {
+        if (CollUtil.isEmpty(autoRecords.items) || isScanningHistory) {
+            return;
+        }
+        isScanningHistory = true;
+        try {
+            log.debug("Start scan history files for transfer");
             int count = 0;
-            for (FileRecord fileRecord : files) {
-                if (addWaitingTransferFile(fileRecord)) {
-                    count++;
+            for (SettingAutoRecords.Item item : autoRecords.items) {
+                if (waitingTransferFiles.size() >= HISTORY_HIGH_WATER_MARK) {
+                    break;
+                }
+                Transfer transfer = getTransfer(item);
+                if (transfer == null || !transfer.transferHistory || item.isNotComplete(SettingAutoRecords.HISTORY_PRELOAD_STATE)) {
+                    continue;
                 }
+                count += addHistoryFiles(item, transfer);
             }
 
             if (count > 0) {
                 log.info("Add history files to transfer queue: %s".formatted(count));
-                break;
+                startTransfers();
             }
+        } finally {
+            isScanningHistory = false;
         }
     }
 
-    private boolean addWaitingTransferFile(FileRecord fileRecord) {
-        WaitingTransferFile waitingTransferFile = new WaitingTransferFile(fileRecord.telegramId(),
-                fileRecord.chatId(),
-                fileRecord.uniqueId());
-        if (!waitingTransferFiles.contains(waitingTransferFile)) {
-            waitingTransferFiles.add(waitingTransferFile);
-            return true;
+    private int addHistoryFiles(SettingAutoRecords.Item item, Transfer transfer) {
+        long fromMessageId = historyCursors.getOrDefault(item.uniqueKey(), 0L);
+        int count = 0;
+        while (fromMessageId != HISTORY_EXHAUSTED && waitingTransferFiles.size() < HISTORY_HIGH_WATER_MARK) {
+            int limit = HISTORY_HIGH_WATER_MARK - waitingTransferFiles.size();
+            List<FileRecord> files = Future.await(DataVerticle.fileRepository.getIdleTransferFiles(item.telegramId,
+                    item.chatId,
+                    fromMessageId,
+                    limit
+            ));
+            for (FileRecord fileRecord : files) {
+                if (addWaitingTransferFile(fileRecord, transfer)) {
+                    count++;
+                }
+            }
+
+            if (files.size() < limit) {
+                log.debug("No more history files found for transfer: %s".formatted(item.uniqueKey()));
+                item.complete(SettingAutoRecords.HISTORY_TRANSFER_STATE);
+                fromMessageId = HISTORY_EXHAUSTED;
+            } else {
+                fromMessageId = files.getLast().messageId();
+            }
+            historyCursors.put(item.uniqueKey(), fromMessageId);
         }
-        return false;
+        return count;
+    }
+
+    private boolean addWaitingTransferFile(FileRecord fileRecord, Transfer transfer) {
+        String destination = transfer.target == null ? transfer.destination : transfer.target.getUri(transfer.destination);
+        return waitingTransferFiles.offer(destination,
+                fileRecord.uniqueId(),
+                new WaitingTransferFile(fileRecord.telegramId(), fileRecord.chatId(), fileRecord.uniqueId()));
     }
 
     private Transfer getTransfer(SettingAutoRecords.Item item) {
@@ -164,73 +258,112 @@ public class TransferVerticle extends AbstractVerticle {
 
         return transfers.computeIfAbsent(item.uniqueKey(), k -> {
             Transfer transfer = Transfer.create(transferRule.transferPolicy);
+            if (transferRule.s3 != null) {
+                try {
+                    transfer.target = new S3Target(vertx, transferRule.s3);
+                } catch (Exception e) {
+                    log.error("Invalid S3 transfer target of %s: %s".formatted(k, e.getMessage()));
+                    return null;
+                }
+            }
             transfer.destination = transferRule.destination;
             transfer.duplicationPolicy = transferRule.duplicationPolicy;
             transfer.transferHistory = transferRule.transferHistory;
+            transfer.fsync = transferRule.fsync;
+            transfer.transferMode = transferRule.transferMode;
             transfer.transferStatusUpdated = updated ->
                     updateTransferStatus(updated.fileRecord(), updated.transferStatus(), updated.localPath());
+            transfer.transferProgressUpdated = this::sendTransferProgress;
             return transfer;
         });
     }
 
-    public void startTransfer() {
-        if (beingTransferred != null) {
-            return;
-        }
-        try {
-            WaitingTransferFile waitingTransferFile = waitingTransferFiles.poll(1, TimeUnit.SECONDS);
-            if (waitingTransferFile == null) {
-                log.trace("No file to transfer");
+    /**
+     * Start waiting transfers until the workers or the destination limits are used up, every finished transfer starts the next one.
+     */
+    public void startTransfers() {
+        while (!isStopped) {
+            TransferQueue.Entry<WaitingTransferFile> entry = waitingTransferFiles.poll(workers, destinationLimit);
+            if (entry == null) {
                 return;
             }
-            Transfer transfer = transfers.get("%d:%d".formatted(waitingTransferFile.telegramId(), waitingTransferFile.chatId()));
-            if (transfer == null) {
-                return;
-            }
-            if (beingTransferred == transfer) {
-                waitingTransferFiles.add(waitingTransferFile);
-                log.debug("Transfer is busy: %s".formatted(waitingTransferFile.uniqueId));
-                return;
-            }
-            FileRecord fileRecord = Future.await(DataVerticle.fileRepository.getByUniqueId(waitingTransferFile.uniqueId));
-            if (fileRecord == null) {
-                log.error("File not found: %s".formatted(waitingTransferFile.uniqueId));
-                return;
-            }
-
-            startTransfer(fileRecord, transfer);
-        } catch (Exception e) {
-            if (e instanceof InterruptedException) {
-                log.debug("Transfer loop interrupted");
-            } else {
-                log.error(e, "Transfer error");
-            }
+            WaitingTransferFile waitingTransferFile = entry.element();
+            vertx.executeBlocking(() -> {
+                        try {
+                            return startTransfer(waitingTransferFile);
+                        } finally {
+                            // Done on the worker thread, stop waits for it without yielding the verticle context
+                            waitingTransferFiles.done(entry);
+                        }
+                    }, false)
+                    .onFailure(e -> log.error(e, "Transfer error: %s".formatted(waitingTransferFile.uniqueId())))
+                    .onComplete(r -> {
+                        startTransfers();
+                        if (waitingTransferFiles.size() < HISTORY_LOW_WATER_MARK) {
+                            addHistoryFiles();
+                        }
+                    });
         }
     }
 
-    public void startTransfer(FileRecord fileRecord, Transfer transfer) {
-        if (isStopped) {
-            return;
+    /**
+     * Runs on a worker thread.
+     *
+     * @return the final transfer status, null if the file is not transferred
+     */
+    private FileRecord.TransferStatus startTransfer(WaitingTransferFile waitingTransferFile) {
+        Transfer transfer = transfers.get("%d:%d".formatted(waitingTransferFile.telegramId(), waitingTransferFile.chatId()));
+        if (transfer == null) {
+            return null;
         }
+        FileRecord fileRecord = MessyUtils.await(DataVerticle.fileRepository.getByUniqueId(waitingTransferFile.uniqueId()));
+        if (fileRecord == null) {
+            log.error("File not found: %s".formatted(waitingTransferFile.uniqueId()));
+            return null;
+        }
+
+        return startTransfer(fileRecord, transfer);
+    }
+
+    public FileRecord.TransferStatus startTransfer(FileRecord fileRecord, Transfer transfer) {
         if (fileRecord.transferStatus() != null
             && !fileRecord.isTransferStatus(FileRecord.TransferStatus.idle)) {
             log.debug("File {} transfer status is not idle: {}", fileRecord.id(), fileRecord.transferStatus());
-            return;
+            return null;
         }
 
         File originFile = new File(fileRecord.localPath());
         if (!originFile.exists()) {
             log.error("File {} not found: {}", fileRecord.id(), fileRecord.localPath());
-            return;
+            return null;
         }
 
-        beingTransferred = transfer;
-        transfer.transfer(fileRecord);
-        beingTransferred = null;
+        FileRecord.TransferStatus transferStatus = transfer.transfer(fileRecord);
+        if (transferStatus == FileRecord.TransferStatus.completed) {
+            completedCount.incrementAndGet();
+            transferMeter.record(fileRecord.size(), System.currentTimeMillis());
+        } else if (transferStatus == FileRecord.TransferStatus.error) {
+            failedCount.incrementAndGet();
+        }
+        return transferStatus;
+    }
+
+    private JsonObject getStatistics() {
+        JsonObject queueDepths = JsonObject.of();
+        waitingTransferFiles.getDepths().forEach(queueDepths::put);
+        return new JsonObject()
+                .put("workers", workers)
+                .put("destinationLimit", destinationLimit)
+                .put("active", waitingTransferFiles.getActive())
+                .put("waiting", waitingTransferFiles.size())
+                .put("queueDepths", queueDepths)
+                .put("throughput", transferMeter.getRate(System.currentTimeMillis()))
+                .put("completed", completedCount.get())
+                .put("failed", failedCount.get());
     }
 
     private void updateTransferStatus(FileRecord fileRecord, FileRecord.TransferStatus transferStatus, String localPath) {
-        Future.await(DataVerticle.fileRepository.updateTransferStatus(fileRecord.uniqueId(), transferStatus, localPath)
+        MessyUtils.await(DataVerticle.fileRepository.updateTransferStatus(fileRecord.uniqueId(), transferStatus, localPath)
                 .onSuccess(fileUpdated -> {
                     if (fileUpdated != null && !fileUpdated.isEmpty()) {
                         EventPayload payload = EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
@@ -246,6 +379,20 @@ public class TransferVerticle extends AbstractVerticle {
                 }));
     }
 
+    private void sendTransferProgress(Transfer.TransferProgressUpdated updated) {
+        FileRecord fileRecord = updated.fileRecord();
+        EventPayload payload = EventPayload.build(EventPayload.TYPE_FILE_STATUS, new JsonObject()
+                .put("fileId", fileRecord.id())
+                .put("uniqueId", fileRecord.uniqueId())
+                .put("transferStatus", FileRecord.TransferStatus.transferring.name())
+                .put("transferredSize", updated.transferredSize())
+                .put("totalSize", updated.totalSize())
+        );
+        vertx.eventBus().publish(EventEnum.TELEGRAM_EVENT.address(),
+                JsonObject.of("telegramId", fileRecord.telegramId(), "payload", JsonObject.mapFrom(payload))
+        );
+    }
+
     private record WaitingTransferFile(long telegramId, long chatId, String uniqueId) {
     }
 }
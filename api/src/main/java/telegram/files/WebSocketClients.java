@@ -0,0 +1,189 @@
+package telegram.files;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonObject;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * WebSocket connections of the browser sessions, indexed by the telegram account each session is linked to.
+ * <p>
+ * An event is encoded once and the same text is written to every socket of its account. A socket that can not keep
+ * up queues the events, and keeps only the latest progress event of each file while it is behind. The queue of a
+ * socket is guarded by the client, events are published and sockets drained on different threads.
+ */
+public class WebSocketClients {
+    private static final Log log = LogFactory.get();
+
+    /**
+     * A socket with more queued events is closed, the browser reconnects and reloads the state
+     */
+    static final int MAX_PENDING_EVENTS = 1000;
+
+    static class Client {
+        private final String sessionId;
+
+        private final ServerWebSocket socket;
+
+        private TelegramVerticle account;
+
+        // supersede key or sequence -> encoded event, in the order of the events
+        private final LinkedHashMap<Object, String> pending = new LinkedHashMap<>();
+
+        private long sequence;
+
+        private long superseded;
+
+        private Client(String sessionId, ServerWebSocket socket) {
+            this.sessionId = sessionId;
+            this.socket = socket;
+        }
+    }
+
+    // session id -> sockets of the session, a session has a socket for each browser tab
+    private final Map<String, Set<Client>> sessions = new ConcurrentHashMap<>();
+
+    // telegram account -> sockets of the sessions linked to it
+    private final Map<TelegramVerticle, Set<Client>> accounts = new ConcurrentHashMap<>();
+
+    // session id -> telegram account linked to the session
+    private final Map<String, TelegramVerticle> links = new ConcurrentHashMap<>();
+
+    public Client add(String sessionId, ServerWebSocket socket) {
+        Client client = new Client(sessionId, socket);
+        sessions.computeIfAbsent(sessionId, k -> ConcurrentHashMap.newKeySet()).add(client);
+        index(client, links.get(sessionId));
+        socket.drainHandler(v -> flush(client));
+        return client;
+    }
+
+    public void remove(Client client) {
+        sessions.computeIfPresent(client.sessionId, (k, clients) -> {
+            clients.remove(client);
+            return clients.isEmpty() ? null : clients;
+        });
+        index(client, null);
+        synchronized (client) {
+            client.pending.clear();
+        }
+    }
+
+    /**
+     * The session is linked to another telegram account, null if it is unlinked.
+     */
+    public void link(String sessionId, TelegramVerticle account) {
+        if (account == null) {
+            links.remove(sessionId);
+        } else {
+            links.put(sessionId, account);
+        }
+        sessions.getOrDefault(sessionId, Set.of()).forEach(client -> index(client, account));
+    }
+
+    /**
+     * The telegram account is deleted, the sessions linked to it are unlinked.
+     */
+    public void unlink(TelegramVerticle account) {
+        links.entrySet().removeIf(e -> e.getValue() == account);
+        Set<Client> clients = accounts.remove(account);
+        if (clients != null) {
+            clients.forEach(client -> client.account = null);
+        }
+    }
+
+    /**
+     * Write the event to the sockets of the sessions linked to the telegram account.
+     */
+    public void publish(TelegramVerticle account, JsonObject payload) {
+        Set<Client> clients = accounts.get(account);
+        if (clients == null || clients.isEmpty()) {
+            return;
+        }
+        String content = payload.encode();
+        Object key = supersedeKey(payload);
+        for (Client client : clients) {
+            send(client, key, content);
+        }
+    }
+
+    public int size() {
+        return sessions.values().stream().mapToInt(Set::size).sum();
+    }
+
+    /**
+     * @return key of a progress event that is superseded by the next event of the same key, null if every event of
+     * the type must be delivered
+     */
+    static Object supersedeKey(JsonObject payload) {
+        Integer type = payload.getInteger("type");
+        if (Objects.equals(type, EventPayload.TYPE_FILE_DOWNLOAD)) {
+            return "download";
+        }
+        if (Objects.equals(type, EventPayload.TYPE_FILE)
+            && payload.getValue("data") instanceof JsonObject data
+            && data.getValue("file") instanceof JsonObject file
+            && file.getInteger("id") != null) {
+            return "file-" + file.getInteger("id");
+        }
+        return null;
+    }
+
+    private void index(Client client, TelegramVerticle account) {
+        if (client.account != null) {
+            accounts.computeIfPresent(client.account, (k, clients) -> {
+                clients.remove(client);
+                return clients.isEmpty() ? null : clients;
+            });
+        }
+        client.account = account;
+        if (account != null) {
+            accounts.computeIfAbsent(account, k -> ConcurrentHashMap.newKeySet()).add(client);
+        }
+    }
+
+    private void send(Client client, Object key, String content) {
+        if (client.socket.isClosed()) {
+            return;
+        }
+        boolean tooSlow;
+        synchronized (client) {
+            if (client.pending.isEmpty() && !client.socket.writeQueueFull()) {
+                client.socket.writeTextMessage(content);
+                return;
+            }
+            if (key == null) {
+                key = client.sequence++;
+            } else if (client.pending.remove(key) != null) {
+                client.superseded++;
+            }
+            client.pending.put(key, content);
+            tooSlow = client.pending.size() > MAX_PENDING_EVENTS;
+            if (tooSlow) {
+                client.pending.clear();
+            }
+        }
+        if (tooSlow) {
+            log.debug("WebSocket is too slow, close it. SessionId: %s superseded: %d"
+                    .formatted(client.sessionId, client.superseded));
+            client.socket.close();
+        }
+    }
+
+    private void flush(Client client) {
+        synchronized (client) {
+            Iterator<String> iterator = client.pending.values().iterator();
+            while (iterator.hasNext() && !client.socket.writeQueueFull() && !client.socket.isClosed()) {
+                String content = iterator.next();
+                iterator.remove();
+                client.socket.writeTextMessage(content);
+            }
+        }
+    }
+}
@@ -19,6 +19,13 @@ public interface Definition {
         return new TreeMap<>();
     }
 
+    /**
+     * Indexes created with a new table, an existing table gets them by its migrations.
+     */
+    default String[] getIndexes() {
+        return new String[0];
+    }
+
     default Future<Void> createTable(SqlClient sqlClient) {
         return sqlClient
                 .query(getScheme())
@@ -27,6 +34,16 @@ public interface Definition {
                 .mapEmpty();
     }
 
+    default Future<Void> createIndexes(SqlClient sqlClient) {
+        return Future.all(Stream.of(getIndexes())
+                        .map(sql -> sqlClient.query(sql)
+                                .execute()
+                                .onFailure(e -> log.error("Failed to create index: %s".formatted(sql), e)))
+                        .toList()
+                )
+                .mapEmpty();
+    }
+
     default Future<Void> migrate(SqlClient sqlClient, Version lastVersion, Version currentVersion) {
         TreeMap<Version, String[]> migrations = getMigrations();
         if (migrations.isEmpty()) {
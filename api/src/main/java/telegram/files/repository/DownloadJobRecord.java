@@ -0,0 +1,61 @@
+package telegram.files.repository;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.map.MapUtil;
+import io.vertx.sqlclient.templates.RowMapper;
+import io.vertx.sqlclient.templates.TupleMapper;
+import telegram.files.Config;
+
+/**
+ * Waiting auto download job, the message is fetched again by chat id and message id when the job is restored.
+ */
+public record DownloadJobRecord(long telegramId,
+                                long chatId,
+                                long messageId,
+                                String uniqueId,
+                                boolean live, // whether the job comes from a new message
+                                boolean claimed, // whether the job is dispatched to download
+                                long createdAt
+) {
+
+    public static final String SCHEME = """
+            CREATE TABLE IF NOT EXISTS download_job_record
+            (
+                telegram_id BIGINT,
+                chat_id     BIGINT,
+                message_id  BIGINT,
+                unique_id   VARCHAR(255),
+                live        BOOLEAN,
+                claimed     BOOLEAN,
+                created_at  BIGINT,
+                PRIMARY KEY (telegram_id, unique_id)
+            )
+            """;
+
+    public static class DownloadJobRecordDefinition implements Definition {
+        @Override
+        public String getScheme() {
+            return SCHEME;
+        }
+    }
+
+    public static RowMapper<DownloadJobRecord> ROW_MAPPER = row ->
+            new DownloadJobRecord(row.getLong("telegram_id"),
+                    row.getLong("chat_id"),
+                    row.getLong("message_id"),
+                    row.getString("unique_id"),
+                    Config.isPostgres() ? row.getBoolean("live") : Convert.toBool(row.getInteger("live")),
+                    Config.isPostgres() ? row.getBoolean("claimed") : Convert.toBool(row.getInteger("claimed")),
+                    row.getLong("created_at")
+            );
+
+    public static TupleMapper<DownloadJobRecord> PARAM_MAPPER = TupleMapper.mapper(r ->
+            MapUtil.ofEntries(MapUtil.entry("telegram_id", r.telegramId()),
+                    MapUtil.entry("chat_id", r.chatId()),
+                    MapUtil.entry("message_id", r.messageId()),
+                    MapUtil.entry("unique_id", r.uniqueId()),
+                    MapUtil.entry("live", r.live()),
+                    MapUtil.entry("claimed", r.claimed()),
+                    MapUtil.entry("created_at", r.createdAt())
+            ));
+}
@@ -0,0 +1,19 @@
+package telegram.files.repository;
+
+import io.vertx.core.Future;
+
+import java.util.List;
+
+public interface DownloadJobRepository {
+    Future<Integer> createBatch(List<DownloadJobRecord> records);
+
+    Future<List<DownloadJobRecord>> getAll();
+
+    Future<Integer> claim(long telegramId, List<String> uniqueIds);
+
+    Future<Integer> unclaimAll();
+
+    Future<Integer> delete(long telegramId, List<String> uniqueIds);
+
+    Future<Integer> deleteByChatId(long telegramId, long chatId);
+}
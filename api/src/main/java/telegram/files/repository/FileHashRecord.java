@@ -0,0 +1,62 @@
+package telegram.files.repository;
+
+import cn.hutool.core.map.MapUtil;
+import io.vertx.sqlclient.templates.RowMapper;
+import io.vertx.sqlclient.templates.TupleMapper;
+
+/**
+ * Content hashes of a file in a transfer destination, valid while the size and last modified time are unchanged.
+ */
+public record FileHashRecord(String path,
+                             long size,
+                             long lastModified,
+                             String partialHash, // hash of the size, head and tail of the file
+                             String hash, // hash of the whole file, null if not calculated yet
+                             long updatedAt
+) {
+
+    public static final String SCHEME = """
+            CREATE TABLE IF NOT EXISTS file_hash_record
+            (
+                path          VARCHAR(512),
+                size          BIGINT,
+                last_modified BIGINT,
+                partial_hash  VARCHAR(64),
+                hash          VARCHAR(64),
+                updated_at    BIGINT,
+                PRIMARY KEY (path)
+            )
+            """;
+
+    public static class FileHashRecordDefinition implements Definition {
+        @Override
+        public String getScheme() {
+            return SCHEME;
+        }
+    }
+
+    public static RowMapper<FileHashRecord> ROW_MAPPER = row ->
+            new FileHashRecord(row.getString("path"),
+                    row.getLong("size"),
+                    row.getLong("last_modified"),
+                    row.getString("partial_hash"),
+                    row.getString("hash"),
+                    row.getLong("updated_at")
+            );
+
+    public static TupleMapper<FileHashRecord> PARAM_MAPPER = TupleMapper.mapper(r ->
+            MapUtil.ofEntries(MapUtil.entry("path", r.path()),
+                    MapUtil.entry("size", r.size()),
+                    MapUtil.entry("last_modified", r.lastModified()),
+                    MapUtil.entry("partial_hash", r.partialHash()),
+                    MapUtil.entry("hash", r.hash()),
+                    MapUtil.entry("updated_at", r.updatedAt())
+            ));
+
+    /**
+     * @return whether the hashes still belong to the file with the size and last modified time
+     */
+    public boolean isValid(long size, long lastModified) {
+        return this.size == size && this.lastModified == lastModified;
+    }
+}
@@ -0,0 +1,9 @@
+package telegram.files.repository;
+
+import io.vertx.core.Future;
+
+public interface FileHashRepository {
+    Future<Void> createOrUpdate(FileHashRecord record);
+
+    Future<FileHashRecord> getByPath(String path);
+}
@@ -19,6 +19,8 @@ public record FileRecord(int id, //file id will change
                          int date, // date when the file was uploaded
                          boolean hasSensitiveContent,
                          long size, // file size in bytes
+                         int width, // 0 if unknown or not a photo or video
+                         int height, // 0 if unknown or not a photo or video
                          long downloadedSize, // always 0 from db, should be got from telegram client
                          String type, // 'photo' | 'video' | 'audio' | 'file'
                          String mimeType,
@@ -52,6 +54,8 @@ public record FileRecord(int id, //file id will change
                 date                INT,
                 has_sensitive_content BOOLEAN,
                 size                BIGINT,
+                width               INT,
+                height              INT,
                 downloaded_size     BIGINT,
                 type                VARCHAR(255),
                 mime_type           VARCHAR(255),
@@ -63,10 +67,15 @@ public record FileRecord(int id, //file id will change
                 transfer_status     VARCHAR(255),
                 start_date          BIGINT,
                 completion_date     BIGINT,
+                partial_hash        VARCHAR(64),
+                hash                VARCHAR(64),
                 PRIMARY KEY (id, unique_id)
             )
             """;
 
+    // Auto download candidates are selected by account, chat, type and status, in message order
+    public static final String CANDIDATE_INDEX_SQL = "CREATE INDEX idx_file_record_candidate ON file_record (telegram_id, chat_id, type, download_status, message_id);";
+
     public static final TreeMap<Version, String[]> MIGRATIONS = new TreeMap<>(MapUtil.ofEntries(
             MapUtil.entry(new Version("0.1.7"), new String[]{
                     "ALTER TABLE file_record ADD COLUMN start_date BIGINT;",
@@ -77,6 +86,13 @@ public record FileRecord(int id, //file id will change
             }),
             MapUtil.entry(new Version("0.1.15"), new String[]{
                     "ALTER TABLE file_record ADD COLUMN media_album_id BIGINT;",
+            }),
+            MapUtil.entry(new Version("0.1.17"), new String[]{
+                    "ALTER TABLE file_record ADD COLUMN width INT;",
+                    "ALTER TABLE file_record ADD COLUMN height INT;",
+                    "ALTER TABLE file_record ADD COLUMN partial_hash VARCHAR(64);",
+                    "ALTER TABLE file_record ADD COLUMN hash VARCHAR(64);",
+                    CANDIDATE_INDEX_SQL,
             })
     ));
 
@@ -90,6 +106,11 @@ public record FileRecord(int id, //file id will change
         public TreeMap<Version, String[]> getMigrations() {
             return MIGRATIONS;
         }
+
+        @Override
+        public String[] getIndexes() {
+            return new String[]{CANDIDATE_INDEX_SQL};
+        }
     }
 
     public static RowMapper<FileRecord> ROW_MAPPER = row ->
@@ -102,6 +123,8 @@ public record FileRecord(int id, //file id will change
                     row.getInteger("date"),
                     Config.isPostgres() ? row.getBoolean("has_sensitive_content") : Convert.toBool(row.getInteger("has_sensitive_content")),
                     row.getLong("size"),
+                    Objects.requireNonNullElse(row.getInteger("width"), 0),
+                    Objects.requireNonNullElse(row.getInteger("height"), 0),
                     row.getLong("downloaded_size"),
                     row.getString("type"),
                     row.getString("mime_type"),
@@ -126,6 +149,8 @@ public record FileRecord(int id, //file id will change
                     MapUtil.entry("date", r.date()),
                     MapUtil.entry("has_sensitive_content", r.hasSensitiveContent()),
                     MapUtil.entry("size", r.size()),
+                    MapUtil.entry("width", r.width()),
+                    MapUtil.entry("height", r.height()),
                     MapUtil.entry("downloaded_size", r.downloadedSize()),
                     MapUtil.entry("type", r.type()),
                     MapUtil.entry("mime_type", r.mimeType()),
@@ -140,7 +165,7 @@ public record FileRecord(int id, //file id will change
             ));
 
     public FileRecord withSourceField(int id, long downloadedSize) {
-        return new FileRecord(id, uniqueId, telegramId, chatId, messageId, mediaAlbumId, date, hasSensitiveContent, size, downloadedSize, type, mimeType, fileName, thumbnail, caption, localPath, downloadStatus, transferStatus, startDate, completionDate);
+        return new FileRecord(id, uniqueId, telegramId, chatId, messageId, mediaAlbumId, date, hasSensitiveContent, size, width, height, downloadedSize, type, mimeType, fileName, thumbnail, caption, localPath, downloadStatus, transferStatus, startDate, completionDate);
     }
 
     public boolean isDownloadStatus(DownloadStatus status) {
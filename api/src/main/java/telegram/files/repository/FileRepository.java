@@ -3,6 +3,7 @@ package telegram.files.repository;
 import io.vertx.core.Future;
 import io.vertx.core.json.JsonArray;
 import io.vertx.core.json.JsonObject;
+import org.jooq.lambda.tuple.Tuple2;
 import org.jooq.lambda.tuple.Tuple3;
 
 import java.util.List;
@@ -19,18 +20,44 @@ public interface FileRepository {
 
     Future<Map<String, FileRecord>> getFilesByUniqueId(List<String> uniqueIds);
 
+    /**
+     * @param fromMessageId exclusive, 0 means from the newest message
+     * @return idle files of the chat with the type, newest first
+     */
+    Future<List<FileRecord>> getIdleFiles(long telegramId, long chatId, String type, long fromMessageId, int limit);
+
+    /**
+     * @param fromMessageId exclusive, 0 means from the newest message
+     * @return completed files of the chat waiting for transfer, newest first
+     */
+    Future<List<FileRecord>> getIdleTransferFiles(long telegramId, long chatId, long fromMessageId, int limit);
+
+    Future<List<FileRecord>> getByTransferStatus(FileRecord.TransferStatus transferStatus);
+
     Future<FileRecord> getByPrimaryKey(int fileId, String uniqueId);
 
     Future<FileRecord> getByUniqueId(String uniqueId);
 
     Future<String> getCaptionByMediaAlbumId(long mediaAlbumId);
 
+    /**
+     * @return partial hash and hash of the file content, null if not calculated yet
+     */
+    Future<Tuple2<String, String>> getHashes(String uniqueId);
+
     Future<JsonObject> getDownloadStatistics(long telegramId);
 
     Future<JsonArray> getCompletedRangeStatistics(long id, long startTime, long endTime, int timeRange);
 
     Future<Integer> countByStatus(long telegramId, FileRecord.DownloadStatus downloadStatus);
 
+    Future<List<String>> getUniqueIdsByStatus(long telegramId, FileRecord.DownloadStatus downloadStatus);
+
+    /**
+     * @return telegramId -> unique ids of the files whose download status is not idle
+     */
+    Future<Map<Long, List<String>>> getNotIdleUniqueIds();
+
     Future<JsonObject> updateDownloadStatus(int fileId,
                                             String uniqueId,
                                             String localPath,
@@ -45,5 +72,7 @@ public interface FileRepository {
 
     Future<Integer> updateCaptionByMediaAlbumId(long mediaAlbumId, String caption);
 
+    Future<Void> updateHashes(String uniqueId, String partialHash, String hash);
+
     Future<Void> deleteByUniqueId(String uniqueId);
 }
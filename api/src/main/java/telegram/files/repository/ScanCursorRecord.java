@@ -0,0 +1,57 @@
+package telegram.files.repository;
+
+import cn.hutool.core.convert.Convert;
+import cn.hutool.core.map.MapUtil;
+import io.vertx.sqlclient.templates.RowMapper;
+import io.vertx.sqlclient.templates.TupleMapper;
+import telegram.files.Config;
+
+/**
+ * History scan cursor of one file type of an auto download chat, saved after every scanned page.
+ */
+public record ScanCursorRecord(long telegramId,
+                               long chatId,
+                               String fileType,
+                               long fromMessageId,
+                               boolean completed, // whether the history scan of this file type is completed
+                               long updatedAt
+) {
+
+    public static final String SCHEME = """
+            CREATE TABLE IF NOT EXISTS scan_cursor_record
+            (
+                telegram_id          BIGINT,
+                chat_id              BIGINT,
+                file_type            VARCHAR(255),
+                from_message_id      BIGINT,
+                completed            BOOLEAN,
+                updated_at           BIGINT,
+                PRIMARY KEY (telegram_id, chat_id, file_type)
+            )
+            """;
+
+    public static class ScanCursorRecordDefinition implements Definition {
+        @Override
+        public String getScheme() {
+            return SCHEME;
+        }
+    }
+
+    public static RowMapper<ScanCursorRecord> ROW_MAPPER = row ->
+            new ScanCursorRecord(row.getLong("telegram_id"),
+                    row.getLong("chat_id"),
+                    row.getString("file_type"),
+                    row.getLong("from_message_id"),
+                    Config.isPostgres() ? row.getBoolean("completed") : Convert.toBool(row.getInteger("completed")),
+                    row.getLong("updated_at")
+            );
+
+    public static TupleMapper<ScanCursorRecord> PARAM_MAPPER = TupleMapper.mapper(r ->
+            MapUtil.ofEntries(MapUtil.entry("telegram_id", r.telegramId()),
+                    MapUtil.entry("chat_id", r.chatId()),
+                    MapUtil.entry("file_type", r.fileType()),
+                    MapUtil.entry("from_message_id", r.fromMessageId()),
+                    MapUtil.entry("completed", r.completed()),
+                    MapUtil.entry("updated_at", r.updatedAt())
+            ));
+}
@@ -0,0 +1,13 @@
+package telegram.files.repository;
+
+import io.vertx.core.Future;
+
+import java.util.List;
+
+public interface ScanCursorRepository {
+    Future<Void> createOrUpdate(ScanCursorRecord record);
+
+    Future<List<ScanCursorRecord>> getAll();
+
+    Future<Void> delete(long telegramId, long chatId);
+}
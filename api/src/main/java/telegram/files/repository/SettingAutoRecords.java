@@ -20,6 +20,8 @@ public class SettingAutoRecords {
 
     public static final int HISTORY_TRANSFER_STATE = 3;
 
+    public static final int DEFAULT_WEIGHT = 1;
+
     public static class Item {
         public long telegramId;
 
@@ -39,15 +41,22 @@ public class SettingAutoRecords {
 
         public int state;
 
+        /**
+         * Share of download slots compared to other chats of the same account
+         */
+        public int weight;
+
         public Item() {
             // downloadEnabled default is true
             this.downloadEnabled = true;
+            this.weight = DEFAULT_WEIGHT;
         }
 
         public Item(long telegramId, long chatId, Rule rule) {
             this.telegramId = telegramId;
             this.chatId = chatId;
             this.rule = rule;
+            this.weight = DEFAULT_WEIGHT;
         }
 
         public String uniqueKey() {
@@ -73,6 +82,42 @@ public class SettingAutoRecords {
 
         public TransferRule transferRule;
 
+        /**
+         * File size range in bytes, 0 means no limit
+         */
+        public long minSize;
+
+        public long maxSize;
+
+        /**
+         * Mime types like 'video/mp4', a type ends with '/*' matches all subtypes
+         */
+        public List<String> mimeTypes;
+
+        /**
+         * File name extensions without the dot, case-insensitive
+         */
+        public List<String> extensions;
+
+        /**
+         * Regular expression that the file name must contain a match of
+         */
+        public String fileNamePattern;
+
+        /**
+         * Message date range in epoch seconds, 0 means no limit
+         */
+        public long startDate;
+
+        public long endDate;
+
+        /**
+         * Minimum resolution of photos and videos, files without a known resolution are not filtered
+         */
+        public int minWidth;
+
+        public int minHeight;
+
         public Rule() {
         }
 
@@ -81,6 +126,19 @@ public class SettingAutoRecords {
             this.fileTypes = fileTypes;
             this.transferRule = transferRule;
         }
+
+        /**
+         * @return whether the rule has filters that TDLib message search does not support
+         */
+        @JsonIgnore
+        public boolean hasLocalFilters() {
+            return minSize > 0 || maxSize > 0
+                   || (mimeTypes != null && !mimeTypes.isEmpty())
+                   || (extensions != null && !extensions.isEmpty())
+                   || (fileNamePattern != null && !fileNamePattern.isBlank())
+                   || startDate > 0 || endDate > 0
+                   || minWidth > 0 || minHeight > 0;
+        }
     }
 
     public static class TransferRule {
@@ -92,6 +150,21 @@ public class SettingAutoRecords {
 
         public Transfer.DuplicationPolicy duplicationPolicy;
 
+        /**
+         * Flush transferred files to the storage device on completion
+         */
+        public boolean fsync;
+
+        /**
+         * Null means {@link Transfer.TransferMode#MOVE}
+         */
+        public Transfer.TransferMode transferMode;
+
+        /**
+         * Upload files to an S3-compatible object store, the destination is the key prefix. Null means a local directory
+         */
+        public S3Config s3;
+
         public TransferRule() {
         }
 
@@ -106,6 +179,36 @@ public class SettingAutoRecords {
         }
     }
 
+    public static class S3Config {
+        /**
+         * e.g. https://s3.us-east-1.amazonaws.com or http://minio:9000
+         */
+        public String endpoint;
+
+        public String region;
+
+        public String bucket;
+
+        public String accessKey;
+
+        public String secretKey;
+
+        /**
+         * Address the bucket as endpoint/bucket instead of bucket.endpoint, most self-hosted stores need it
+         */
+        public boolean pathStyle;
+
+        /**
+         * Size of multipart upload parts in MB, at least 5
+         */
+        public int partSize;
+
+        /**
+         * Parts of a file uploaded in parallel, each holds a part in memory
+         */
+        public int concurrency;
+    }
+
     public SettingAutoRecords() {
         this.items = new ArrayList<>();
     }
@@ -0,0 +1,85 @@
+package telegram.files.repository;
+
+import cn.hutool.core.collection.CollUtil;
+
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Download bandwidth limits, in bytes per second, 0 means unlimited.
+ */
+public class SettingBandwidthLimits {
+
+    public long globalLimit;
+
+    public List<Schedule> globalSchedules;
+
+    public List<Item> items;
+
+    public static class Item {
+        public long telegramId;
+
+        public long limit;
+
+        public List<Schedule> schedules;
+    }
+
+    /**
+     * Limit during a time of day range, the range can cross midnight, e.g. 22:00 - 06:00
+     */
+    public static class Schedule {
+        /**
+         * HH:mm
+         */
+        public String start;
+
+        /**
+         * HH:mm
+         */
+        public String end;
+
+        public long limit;
+
+        public boolean contains(LocalTime time) {
+            LocalTime startTime = LocalTime.parse(start);
+            LocalTime endTime = LocalTime.parse(end);
+            if (startTime.isBefore(endTime)) {
+                return !time.isBefore(startTime) && time.isBefore(endTime);
+            } else {
+                return !time.isBefore(startTime) || time.isBefore(endTime);
+            }
+        }
+    }
+
+    public SettingBandwidthLimits() {
+        this.globalSchedules = new ArrayList<>();
+        this.items = new ArrayList<>();
+    }
+
+    public long getGlobalLimit(LocalTime time) {
+        return getLimit(globalLimit, globalSchedules, time);
+    }
+
+    public long getAccountLimit(long telegramId, LocalTime time) {
+        if (CollUtil.isEmpty(items)) {
+            return 0;
+        }
+        return items.stream()
+                .filter(item -> item.telegramId == telegramId)
+                .findFirst()
+                .map(item -> getLimit(item.limit, item.schedules, time))
+                .orElse(0L);
+    }
+
+    private static long getLimit(long defaultLimit, List<Schedule> schedules, LocalTime time) {
+        if (CollUtil.isEmpty(schedules)) {
+            return defaultLimit;
+        }
+        return schedules.stream()
+                .filter(schedule -> schedule.contains(time))
+                .findFirst()
+                .map(schedule -> schedule.limit)
+                .orElse(defaultLimit);
+    }
+}
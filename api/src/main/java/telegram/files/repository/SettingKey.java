@@ -3,6 +3,7 @@ package telegram.files.repository;
 import cn.hutool.core.convert.Convert;
 import cn.hutool.core.lang.Version;
 import io.vertx.core.json.JsonObject;
+import telegram.files.DownloadOrder;
 
 import java.util.function.Function;
 
@@ -17,11 +18,55 @@ public enum SettingKey {
      * Auto download limit for each telegram account
      */
     autoDownloadLimit(Convert::toInt),
+    /**
+     * Adjust the auto download limit of each telegram account by measured throughput
+     */
+    autoDownloadAdaptive(Convert::toBool, false),
+    /**
+     * Floor of the adaptive auto download limit
+     */
+    autoDownloadMinLimit(Convert::toInt, 1),
+    /**
+     * Ceiling of the adaptive auto download limit
+     */
+    autoDownloadMaxLimit(Convert::toInt, 20),
+    /**
+     * Order of waiting auto download files in each chat
+     */
+    autoDownloadOrder(DownloadOrder::valueOf, DownloadOrder.SCAN),
     proxys(value -> new JsonObject(value).mapTo(SettingProxyRecords.class)),
+    /**
+     * Global and per telegram account download bandwidth limits
+     */
+    bandwidthLimits(value -> new JsonObject(value).mapTo(SettingBandwidthLimits.class)),
     /**
      * Interval for calculating average speed, in seconds
      */
     avgSpeedInterval(Convert::toInt, 5 * 60),
+    /**
+     * Seconds without progress before a download is restarted, doubled after every restart
+     */
+    downloadStallTimeout(Convert::toInt, 60),
+    /**
+     * Files transferred in parallel
+     */
+    transferWorkers(Convert::toInt, 2),
+    /**
+     * Files transferred in parallel to the same destination
+     */
+    transferDestinationLimit(Convert::toInt, 1),
+    /**
+     * Previewed files up to this size in KB are cached in memory
+     */
+    previewCacheFileSize(Convert::toInt, 1024),
+    /**
+     * Total size of the previewed files cached in memory, in MB, 0 disables the cache
+     */
+    previewCacheSize(Convert::toInt, 64),
+    /**
+     * Total size of the previews downloaded for browsing chats, cached on the disk, in MB
+     */
+    previewFileCacheSize(Convert::toInt, 256),
     ;
 
     public final Function<String, ?> converter;
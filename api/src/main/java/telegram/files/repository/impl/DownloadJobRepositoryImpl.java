@@ -0,0 +1,133 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.core.collection.CollUtil;
+import cn.hutool.core.collection.IterUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.SqlResult;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.Config;
+import telegram.files.repository.DownloadJobRecord;
+import telegram.files.repository.DownloadJobRepository;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.stream.Collectors;
+import java.util.stream.IntStream;
+
+public class DownloadJobRepositoryImpl extends AbstractSqlRepository implements DownloadJobRepository {
+
+    private static final Log log = LogFactory.get();
+
+    public DownloadJobRepositoryImpl(SqlClient sqlClient) {
+        super(sqlClient);
+    }
+
+    @Override
+    public Future<Integer> createBatch(List<DownloadJobRecord> records) {
+        if (CollUtil.isEmpty(records)) {
+            return Future.succeededFuture(0);
+        }
+        return SqlTemplate
+                .forUpdate(sqlClient, Config.isMysql() ?
+                        """
+                                INSERT IGNORE INTO download_job_record(telegram_id, chat_id, message_id, unique_id, live, claimed, created_at)
+                                VALUES (#{telegram_id}, #{chat_id}, #{message_id}, #{unique_id}, #{live}, #{claimed}, #{created_at})
+                                """ :
+                        """
+                                INSERT INTO download_job_record(telegram_id, chat_id, message_id, unique_id, live, claimed, created_at)
+                                VALUES (#{telegram_id}, #{chat_id}, #{message_id}, #{unique_id}, #{live}, #{claimed}, #{created_at})
+                                ON CONFLICT (telegram_id, unique_id) DO NOTHING
+                                """)
+                .mapFrom(DownloadJobRecord.PARAM_MAPPER)
+                .executeBatch(records)
+                .map(r -> records.size())
+                .onSuccess(r -> log.trace("Successfully created download jobs: %d".formatted(r)))
+                .onFailure(err -> log.error("Failed to create download jobs: %s".formatted(err.getMessage())));
+    }
+
+    @Override
+    public Future<List<DownloadJobRecord>> getAll() {
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT * FROM download_job_record ORDER BY created_at
+                        """)
+                .mapTo(DownloadJobRecord.ROW_MAPPER)
+                .execute(Map.of())
+                .map(IterUtil::toList)
+                .onFailure(err -> log.error("Failed to get download jobs: %s".formatted(err.getMessage())));
+    }
+
+    @Override
+    public Future<Integer> claim(long telegramId, List<String> uniqueIds) {
+        if (CollUtil.isEmpty(uniqueIds)) {
+            return Future.succeededFuture(0);
+        }
+        Map<String, Object> params = uniqueIdParams(uniqueIds);
+        params.put("telegramId", telegramId);
+        params.put("claimed", true);
+        return SqlTemplate
+                .forUpdate(sqlClient, """
+                        UPDATE download_job_record SET claimed = #{claimed}
+                        WHERE telegram_id = #{telegramId} AND unique_id IN (%s)
+                        """.formatted(uniqueIdPlaceholders(uniqueIds)))
+                .execute(params)
+                .map(SqlResult::rowCount)
+                .onFailure(err -> log.error("Failed to claim download jobs: %s".formatted(err.getMessage())));
+    }
+
+    @Override
+    public Future<Integer> unclaimAll() {
+        return SqlTemplate
+                .forUpdate(sqlClient, """
+                        UPDATE download_job_record SET claimed = #{claimed} WHERE claimed = #{claimedBefore}
+                        """)
+                .execute(Map.of("claimed", false, "claimedBefore", true))
+                .map(SqlResult::rowCount)
+                .onFailure(err -> log.error("Failed to unclaim download jobs: %s".formatted(err.getMessage())));
+    }
+
+    @Override
+    public Future<Integer> delete(long telegramId, List<String> uniqueIds) {
+        if (CollUtil.isEmpty(uniqueIds)) {
+            return Future.succeededFuture(0);
+        }
+        Map<String, Object> params = uniqueIdParams(uniqueIds);
+        params.put("telegramId", telegramId);
+        return SqlTemplate
+                .forUpdate(sqlClient, """
+                        DELETE FROM download_job_record WHERE telegram_id = #{telegramId} AND unique_id IN (%s)
+                        """.formatted(uniqueIdPlaceholders(uniqueIds)))
+                .execute(params)
+                .map(SqlResult::rowCount)
+                .onFailure(err -> log.error("Failed to delete download jobs: %s".formatted(err.getMessage())));
+    }
+
+    @Override
+    public Future<Integer> deleteByChatId(long telegramId, long chatId) {
+        return SqlTemplate
+                .forUpdate(sqlClient, """
+                        DELETE FROM download_job_record WHERE telegram_id = #{telegramId} AND chat_id = #{chatId}
+                        """)
+                .execute(Map.of("telegramId", telegramId, "chatId", chatId))
+                .map(SqlResult::rowCount)
+                .onFailure(err -> log.error("Failed to delete download jobs: %s".formatted(err.getMessage())));
+    }
+
+    private static String uniqueIdPlaceholders(List<String> uniqueIds) {
+        return IntStream.range(0, uniqueIds.size())
+                .mapToObj(i -> "#{uniqueId" + i + "}")
+                .collect(Collectors.joining(","));
+    }
+
+    private static Map<String, Object> uniqueIdParams(List<String> uniqueIds) {
+        Map<String, Object> params = new HashMap<>();
+        for (int i = 0; i < uniqueIds.size(); i++) {
+            params.put("uniqueId" + i, uniqueIds.get(i));
+        }
+        return params;
+    }
+}
@@ -0,0 +1,62 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.Config;
+import telegram.files.repository.FileHashRecord;
+import telegram.files.repository.FileHashRepository;
+
+import java.util.Map;
+
+public class FileHashRepositoryImpl extends AbstractSqlRepository implements FileHashRepository {
+
+    private static final Log log = LogFactory.get();
+
+    public FileHashRepositoryImpl(SqlClient sqlClient) {
+        super(sqlClient);
+    }
+
+    @Override
+    public Future<Void> createOrUpdate(FileHashRecord record) {
+        return SqlTemplate
+                .forUpdate(sqlClient, Config.isMysql() ?
+                        """
+                                INSERT INTO file_hash_record(path, size, last_modified, partial_hash, hash, updated_at)
+                                VALUES (#{path}, #{size}, #{last_modified}, #{partial_hash}, #{hash}, #{updated_at})
+                                ON DUPLICATE KEY UPDATE size          = VALUES(size),
+                                                        last_modified = VALUES(last_modified),
+                                                        partial_hash  = VALUES(partial_hash),
+                                                        hash          = VALUES(hash),
+                                                        updated_at    = VALUES(updated_at)
+                                """ :
+                        """
+                                INSERT INTO file_hash_record(path, size, last_modified, partial_hash, hash, updated_at)
+                                VALUES (#{path}, #{size}, #{last_modified}, #{partial_hash}, #{hash}, #{updated_at})
+                                ON CONFLICT (path) DO UPDATE SET size          = #{size},
+                                                                 last_modified = #{last_modified},
+                                                                 partial_hash  = #{partial_hash},
+                                                                 hash          = #{hash},
+                                                                 updated_at    = #{updated_at}
+                                """)
+                .mapFrom(FileHashRecord.PARAM_MAPPER)
+                .execute(record)
+                .onSuccess(r -> log.trace("Successfully saved file hash: %s".formatted(record.path())))
+                .onFailure(err -> log.error("Failed to save file hash: %s".formatted(err.getMessage())))
+                .mapEmpty();
+    }
+
+    @Override
+    public Future<FileHashRecord> getByPath(String path) {
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT * FROM file_hash_record WHERE path = #{path}
+                        """)
+                .mapTo(FileHashRecord.ROW_MAPPER)
+                .execute(Map.of("path", path))
+                .map(rs -> rs.size() > 0 ? rs.iterator().next() : null)
+                .onFailure(err -> log.error("Failed to get file hash: %s".formatted(err.getMessage())));
+    }
+}
@@ -16,6 +16,7 @@ import io.vertx.sqlclient.SqlClient;
 import io.vertx.sqlclient.SqlResult;
 import io.vertx.sqlclient.templates.SqlTemplate;
 import org.jooq.lambda.tuple.Tuple;
+import org.jooq.lambda.tuple.Tuple2;
 import org.jooq.lambda.tuple.Tuple3;
 import telegram.files.Config;
 import telegram.files.MessyUtils;
@@ -43,12 +44,12 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         return SqlTemplate
                 .forUpdate(sqlClient, """
                         INSERT INTO file_record(id, unique_id, telegram_id, chat_id, message_id, media_album_id, date, has_sensitive_content,
-                                                size, downloaded_size,
+                                                size, width, height, downloaded_size,
                                                 type, mime_type,
                                                 file_name, thumbnail, caption, local_path,
                                                 download_status, start_date, transfer_status)
                         values (#{id}, #{unique_id}, #{telegram_id}, #{chat_id}, #{message_id}, #{media_album_id}, #{date},
-                                #{has_sensitive_content}, #{size}, #{downloaded_size}, #{type},
+                                #{has_sensitive_content}, #{size}, #{width}, #{height}, #{downloaded_size}, #{type},
                                 #{mime_type}, #{file_name}, #{thumbnail}, #{caption}, #{local_path}, #{download_status}, #{start_date},
                                 #{transfer_status})
                         """)
@@ -237,6 +238,59 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                 });
     }
 
+    @Override
+    public Future<List<FileRecord>> getIdleFiles(long telegramId, long chatId, String type, long fromMessageId, int limit) {
+        Map<String, Object> params = MapUtil.of("telegramId", telegramId);
+        params.put("chatId", chatId);
+        params.put("type", type);
+        params.put("limit", limit);
+        String whereClause = "telegram_id = #{telegramId} AND chat_id = #{chatId} AND type = #{type} AND download_status = 'idle'";
+        if (fromMessageId > 0) {
+            whereClause += " AND message_id < #{fromMessageId}";
+            params.put("fromMessageId", fromMessageId);
+        }
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT * FROM file_record WHERE %s ORDER BY message_id DESC LIMIT #{limit}
+                        """.formatted(whereClause))
+                .mapTo(FileRecord.ROW_MAPPER)
+                .execute(params)
+                .onFailure(err -> log.error("Failed to get idle file record: %s".formatted(err.getMessage())))
+                .map(IterUtil::toList);
+    }
+
+    @Override
+    public Future<List<FileRecord>> getIdleTransferFiles(long telegramId, long chatId, long fromMessageId, int limit) {
+        Map<String, Object> params = MapUtil.of("telegramId", telegramId);
+        params.put("chatId", chatId);
+        params.put("limit", limit);
+        String whereClause = "telegram_id = #{telegramId} AND chat_id = #{chatId} AND download_status = 'completed' AND transfer_status = 'idle'";
+        if (fromMessageId > 0) {
+            whereClause += " AND message_id < #{fromMessageId}";
+            params.put("fromMessageId", fromMessageId);
+        }
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT * FROM file_record WHERE %s ORDER BY message_id DESC LIMIT #{limit}
+                        """.formatted(whereClause))
+                .mapTo(FileRecord.ROW_MAPPER)
+                .execute(params)
+                .onFailure(err -> log.error("Failed to get idle transfer file record: %s".formatted(err.getMessage())))
+                .map(IterUtil::toList);
+    }
+
+    @Override
+    public Future<List<FileRecord>> getByTransferStatus(FileRecord.TransferStatus transferStatus) {
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT * FROM file_record WHERE transfer_status = #{transferStatus}
+                        """)
+                .mapTo(FileRecord.ROW_MAPPER)
+                .execute(Map.of("transferStatus", transferStatus.name()))
+                .onFailure(err -> log.error("Failed to get file record by transfer status: %s".formatted(err.getMessage())))
+                .map(IterUtil::toList);
+    }
+
     @Override
     public Future<FileRecord> getByPrimaryKey(int fileId, String uniqueId) {
         return SqlTemplate
@@ -263,6 +317,18 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                 .map(rs -> rs.size() > 0 ? rs.iterator().next() : null);
     }
 
+    @Override
+    public Future<Tuple2<String, String>> getHashes(String uniqueId) {
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT partial_hash, hash FROM file_record WHERE unique_id = #{uniqueId} LIMIT 1
+                        """)
+                .mapTo(row -> new Tuple2<>(row.getString("partial_hash"), row.getString("hash")))
+                .execute(Map.of("uniqueId", uniqueId))
+                .onFailure(err -> log.error("Failed to get file hashes: %s".formatted(err.getMessage())))
+                .map(rs -> rs.size() > 0 ? rs.iterator().next() : new Tuple2<>(null, null));
+    }
+
     @Override
     public Future<String> getCaptionByMediaAlbumId(long mediaAlbumId) {
         if (mediaAlbumId <= 0) {
@@ -423,6 +489,34 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
                 .onFailure(err -> log.error("Failed to count file record: %s".formatted(err.getMessage())));
     }
 
+    @Override
+    public Future<List<String>> getUniqueIdsByStatus(long telegramId, FileRecord.DownloadStatus downloadStatus) {
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT unique_id FROM file_record WHERE telegram_id = #{telegramId} AND download_status = #{downloadStatus}
+                        """)
+                .mapTo(rs -> rs.getString(0))
+                .execute(Map.of("telegramId", telegramId, "downloadStatus", downloadStatus.name()))
+                .map(IterUtil::toList)
+                .onFailure(err -> log.error("Failed to get file unique ids: %s".formatted(err.getMessage())));
+    }
+
+    @Override
+    public Future<Map<Long, List<String>>> getNotIdleUniqueIds() {
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT telegram_id, unique_id FROM file_record WHERE download_status != 'idle'
+                        """)
+                .mapTo(rs -> Tuple.tuple(rs.getLong("telegram_id"), rs.getString("unique_id")))
+                .execute(Map.of())
+                .map(rs -> {
+                    Map<Long, List<String>> uniqueIds = new HashMap<>();
+                    rs.forEach(t -> uniqueIds.computeIfAbsent(t.v1, k -> new ArrayList<>()).add(t.v2));
+                    return uniqueIds;
+                })
+                .onFailure(err -> log.error("Failed to get not idle file unique ids: %s".formatted(err.getMessage())));
+    }
+
     @Override
     public Future<JsonObject> updateDownloadStatus(int fileId,
                                                    String uniqueId,
@@ -578,6 +672,19 @@ public class FileRepositoryImpl extends AbstractSqlRepository implements FileRep
         });
     }
 
+    @Override
+    public Future<Void> updateHashes(String uniqueId, String partialHash, String hash) {
+        return SqlTemplate
+                .forUpdate(sqlClient, """
+                        UPDATE file_record SET partial_hash = #{partialHash}, hash = #{hash} WHERE unique_id = #{uniqueId}
+                        """)
+                .execute(MapUtil.ofEntries(MapUtil.entry("uniqueId", uniqueId),
+                        MapUtil.entry("partialHash", partialHash),
+                        MapUtil.entry("hash", hash)))
+                .onFailure(err -> log.error("Failed to update file hashes: %s".formatted(err.getMessage())))
+                .mapEmpty();
+    }
+
     @Override
     public Future<Void> deleteByUniqueId(String uniqueId) {
         if (StrUtil.isBlank(uniqueId)) {
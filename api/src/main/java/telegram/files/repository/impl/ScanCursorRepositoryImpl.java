@@ -0,0 +1,71 @@
+package telegram.files.repository.impl;
+
+import cn.hutool.core.collection.IterUtil;
+import cn.hutool.log.Log;
+import cn.hutool.log.LogFactory;
+import io.vertx.core.Future;
+import io.vertx.sqlclient.SqlClient;
+import io.vertx.sqlclient.templates.SqlTemplate;
+import telegram.files.Config;
+import telegram.files.repository.ScanCursorRecord;
+import telegram.files.repository.ScanCursorRepository;
+
+import java.util.List;
+import java.util.Map;
+
+public class ScanCursorRepositoryImpl extends AbstractSqlRepository implements ScanCursorRepository {
+
+    private static final Log log = LogFactory.get();
+
+    public ScanCursorRepositoryImpl(SqlClient sqlClient) {
+        super(sqlClient);
+    }
+
+    @Override
+    public Future<Void> createOrUpdate(ScanCursorRecord record) {
+        return SqlTemplate
+                .forUpdate(sqlClient, Config.isMysql() ?
+                        """
+                                INSERT INTO scan_cursor_record(telegram_id, chat_id, file_type, from_message_id, completed, updated_at)
+                                VALUES (#{telegram_id}, #{chat_id}, #{file_type}, #{from_message_id}, #{completed}, #{updated_at})
+                                ON DUPLICATE KEY UPDATE from_message_id = VALUES(from_message_id),
+                                                        completed       = VALUES(completed),
+                                                        updated_at      = VALUES(updated_at)
+                                """ :
+                        """
+                                INSERT INTO scan_cursor_record(telegram_id, chat_id, file_type, from_message_id, completed, updated_at)
+                                VALUES (#{telegram_id}, #{chat_id}, #{file_type}, #{from_message_id}, #{completed}, #{updated_at})
+                                ON CONFLICT (telegram_id, chat_id, file_type) DO UPDATE SET from_message_id = #{from_message_id},
+                                                                                            completed       = #{completed},
+                                                                                            updated_at      = #{updated_at}
+                                """)
+                .mapFrom(ScanCursorRecord.PARAM_MAPPER)
+                .execute(record)
+                .onSuccess(r -> log.trace("Successfully saved scan cursor: %d:%d:%s".formatted(record.telegramId(), record.chatId(), record.fileType())))
+                .onFailure(err -> log.error("Failed to save scan cursor: %s".formatted(err.getMessage())))
+                .mapEmpty();
+    }
+
+    @Override
+    public Future<List<ScanCursorRecord>> getAll() {
+        return SqlTemplate
+                .forQuery(sqlClient, """
+                        SELECT * FROM scan_cursor_record
+                        """)
+                .mapTo(ScanCursorRecord.ROW_MAPPER)
+                .execute(Map.of())
+                .map(IterUtil::toList)
+                .onFailure(err -> log.error("Failed to get scan cursors: %s".formatted(err.getMessage())));
+    }
+
+    @Override
+    public Future<Void> delete(long telegramId, long chatId) {
+        return SqlTemplate
+                .forUpdate(sqlClient, """
+                        DELETE FROM scan_cursor_record WHERE telegram_id = #{telegramId} AND chat_id = #{chatId}
+                        """)
+                .execute(Map.of("telegramId", telegramId, "chatId", chatId))
+                .onFailure(err -> log.error("Failed to delete scan cursor: %s".formatted(err.getMessage())))
+                .mapEmpty();
+    }
+}
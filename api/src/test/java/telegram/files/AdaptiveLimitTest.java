@@ -0,0 +1,51 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+class AdaptiveLimitTest {
+
+    @Test
+    void testAdditiveIncreaseWhileThroughputGrows() {
+        AdaptiveLimit adaptiveLimit = new AdaptiveLimit(1, 10, 3);
+        assertEquals(4, adaptiveLimit.update(1000, true));
+        assertEquals(5, adaptiveLimit.update(1500, true));
+        assertEquals(6, adaptiveLimit.update(2000, true));
+    }
+
+    @Test
+    void testMultiplicativeDecreaseWhenThroughputDrops() {
+        AdaptiveLimit adaptiveLimit = new AdaptiveLimit(1, 20, 10);
+        adaptiveLimit.update(1000, true);
+        assertEquals(7, adaptiveLimit.update(500, true));
+        assertEquals(4, adaptiveLimit.update(100, true));
+    }
+
+    @Test
+    void testHoldAndProbeOnPlateau() {
+        AdaptiveLimit adaptiveLimit = new AdaptiveLimit(1, 20, 5);
+        adaptiveLimit.update(1000, true);
+        int limit = adaptiveLimit.getLimit();
+        for (int i = 1; i < AdaptiveLimit.PLATEAU_PROBE_INTERVALS; i++) {
+            assertEquals(limit, adaptiveLimit.update(1000, true));
+        }
+        assertEquals(limit + 1, adaptiveLimit.update(1000, true));
+    }
+
+    @Test
+    void testHoldWhenNotSaturated() {
+        AdaptiveLimit adaptiveLimit = new AdaptiveLimit(1, 20, 5);
+        assertEquals(5, adaptiveLimit.update(1000, false));
+        assertEquals(5, adaptiveLimit.update(10, false));
+    }
+
+    @Test
+    void testFloorAndCeiling() {
+        AdaptiveLimit adaptiveLimit = new AdaptiveLimit(2, 4, 10);
+        assertEquals(4, adaptiveLimit.getLimit());
+        assertEquals(4, adaptiveLimit.update(1000, true));
+        assertEquals(2, adaptiveLimit.update(100, true));
+        assertEquals(2, adaptiveLimit.update(10, true));
+    }
+}
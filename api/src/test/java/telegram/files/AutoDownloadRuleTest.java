@@ -0,0 +1,103 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+import telegram.files.repository.FileRecord;
+import telegram.files.repository.SettingAutoRecords;
+
+import java.util.List;
+import java.util.regex.PatternSyntaxException;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class AutoDownloadRuleTest {
+
+    private static final List<String> DEFAULT_FILE_TYPES = List.of("photo", "video", "audio", "file");
+
+    private static FileRecord fileRecord(String type, long size, int width, int height, int date,
+                                         String mimeType, String fileName, String caption) {
+        return new FileRecord(1, "unique_id", 1, 1, 1, 0, date, false, size, width, height, 0, type,
+                mimeType, fileName, null, caption, null,
+                FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null);
+    }
+
+    private static FileRecord video(long size, int width, int height, String fileName) {
+        return fileRecord("video", size, width, height, 1700000000, "video/mp4", fileName, "A holiday video");
+    }
+
+    @Test
+    void testEmptyRuleMatchesDefaultFileTypes() {
+        AutoDownloadRule rule = AutoDownloadRule.compile(null, DEFAULT_FILE_TYPES);
+        assertNull(rule.getQuery());
+        assertEquals(DEFAULT_FILE_TYPES, rule.getFileTypes());
+        assertTrue(rule.matches(video(1, 0, 0, "a.mp4")));
+        assertFalse(rule.matches(fileRecord("sticker", 1, 0, 0, 0, null, null, null)));
+    }
+
+    @Test
+    void testQueryAndFileTypes() {
+        AutoDownloadRule rule = AutoDownloadRule.compile(new SettingAutoRecords.Rule("HOLIDAY", List.of("video"), null), DEFAULT_FILE_TYPES);
+        assertEquals("HOLIDAY", rule.getQuery());
+        assertTrue(rule.matches(video(1, 0, 0, "a.mp4")));
+        assertFalse(rule.matches(fileRecord("video", 1, 0, 0, 0, "video/mp4", "a.mp4", "other")));
+        assertTrue(rule.matchesFilters(fileRecord("video", 1, 0, 0, 0, "video/mp4", "a.mp4", "other")),
+                "Files found by TDLib search are not matched by the query again");
+        assertFalse(rule.matches(fileRecord("photo", 1, 0, 0, 0, null, null, "holiday")));
+    }
+
+    @Test
+    void testSizeAndDate() {
+        SettingAutoRecords.Rule settingRule = new SettingAutoRecords.Rule();
+        settingRule.minSize = 100;
+        settingRule.maxSize = 200;
+        settingRule.startDate = 1600000000;
+        settingRule.endDate = 1800000000;
+        AutoDownloadRule rule = AutoDownloadRule.compile(settingRule, DEFAULT_FILE_TYPES);
+
+        assertTrue(settingRule.hasLocalFilters());
+        assertTrue(rule.matches(video(150, 0, 0, "a.mp4")));
+        assertFalse(rule.matches(video(99, 0, 0, "a.mp4")));
+        assertFalse(rule.matches(video(201, 0, 0, "a.mp4")));
+        assertFalse(rule.matches(fileRecord("video", 150, 0, 0, 1500000000, "video/mp4", "a.mp4", null)));
+        assertFalse(rule.matches(fileRecord("video", 150, 0, 0, 1900000000, "video/mp4", "a.mp4", null)));
+    }
+
+    @Test
+    void testMimeTypesAndExtensions() {
+        SettingAutoRecords.Rule settingRule = new SettingAutoRecords.Rule();
+        settingRule.mimeTypes = List.of("video/*", "image/jpeg");
+        settingRule.extensions = List.of(".MP4", "jpg");
+        AutoDownloadRule rule = AutoDownloadRule.compile(settingRule, DEFAULT_FILE_TYPES);
+
+        assertTrue(rule.matches(video(1, 0, 0, "a.Mp4")));
+        assertFalse(rule.matches(video(1, 0, 0, "a.mkv")));
+        assertFalse(rule.matches(fileRecord("file", 1, 0, 0, 0, "application/pdf", "a.mp4", null)));
+        assertTrue(rule.matches(fileRecord("photo", 1, 0, 0, 0, null, null, null)), "Photos are jpeg");
+    }
+
+    @Test
+    void testFileNamePattern() {
+        SettingAutoRecords.Rule settingRule = new SettingAutoRecords.Rule();
+        settingRule.fileNamePattern = "^S\\d{2}E\\d{2}";
+        AutoDownloadRule rule = AutoDownloadRule.compile(settingRule, DEFAULT_FILE_TYPES);
+
+        assertTrue(rule.matches(video(1, 0, 0, "S01E02 Pilot.mp4")));
+        assertFalse(rule.matches(video(1, 0, 0, "Pilot S01E02.mp4")));
+        assertFalse(rule.matches(fileRecord("photo", 1, 0, 0, 0, null, null, null)));
+
+        settingRule.fileNamePattern = "[";
+        assertThrows(PatternSyntaxException.class, () -> AutoDownloadRule.compile(settingRule, DEFAULT_FILE_TYPES));
+    }
+
+    @Test
+    void testMinResolution() {
+        SettingAutoRecords.Rule settingRule = new SettingAutoRecords.Rule();
+        settingRule.minWidth = 1280;
+        settingRule.minHeight = 720;
+        AutoDownloadRule rule = AutoDownloadRule.compile(settingRule, DEFAULT_FILE_TYPES);
+
+        assertTrue(rule.matches(video(1, 1920, 1080, "a.mp4")));
+        assertFalse(rule.matches(video(1, 640, 360, "a.mp4")));
+        assertFalse(rule.matches(video(1, 1920, 480, "a.mp4")));
+        assertTrue(rule.matches(video(1, 0, 0, "a.mp4")), "Files without a known resolution are not filtered");
+    }
+}
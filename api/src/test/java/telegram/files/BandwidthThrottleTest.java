@@ -0,0 +1,78 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+import telegram.files.repository.SettingBandwidthLimits;
+
+import java.time.LocalTime;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BandwidthThrottleTest {
+
+    @Test
+    void testMeterSlidingWindow() {
+        BandwidthMeter meter = new BandwidthMeter(60);
+        long baseTime = 1_000_000L;
+        for (int i = 0; i < 60; i++) {
+            meter.record(1000, baseTime + i * 1000L);
+        }
+        assertEquals(60_000, meter.getBytes(baseTime + 59_000));
+        assertEquals(1000, meter.getRate(baseTime + 59_000));
+
+        // the first 30 seconds are out of the window
+        assertEquals(30_000, meter.getBytes(baseTime + 89_000));
+        assertEquals(0, meter.getBytes(baseTime + 200_000));
+    }
+
+    @Test
+    void testMeterIgnoresNegativeBytes() {
+        BandwidthMeter meter = new BandwidthMeter(60);
+        meter.record(-1000, 1000);
+        assertEquals(0, meter.getBytes(1000));
+    }
+
+    @Test
+    void testThrottleHysteresis() {
+        BandwidthThrottle throttle = new BandwidthThrottle(0);
+        assertFalse(throttle.update(900, 1000, 1000));
+        assertTrue(throttle.update(1001, 1000, 2000));
+        assertTrue(throttle.update(990, 1000, 3000), "Throttle should be held until the rate is under the resume ratio");
+        assertFalse(throttle.update(940, 1000, 4000));
+
+        BandwidthThrottle.ThrottleStats stats = throttle.getStats(10_000);
+        assertFalse(stats.throttled());
+        assertEquals(1, stats.episodes());
+        assertEquals(0.2, stats.throttledRatio(), 0.001);
+    }
+
+    @Test
+    void testThrottleUnlimited() {
+        BandwidthThrottle throttle = new BandwidthThrottle(0);
+        assertTrue(throttle.update(2000, 1000, 1000));
+        assertFalse(throttle.update(2000, 0, 2000), "Removing the limit should release the throttle");
+    }
+
+    @Test
+    void testScheduledLimits() {
+        SettingBandwidthLimits limits = new SettingBandwidthLimits();
+        limits.globalLimit = 1000;
+        SettingBandwidthLimits.Schedule night = new SettingBandwidthLimits.Schedule();
+        night.start = "22:00";
+        night.end = "06:00";
+        night.limit = 0;
+        limits.globalSchedules = List.of(night);
+
+        SettingBandwidthLimits.Item item = new SettingBandwidthLimits.Item();
+        item.telegramId = 1;
+        item.limit = 500;
+        limits.items = List.of(item);
+
+        assertEquals(1000, limits.getGlobalLimit(LocalTime.of(12, 0)));
+        assertEquals(0, limits.getGlobalLimit(LocalTime.of(23, 0)));
+        assertEquals(0, limits.getGlobalLimit(LocalTime.of(5, 59)));
+        assertEquals(1000, limits.getGlobalLimit(LocalTime.of(6, 0)));
+        assertEquals(500, limits.getAccountLimit(1, LocalTime.of(12, 0)));
+        assertEquals(0, limits.getAccountLimit(2, LocalTime.of(12, 0)));
+    }
+}
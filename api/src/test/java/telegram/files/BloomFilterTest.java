@@ -0,0 +1,46 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.stream.IntStream;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class BloomFilterTest {
+
+    @Test
+    void testNoFalseNegatives() {
+        BloomFilter bloomFilter = new BloomFilter(10_000, 0.01);
+        IntStream.range(0, 10_000).forEach(i -> bloomFilter.put("unique-" + i));
+
+        assertTrue(IntStream.range(0, 10_000).allMatch(i -> bloomFilter.mightContain("unique-" + i)));
+        assertEquals(10_000, bloomFilter.getInsertions());
+        assertFalse(bloomFilter.isSaturated());
+    }
+
+    @Test
+    void testFalsePositiveProbability() {
+        BloomFilter bloomFilter = new BloomFilter(10_000, 0.01);
+        IntStream.range(0, 10_000).forEach(i -> bloomFilter.put("unique-" + i));
+
+        long falsePositives = IntStream.range(0, 100_000)
+                .filter(i -> bloomFilter.mightContain("other-" + i))
+                .count();
+        assertTrue(falsePositives < 2_000, "False positives: " + falsePositives);
+    }
+
+    @Test
+    void testSaturated() {
+        BloomFilter bloomFilter = new BloomFilter(10, 0.01);
+        IntStream.range(0, 11).forEach(i -> bloomFilter.put("unique-" + i));
+        assertTrue(bloomFilter.isSaturated());
+    }
+
+    @Test
+    void testConcurrentPut() {
+        BloomFilter bloomFilter = new BloomFilter(100_000, 0.01);
+        IntStream.range(0, 100_000).parallel().forEach(i -> bloomFilter.put("unique-" + i));
+
+        assertTrue(IntStream.range(0, 100_000).allMatch(i -> bloomFilter.mightContain("unique-" + i)));
+    }
+}
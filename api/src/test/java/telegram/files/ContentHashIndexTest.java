@@ -0,0 +1,59 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ContentHashIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path write(String name, byte[] bytes) throws IOException {
+        return Files.write(tempDir.resolve(name), bytes);
+    }
+
+    private static byte[] randomBytes(int size) {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return bytes;
+    }
+
+    @Test
+    void testHashMatchesMD5() throws IOException {
+        Path path = write("file", randomBytes(3 * 1024 * 1024 + 7));
+        assertEquals(MessyUtils.calculateFileMD5(path.toFile()), ContentHashIndex.hash(path));
+    }
+
+    @Test
+    void testPartialHashOnlyCoversHeadAndTail() throws IOException {
+        byte[] bytes = randomBytes(1024 * 1024);
+        Path file = write("file", bytes);
+        byte[] middleChanged = bytes.clone();
+        middleChanged[512 * 1024] ^= 1;
+        Path middleChangedFile = write("middle", middleChanged);
+        byte[] tailChanged = bytes.clone();
+        tailChanged[bytes.length - 1] ^= 1;
+        Path tailChangedFile = write("tail", tailChanged);
+
+        assertEquals(ContentHashIndex.partialHash(file), ContentHashIndex.partialHash(middleChangedFile));
+        assertNotEquals(ContentHashIndex.hash(file), ContentHashIndex.hash(middleChangedFile));
+        assertNotEquals(ContentHashIndex.partialHash(file), ContentHashIndex.partialHash(tailChangedFile));
+    }
+
+    @Test
+    void testPartialHashOfSmallFiles() throws IOException {
+        Path small = write("small", randomBytes(100));
+        Path other = write("other", randomBytes(101));
+        Path empty = write("empty", new byte[0]);
+        assertNotEquals(ContentHashIndex.partialHash(small), ContentHashIndex.partialHash(other));
+        assertNotNull(ContentHashIndex.partialHash(empty));
+        assertEquals(ContentHashIndex.partialHash(small), ContentHashIndex.partialHash(Files.copy(small, tempDir.resolve("copy"))));
+    }
+}
@@ -129,7 +129,12 @@ public class DataVerticleMigrationTest {
                                 CREATE TABLE file_record (
                                     id INTEGER PRIMARY KEY,
                                     file_id TEXT NOT NULL,
-                                    file_name TEXT NOT NULL
+                                    file_name TEXT NOT NULL,
+                                    telegram_id BIGINT,
+                                    chat_id BIGINT,
+                                    message_id BIGINT,
+                                    type VARCHAR(255),
+                                    download_status VARCHAR(255)
                                 )
                                 """).execute()
                         .compose(v2 -> sqlClient.query("""
@@ -159,7 +164,12 @@ public class DataVerticleMigrationTest {
                                 CREATE TABLE file_record (
                                     id INTEGER PRIMARY KEY,
                                     file_id TEXT NOT NULL,
-                                    file_name TEXT NOT NULL
+                                    file_name TEXT NOT NULL,
+                                    telegram_id BIGINT,
+                                    chat_id BIGINT,
+                                    message_id BIGINT,
+                                    type VARCHAR(255),
+                                    download_status VARCHAR(255)
                                 )
                                 """).execute())
                         .eventually(() -> sqlClient.close())
@@ -222,17 +232,17 @@ public class DataVerticleMigrationTest {
         if (Config.isPostgres()) {
             getTablesQuery = """
                     SELECT table_name FROM information_schema.tables
-                    WHERE table_schema = 'public' AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record')
+                    WHERE table_schema = 'public' AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record', 'download_job_record', 'scan_cursor_record', 'file_hash_record')
                     """;
         } else if (Config.isMysql()) {
             getTablesQuery = """
                     SELECT table_name FROM information_schema.tables
-                    WHERE table_schema = DATABASE() AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record')
+                    WHERE table_schema = DATABASE() AND table_name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record', 'download_job_record', 'scan_cursor_record', 'file_hash_record')
                     """;
         } else {
             getTablesQuery = """
                     SELECT name FROM sqlite_master
-                    WHERE type='table' AND name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record')
+                    WHERE type='table' AND name IN ('setting_record', 'telegram_record', 'file_record', 'statistic_record', 'download_job_record', 'scan_cursor_record', 'file_hash_record')
                     """;
         }
         return getTablesQuery;
@@ -11,9 +11,11 @@ import io.vertx.junit5.VertxTestContext;
 import io.vertx.sqlclient.SqlClient;
 import org.junit.jupiter.api.*;
 import org.junit.jupiter.api.extension.ExtendWith;
-import telegram.files.repository.FileRecord;
-import telegram.files.repository.SettingKey;
-import telegram.files.repository.TelegramRecord;
+import org.jooq.lambda.tuple.Tuple2;
+import telegram.files.repository.*;
+
+import java.util.List;
+import java.util.Map;
 
 @ExtendWith(VertxExtension.class)
 public class DataVerticleTest {
@@ -138,7 +140,7 @@ public class DataVerticleTest {
     @DisplayName("Test Get file record by primary key")
     void getFileRecordByPrimaryKeyTest(Vertx vertx, VertxTestContext testContext) {
         FileRecord fileRecord = new FileRecord(
-                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "type", "mime_type", "file_name", "thumbnail", "caption", "local_path", "download_status", "transfer_status", 0, null
+                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 1280, 720, 0, "type", "mime_type", "file_name", "thumbnail", "caption", "local_path", "download_status", "transfer_status", 0, null
         );
         DataVerticle.fileRepository.create(fileRecord)
                 .compose(r -> DataVerticle.fileRepository.getByPrimaryKey(r.id(), r.uniqueId()))
@@ -152,7 +154,7 @@ public class DataVerticleTest {
     @DisplayName("Test update file download status")
     void updateFileDownloadStatusTest(Vertx vertx, VertxTestContext testContext) {
         FileRecord fileRecord = new FileRecord(
-                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null
+                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, 0, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null
         );
         String updateLocalPath = "local_path";
         Long completionDate = 1L;
@@ -179,7 +181,7 @@ public class DataVerticleTest {
     @DisplayName("Test update file transfer status")
     void updateFileTransferStatusTest(Vertx vertx, VertxTestContext testContext) {
         FileRecord fileRecord = new FileRecord(
-                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null
+                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, 0, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null
         );
         String updateLocalPath = "local_path";
         DataVerticle.fileRepository.create(fileRecord)
@@ -198,4 +200,145 @@ public class DataVerticleTest {
                 })));
     }
 
+    @Test
+    @DisplayName("Test get idle files by message order")
+    void getIdleFilesTest(Vertx vertx, VertxTestContext testContext) {
+        List<FileRecord> fileRecords = List.of(
+                new FileRecord(1, "unique_id_1", 1, 1, 1, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(2, "unique_id_2", 1, 1, 2, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(3, "unique_id_3", 1, 1, 3, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(4, "unique_id_4", 1, 1, 4, 1, 1, false, 1, 0, 0, 0, "photo", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(5, "unique_id_5", 1, 2, 5, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(6, "unique_id_6", 1, 1, 6, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(7, "unique_id_7", 2, 1, 7, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null)
+        );
+        Future.all(fileRecords.stream().map(DataVerticle.fileRepository::create).toList())
+                .compose(r -> DataVerticle.fileRepository.getIdleFiles(1, 1, "video", 0, 2))
+                .compose(r -> {
+                    testContext.verify(() -> Assertions.assertEquals(List.of(6L, 3L), r.stream().map(FileRecord::messageId).toList()));
+                    return DataVerticle.fileRepository.getIdleFiles(1, 1, "video", r.getLast().messageId(), 2);
+                })
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(List.of(1L), r.stream().map(FileRecord::messageId).toList());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test get idle transfer files by message order")
+    void getIdleTransferFilesTest(Vertx vertx, VertxTestContext testContext) {
+        List<FileRecord> fileRecords = List.of(
+                new FileRecord(1, "unique_id_1", 1, 1, 1, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(2, "unique_id_2", 1, 1, 2, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(3, "unique_id_3", 1, 1, 3, 1, 1, false, 1, 0, 0, 0, "photo", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(4, "unique_id_4", 1, 1, 4, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.completed.name(), 0, null),
+                new FileRecord(5, "unique_id_5", 2, 1, 5, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null),
+                new FileRecord(6, "unique_id_6", 1, 1, 6, 1, 1, false, 1, 0, 0, 0, "video", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null)
+        );
+        Future.all(fileRecords.stream().map(DataVerticle.fileRepository::create).toList())
+                .compose(r -> DataVerticle.fileRepository.getIdleTransferFiles(1, 1, 0, 2))
+                .compose(r -> {
+                    testContext.verify(() -> Assertions.assertEquals(List.of(6L, 3L), r.stream().map(FileRecord::messageId).toList()));
+                    return DataVerticle.fileRepository.getIdleTransferFiles(1, 1, r.getLast().messageId(), 2);
+                })
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(List.of(1L), r.stream().map(FileRecord::messageId).toList());
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test get not idle file unique ids")
+    void getNotIdleUniqueIdsTest(Vertx vertx, VertxTestContext testContext) {
+        FileRecord idleRecord = new FileRecord(
+                1, "idle_unique_id", 1, 1, 1, 1, 1, false, 1, 0, 0, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null
+        );
+        FileRecord completedRecord = new FileRecord(
+                2, "completed_unique_id", 1, 1, 2, 1, 1, false, 1, 0, 0, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null
+        );
+        FileRecord otherRecord = new FileRecord(
+                3, "other_unique_id", 2, 1, 3, 1, 1, false, 1, 0, 0, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.downloading.name(), FileRecord.TransferStatus.idle.name(), 0, null
+        );
+        DataVerticle.fileRepository.create(idleRecord)
+                .compose(r -> DataVerticle.fileRepository.create(completedRecord))
+                .compose(r -> DataVerticle.fileRepository.create(otherRecord))
+                .compose(r -> DataVerticle.fileRepository.getNotIdleUniqueIds())
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(Map.of(1L, List.of("completed_unique_id"), 2L, List.of("other_unique_id")), r);
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test create, claim and delete download jobs")
+    void downloadJobTest(Vertx vertx, VertxTestContext testContext) {
+        DownloadJobRecord job1 = new DownloadJobRecord(1, 1, 1, "unique_id_1", false, false, 1);
+        DownloadJobRecord job2 = new DownloadJobRecord(1, 1, 2, "unique_id_2", true, false, 2);
+        DataVerticle.downloadJobRepository.createBatch(List.of(job1, job2))
+                // duplicated jobs are ignored
+                .compose(r -> DataVerticle.downloadJobRepository.createBatch(List.of(job1)))
+                .compose(r -> DataVerticle.downloadJobRepository.claim(1, List.of(job1.uniqueId())))
+                .compose(r -> DataVerticle.downloadJobRepository.getAll())
+                .compose(r -> {
+                    testContext.verify(() -> {
+                        Assertions.assertEquals(2, r.size());
+                        Assertions.assertTrue(r.get(0).claimed());
+                        Assertions.assertEquals(job2, r.get(1));
+                    });
+                    return DataVerticle.downloadJobRepository.unclaimAll();
+                })
+                .compose(r -> DataVerticle.downloadJobRepository.delete(1, List.of(job2.uniqueId())))
+                .compose(r -> DataVerticle.downloadJobRepository.getAll())
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(List.of(job1), r);
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test save scan cursor")
+    void scanCursorTest(Vertx vertx, VertxTestContext testContext) {
+        ScanCursorRecord cursor = new ScanCursorRecord(1, 1, "photo", 100, false, 1);
+        ScanCursorRecord updatedCursor = new ScanCursorRecord(1, 1, "photo", 0, true, 2);
+        ScanCursorRecord videoCursor = new ScanCursorRecord(1, 1, "video", 50, false, 2);
+        DataVerticle.scanCursorRepository.createOrUpdate(cursor)
+                .compose(r -> DataVerticle.scanCursorRepository.createOrUpdate(updatedCursor))
+                .compose(r -> DataVerticle.scanCursorRepository.createOrUpdate(videoCursor))
+                .compose(r -> DataVerticle.scanCursorRepository.getAll())
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(2, r.size());
+                    Assertions.assertTrue(r.containsAll(List.of(updatedCursor, videoCursor)));
+                    testContext.completeNow();
+                })));
+    }
+
+    @Test
+    @DisplayName("Test save file hashes")
+    void fileHashTest(Vertx vertx, VertxTestContext testContext) {
+        FileRecord fileRecord = new FileRecord(
+                1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, 0, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null, FileRecord.DownloadStatus.completed.name(), FileRecord.TransferStatus.idle.name(), 0, null
+        );
+        FileHashRecord fileHash = new FileHashRecord("/dest/file_name", 1, 1, "partial", null, 1);
+        FileHashRecord updatedFileHash = new FileHashRecord("/dest/file_name", 1, 1, "partial", "hash", 2);
+        DataVerticle.fileRepository.create(fileRecord)
+                .compose(r -> DataVerticle.fileRepository.getHashes("unique_id"))
+                .compose(r -> {
+                    testContext.verify(() -> Assertions.assertNull(r.v1));
+                    return DataVerticle.fileRepository.updateHashes("unique_id", "partial", "hash");
+                })
+                .compose(r -> DataVerticle.fileRepository.getHashes("unique_id"))
+                .compose(r -> {
+                    testContext.verify(() -> Assertions.assertEquals(new Tuple2<>("partial", "hash"), r));
+                    return DataVerticle.fileHashRepository.createOrUpdate(fileHash);
+                })
+                .compose(r -> DataVerticle.fileHashRepository.createOrUpdate(updatedFileHash))
+                .compose(r -> DataVerticle.fileHashRepository.getByPath("/dest/file_name"))
+                .onComplete(testContext.succeeding(r -> testContext.verify(() -> {
+                    Assertions.assertEquals(updatedFileHash, r);
+                    Assertions.assertTrue(r.isValid(1, 1));
+                    Assertions.assertFalse(r.isValid(1, 2));
+                    testContext.completeNow();
+                })));
+    }
+
 }
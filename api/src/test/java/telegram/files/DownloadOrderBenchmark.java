@@ -0,0 +1,113 @@
+package telegram.files;
+
+import cn.hutool.core.io.FileUtil;
+import cn.hutool.core.util.StrUtil;
+
+import java.nio.charset.StandardCharsets;
+import java.util.*;
+
+/**
+ * Replays a waiting queue under every {@link DownloadOrder} and compares the files completed in one hour.
+ * <p>
+ * The recorded queue is a csv file of {@code chat_id,message_id,size} lines, e.g. exported by
+ * {@code SELECT chat_id, message_id, size FROM file_record WHERE download_status = 'idle'}.
+ * Without a file a mixed workload of photos, videos and a few huge files is generated.
+ * <p>
+ * Every slot downloads at a fixed speed after a fixed start latency, which is close enough to TDLib
+ * downloading files over separate connections to compare the orders.
+ * <p>
+ * Usage: {@code DownloadOrderBenchmark [queue.csv] [slots] [slot speed in bytes per second]}
+ */
+public class DownloadOrderBenchmark {
+
+    private static final long DURATION_MILLIS = 60 * 60 * 1000;
+
+    private static final long START_LATENCY_MILLIS = 1000;
+
+    private record Active(QueuedFile file, long finishTime, boolean reserved) {
+    }
+
+    public static void main(String[] args) {
+        List<QueuedFile> files = args.length > 0 && StrUtil.isNotBlank(args[0]) ? load(args[0]) : generate();
+        int slots = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        long speed = args.length > 2 ? Long.parseLong(args[2]) : 2 * 1024 * 1024;
+
+        System.out.printf("Files: %d, total: %d MB, slots: %d, slot speed: %d KB/s%n",
+                files.size(), files.stream().mapToLong(QueuedFile::size).sum() >> 20, slots, speed >> 10);
+        for (DownloadOrder order : DownloadOrder.values()) {
+            long[] completed = replay(files, order, slots, speed);
+            System.out.printf("%-15s files/hour: %6d  MB/hour: %8d%n", order, completed[0], completed[1] >> 20);
+        }
+    }
+
+    /**
+     * @return completed files and bytes in {@link #DURATION_MILLIS}
+     */
+    private static long[] replay(List<QueuedFile> files, DownloadOrder order, int slots, long speed) {
+        DownloadQueue<QueuedFile> queue = new DownloadQueue<>(chatId -> 1, order.comparator);
+        files.forEach(file -> queue.offer(file.chatId(), file.uniqueId(), file, false));
+
+        PriorityQueue<Active> active = new PriorityQueue<>(Comparator.comparingLong(Active::finishTime));
+        long now = 0;
+        long completedFiles = 0;
+        long completedBytes = 0;
+        boolean reservedSlotFree = true;
+        while (true) {
+            // Same polling as the auto download verticle
+            if (order.reservesSlot() && reservedSlotFree && active.size() < slots) {
+                QueuedFile largest = queue.pollLast();
+                if (largest != null) {
+                    active.add(new Active(largest, now + START_LATENCY_MILLIS + largest.size() * 1000 / speed, true));
+                    reservedSlotFree = false;
+                }
+            }
+            for (QueuedFile file : queue.poll(slots - active.size())) {
+                active.add(new Active(file, now + START_LATENCY_MILLIS + file.size() * 1000 / speed, false));
+            }
+            Active finished = active.poll();
+            if (finished == null || finished.finishTime > DURATION_MILLIS) {
+                break;
+            }
+            now = finished.finishTime;
+            completedFiles++;
+            completedBytes += finished.file.size();
+            if (finished.reserved) {
+                reservedSlotFree = true;
+            }
+        }
+        return new long[]{completedFiles, completedBytes};
+    }
+
+    private static List<QueuedFile> load(String path) {
+        List<QueuedFile> files = new ArrayList<>();
+        for (String line : FileUtil.readLines(path, StandardCharsets.UTF_8)) {
+            List<String> fields = StrUtil.split(line, ',', true, true);
+            if (fields.size() < 3 || !StrUtil.isNumeric(fields.get(2))) {
+                continue;
+            }
+            long chatId = Long.parseLong(fields.get(0));
+            long messageId = Long.parseLong(fields.get(1));
+            files.add(new QueuedFile(chatId, messageId, 0, chatId + ":" + messageId, Long.parseLong(fields.get(2)), "file", false));
+        }
+        return files;
+    }
+
+    private static List<QueuedFile> generate() {
+        Random random = new Random(42);
+        List<QueuedFile> files = new ArrayList<>();
+        for (int i = 0; i < 5000; i++) {
+            long chatId = i % 5;
+            double kind = random.nextDouble();
+            long size;
+            if (kind < 0.9) {
+                size = 100_000 + random.nextLong(3_000_000);
+            } else if (kind < 0.98) {
+                size = 10_000_000 + random.nextLong(500_000_000);
+            } else {
+                size = 1_000_000_000 + random.nextLong(3_000_000_000L);
+            }
+            files.add(new QueuedFile(chatId, i, i, String.valueOf(i), size, "file", false));
+        }
+        return files;
+    }
+}
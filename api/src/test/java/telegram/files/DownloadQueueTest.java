@@ -0,0 +1,122 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadQueueTest {
+
+    @Test
+    void testDedupeByUniqueId() {
+        DownloadQueue<String> queue = new DownloadQueue<>(chatId -> 1);
+        assertTrue(queue.offer(1, "a", "a", false));
+        assertFalse(queue.offer(1, "a", "a", false));
+        assertFalse(queue.offer(2, "a", "a", true), "Dedupe should work across chats and lanes");
+        assertEquals(1, queue.size());
+
+        assertEquals("a", queue.poll());
+        assertTrue(queue.offer(1, "a", "a", false), "Polled file can be queued again");
+    }
+
+    @Test
+    void testRoundRobinAcrossChats() {
+        DownloadQueue<String> queue = new DownloadQueue<>(chatId -> 1);
+        for (int i = 0; i < 10; i++) {
+            queue.offer(1, "1-" + i, "1-" + i, false);
+        }
+        queue.offer(2, "2-0", "2-0", false);
+        queue.offer(2, "2-1", "2-1", false);
+
+        assertEquals(List.of("1-0", "2-0", "1-1", "2-1", "1-2", "1-3"), queue.poll(6));
+    }
+
+    @Test
+    void testWeightedShare() {
+        DownloadQueue<String> queue = new DownloadQueue<>(chatId -> chatId == 1 ? 3 : 1);
+        for (int i = 0; i < 100; i++) {
+            queue.offer(1, "1-" + i, "1", false);
+            queue.offer(2, "2-" + i, "2", false);
+        }
+
+        List<String> polled = queue.poll(40);
+        assertEquals(30, polled.stream().filter("1"::equals).count());
+        assertEquals(10, polled.stream().filter("2"::equals).count());
+    }
+
+    @Test
+    void testLiveJumpsAheadOfHistory() {
+        DownloadQueue<String> queue = new DownloadQueue<>(chatId -> 1);
+        queue.offer(1, "h1", "h1", false);
+        queue.offer(2, "h2", "h2", false);
+        queue.offer(2, "l2", "l2", true);
+
+        assertEquals("l2", queue.poll());
+        assertEquals(List.of("h1", "h2"), queue.poll(2));
+        assertNull(queue.poll());
+    }
+
+    @Test
+    void testDepthsAndRemoveChat() {
+        DownloadQueue<String> queue = new DownloadQueue<>(chatId -> 1);
+        queue.offer(1, "a", "a", false);
+        queue.offer(1, "b", "b", true);
+        queue.offer(2, "c", "c", false);
+        assertEquals(Map.of(1L, 2, 2L, 1), queue.getDepths());
+
+        queue.removeChat(1);
+        assertEquals(1, queue.size());
+        assertFalse(queue.contains("a"));
+        assertEquals("c", queue.poll());
+        assertTrue(queue.isEmpty());
+    }
+
+    private static QueuedFile file(long messageId, long size) {
+        return new QueuedFile(1, messageId, (int) messageId, "u" + messageId, size, "file", false);
+    }
+
+    @Test
+    void testHistoryOrder() {
+        DownloadQueue<QueuedFile> queue = new DownloadQueue<>(chatId -> 1, DownloadOrder.SMALLEST_FIRST.comparator);
+        queue.offer(1, "u1", file(1, 300), false);
+        queue.offer(1, "u2", file(2, 100), false);
+        queue.offer(1, "u3", file(3, 200), false);
+        queue.offer(1, "u4", file(4, 100), false);
+        queue.offer(1, "u5", file(5, 999), true);
+
+        assertEquals(5, queue.poll().messageId(), "Live files are not reordered");
+        assertEquals(2, queue.poll().messageId(), "Same size files keep the offer order");
+        assertEquals(1, queue.pollLast().messageId());
+
+        queue.setComparator(DownloadOrder.OLDEST_FIRST.comparator);
+        assertEquals(List.of(3L, 4L), queue.poll(2).stream().map(QueuedFile::messageId).toList());
+        assertNull(queue.pollLast());
+    }
+
+    @Test
+    void testPollLastAcrossLanes() {
+        DownloadQueue<QueuedFile> queue = new DownloadQueue<>(chatId -> 1, DownloadOrder.HYBRID.comparator);
+        queue.offer(1, "u1", file(1, 100), false);
+        queue.offer(1, "u2", file(2, 200), false);
+        queue.offer(2, "u3", file(3, 900), false);
+        queue.offer(3, "u4", file(4, 300), false);
+
+        assertEquals(3, queue.pollLast().messageId(), "Largest file of all chats should be polled");
+        assertEquals(4, queue.pollLast().messageId());
+        assertEquals(List.of(1L, 2L), queue.poll(2).stream().map(QueuedFile::messageId).toList());
+        assertTrue(queue.isEmpty());
+    }
+
+    @Test
+    void testScanOrder() {
+        DownloadQueue<QueuedFile> queue = new DownloadQueue<>(chatId -> 1, DownloadOrder.SCAN.comparator);
+        queue.offer(1, "u2", file(2, 100), false);
+        queue.offer(1, "u1", file(1, 200), false);
+        queue.offer(1, "u3", file(3, 300), false);
+
+        assertEquals(3, queue.pollLast().messageId());
+        assertEquals(List.of(2L, 1L), queue.poll(2).stream().map(QueuedFile::messageId).toList());
+    }
+}
@@ -0,0 +1,103 @@
+package telegram.files;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadSlotsTest {
+    private DownloadSlots downloadSlots;
+
+    private static final long TELEGRAM_ID = 1L;
+
+    @BeforeEach
+    void setUp() {
+        downloadSlots = new DownloadSlots(2);
+    }
+
+    @Test
+    void testAcquireAndRelease() {
+        assertEquals(2, downloadSlots.getSurplus(TELEGRAM_ID));
+
+        assertTrue(downloadSlots.acquire(TELEGRAM_ID, "a"));
+        assertFalse(downloadSlots.acquire(TELEGRAM_ID, "a"), "Acquire the same file twice should not occupy another slot");
+        assertTrue(downloadSlots.acquire(TELEGRAM_ID, "b"));
+        assertEquals(0, downloadSlots.getSurplus(TELEGRAM_ID));
+
+        assertTrue(downloadSlots.release(TELEGRAM_ID, "a"));
+        assertFalse(downloadSlots.release(TELEGRAM_ID, "a"), "Release a free slot should not be reported as freed");
+        assertEquals(1, downloadSlots.getSurplus(TELEGRAM_ID));
+        assertEquals(2, downloadSlots.getSurplus(2L), "Slots should be isolated per account");
+    }
+
+    @Test
+    void testReconcile() {
+        downloadSlots.acquire(TELEGRAM_ID, "a");
+        assertTrue(downloadSlots.reconcile(TELEGRAM_ID, List.of("b", "c")));
+        assertEquals(2, downloadSlots.getActive(TELEGRAM_ID));
+        assertFalse(downloadSlots.release(TELEGRAM_ID, "a"));
+        assertFalse(downloadSlots.reconcile(TELEGRAM_ID, List.of("b", "d")));
+    }
+
+    @Test
+    void testReconcileKeepsSlotsAcquiredWhileQuerying() {
+        downloadSlots.acquire(TELEGRAM_ID, "a");
+        downloadSlots.acquire(TELEGRAM_ID, "b");
+        long acquisitions = downloadSlots.getAcquisitions(TELEGRAM_ID);
+        // Acquired after the query started, not downloading in the database yet
+        downloadSlots.acquire(TELEGRAM_ID, "c");
+
+        assertTrue(downloadSlots.reconcile(TELEGRAM_ID, List.of("b", "d", "e"), acquisitions));
+        assertFalse(downloadSlots.isAcquired(TELEGRAM_ID, "a"));
+        assertTrue(downloadSlots.isAcquired(TELEGRAM_ID, "b"));
+        assertTrue(downloadSlots.isAcquired(TELEGRAM_ID, "c"));
+        assertTrue(downloadSlots.isAcquired(TELEGRAM_ID, "d"));
+    }
+
+    @Test
+    void testPauseResumeKeepsLimit() {
+        downloadSlots.acquire(TELEGRAM_ID, "a");
+        downloadSlots.acquire(TELEGRAM_ID, "b");
+
+        // Paused by the scheduler
+        downloadSlots.hold(TELEGRAM_ID, "a");
+        downloadSlots.hold(TELEGRAM_ID, "b");
+        assertFalse(downloadSlots.releasePaused(TELEGRAM_ID, "a"));
+        assertFalse(downloadSlots.releasePaused(TELEGRAM_ID, "b"));
+        assertEquals(0, downloadSlots.getSurplus(TELEGRAM_ID), "Paused downloads should keep their slots");
+        assertFalse(downloadSlots.reconcile(TELEGRAM_ID, List.of()), "Paused downloads are not downloading in the database");
+        assertEquals(0, downloadSlots.getSurplus(TELEGRAM_ID));
+
+        // Resumed by the scheduler
+        downloadSlots.unhold(TELEGRAM_ID, "a");
+        downloadSlots.unhold(TELEGRAM_ID, "b");
+        assertFalse(downloadSlots.acquire(TELEGRAM_ID, "a"));
+        assertFalse(downloadSlots.acquire(TELEGRAM_ID, "b"));
+        assertTrue(downloadSlots.getActive(TELEGRAM_ID) <= 2);
+
+        // Paused by the user
+        assertTrue(downloadSlots.releasePaused(TELEGRAM_ID, "a"));
+        assertEquals(1, downloadSlots.getSurplus(TELEGRAM_ID));
+    }
+
+    @Test
+    void testLimitChange() {
+        downloadSlots.acquire(TELEGRAM_ID, "a");
+        downloadSlots.acquire(TELEGRAM_ID, "b");
+        downloadSlots.setLimit(1);
+        assertEquals(0, downloadSlots.getSurplus(TELEGRAM_ID), "Surplus should never be negative");
+    }
+
+    @Test
+    void testUtilization() throws InterruptedException {
+        downloadSlots.acquire(TELEGRAM_ID, "a");
+        Thread.sleep(50);
+        DownloadSlots.SlotStats stats = downloadSlots.getSlotStats(TELEGRAM_ID);
+        assertEquals(2, stats.limit());
+        assertEquals(1, stats.active());
+        assertTrue(stats.utilization() > 0.3 && stats.utilization() <= 0.5,
+                "Half of the slots were occupied, utilization: " + stats.utilization());
+    }
+}
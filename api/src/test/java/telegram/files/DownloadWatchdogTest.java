@@ -0,0 +1,130 @@
+package telegram.files;
+
+import org.drinkless.tdlib.TdApi;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class DownloadWatchdogTest {
+
+    private final AtomicLong clock = new AtomicLong();
+
+    private DownloadWatchdog watchdog;
+
+    @BeforeEach
+    void setUp() {
+        clock.set(0);
+        watchdog = new DownloadWatchdog(60_000, 2, clock::get);
+    }
+
+    private static TdApi.File file(int id, long downloadedSize, boolean active, boolean completed) {
+        TdApi.File file = new TdApi.File();
+        file.id = id;
+        file.size = 1000;
+        file.local = new TdApi.LocalFile("", true, true, active, completed, 0, 0, downloadedSize);
+        file.remote = new TdApi.RemoteFile("remote", "unique-" + id, false, true, 1000);
+        return file;
+    }
+
+    @Test
+    void testProgressIsNotStalled() {
+        watchdog.onStarted(1, "unique-1");
+        watchdog.onFileUpdated(file(1, 0, true, false));
+        clock.set(50_000);
+        watchdog.onFileUpdated(file(1, 100, true, false));
+        clock.set(100_000);
+        assertTrue(watchdog.check().isEmpty());
+
+        clock.set(110_000);
+        assertEquals(List.of(new DownloadWatchdog.Stall(1, "unique-1", DownloadWatchdog.Action.RESTART, 0)), watchdog.check());
+    }
+
+    @Test
+    void testRestartWithBackoffThenFail() {
+        watchdog.onStarted(1, "unique-1");
+        clock.set(60_000);
+        assertEquals(DownloadWatchdog.Action.RESTART, watchdog.check().getFirst().action());
+        assertTrue(watchdog.isRestarting(1));
+        // The cancel of the restart does not stop watching
+        watchdog.onFileUpdated(file(1, 0, false, false));
+        assertTrue(watchdog.check().isEmpty(), "Restarting download should not be checked");
+        watchdog.onRestarted(1, true);
+
+        // Stall timeout doubles after a restart
+        clock.set(60_000 + 119_000);
+        assertTrue(watchdog.check().isEmpty());
+        clock.set(60_000 + 120_000);
+        assertEquals(1, watchdog.check().getFirst().restarts());
+        watchdog.onRestarted(1, true);
+
+        clock.set(180_000 + 240_000);
+        DownloadWatchdog.Stall stall = watchdog.check().getFirst();
+        assertEquals(DownloadWatchdog.Action.FAIL, stall.action());
+        assertTrue(watchdog.isFailed(1));
+        assertEquals(0, watchdog.size());
+    }
+
+    @Test
+    void testProgressResetsRestarts() {
+        watchdog.onStarted(1, "unique-1");
+        watchdog.onFileUpdated(file(1, 0, true, false));
+        clock.set(60_000);
+        watchdog.check();
+        watchdog.onRestarted(1, true);
+        watchdog.onFileUpdated(file(1, 10, true, false));
+
+        clock.set(120_000);
+        assertEquals(0, watchdog.check().getFirst().restarts());
+    }
+
+    @Test
+    void testPausedOrCompletedIsNotWatched() {
+        watchdog.onStarted(1, "unique-1");
+        watchdog.onStarted(2, "unique-2");
+        watchdog.onFileUpdated(file(1, 0, true, false));
+        watchdog.onFileUpdated(file(2, 0, true, false));
+        watchdog.onFileUpdated(file(1, 10, false, false));
+        watchdog.onFileUpdated(file(2, 1000, false, true));
+        clock.set(1_000_000);
+        assertTrue(watchdog.check().isEmpty());
+        assertEquals(0, watchdog.size());
+    }
+
+    @Test
+    void testOnlyStartedDownloadsAreWatched() {
+        // A preview or a stream downloaded by the file id
+        watchdog.onFileUpdated(file(1, 0, true, false));
+        assertEquals(0, watchdog.size());
+
+        watchdog.onStarted(2, "unique-2");
+        watchdog.onFileUpdated(file(2, 10, false, false));
+        assertEquals(0, watchdog.size());
+        // Resumed after a pause
+        watchdog.onFileUpdated(file(2, 10, true, false));
+        assertEquals(1, watchdog.size());
+
+        watchdog.onFileUpdated(file(2, 1000, false, true));
+        watchdog.onFileUpdated(file(2, 0, true, false));
+        assertEquals(0, watchdog.size(), "Completed download should not be watched when it is downloaded again");
+        clock.set(1_000_000);
+        assertTrue(watchdog.check().isEmpty());
+    }
+
+    @Test
+    void testFailedRestartGivesUp() {
+        watchdog.onStarted(1, "unique-1");
+        clock.set(60_000);
+        watchdog.check();
+        watchdog.onRestarted(1, false);
+        assertTrue(watchdog.isFailed(1));
+
+        // Started again by the user
+        watchdog.onStarted(1, "unique-1");
+        assertFalse(watchdog.isFailed(1));
+        assertEquals(1, watchdog.size());
+    }
+}
@@ -25,7 +25,7 @@ public class FileDownloadStatusConcurrentTest {
     static Vertx vertx = Vertx.vertx();
 
     static FileRecord fileRecord = new FileRecord(
-            1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null,
+            1, "unique_id", 1, 1, 1, 1, 1, false, 1, 0, 0, 0, "type", "mime_type", "file_name", "thumbnail", "caption", null,
             FileRecord.DownloadStatus.idle.name(), FileRecord.TransferStatus.idle.name(), 0, null
     );
 
@@ -0,0 +1,48 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileRouteHandlerTest {
+
+    // Thu, 01 Jan 2015 00:00:00.500 GMT
+    private final FileMetadataCache.Metadata metadata =
+            new FileMetadataCache.Metadata("/files/a.jpg", 1024, 1420070400500L, "image/jpeg");
+
+    @Test
+    void testIfNoneMatch() {
+        assertTrue(FileRouteHandler.isNotModified(metadata.etag(), null, metadata));
+        assertTrue(FileRouteHandler.isNotModified("\"other\", W/" + metadata.etag(), null, metadata));
+        assertTrue(FileRouteHandler.isNotModified("*", null, metadata));
+        assertFalse(FileRouteHandler.isNotModified("\"other\"", null, metadata));
+        assertFalse(FileRouteHandler.isNotModified("\"other\"", "Thu, 01 Jan 2015 00:00:00 GMT", metadata),
+                "If-Modified-Since should be ignored with If-None-Match");
+    }
+
+    @Test
+    void testIfModifiedSince() {
+        assertTrue(FileRouteHandler.isNotModified(null, "Thu, 01 Jan 2015 00:00:00 GMT", metadata));
+        assertTrue(FileRouteHandler.isNotModified(null, "Fri, 02 Jan 2015 00:00:00 GMT", metadata));
+        assertFalse(FileRouteHandler.isNotModified(null, "Wed, 31 Dec 2014 23:59:59 GMT", metadata));
+        assertFalse(FileRouteHandler.isNotModified(null, "invalid", metadata));
+        assertFalse(FileRouteHandler.isNotModified(null, null, metadata));
+    }
+
+    @Test
+    void testMetadataCacheEvictsLeastRecentlyUsed() {
+        FileMetadataCache cache = new FileMetadataCache(2);
+        cache.put("a", metadata);
+        cache.put("b", metadata);
+        cache.get("a");
+        cache.put("c", metadata);
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"));
+        assertNotNull(cache.get("c"));
+
+        cache.invalidate("a");
+        assertNull(cache.get("a"));
+        assertEquals(1, cache.size());
+    }
+}
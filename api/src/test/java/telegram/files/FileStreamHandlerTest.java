@@ -0,0 +1,156 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.ext.web.Router;
+import org.jooq.lambda.tuple.Tuple;
+import org.jooq.lambda.tuple.Tuple2;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Path;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class FileStreamHandlerTest {
+
+    private static final byte[] CONTENT = "0123456789".getBytes();
+
+    @TempDir
+    Path tempDir;
+
+    /**
+     * A download that writes the rest of the file when it is waited on.
+     */
+    static class PartialSource implements FileStreamHandler.Source {
+        private final Path path;
+
+        private long downloaded;
+
+        final List<Long> windows = new CopyOnWriteArrayList<>();
+
+        PartialSource(Path path, long downloaded) throws IOException {
+            this.path = path;
+            this.downloaded = downloaded;
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.write(CONTENT, 0, (int) downloaded);
+            }
+        }
+
+        @Override
+        public long size() {
+            return CONTENT.length;
+        }
+
+        @Override
+        public String mimeType() {
+            return "video/mp4";
+        }
+
+        @Override
+        public synchronized Future<FileStreamHandler.Part> downloaded(long offset) {
+            return Future.succeededFuture(new FileStreamHandler.Part(path.toString(), Math.max(0, downloaded - offset)));
+        }
+
+        @Override
+        public Future<Void> download(long offset) {
+            windows.add(offset);
+            return Future.succeededFuture();
+        }
+
+        @Override
+        public synchronized Future<Boolean> awaitProgress(long timeout) {
+            try (RandomAccessFile file = new RandomAccessFile(path.toFile(), "rw")) {
+                file.seek(downloaded);
+                file.write(CONTENT, (int) downloaded, CONTENT.length - (int) downloaded);
+            } catch (IOException e) {
+                return Future.failedFuture(e);
+            }
+            downloaded = CONTENT.length;
+            return Future.succeededFuture(true);
+        }
+    }
+
+    @Test
+    void testParseRange() {
+        assertArrayEquals(new long[]{0, 9}, FileStreamHandler.parseRange(null, 10));
+        assertArrayEquals(new long[]{2, 9}, FileStreamHandler.parseRange("bytes=2-", 10));
+        assertArrayEquals(new long[]{2, 5}, FileStreamHandler.parseRange("bytes=2-5", 10));
+        assertArrayEquals(new long[]{2, 9}, FileStreamHandler.parseRange("bytes=2-100", 10));
+        assertArrayEquals(new long[]{7, 9}, FileStreamHandler.parseRange("bytes=-3", 10));
+        assertNull(FileStreamHandler.parseRange("bytes=10-", 10));
+        assertNull(FileStreamHandler.parseRange("bytes=5-2", 10));
+        assertNull(FileStreamHandler.parseRange("bytes=-", 10));
+        assertNull(FileStreamHandler.parseRange("items=0-1", 10));
+        assertNull(FileStreamHandler.parseRange(null, 0));
+    }
+
+    @Test
+    void testStreamPartialFile() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            HttpServer server = listen(vertx, new PartialSource(tempDir.resolve("full.mp4"), 4));
+            HttpClient client = vertx.createHttpClient();
+
+            Tuple2<HttpClientResponse, Buffer> full = get(client, server.actualPort(), null);
+            assertEquals(200, full.v1.statusCode());
+            assertEquals("10", full.v1.getHeader("Content-Length"));
+            assertEquals("0123456789", full.v2.toString(), "Bytes should be sent as they are downloaded");
+        } finally {
+            MessyUtils.await(vertx.close());
+        }
+    }
+
+    @Test
+    void testSeekMovesDownloadWindow() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            PartialSource source = new PartialSource(tempDir.resolve("seek.mp4"), 2);
+            HttpServer server = listen(vertx, source);
+            HttpClient client = vertx.createHttpClient();
+
+            Tuple2<HttpClientResponse, Buffer> range = get(client, server.actualPort(), "bytes=6-");
+            assertEquals(206, range.v1.statusCode());
+            assertEquals("bytes 6-9/10", range.v1.getHeader("Content-Range"));
+            assertEquals("6789", range.v2.toString());
+            assertEquals(List.of(6L), source.windows);
+
+            Tuple2<HttpClientResponse, Buffer> head = get(client, server.actualPort(), "bytes=0-1");
+            assertEquals("01", head.v2.toString());
+            assertEquals(List.of(6L), source.windows, "Downloaded range should not move the window");
+        } finally {
+            MessyUtils.await(vertx.close());
+        }
+    }
+
+    private static HttpServer listen(Vertx vertx, FileStreamHandler.Source source) throws IOException {
+        FileStreamHandler handler = new FileStreamHandler();
+        Router router = Router.router(vertx);
+        router.get("/stream").handler(ctx -> handler.handle(ctx, source));
+        return MessyUtils.await(vertx.createHttpServer().requestHandler(router).listen(0));
+    }
+
+    private static Tuple2<HttpClientResponse, Buffer> get(HttpClient client, int port, String range) throws IOException {
+        RequestOptions options = new RequestOptions()
+                .setMethod(HttpMethod.GET)
+                .setPort(port)
+                .setHost("localhost")
+                .setURI("/stream");
+        if (range != null) {
+            options.putHeader("Range", range);
+        }
+        return MessyUtils.await(client.request(options)
+                .compose(request -> request.send())
+                .compose(response -> response.body().map(body -> Tuple.tuple(response, body))));
+    }
+}
@@ -0,0 +1,156 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Promise;
+import org.junit.jupiter.api.Test;
+
+import java.util.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HistoryScannerTest {
+
+    /**
+     * Every cursor has {@code pages} pages, a page is accepted until the chat holds {@code highWater} messages.
+     */
+    private static class FakeHandler implements HistoryScanner.Handler {
+        private final int pages;
+
+        private final int highWater;
+
+        private final Map<Long, Integer> queued = new HashMap<>();
+
+        private final List<String> checkpoints = new ArrayList<>();
+
+        private final List<Promise<Boolean>> pendingPages = new ArrayList<>();
+
+        private final AtomicInteger inFlight = new AtomicInteger();
+
+        private int maxInFlight;
+
+        private boolean manual;
+
+        private boolean reject;
+
+        private long failedChatId;
+
+        private FakeHandler(int pages, int highWater) {
+            this.pages = pages;
+            this.highWater = highWater;
+        }
+
+        @Override
+        public boolean isFull(HistoryScanner.Cursor cursor) {
+            return queued.getOrDefault(cursor.chatId, 0) >= highWater;
+        }
+
+        @Override
+        public Future<Boolean> scanPage(HistoryScanner.Cursor cursor) {
+            if (reject) {
+                return Future.succeededFuture(false);
+            }
+            if (cursor.chatId == failedChatId) {
+                return Future.failedFuture("search failed");
+            }
+            maxInFlight = Math.max(maxInFlight, inFlight.incrementAndGet());
+            Promise<Boolean> promise = Promise.promise();
+            Future<Boolean> future = promise.future().onComplete(r -> inFlight.decrementAndGet());
+            if (cursor.fromMessageId >= pages) {
+                cursor.completed = true;
+            } else {
+                queued.merge(cursor.chatId, 1, Integer::sum);
+                cursor.fromMessageId++;
+            }
+            if (manual) {
+                pendingPages.add(promise);
+            } else {
+                promise.complete(true);
+            }
+            return future;
+        }
+
+        @Override
+        public void checkpoint(HistoryScanner.Cursor cursor) {
+            checkpoints.add(cursor + "@" + cursor.fromMessageId);
+        }
+    }
+
+    @Test
+    void testScanUntilCompletedWithCheckpoints() {
+        FakeHandler handler = new FakeHandler(2, Integer.MAX_VALUE);
+        HistoryScanner scanner = new HistoryScanner(2, handler);
+        HistoryScanner.Cursor photo = new HistoryScanner.Cursor(1, 1, "photo", 0, false);
+        HistoryScanner.Cursor video = new HistoryScanner.Cursor(1, 1, "video", 0, false);
+
+        assertTrue(scanner.scan(1, List.of(photo, video)).succeeded());
+        assertTrue(photo.completed);
+        assertTrue(video.completed);
+        // 2 pages and the empty page of every cursor
+        assertEquals(6, handler.checkpoints.size());
+        assertTrue(handler.checkpoints.containsAll(List.of("1:1:photo@1", "1:1:photo@2", "1:1:video@1", "1:1:video@2")));
+    }
+
+    @Test
+    void testStopAtHighWaterMark() {
+        FakeHandler handler = new FakeHandler(100, 3);
+        HistoryScanner scanner = new HistoryScanner(1, handler);
+        HistoryScanner.Cursor photo = new HistoryScanner.Cursor(1, 1, "photo", 0, false);
+        HistoryScanner.Cursor other = new HistoryScanner.Cursor(1, 2, "photo", 0, false);
+
+        scanner.scan(1, List.of(photo, other));
+        assertEquals(3, photo.fromMessageId);
+        assertFalse(photo.completed);
+        assertEquals(3, other.fromMessageId, "A full chat should not stop the scan of other chats");
+    }
+
+    @Test
+    void testRejectedPageDoesNotCheckpoint() {
+        FakeHandler handler = new FakeHandler(10, Integer.MAX_VALUE);
+        handler.reject = true;
+        HistoryScanner scanner = new HistoryScanner(1, handler);
+        HistoryScanner.Cursor photo = new HistoryScanner.Cursor(1, 1, "photo", 5, false);
+
+        assertTrue(scanner.scan(1, List.of(photo)).succeeded());
+        assertEquals(5, photo.fromMessageId);
+        assertTrue(handler.checkpoints.isEmpty());
+    }
+
+    @Test
+    void testConcurrencyLimitAndOverlappingScan() {
+        FakeHandler handler = new FakeHandler(1, Integer.MAX_VALUE);
+        handler.manual = true;
+        HistoryScanner scanner = new HistoryScanner(2, handler);
+        List<HistoryScanner.Cursor> cursors = List.of(
+                new HistoryScanner.Cursor(1, 1, "photo", 0, false),
+                new HistoryScanner.Cursor(1, 2, "photo", 0, false),
+                new HistoryScanner.Cursor(1, 3, "photo", 0, false));
+
+        Future<Void> scan = scanner.scan(1, cursors);
+        assertEquals(2, handler.pendingPages.size());
+        assertTrue(scanner.isScanning(1));
+        assertTrue(scanner.scan(1, cursors).succeeded(), "Scan of a busy account should be skipped");
+        assertEquals(2, handler.pendingPages.size());
+
+        while (!handler.pendingPages.isEmpty()) {
+            handler.pendingPages.removeFirst().complete(true);
+        }
+        assertTrue(scan.succeeded());
+        assertEquals(2, handler.maxInFlight);
+        assertTrue(cursors.stream().allMatch(cursor -> cursor.completed));
+        assertFalse(scanner.isScanning(1));
+    }
+
+    @Test
+    void testFailedCursorDoesNotStopOthers() {
+        FakeHandler handler = new FakeHandler(1, Integer.MAX_VALUE);
+        handler.failedChatId = 1;
+        HistoryScanner scanner = new HistoryScanner(1, handler);
+        HistoryScanner.Cursor failed = new HistoryScanner.Cursor(1, 1, "photo", 0, false);
+        HistoryScanner.Cursor other = new HistoryScanner.Cursor(1, 2, "photo", 0, false);
+
+        assertTrue(scanner.scan(1, List.of(failed, other)).succeeded());
+        assertFalse(failed.completed);
+        assertTrue(other.completed);
+    }
+}
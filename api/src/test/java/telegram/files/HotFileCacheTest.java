@@ -0,0 +1,109 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import io.vertx.core.buffer.Buffer;
+import io.vertx.core.http.HttpClient;
+import io.vertx.core.http.HttpClientResponse;
+import io.vertx.core.http.HttpMethod;
+import io.vertx.core.http.HttpServer;
+import io.vertx.core.http.RequestOptions;
+import io.vertx.ext.web.Router;
+import org.jooq.lambda.tuple.Tuple;
+import org.jooq.lambda.tuple.Tuple2;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class HotFileCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    private static FileMetadataCache.Metadata metadata(String path, long size) {
+        return new FileMetadataCache.Metadata(path, size, 1, "image/jpeg");
+    }
+
+    @Test
+    void testByteBudget() {
+        HotFileCache cache = new HotFileCache(100, 250);
+        cache.put("a", metadata("a", 100), Buffer.buffer(new byte[100]));
+        cache.put("b", metadata("b", 100), Buffer.buffer(new byte[100]));
+        assertNotNull(cache.get("a", metadata("a", 100)));
+        cache.put("c", metadata("c", 100), Buffer.buffer(new byte[100]));
+
+        assertNotNull(cache.get("a", metadata("a", 100)));
+        assertNull(cache.get("b", metadata("b", 100)), "Least recently used file should be evicted");
+        assertNotNull(cache.get("c", metadata("c", 100)));
+        assertEquals(200, cache.getStatistics().getLong("size"));
+
+        assertFalse(cache.isCacheable(metadata("d", 101)), "File over the size threshold should not be cached");
+        assertNull(cache.get("a", new FileMetadataCache.Metadata("a", 100, 2, "image/jpeg")),
+                "Changed file should not be served from the cache");
+
+        cache.resize(100, 100);
+        assertEquals(1, cache.getStatistics().getInteger("entries"));
+        assertNull(cache.get("c", metadata("c", 100)), "Least recently used file should be evicted on resize");
+        cache.invalidate("a");
+        assertEquals(0, cache.getStatistics().getLong("size"));
+    }
+
+    @Test
+    void testServeFromMemory() throws Exception {
+        byte[] bytes = "0123456789".getBytes();
+        Path file = Files.write(tempDir.resolve("photo.jpg"), bytes);
+        FileRouteHandler fileRouteHandler = new FileRouteHandler();
+        Vertx vertx = Vertx.vertx();
+        try {
+            Router router = Router.router(vertx);
+            router.get("/file/:uniqueId").handler(ctx -> fileRouteHandler.handle(ctx, ctx.pathParam("uniqueId"),
+                    () -> Future.succeededFuture(Tuple.tuple(file.toString(), "image/jpeg"))));
+            HttpServer server = MessyUtils.await(vertx.createHttpServer().requestHandler(router).listen(0));
+            HttpClient client = vertx.createHttpClient();
+
+            Tuple2<HttpClientResponse, Buffer> first = get(client, server.actualPort(), null);
+            assertEquals(200, first.v1.statusCode());
+            assertEquals("0123456789", first.v2.toString());
+            // Loaded in the background after the first response
+            long deadline = System.currentTimeMillis() + 5000;
+            while (fileRouteHandler.getHotFileCacheStatistics().getInteger("entries") == 0) {
+                assertTrue(System.currentTimeMillis() < deadline, "File should be loaded into the cache");
+                Thread.sleep(10);
+            }
+            Files.write(file, "abcdefghij".getBytes());
+
+            Tuple2<HttpClientResponse, Buffer> full = get(client, server.actualPort(), null);
+            assertEquals("0123456789", full.v2.toString(), "Hot file should be served from memory");
+            Tuple2<HttpClientResponse, Buffer> range = get(client, server.actualPort(), "bytes=2-5");
+            assertEquals(206, range.v1.statusCode());
+            assertEquals("bytes 2-5/10", range.v1.getHeader("Content-Range"));
+            assertEquals("2345", range.v2.toString());
+            Tuple2<HttpClientResponse, Buffer> tail = get(client, server.actualPort(), "bytes=7-");
+            assertEquals("789", tail.v2.toString());
+
+            assertEquals(3, fileRouteHandler.getHotFileCacheStatistics().getLong("hits"));
+            assertEquals(17, fileRouteHandler.getHotFileCacheStatistics().getLong("bytesServed"));
+        } finally {
+            MessyUtils.await(vertx.close());
+        }
+    }
+
+    private static Tuple2<HttpClientResponse, Buffer> get(HttpClient client, int port, String range) throws IOException {
+        RequestOptions options = new RequestOptions()
+                .setMethod(HttpMethod.GET)
+                .setPort(port)
+                .setHost("localhost")
+                .setURI("/file/unique");
+        if (range != null) {
+            options.putHeader("Range", range);
+        }
+        return MessyUtils.await(client.request(options)
+                .compose(request -> request.send())
+                .compose(response -> response.body().map(body -> Tuple.tuple(response, body))));
+    }
+}
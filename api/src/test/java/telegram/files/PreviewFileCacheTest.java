@@ -0,0 +1,81 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class PreviewFileCacheTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testEvictByTotalSize() throws Exception {
+        PreviewFileCache cache = new PreviewFileCache(null, tempDir.resolve("previews"), 250);
+        String a = cache.put("a", source("a.jpg", 100));
+        String b = cache.put("b", source("b.jpg", 100));
+        assertEquals(tempDir.resolve("previews").resolve("a.jpg").toString(), a);
+        assertNotNull(cache.get("a"));
+        cache.put("c", source("c.jpg", 100));
+
+        assertNotNull(cache.get("a"));
+        assertNull(cache.get("b"), "Least recently used preview should be evicted");
+        assertFalse(Files.exists(Path.of(b)));
+        assertEquals(200, cache.size());
+
+        Path large = source("large.jpg", 300);
+        assertEquals(large.toString(), cache.put("large", large), "Preview larger than the capacity should not be copied");
+        assertEquals(200, cache.size());
+
+        cache.resize(100);
+        assertEquals(100, cache.size());
+        assertNull(cache.get("c"));
+    }
+
+    @Test
+    void testLoad() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            PreviewFileCache cache = new PreviewFileCache(vertx, tempDir.resolve("previews"), 1024);
+            Path source = source("photo.jpg", 10);
+            AtomicInteger downloads = new AtomicInteger();
+
+            String path = MessyUtils.await(cache.load("photo", () -> {
+                downloads.incrementAndGet();
+                return Future.succeededFuture(source.toString());
+            }));
+            Files.delete(source);
+            assertEquals(path, MessyUtils.await(cache.load("photo", () -> {
+                downloads.incrementAndGet();
+                return Future.failedFuture("Should not be downloaded again");
+            })));
+            assertEquals(1, downloads.get());
+
+            // Deleted from the disk, downloaded again
+            Files.delete(Path.of(path));
+            Path again = source("photo.jpg", 10);
+            assertEquals(path, MessyUtils.await(cache.load("photo", () -> {
+                downloads.incrementAndGet();
+                return Future.succeededFuture(again.toString());
+            })));
+            assertEquals(2, downloads.get());
+            assertEquals(10, cache.size());
+        } finally {
+            MessyUtils.await(vertx.close());
+        }
+    }
+
+    private Path source(String name, int size) throws Exception {
+        Path path = Files.write(tempDir.resolve(name), new byte[size]);
+        Files.setLastModifiedTime(path, FileTime.fromMillis(0));
+        return path;
+    }
+}
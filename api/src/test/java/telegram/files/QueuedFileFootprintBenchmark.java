@@ -0,0 +1,95 @@
+package telegram.files;
+
+import org.drinkless.tdlib.TdApi;
+
+import java.util.function.Function;
+
+/**
+ * Heap footprint per queued auto download item, full {@link TdApi.Message} compared to {@link QueuedFile}.
+ * <p>
+ * Run with {@code -Xmx1g}, the numbers are rough but stable enough to compare both representations.
+ */
+public class QueuedFileFootprintBenchmark {
+
+    private static final int ITEMS = 50_000;
+
+    // keeps the measured queue reachable until the memory is sampled
+    private static DownloadQueue<?> retained;
+
+    public static void main(String[] args) {
+        long queuedFileBytes = measure(QueuedFile::of);
+        long messageBytes = measure(message -> message);
+        System.out.printf("Items: %d%n", ITEMS);
+        System.out.printf("TdApi.Message: %d bytes per item%n", messageBytes / ITEMS);
+        System.out.printf("QueuedFile:    %d bytes per item%n", queuedFileBytes / ITEMS);
+    }
+
+    private static <T> long measure(Function<TdApi.Message, T> mapper) {
+        retained = null;
+        long before = usedMemory();
+        DownloadQueue<T> queue = new DownloadQueue<>(chatId -> 1);
+        retained = queue;
+        for (int i = 0; i < ITEMS; i++) {
+            TdApi.Message message = message(i);
+            queue.offer(message.chatId, TdApiHelp.getFileUniqueId(message), mapper.apply(message), false);
+        }
+        long after = usedMemory();
+        if (queue.size() != ITEMS) {
+            throw new IllegalStateException("Unexpected queue size: " + queue.size());
+        }
+        return after - before;
+    }
+
+    private static long usedMemory() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+    /**
+     * A typical photo message of a channel: captioned, with entities, minithumbnail and 4 photo sizes.
+     */
+    private static TdApi.Message message(int i) {
+        TdApi.Photo photo = new TdApi.Photo();
+        photo.minithumbnail = new TdApi.Minithumbnail(40, 30, new byte[800]);
+        String[] types = {"s", "m", "x", "y"};
+        photo.sizes = new TdApi.PhotoSize[types.length];
+        for (int j = 0; j < types.length; j++) {
+            TdApi.PhotoSize photoSize = new TdApi.PhotoSize();
+            photoSize.type = types[j];
+            photoSize.photo = file(i * types.length + j);
+            photoSize.width = 320 * (j + 1);
+            photoSize.height = 240 * (j + 1);
+            photoSize.progressiveSizes = new int[]{1000, 5000, 10000, 20000, 40000};
+            photo.sizes[j] = photoSize;
+        }
+
+        TdApi.MessagePhoto content = new TdApi.MessagePhoto();
+        content.photo = photo;
+        content.caption = new TdApi.FormattedText("Photo caption %d with a link https://example.com/%d and some #tags".formatted(i, i),
+                new TdApi.TextEntity[]{
+                        new TdApi.TextEntity(0, 5, new TdApi.TextEntityTypeBold()),
+                        new TdApi.TextEntity(30, 25, new TdApi.TextEntityTypeUrl()),
+                        new TdApi.TextEntity(65, 5, new TdApi.TextEntityTypeHashtag())
+                });
+
+        TdApi.Message message = new TdApi.Message();
+        message.id = i * 1_048_576L;
+        message.chatId = -1000000000000L - i % 10;
+        message.date = 1700000000 + i;
+        message.content = content;
+        return message;
+    }
+
+    private static TdApi.File file(int id) {
+        TdApi.File file = new TdApi.File();
+        file.id = id;
+        file.size = 100_000;
+        file.local = new TdApi.LocalFile("", true, true, false, false, 0, 0, 0);
+        file.remote = new TdApi.RemoteFile("AgACAgUAAxkBAAIB%08dQABHzTmR1vtHPvZ6b2eVf3dAAKrvzEbh0TQVFlW0uL1AAEDAgADeQADNgQ".formatted(id),
+                "AQADq78xG4dE0FR-%08d".formatted(id), false, true, 100_000);
+        return file;
+    }
+}
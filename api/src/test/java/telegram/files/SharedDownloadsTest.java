@@ -0,0 +1,95 @@
+package telegram.files;
+
+import io.vertx.core.Future;
+import io.vertx.core.Vertx;
+import org.junit.jupiter.api.Test;
+import telegram.files.repository.FileRecord;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class SharedDownloadsTest {
+
+    private final SharedDownloads sharedDownloads = SharedDownloads.INSTANCE;
+
+    @Test
+    void testCompleteWaiters() {
+        Future<String> first = sharedDownloads.await("completed");
+        Future<String> second = sharedDownloads.await("completed");
+
+        sharedDownloads.onFileStatusUpdated("completed", FileRecord.DownloadStatus.downloading.name(), null, false);
+        sharedDownloads.onFileStatusUpdated("completed", FileRecord.DownloadStatus.paused.name(), null, false);
+        assertFalse(first.isComplete(), "Paused download may be resumed");
+
+        sharedDownloads.onFileStatusUpdated("completed", FileRecord.DownloadStatus.completed.name(), "/path", false);
+        assertEquals("/path", first.result());
+        assertEquals("/path", second.result());
+    }
+
+    @Test
+    void testAbandonWaiters() {
+        Future<String> removed = sharedDownloads.await("removed");
+        Future<String> error = sharedDownloads.await("error");
+
+        sharedDownloads.onFileStatusUpdated("removed", null, null, true);
+        sharedDownloads.onFileStatusUpdated("error", FileRecord.DownloadStatus.error.name(), null, false);
+        assertTrue(removed.failed());
+        assertTrue(error.failed());
+    }
+
+    @Test
+    void testAbandonPausedDownloadAfterTimeout() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            SharedDownloads timed = new SharedDownloads(vertx, 100);
+            Future<String> resumed = timed.await("resumed");
+            Future<String> paused = timed.await("paused");
+
+            timed.onFileStatusUpdated("resumed", FileRecord.DownloadStatus.paused.name(), null, false);
+            timed.onFileStatusUpdated("paused", FileRecord.DownloadStatus.paused.name(), null, false);
+            timed.onFileStatusUpdated("resumed", FileRecord.DownloadStatus.downloading.name(), null, false);
+            Thread.sleep(300);
+
+            assertTrue(paused.failed(), "Download paused for the timeout should be abandoned");
+            assertFalse(resumed.isComplete(), "Resumed download should still be waited for");
+        } finally {
+            MessyUtils.await(vertx.close());
+        }
+    }
+
+    @Test
+    void testKeepWaitingForDownloadPausedByScheduler() throws Exception {
+        Vertx vertx = Vertx.vertx();
+        try {
+            SharedDownloads timed = new SharedDownloads(vertx, 100);
+            Future<String> throttled = timed.await("throttled");
+            Future<String> failedToResume = timed.await("failedToResume");
+
+            timed.hold("throttled");
+            timed.hold("failedToResume");
+            timed.onFileStatusUpdated("throttled", FileRecord.DownloadStatus.paused.name(), null, false);
+            timed.onFileStatusUpdated("failedToResume", FileRecord.DownloadStatus.paused.name(), null, false);
+            Thread.sleep(300);
+            assertFalse(throttled.isComplete(), "Download paused by the scheduler should be waited for");
+            assertFalse(failedToResume.isComplete(), "Download paused by the scheduler should be waited for");
+
+            timed.unhold("throttled", false);
+            timed.unhold("failedToResume", true);
+            timed.onFileStatusUpdated("throttled", FileRecord.DownloadStatus.downloading.name(), null, false);
+            Thread.sleep(300);
+            assertFalse(throttled.isComplete(), "Resumed download should still be waited for");
+            assertTrue(failedToResume.failed(), "Download still paused after the scheduler should be abandoned");
+        } finally {
+            MessyUtils.await(vertx.close());
+        }
+    }
+
+    @Test
+    void testWaitersAreRemoved() {
+        int waitingSize = sharedDownloads.getWaitingSize();
+        sharedDownloads.await("once");
+        assertEquals(waitingSize + 1, sharedDownloads.getWaitingSize());
+
+        sharedDownloads.onFileStatusUpdated("once", FileRecord.DownloadStatus.idle.name(), null, false);
+        assertEquals(waitingSize, sharedDownloads.getWaitingSize());
+    }
+}
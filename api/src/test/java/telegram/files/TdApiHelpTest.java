@@ -2,8 +2,10 @@ package telegram.files;
 
 import org.drinkless.tdlib.TdApi;
 import org.junit.jupiter.api.Assertions;
+import org.jooq.lambda.tuple.Tuple;
 import org.junit.jupiter.api.Test;
 
+import java.util.Arrays;
 import java.util.Map;
 
 public class TdApiHelpTest {
@@ -37,4 +39,26 @@ public class TdApiHelpTest {
         Assertions.assertInstanceOf(TdApi.SearchMessagesFilterEmpty.class, ((TdApi.SearchChatMessages) function).filter, "function is not equals SearchChatMessages");
     }
 
+    @Test
+    void getPreviewFileIdTest() {
+        TdApi.MessagePhoto content = new TdApi.MessagePhoto();
+        content.photo = new TdApi.Photo();
+        content.photo.sizes = Arrays.stream(new String[]{"m", "x", "y", "w"})
+                .map(type -> {
+                    TdApi.PhotoSize photoSize = new TdApi.PhotoSize();
+                    photoSize.type = type;
+                    photoSize.photo = new TdApi.File();
+                    photoSize.photo.id = type.charAt(0);
+                    return photoSize;
+                })
+                .toArray(TdApi.PhotoSize[]::new);
+        TdApi.Message message = new TdApi.Message();
+        message.content = content;
+        TdApiHelp.PhotoHandler handler = new TdApiHelp.PhotoHandler(message);
+
+        Assertions.assertEquals('x', handler.getPreviewFileId(Tuple.tuple("x")).id);
+        Assertions.assertEquals('y', handler.getPreviewFileId(Tuple.tuple("y")).id, "y is larger than x and w is larger than y");
+        Assertions.assertEquals('w', handler.getPreviewFileId(Tuple.tuple("d")).id);
+        Assertions.assertEquals('m', handler.getPreviewFileId(Tuple.tuple("s")).id, "Smallest size should be used if all are larger");
+    }
 }
@@ -0,0 +1,69 @@
+package telegram.files;
+
+import io.vertx.core.Vertx;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class ThumbnailsTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    void testSnapSize() {
+        assertEquals(128, Thumbnails.snapSize(1));
+        assertEquals(512, Thumbnails.snapSize(300));
+        assertEquals(512, Thumbnails.snapSize(512));
+        assertEquals(2048, Thumbnails.snapSize(2048));
+        assertNull(Thumbnails.snapSize(2049));
+        assertNull(Thumbnails.snapSize(0));
+    }
+
+    @Test
+    void testGenerate() throws Exception {
+        Path source = writeImage("large.png", 3000, 1500);
+        Vertx vertx = Vertx.vertx();
+        try {
+            Thumbnails thumbnails = new Thumbnails(vertx, tempDir.resolve("thumbnails"), 1);
+            String path = MessyUtils.await(thumbnails.get("unique", source.toString(), 512));
+
+            assertEquals(thumbnails.getPath("unique", 512).toString(), path);
+            assertTrue(path.startsWith(tempDir.resolve("thumbnails").toString()));
+            BufferedImage thumbnail = ImageIO.read(Path.of(path).toFile());
+            assertEquals(512, thumbnail.getWidth());
+            assertEquals(256, thumbnail.getHeight());
+
+            Files.delete(source);
+            assertEquals(path, MessyUtils.await(thumbnails.get("unique", source.toString(), 512)),
+                    "Saved thumbnail should be served without the source");
+
+            thumbnails.delete("unique");
+            assertFalse(Files.exists(Path.of(path)));
+        } finally {
+            MessyUtils.await(vertx.close());
+        }
+    }
+
+    @Test
+    void testSmallImageServedAsIs() throws Exception {
+        Path source = writeImage("small.png", 300, 200);
+        Path thumbnail = tempDir.resolve("small_512.jpg");
+
+        assertEquals(source.toString(), Thumbnails.generate(source, thumbnail, 512));
+        assertFalse(Files.exists(thumbnail));
+    }
+
+    private Path writeImage(String name, int width, int height) throws Exception {
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        Path path = tempDir.resolve(name);
+        ImageIO.write(image, "png", path.toFile());
+        return path;
+    }
+}
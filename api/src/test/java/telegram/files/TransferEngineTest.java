@@ -0,0 +1,125 @@
+package telegram.files;
+
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.file.FileAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferEngineTest {
+
+    @TempDir
+    Path tempDir;
+
+    private Path source(int size) throws IOException {
+        byte[] bytes = new byte[size];
+        new Random(size).nextBytes(bytes);
+        return Files.write(tempDir.resolve("source.bin"), bytes);
+    }
+
+    @Test
+    void testMove() throws IOException {
+        Path source = source(1024);
+        byte[] bytes = Files.readAllBytes(source);
+        Path target = tempDir.resolve("dest/sub/target.bin");
+
+        new TransferEngine(false).move(source, target, false, null);
+
+        assertFalse(Files.exists(source));
+        assertArrayEquals(bytes, Files.readAllBytes(target));
+        assertThrows(FileAlreadyExistsException.class,
+                () -> new TransferEngine(false).move(Files.write(source, bytes), target, false, null));
+    }
+
+    @Test
+    void testHardlink() throws IOException {
+        Path source = source(1024);
+        Path target = tempDir.resolve("dest/target.bin");
+        Files.createDirectories(target.getParent());
+        Files.writeString(target, "existing");
+        TransferEngine engine = new TransferEngine(false);
+
+        assertThrows(FileAlreadyExistsException.class, () -> engine.hardlink(source, target, false));
+        assertTrue(engine.hardlink(source, target, true));
+        assertTrue(Files.exists(source), "Source should be kept");
+        assertTrue(Files.isSameFile(source, target));
+        assertFalse(Files.exists(tempDir.resolve("dest/target.bin" + TransferEngine.LINK_SUFFIX)));
+        assertTrue(engine.hardlink(source, target, false), "Linking the same file again should be a no-op");
+    }
+
+    @Test
+    void testReflinkOrNothing() throws IOException {
+        Path source = source(1024);
+        Path target = tempDir.resolve("dest/target.bin");
+
+        if (new TransferEngine(false).reflink(source, target, false)) {
+            assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+        } else {
+            assertFalse(Files.exists(target), "Failed reflink should leave nothing behind");
+        }
+        assertTrue(Files.exists(source), "Source should be kept");
+        assertFalse(Files.exists(tempDir.resolve("dest/target.bin" + TransferEngine.LINK_SUFFIX)));
+    }
+
+    @Test
+    void testCopy() throws IOException {
+        Path source = source(20 * 1024 * 1024);
+        Path target = tempDir.resolve("target.bin");
+        List<Long> progress = new ArrayList<>();
+
+        new TransferEngine(true).copy(source, target, (transferredSize, totalSize) -> progress.add(transferredSize));
+
+        assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+        assertFalse(Files.exists(tempDir.resolve("target.bin" + TransferEngine.PART_SUFFIX)));
+        assertFalse(Files.exists(tempDir.resolve("target.bin" + TransferEngine.JOURNAL_SUFFIX)));
+        assertEquals(20L * 1024 * 1024, progress.getLast());
+    }
+
+    @Test
+    void testResumeFromJournal() throws IOException {
+        Path source = source(1024);
+        byte[] bytes = Files.readAllBytes(source);
+        Path target = tempDir.resolve("target.bin");
+        // Interrupted after 512 bytes, the part file has more bytes than the journal
+        byte[] part = Arrays.copyOf(bytes, 600);
+        Arrays.fill(part, 0, 512, (byte) 0);
+        Files.write(tempDir.resolve("target.bin" + TransferEngine.PART_SUFFIX), part);
+        Files.writeString(tempDir.resolve("target.bin" + TransferEngine.JOURNAL_SUFFIX), JsonObject.of(
+                "source", source.toAbsolutePath().toString(),
+                "size", 1024,
+                "lastModified", Files.getLastModifiedTime(source).toMillis(),
+                "offset", 512).encode());
+
+        new TransferEngine(false).copy(source, target, null);
+
+        byte[] copied = Files.readAllBytes(target);
+        assertEquals(1024, copied.length);
+        assertArrayEquals(new byte[512], Arrays.copyOf(copied, 512), "Journaled bytes should not be copied again");
+        assertArrayEquals(Arrays.copyOfRange(bytes, 512, 1024), Arrays.copyOfRange(copied, 512, 1024));
+    }
+
+    @Test
+    void testJournalOfAnotherSourceIsIgnored() throws IOException {
+        Path source = source(1024);
+        Path target = tempDir.resolve("target.bin");
+        Files.write(tempDir.resolve("target.bin" + TransferEngine.PART_SUFFIX), new byte[512]);
+        Files.writeString(tempDir.resolve("target.bin" + TransferEngine.JOURNAL_SUFFIX), JsonObject.of(
+                "source", source.toAbsolutePath().toString(),
+                "size", 2048,
+                "lastModified", Files.getLastModifiedTime(source).toMillis(),
+                "offset", 512).encode());
+
+        new TransferEngine(false).copy(source, target, null);
+
+        assertArrayEquals(Files.readAllBytes(source), Files.readAllBytes(target));
+    }
+}
@@ -0,0 +1,79 @@
+package telegram.files;
+
+import org.junit.jupiter.api.Test;
+
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+class TransferQueueTest {
+
+    @Test
+    void testDedupeUntilDone() {
+        TransferQueue<String> queue = new TransferQueue<>();
+        assertTrue(queue.offer("/nas", "a", "a"));
+        assertFalse(queue.offer("/nas", "a", "a"));
+        assertFalse(queue.offer("/backup", "a", "a"), "Dedupe should work across destinations");
+
+        TransferQueue.Entry<String> entry = queue.poll(1, 1);
+        assertEquals("a", entry.element());
+        assertFalse(queue.offer("/nas", "a", "a"), "File in progress should not be queued again");
+
+        queue.done(entry);
+        assertTrue(queue.offer("/nas", "a", "a"), "Done file can be queued again");
+    }
+
+    @Test
+    void testLimits() {
+        TransferQueue<String> queue = new TransferQueue<>();
+        for (int i = 0; i < 5; i++) {
+            queue.offer("/nas", "nas-" + i, "nas-" + i);
+        }
+        queue.offer("/backup", "backup-0", "backup-0");
+
+        TransferQueue.Entry<String> nas = queue.poll(3, 1);
+        assertEquals("nas-0", nas.element());
+        assertEquals("backup-0", queue.poll(3, 1).element());
+        assertNull(queue.poll(3, 1), "Destination limit reached");
+
+        queue.done(nas);
+        assertEquals("nas-1", queue.poll(3, 2).element());
+        assertEquals("nas-2", queue.poll(3, 2).element());
+        assertNull(queue.poll(3, 2), "Max active reached");
+        assertEquals(3, queue.getActive());
+        assertEquals(2, queue.size());
+    }
+
+    @Test
+    void testDestinationsTakeTurns() {
+        TransferQueue<String> queue = new TransferQueue<>();
+        for (int i = 0; i < 3; i++) {
+            queue.offer("/nas", "nas-" + i, "nas");
+            queue.offer("/backup", "backup-" + i, "backup");
+        }
+        for (int i = 0; i < 3; i++) {
+            queue.done(assertPoll(queue, "nas"));
+            queue.done(assertPoll(queue, "backup"));
+        }
+        assertNull(queue.poll(10, 10));
+    }
+
+    @Test
+    void testRemoveIf() {
+        TransferQueue<String> queue = new TransferQueue<>();
+        queue.offer("/nas", "a", "chat-1");
+        queue.offer("/nas", "b", "chat-2");
+        queue.offer("/backup", "c", "chat-1");
+        queue.removeIf("chat-1"::equals);
+
+        assertEquals(Map.of("/nas", 1), queue.getDepths());
+        assertFalse(queue.contains("a"));
+        assertTrue(queue.offer("/backup", "c", "chat-1"));
+    }
+
+    private static TransferQueue.Entry<String> assertPoll(TransferQueue<String> queue, String expected) {
+        TransferQueue.Entry<String> entry = queue.poll(10, 10);
+        assertEquals(expected, entry.element());
+        return entry;
+    }
+}
@@ -12,11 +12,15 @@ import java.io.File;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.util.Arrays;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 import java.util.function.Consumer;
 
 import static org.junit.jupiter.api.Assertions.*;
 import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.eq;
 import static org.mockito.Mockito.*;
 
 class TransferTest {
@@ -66,6 +70,43 @@ class TransferTest {
         assertFalse(Files.exists(Paths.get(sourcePath)));
     }
 
+    @Test
+    void testTransferModeHardlink(@TempDir Path tempDir) throws Exception {
+        String fileName = "source.txt";
+        String sourcePath = mockWaitingTransfer(tempDir, fileName);
+        transfer.transferMode = Transfer.TransferMode.HARDLINK;
+
+        transfer.transfer(mockFileRecord);
+
+        Path expectedDestination = Path.of(transfer.destination).resolve("456").resolve("789").resolve(fileName);
+        assertTrue(Files.exists(Paths.get(sourcePath)), "Source should be kept");
+        assertTrue(Files.isSameFile(Paths.get(sourcePath), expectedDestination));
+        verify(mockStatusUpdater, times(1)).accept(argThat(
+                status -> status.transferStatus() == FileRecord.TransferStatus.completed
+        ));
+    }
+
+    @Test
+    void testTransferToTarget(@TempDir Path tempDir) throws Exception {
+        String fileName = "source.txt";
+        String sourcePath = mockWaitingTransfer(tempDir, fileName);
+        TransferTarget target = mock(TransferTarget.class);
+        when(target.exists("prefix/456/789/source.txt")).thenReturn(true);
+        when(target.getUri(any())).thenAnswer(invocation -> "s3://bucket/" + invocation.getArgument(0));
+        transfer.target = target;
+        transfer.destination = "prefix";
+        transfer.duplicationPolicy = DuplicationPolicy.RENAME;
+
+        transfer.transfer(mockFileRecord);
+
+        verify(target).upload(eq(Paths.get(sourcePath)), eq("prefix/456/789/source-1.txt"), any());
+        assertFalse(Files.exists(Paths.get(sourcePath)));
+        verify(mockStatusUpdater, times(1)).accept(argThat(
+                status -> status.transferStatus() == FileRecord.TransferStatus.completed
+                          && "s3://bucket/prefix/456/789/source-1.txt".equals(status.localPath())
+        ));
+    }
+
     @Test
     void testDuplicationPolicySkip(@TempDir Path tempDir) {
         String fileName = "source.txt";
@@ -110,6 +151,43 @@ class TransferTest {
                 .anyMatch(f -> f.getName().contains("source-1.txt")));
     }
 
+    @Test
+    void testConcurrentTransfersOfSameName(@TempDir Path tempDir) throws Exception {
+        transfer.duplicationPolicy = DuplicationPolicy.RENAME;
+        int count = 8;
+        List<FileRecord> fileRecords = new ArrayList<>();
+        for (int i = 0; i < count; i++) {
+            Path source = Files.createDirectories(tempDir.resolve("source" + i)).resolve("source.txt");
+            Files.writeString(source, "content " + i);
+            FileRecord fileRecord = mock(FileRecord.class);
+            when(fileRecord.id()).thenReturn(i);
+            when(fileRecord.localPath()).thenReturn(source.toString());
+            when(fileRecord.telegramId()).thenReturn(456L);
+            when(fileRecord.chatId()).thenReturn(789L);
+            fileRecords.add(fileRecord);
+        }
+
+        ExecutorService executor = Executors.newFixedThreadPool(count);
+        try {
+            List<Future<FileRecord.TransferStatus>> statuses = new ArrayList<>();
+            for (FileRecord fileRecord : fileRecords) {
+                statuses.add(executor.submit(() -> transfer.transfer(fileRecord)));
+            }
+            for (Future<FileRecord.TransferStatus> status : statuses) {
+                assertEquals(FileRecord.TransferStatus.completed, status.get());
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        // Every file is kept under its own name
+        Set<String> contents = new HashSet<>();
+        for (File file : FileUtil.ls(Path.of(transfer.destination).resolve("456").resolve("789").toString())) {
+            contents.add(FileUtil.readUtf8String(file));
+        }
+        assertEquals(count, contents.size());
+    }
+
     @Test
     void testTransferError(@TempDir Path tempDir) {
         // Force an error by providing an invalid path
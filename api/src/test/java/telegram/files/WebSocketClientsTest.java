@@ -0,0 +1,115 @@
+package telegram.files;
+
+import io.vertx.core.Handler;
+import io.vertx.core.http.ServerWebSocket;
+import io.vertx.core.json.JsonObject;
+import org.junit.jupiter.api.Test;
+import org.mockito.ArgumentCaptor;
+
+import java.util.List;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.Mockito.*;
+
+class WebSocketClientsTest {
+
+    private final TelegramVerticle account = new TelegramVerticle("account-1");
+
+    private final TelegramVerticle other = new TelegramVerticle("account-2");
+
+    private static JsonObject fileEvent(int fileId, long downloadedSize) {
+        return JsonObject.of("type", EventPayload.TYPE_FILE,
+                "data", JsonObject.of("file", JsonObject.of("id", fileId, "downloadedSize", downloadedSize)));
+    }
+
+    private static JsonObject statusEvent(String uniqueId) {
+        return JsonObject.of("type", EventPayload.TYPE_FILE_STATUS, "data", JsonObject.of("uniqueId", uniqueId));
+    }
+
+    private static ServerWebSocket socket(AtomicBoolean writeQueueFull) {
+        ServerWebSocket socket = mock(ServerWebSocket.class);
+        when(socket.writeQueueFull()).thenAnswer(invocation -> writeQueueFull.get());
+        return socket;
+    }
+
+    private static List<String> written(ServerWebSocket socket, int times) {
+        ArgumentCaptor<String> messages = ArgumentCaptor.forClass(String.class);
+        verify(socket, times(times)).writeTextMessage(messages.capture());
+        return messages.getAllValues();
+    }
+
+    @Test
+    void testPublishToLinkedSockets() {
+        WebSocketClients clients = new WebSocketClients();
+        ServerWebSocket tab1 = socket(new AtomicBoolean());
+        ServerWebSocket tab2 = socket(new AtomicBoolean());
+        ServerWebSocket unlinked = socket(new AtomicBoolean());
+        clients.link("session", account);
+        clients.add("session", tab1);
+        clients.add("session", tab2);
+        WebSocketClients.Client client = clients.add("other", unlinked);
+
+        clients.publish(account, statusEvent("a"));
+        assertEquals(List.of(statusEvent("a").encode()), written(tab1, 1));
+        assertEquals(List.of(statusEvent("a").encode()), written(tab2, 1));
+        verify(unlinked, never()).writeTextMessage(any(String.class));
+
+        clients.link("other", other);
+        clients.publish(other, statusEvent("b"));
+        assertEquals(List.of(statusEvent("b").encode()), written(unlinked, 1));
+
+        clients.remove(client);
+        clients.publish(other, statusEvent("c"));
+        written(unlinked, 1);
+
+        clients.unlink(account);
+        clients.publish(account, statusEvent("d"));
+        written(tab1, 1);
+        assertEquals(2, clients.size());
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    void testSlowSocketKeepsLatestProgress() {
+        WebSocketClients clients = new WebSocketClients();
+        AtomicBoolean writeQueueFull = new AtomicBoolean(true);
+        ServerWebSocket slow = socket(writeQueueFull);
+        clients.link("session", account);
+        clients.add("session", slow);
+        ArgumentCaptor<Handler<Void>> drainHandler = ArgumentCaptor.forClass(Handler.class);
+        verify(slow).drainHandler(drainHandler.capture());
+
+        clients.publish(account, fileEvent(1, 10));
+        clients.publish(account, statusEvent("a"));
+        clients.publish(account, fileEvent(2, 10));
+        clients.publish(account, fileEvent(1, 20));
+        verify(slow, never()).writeTextMessage(any(String.class));
+
+        writeQueueFull.set(false);
+        drainHandler.getValue().handle(null);
+        assertEquals(List.of(statusEvent("a").encode(), fileEvent(2, 10).encode(), fileEvent(1, 20).encode()),
+                written(slow, 3), "Superseded progress should be dropped and other events kept in order");
+    }
+
+    @Test
+    void testTooSlowSocketIsClosed() {
+        WebSocketClients clients = new WebSocketClients();
+        ServerWebSocket slow = socket(new AtomicBoolean(true));
+        clients.link("session", account);
+        clients.add("session", slow);
+
+        for (int i = 0; i <= WebSocketClients.MAX_PENDING_EVENTS; i++) {
+            clients.publish(account, statusEvent("file-" + i));
+        }
+        verify(slow).close();
+    }
+
+    @Test
+    void testSupersedeKey() {
+        assertEquals("file-1", WebSocketClients.supersedeKey(fileEvent(1, 10)));
+        assertEquals("download", WebSocketClients.supersedeKey(JsonObject.of("type", EventPayload.TYPE_FILE_DOWNLOAD)));
+        assertNull(WebSocketClients.supersedeKey(statusEvent("a")));
+    }
+}
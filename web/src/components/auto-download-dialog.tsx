@@ -29,6 +29,8 @@ import {
   DuplicationPolicies,
   type DuplicationPolicy,
   type FileType,
+  type TransferMode,
+  TransferModes,
   TransferPolices,
   type TransferPolicy,
   type TransferRule,
@@ -576,6 +578,106 @@ function AutoDownloadRule({ value, onChange }: AutoDownloadRuleProps) {
                 />
               </div>
 
+              <div className="flex flex-col space-y-2">
+                <Label htmlFor="transfer-mode">Transfer Mode</Label>
+                <PolicySelect
+                  policyType="mode"
+                  value={value.transferRule?.transferMode ?? "MOVE"}
+                  onChange={(mode) =>
+                    handleTransferRuleChange({
+                      transferMode: mode as TransferMode,
+                    })
+                  }
+                />
+              </div>
+
+              <div className="rounded-md border p-4">
+                <div className="flex items-center justify-between">
+                  <Label htmlFor="transfer-s3">S3 Object Storage</Label>
+                  <Switch
+                    id="transfer-s3"
+                    checked={!!value.transferRule?.s3}
+                    onCheckedChange={(checked) =>
+                      handleTransferRuleChange({
+                        s3: checked
+                          ? {
+                              endpoint: "",
+                              bucket: "",
+                              accessKey: "",
+                              secretKey: "",
+                              pathStyle: true,
+                            }
+                          : undefined,
+                      })
+                    }
+                  />
+                </div>
+                <p className="mt-2 text-xs text-muted-foreground">
+                  Upload files to an S3-compatible object storage, the
+                  destination folder is used as the key prefix.
+                </p>
+                {value.transferRule?.s3 && (
+                  <div className="mt-4 flex flex-col space-y-2">
+                    {(
+                      [
+                        ["endpoint", "Endpoint, e.g. http://minio:9000"],
+                        ["region", "Region, default us-east-1"],
+                        ["bucket", "Bucket"],
+                        ["accessKey", "Access Key"],
+                        ["secretKey", "Secret Key"],
+                      ] as const
+                    ).map(([field, placeholder]) => (
+                      <Input
+                        key={field}
+                        type={field === "secretKey" ? "password" : "text"}
+                        className="w-full"
+                        placeholder={placeholder}
+                        value={value.transferRule?.s3?.[field] ?? ""}
+                        onChange={(e) =>
+                          value.transferRule?.s3 &&
+                          handleTransferRuleChange({
+                            s3: {
+                              ...value.transferRule.s3,
+                              [field]: e.target.value,
+                            },
+                          })
+                        }
+                      />
+                    ))}
+                    <Input
+                      type="number"
+                      className="w-full"
+                      placeholder="Part size in MB, default 16"
+                      value={value.transferRule.s3.partSize ?? ""}
+                      onChange={(e) =>
+                        value.transferRule?.s3 &&
+                        handleTransferRuleChange({
+                          s3: {
+                            ...value.transferRule.s3,
+                            partSize: Number(e.target.value) || undefined,
+                          },
+                        })
+                      }
+                    />
+                    <div className="flex items-center justify-between">
+                      <Label htmlFor="transfer-s3-path-style">
+                        Path Style Access
+                      </Label>
+                      <Switch
+                        id="transfer-s3-path-style"
+                        checked={value.transferRule.s3.pathStyle}
+                        onCheckedChange={(checked) =>
+                          value.transferRule?.s3 &&
+                          handleTransferRuleChange({
+                            s3: { ...value.transferRule.s3, pathStyle: checked },
+                          })
+                        }
+                      />
+                    </div>
+                  </div>
+                )}
+              </div>
+
               <div className="rounded-md border p-4">
                 <div className="flex items-center justify-between">
                   <Label htmlFor="transfer-history">Transfer History</Label>
@@ -601,7 +703,7 @@ function AutoDownloadRule({ value, onChange }: AutoDownloadRuleProps) {
 }
 
 const PolicyLegends: Record<
-  TransferPolicy | DuplicationPolicy,
+  TransferPolicy | DuplicationPolicy | TransferMode,
   {
     title: string;
     description: string | React.ReactNode;
@@ -656,10 +758,25 @@ const PolicyLegends: Record<
     description:
       "Calculate the hash (md5) of the file and compare with the existing file, if the hash is the same, delete the original file and set the local path to the existing file, otherwise, move the file",
   },
+  MOVE: {
+    title: "Move",
+    description:
+      "Move the file to the destination folder, the file is removed from the telegram files directory.",
+  },
+  HARDLINK: {
+    title: "Hardlink",
+    description:
+      "Create a hard link in the destination folder, the file stays in the telegram files directory without taking extra space. Falls back to move if the destination is on another file system.",
+  },
+  REFLINK: {
+    title: "Reflink",
+    description:
+      "Create a copy-on-write clone in the destination folder (btrfs, xfs, apfs), the file stays in the telegram files directory. Falls back to move if the file system does not support it.",
+  },
 };
 
 interface PolicySelectProps {
-  policyType: "transfer" | "duplication";
+  policyType: "transfer" | "duplication" | "mode";
   value?: string;
   onChange: (value: string) => void;
 }
@@ -667,11 +784,17 @@ interface PolicySelectProps {
 function PolicySelect({ policyType, value, onChange }: PolicySelectProps) {
   const [open, setOpen] = useState(false);
   const polices =
-    policyType === "transfer" ? TransferPolices : DuplicationPolicies;
+    policyType === "transfer"
+      ? TransferPolices
+      : policyType === "mode"
+        ? TransferModes
+        : DuplicationPolicies;
   const [peekedPolicy, setPeekedPolicy] = useState<string>(value ?? polices[0]);
 
   const peekPolicyLegend = useMemo(() => {
-    return PolicyLegends[peekedPolicy as TransferPolicy | DuplicationPolicy];
+    return PolicyLegends[
+      peekedPolicy as TransferPolicy | DuplicationPolicy | TransferMode
+    ];
   }, [peekedPolicy]);
 
   return (
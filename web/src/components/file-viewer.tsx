@@ -155,7 +155,8 @@ export default function FileViewer({
                   <DialogTitle>File Viewer</DialogTitle>
                 </VisuallyHidden>
                 {file.type === "video" &&
-                file.downloadStatus === "completed" ? (
+                file.downloadStatus !== "idle" &&
+                file.downloadStatus !== "error" ? (
                   <VideoPreview file={file} />
                 ) : (
                   <PhotoPreview file={file} />
@@ -162,7 +162,8 @@ export default function FileDrawer({
                   </Button>
                 </div>
                 {file.type === "video" &&
-                file.downloadStatus === "completed" ? (
+                file.downloadStatus !== "idle" &&
+                file.downloadStatus !== "error" ? (
                   <VideoPreview file={file} />
                 ) : (
                   <PhotoPreview file={file} className="h-full" />
@@ -26,9 +26,12 @@ interface PhotoPreviewProps {
 export default function PhotoPreview({ className, file }: PhotoPreviewProps) {
   const [viewportHeight, setViewportHeight] = useState(0);
   const [error, setError] = useState(false);
+  // Preview sized photo or video thumbnail downloaded on demand, before the file itself is downloaded
   const src =
     !file.localPath || file.type === "video"
-      ? `data:image/jpeg;base64,${file.thumbnail}`
+      ? file.type === "photo" || file.type === "video"
+        ? `${getApiUrl()}/telegram/${file.telegramId}/chat/${file.chatId}/message/${file.messageId}/preview`
+        : `data:image/jpeg;base64,${file.thumbnail}`
       : `${getApiUrl()}/${file.telegramId}/file/${file.uniqueId}`;
 
   useEffect(() => {
@@ -55,6 +58,11 @@ export default function PhotoPreview({ className, file }: PhotoPreviewProps) {
     const maxHeight = viewportHeight;
     const calculatedHeight = Math.min(file.extra.height, maxHeight);
     const calculatedWidth = calculatedHeight * aspectRatio;
+    // Load a thumbnail large enough for the rendered size instead of the original
+    const size = Math.ceil(
+      Math.max(calculatedWidth, calculatedHeight) *
+        (window.devicePixelRatio || 1),
+    );
 
     return (
       <div
@@ -62,7 +70,7 @@ export default function PhotoPreview({ className, file }: PhotoPreviewProps) {
         style={{ maxHeight: `${maxHeight}px` }}
       >
         <Image
-          src={src}
+          src={file.type === "video" || size <= 0 ? src : `${src}?size=${size}`}
           placeholder="blur"
           unoptimized={true}
           blurDataURL={`data:image/jpeg;base64,${file.thumbnail}`}
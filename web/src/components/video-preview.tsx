@@ -329,7 +329,8 @@ const VideoPreview = ({
   const [isPreviewReady, setIsPreviewReady] = useState(false);
   const [error, setError] = useState(false);
 
-  const url = `${getApiUrl()}/${file.telegramId}/file/${file.uniqueId}`;
+  // Served while downloading, the download follows the playback position
+  const url = `${getApiUrl()}/${file.telegramId}/file/${file.uniqueId}/stream`;
 
   useEffect(() => {
     const video = videoRef.current;
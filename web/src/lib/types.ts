@@ -152,15 +152,41 @@ export const DuplicationPolicies = [
 ] as const;
 export type DuplicationPolicy = (typeof DuplicationPolicies)[number];
 
+export const TransferModes = ["MOVE", "HARDLINK", "REFLINK"] as const;
+export type TransferMode = (typeof TransferModes)[number];
+
+export type S3Config = {
+  endpoint: string;
+  region?: string;
+  bucket: string;
+  accessKey: string;
+  secretKey: string;
+  pathStyle: boolean;
+  partSize?: number;
+  concurrency?: number;
+};
+
 export type TransferRule = {
   transferHistory: boolean;
   destination: string;
   transferPolicy: TransferPolicy;
   duplicationPolicy: DuplicationPolicy;
+  fsync?: boolean;
+  transferMode?: TransferMode;
+  s3?: S3Config;
 };
 
 export type AutoDownloadRule = {
   query: string;
   fileTypes: Array<Exclude<FileType, "media">>;
   transferRule?: TransferRule;
+  minSize?: number;
+  maxSize?: number;
+  mimeTypes?: string[];
+  extensions?: string[];
+  fileNamePattern?: string;
+  startDate?: number;
+  endDate?: number;
+  minWidth?: number;
+  minHeight?: number;
 };